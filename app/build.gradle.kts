@@ -37,6 +37,10 @@ android {
 
         // 第三個參數必須是可直接進入 Java 原始碼的字面量：用雙引號包起來
         buildConfigField("String", "OPENAI_API_KEY", "\"$openaiKey\"")
+
+        // AI_BACKEND=local → 使用本機假模型（LocalLlmBackend），不需網路與 API key，離線壓測用
+        val aiBackend = props.getProperty("AI_BACKEND") ?: "openai"
+        buildConfigField("String", "AI_BACKEND", "\"$aiBackend\"")
     }
 
     buildTypes {
@@ -48,6 +52,14 @@ android {
             )
         }
     }
+    testOptions {
+        // JVM 單元測試中 android.util.Log 等呼叫回傳預設值，不丟 "not mocked"
+        unitTests.isReturnDefaultValues = true
+        // 計時比較的測試預設略過（CI 負載高時不可靠）；./gradlew test -Painote.bench=true 才跑
+        unitTests.all {
+            it.systemProperty("ainote.bench", project.findProperty("ainote.bench")?.toString() ?: "false")
+        }
+    }
     compileOptions {
         sourceCompatibility = JavaVersion.VERSION_11
         targetCompatibility = JavaVersion.VERSION_11
@@ -61,8 +73,11 @@ dependencies {
     implementation(libs.activity)
     implementation(libs.constraintlayout)
     implementation(libs.firebase.auth)
-    implementation(libs.room.compiler)
+    implementation(libs.room.runtime)
+    annotationProcessor(libs.room.compiler)
     testImplementation(libs.junit)
+    testImplementation("com.squareup.okhttp3:mockwebserver:4.11.0")
+    testImplementation("org.json:json:20231013")
     androidTestImplementation(libs.ext.junit)
     androidTestImplementation(libs.espresso.core)
     implementation("com.google.android.material:material:1.9.0")
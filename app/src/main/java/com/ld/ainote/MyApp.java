@@ -6,6 +6,11 @@ import android.util.Log;
 import com.google.firebase.FirebaseApp;
 import com.google.firebase.firestore.FirebaseFirestore;
 import com.google.firebase.firestore.FirebaseFirestoreSettings;
+import com.ld.ainote.data.outbox.WriteOutbox;
+import com.ld.ainote.net.AiResultCache;
+import com.ld.ainote.net.AiService;
+import com.ld.ainote.net.CloudFunctionClient;
+import com.ld.ainote.net.LocalLlmBackend;
 
 public class MyApp extends Application {
     @Override
@@ -20,5 +25,21 @@ public class MyApp extends Application {
                 .setPersistenceEnabled(true)
                 .build();
         FirebaseFirestore.getInstance().setFirestoreSettings(settings);
+
+        // 離線寫入 outbox：啟動時先把上次沒送出的補送
+        WriteOutbox.init(this);
+
+        // AI 結果磁碟快取（同樣的選取與設定不再重新呼叫 OpenAI）
+        AiResultCache.init(this);
+
+        // local.properties 設 AI_BACKEND=local：改用本機假模型（離線壓測 / 量測端到端延遲）
+        if ("local".equals(BuildConfig.AI_BACKEND)) {
+            AiService.setBackend(LocalLlmBackend.realistic());
+            Log.w("MyApp", "AI backend = " + LocalLlmBackend.MODEL);
+        }
+
+        // 斷路器狀態變化記到 log（之後可改接 metrics）
+        CloudFunctionClient.get().setBreakerListener((endpoint, from, to) ->
+                Log.w("CircuitBreaker", endpoint + " " + from + " -> " + to));
     }
 }
@@ -516,13 +516,17 @@ import androidx.recyclerview.widget.RecyclerView;
 import com.google.android.material.button.MaterialButton;
 import com.google.android.material.textfield.TextInputEditText;
 import com.google.firebase.auth.FirebaseAuth;
-import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.FirebaseFirestore;
 import com.google.firebase.firestore.ListenerRegistration;
 import com.ld.ainote.adapters.BlockAdapter;
+import com.ld.ainote.data.BlockListCache;
 import com.ld.ainote.data.BlockRepository;
 import com.ld.ainote.data.FriendRepository;
+import com.ld.ainote.data.KeyedSerialExecutor;
 import com.ld.ainote.data.NoteRepository;
+import com.ld.ainote.data.outbox.OutboxEntry;
+import com.ld.ainote.data.outbox.WriteOutbox;
+import com.ld.ainote.models.BlockOp;
 import com.ld.ainote.models.Friend;
 import com.ld.ainote.models.Note;
 import com.ld.ainote.models.NoteBlock;
@@ -530,8 +534,9 @@ import com.ld.ainote.utils.HighlightUtils;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Map;
 
 public class NoteEditActivity extends AppCompatActivity {
 
@@ -545,8 +550,43 @@ public class NoteEditActivity extends AppCompatActivity {
     private RecyclerView rvBlocks;
     private BlockAdapter blockAdapter;
     private BlockRepository blockRepo;
-    private ListenerRegistration blocksReg;
     private Handler lockUiTicker;
+    // blocks 以 listBlocks 增量同步（只抓上次 cursor 之後的變動）；
+    // Firestore 即時監聽只當「有變動」的訊號，開啟時與每次有變動才抓一次
+    private ListenerRegistration blocksReg;
+    private boolean blocksLoading, blocksStale;
+    private boolean firstBlockRequested;
+
+    // 離線暫存的 block 更新：送達才放掉草稿；被伺服器拒絕（版本衝突 / 被鎖）就把文字放回編輯區
+    private final WriteOutbox.Listener outboxListener = new WriteOutbox.Listener() {
+        @Override
+        public void onRejected(@NonNull OutboxEntry entry, @NonNull Exception error) {
+            runOnUiThread(() -> {
+                if (parkOwnBlockEdit(entry)) {
+                    Toast.makeText(NoteEditActivity.this,
+                            "有一段離線變更未能同步（" + error.getMessage() + "），已放回編輯區，請確認後重新儲存",
+                            Toast.LENGTH_LONG).show();
+                } else {
+                    Toast.makeText(NoteEditActivity.this,
+                            "離線變更未能同步（" + entry.kind + "）：" + error.getMessage(), Toast.LENGTH_LONG).show();
+                }
+            });
+        }
+
+        @Override
+        public void onDelivered(@NonNull OutboxEntry entry) {
+            if (!isOwnBlockEdit(entry)) return;
+            runOnUiThread(() -> {
+                String blockId = entry.blockId();
+                String sent = entry.bodyString("text");
+                // 送出後又繼續編輯的草稿要留著
+                if (sent != null && sent.equals(blockAdapter.draftOf(blockId))) blockAdapter.clearDraft(blockId);
+                settleParked(blockId);
+            });
+        }
+    };
+    // 被拒絕、內容已放回草稿的 outbox 寫入；同一段重新存成功後就從 outbox 移除
+    private final Map<String, List<OutboxEntry>> parkedEdits = new HashMap<>();
 
     // ====== 其他 UI ======
     private MaterialButton btnSave, btnDelete, btnShare, btnToggleHighlights;
@@ -712,52 +752,81 @@ public class NoteEditActivity extends AppCompatActivity {
         btnShare.setOnClickListener(v -> openShareDialog(iAmOwner));
     }
 
-    // ======================= Lifecycle：監聽 blocks + UI 倒數 =======================
+    // ======================= Lifecycle：同步 blocks + UI 倒數 =======================
 
     @Override
     protected void onStart() {
         super.onStart();
-        startBlocksListener();
+        startBlocksSync();
+        WriteOutbox outbox = WriteOutbox.get();
+        if (outbox != null) {
+            outbox.addListener(outboxListener);
+            restoreParkedEdits(outbox);
+        }
         if (lockUiTicker == null) {
             lockUiTicker = new Handler(Looper.getMainLooper());
             lockUiTicker.post(lockClockTick);
         }
     }
 
-    private void startBlocksListener() {
-        if (blocksReg != null) return;
+    private void startBlocksSync() {
         if (TextUtils.isEmpty(ownerId) || TextUtils.isEmpty(noteId)) return;
-
+        // 先顯示上次離開時的快取，再只抓之後的變動
+        List<NoteBlock> cached = BlockListCache.shared().peek(KeyedSerialExecutor.key(ownerId, noteId));
+        if (!cached.isEmpty()) showBlocks(cached);
+        if (blocksReg != null) return;
+        // 第一次回呼（剛掛上）就是「開啟時」那一次；之後每次有 block 新增 / 修改 / 刪除 / 鎖變動才再抓
         blocksReg = FirebaseFirestore.getInstance()
                 .collection("users").document(ownerId)
                 .collection("notes").document(noteId)
                 .collection("blocks")
-                .orderBy("index")
                 .addSnapshotListener((snap, e) -> {
                     if (e != null || snap == null) return;
+                    refreshBlocks();
+                });
+    }
 
-                    List<NoteBlock> list = new ArrayList<>();
-                    for (DocumentSnapshot d : snap.getDocuments()) {
-                        NoteBlock b = d.toObject(NoteBlock.class);
-                        if (b == null) continue;
-                        b.setId(d.getId());
-                        list.add(b);
-                    }
+    /** 增量抓一次（合併進 BlockListCache）；上一次還沒回來就等它回來後再抓 */
+    private void refreshBlocks() {
+        if (blocksReg == null) return;
+        if (blocksLoading) {
+            blocksStale = true;
+            return;
+        }
+        blocksLoading = true;
+        blocksStale = false;
+        blockRepo.listBlocks(ownerId, noteId).addOnCompleteListener(this, t -> {
+            blocksLoading = false;
+            if (t.isSuccessful() && t.getResult() != null) {
+                onBlocksLoaded(t.getResult());
+            } else if (t.getException() != null) {
+                Log.d("NoteEditActivity", "同步區塊失敗：" + t.getException().getMessage());
+            }
+            if (blocksStale) refreshBlocks();
+        });
+    }
 
-                    // 若空 → 一次性補第一個 block（把舊 content 搬進來；沒有就空字串）
-                    if (list.isEmpty()) {
-                        String initialText = (current != null && !TextUtils.isEmpty(current.getContent()))
-                                ? current.getContent() : "";
-                        blockRepo.createBlock(ownerId, noteId, 0, "text", initialText)
-                                .addOnFailureListener(err ->
-                                        Toast.makeText(NoteEditActivity.this, "自動建立區塊失敗：" + err.getMessage(), Toast.LENGTH_LONG).show());
-                        return; // 等下一輪 snapshot 回來
-                    }
+    private void onBlocksLoaded(List<NoteBlock> list) {
+        // 若空 → 一次性補第一個 block（把舊 content 搬進來；沒有就空字串）
+        if (list.isEmpty()) {
+            if (firstBlockRequested) return;
+            firstBlockRequested = true;
+            String initialText = (current != null && !TextUtils.isEmpty(current.getContent()))
+                    ? current.getContent() : "";
+            blockRepo.createBlock(ownerId, noteId, 0, "text", initialText)
+                    .addOnFailureListener(err -> {
+                        firstBlockRequested = false;
+                        Toast.makeText(NoteEditActivity.this, "自動建立區塊失敗：" + err.getMessage(), Toast.LENGTH_LONG).show();
+                    });
+            return; // 建好後監聽會再觸發一次同步
+        }
+        showBlocks(list);
+    }
 
-                    blockAdapter.submitSorted(list);
-                    refreshHighlightPanel();
-                    updateToggleText();
-                });
+    private void showBlocks(List<NoteBlock> list) {
+        blockAdapter.submitSorted(list);
+        refreshHighlightPanel();
+        updateToggleText();
     }
 
     private final Runnable lockClockTick = new Runnable() {
@@ -770,10 +839,13 @@ public class NoteEditActivity extends AppCompatActivity {
     @Override
     protected void onStop() {
         super.onStop();
+        WriteOutbox outbox = WriteOutbox.get();
+        if (outbox != null) outbox.removeListener(outboxListener);
         if (blocksReg != null) {
             blocksReg.remove();
             blocksReg = null;
         }
+        blocksLoading = false; // 綁在 Activity 上的 listener 在 onStop 後不會再回呼
         if (lockUiTicker != null) {
             lockUiTicker.removeCallbacksAndMessages(null);
             lockUiTicker = null;
@@ -869,42 +941,111 @@ public class NoteEditActivity extends AppCompatActivity {
         // 取出所有變更的 drafts
         List<BlockAdapter.PendingEdit> edits = blockAdapter.collectPendingEdits();
 
-        if (edits.isEmpty()) {
-            // 沒有內容變更也要釋放我持有的鎖
-            releaseAllMyLocks();
-            Toast.makeText(this, "已儲存（無內容變更）並釋放鎖", Toast.LENGTH_SHORT).show();
+        // 更新 + 釋放我持有的鎖 → 組成一批，一次送出
+        List<BlockOp> ops = new ArrayList<>();
+        for (BlockAdapter.PendingEdit pe : edits) {
+            NoteBlock b = pe.block;
+            ops.add(BlockOp.update(b.getId(), pe.newText, b.getType(), b.getIndex(), b.getVersion()));
+        }
+        for (NoteBlock b : blockAdapter.current()) {
+            if (myUid.equals(b.getLockHolder()) && !lockExpired(b)) {
+                ops.add(BlockOp.releaseLock(b.getId()));
+            }
+        }
+
+        if (ops.isEmpty()) {
+            Toast.makeText(this, "已儲存（無內容變更）", Toast.LENGTH_SHORT).show();
             return;
         }
 
-        AtomicInteger done = new AtomicInteger(0);
-        AtomicInteger fail = new AtomicInteger(0);
         int total = edits.size();
-
-        for (BlockAdapter.PendingEdit pe : edits) {
-            NoteBlock b = pe.block;
-            String newText = pe.newText;
-            // 使用目前的 index/type 與版本送出
-            blockRepo.updateBlock(ownerId, noteId, b.getId(), newText, b.getType(), b.getIndex(), (int) b.getVersion())
-                    .addOnSuccessListener(v -> {
-                        blockAdapter.clearDraft(b.getId());
-                        if (done.incrementAndGet() + fail.get() == total) {
-                            // 全部完成後釋放我持有的鎖
-                            releaseAllMyLocks();
-                            Toast.makeText(this,
-                                    fail.get() == 0 ? "已儲存所有變更並釋放鎖" : ("部分儲存失敗（" + fail.get() + "/" + total + "）並已釋放鎖"),
-                                    Toast.LENGTH_LONG).show();
+        blockRepo.applyBatch(ownerId, noteId, ops)
+                .addOnSuccessListener(results -> {
+                    int fail = 0, conflict = 0;
+                    for (BlockOp.Result r : results) {
+                        if (r.opIndex < 0 || r.opIndex >= ops.size()) continue;
+                        BlockOp op = ops.get(r.opIndex);
+                        if (!BlockOp.UPDATE.equals(op.op)) continue;
+                        if (r.isOk()) {
+                            blockAdapter.clearDraft(op.blockId);
+                            settleParked(op.blockId);
+                        } else {
+                            fail++;
+                            if (r.isConflict()) conflict++;
                         }
-                    })
-                    .addOnFailureListener(e -> {
-                        fail.incrementAndGet();
-                        if (done.get() + fail.get() == total) {
-                            releaseAllMyLocks();
-                            Toast.makeText(this,
-                                    "儲存失敗部分（" + fail.get() + "/" + total + "）並已釋放鎖：" + e.getMessage(),
-                                    Toast.LENGTH_LONG).show();
+                    }
+                    String msg;
+                    if (total == 0) msg = "已儲存（無內容變更）並釋放鎖";
+                    else if (fail == 0) msg = "已儲存所有變更並釋放鎖";
+                    else if (conflict > 0) msg = "部分儲存失敗（" + fail + "/" + total + "，其中 " + conflict + " 段已被他人更新）並已釋放鎖";
+                    else msg = "部分儲存失敗（" + fail + "/" + total + "）並已釋放鎖";
+                    Toast.makeText(this, msg, Toast.LENGTH_LONG).show();
+                })
+                .addOnFailureListener(e -> {
+                    // 整批送不出去（多半是離線）：改逐段存進 outbox，連線恢復後依序重送；
+                    // 草稿留到 outbox 回報送達（onDelivered）才清，被拒絕時仍在編輯區
+                    if (WriteOutbox.get() != null && !edits.isEmpty()) {
+                        for (BlockAdapter.PendingEdit pe : edits) {
+                            NoteBlock b = pe.block;
+                            blockRepo.updateBlock(ownerId, noteId, b.getId(), pe.newText, b.getType(), b.getIndex(), (int) b.getVersion());
                         }
-                    });
+                        Toast.makeText(this, "目前無法連線，已暫存 " + total + " 段變更，恢復連線後自動同步", Toast.LENGTH_LONG).show();
+                        // 鎖也排進 outbox、在這些更新後面才釋放；先釋放的話更新會因為沒持有鎖被拒絕
+                        for (NoteBlock b : blockAdapter.current()) {
+                            if (myUid.equals(b.getLockHolder()) && !lockExpired(b)) {
+                                blockRepo.releaseLockAfterPendingWrites(ownerId, noteId, b.getId());
+                            }
+                        }
+                        return;
+                    }
+                    // 整批失敗（網路 / 權限）：仍逐一釋放鎖，避免鎖卡到過期
+                    releaseAllMyLocks();
+                    Toast.makeText(this, "儲存失敗：" + e.getMessage(), Toast.LENGTH_LONG).show();
+                });
+    }
+
+    // ======================= Outbox：被拒絕的離線變更 =======================
+
+    /** 先前（可能在 App 重啟前）被拒絕的本筆記 block 更新，放回草稿 */
+    private void restoreParkedEdits(@NonNull WriteOutbox outbox) {
+        outbox.failedEntries().addOnSuccessListener(this, entries -> {
+            int restored = 0;
+            for (OutboxEntry e : entries) {
+                if (parkOwnBlockEdit(e)) restored++;
+            }
+            if (restored > 0) {
+                Toast.makeText(this, "有 " + restored + " 段未能同步的變更已放回編輯區，請確認後重新儲存",
+                        Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    private boolean isOwnBlockEdit(@NonNull OutboxEntry e) {
+        return OutboxEntry.UPDATE_BLOCK.equals(e.kind) && e.blockId() != null
+                && TextUtils.equals(noteId, e.bodyString("noteId"))
+                && TextUtils.equals(ownerId, e.bodyString("ownerId"));
+    }
+
+    /** 本筆記的 block 更新被拒絕：文字放回草稿並記下這筆；其他寫入回傳 false */
+    private boolean parkOwnBlockEdit(@NonNull OutboxEntry e) {
+        if (!isOwnBlockEdit(e)) return false;
+        String blockId = e.blockId();
+        List<OutboxEntry> list = parkedEdits.get(blockId);
+        if (list == null) {
+            list = new ArrayList<>();
+            parkedEdits.put(blockId, list);
         }
+        for (OutboxEntry p : list) if (p.seq == e.seq) return false; // 已經處理過
+        list.add(e);
+        blockAdapter.restoreDraft(blockId, e.bodyString("text"));
+        return true;
+    }
+
+    /** 這一段已用較新的內容存成功：舊的被拒絕寫入不必再留 */
+    private void settleParked(String blockId) {
+        List<OutboxEntry> list = parkedEdits.remove(blockId);
+        WriteOutbox outbox = WriteOutbox.get();
+        if (list != null && outbox != null) outbox.discard(list);
     }
 
     private void releaseAllMyLocks() {
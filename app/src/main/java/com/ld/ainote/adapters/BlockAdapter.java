@@ -603,6 +603,25 @@ public class BlockAdapter extends ListAdapter<NoteBlock, RecyclerView.ViewHolder
         if (blockId != null) drafts.remove(blockId);
     }
 
+    /** 目前的草稿；沒有編輯過回傳 null */
+    public String draftOf(String blockId) {
+        return blockId == null ? null : drafts.get(blockId);
+    }
+
+    /** 把沒送成功的文字放回草稿（已有較新的草稿就不覆蓋）；回傳是否有放回 */
+    public boolean restoreDraft(String blockId, String text) {
+        if (blockId == null || text == null || drafts.containsKey(blockId)) return false;
+        drafts.put(blockId, text);
+        for (int i = 0; i < getItemCount(); i++) {
+            NoteBlock b = getItem(i);
+            if (b != null && blockId.equals(b.getId())) {
+                notifyItemChanged(i);
+                break;
+            }
+        }
+        return true;
+    }
+
     /** 清掉所有草稿（例如整頁儲存後） */
     public void clearAllDrafts() { drafts.clear(); }
 
@@ -1,14 +1,19 @@
 package com.ld.ainote.adapters;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
 import android.view.*;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.ld.ainote.R;
+import com.ld.ainote.data.NoteListMerger;
 import com.ld.ainote.models.Note;
 
 import java.text.SimpleDateFormat;
@@ -21,18 +26,32 @@ import java.util.*;
  * - Header 點擊辨識：getHeaderForPosition(position)
  * - 依需求在標題前顯示 chapter-section（例如 1-2）
  * - ✅ 顯示共筆標示；Header 顯示「（總數｜共筆M）」
+ * - 搜尋走 NoteSearchIndex（中文 bigram / 英數單字），扁平模式依相關度排序
+ * - 過濾 / 分組 / 排序交給 NoteRowPipeline 在背景做；關鍵字輸入先 debounce，過期的結果直接丟掉
+ * - 列變動走 AsyncListDiffer：以 header:<stack> / note:<owner>#<id> 比對，背景算 diff 後只通知變動的列
  */
 public class NoteAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
 
     private static final int VIEW_NOTE   = 0;
     private static final int VIEW_HEADER = 1;
 
+    // 關鍵字停止輸入多久後才重建列
+    private static final long SEARCH_DEBOUNCE_MS = 150;
+
     private final SimpleDateFormat fmt = new SimpleDateFormat("yyyy/MM/dd HH:mm", Locale.getDefault());
 
-    // 原始資料（來自 Firestore → submitAll）
+    // 原始資料（來自 Firestore → submitAll / applyChanges）
     private final List<Note> all = new ArrayList<>();
-    // 產生後用於顯示的列（Header + Notes）
-    private final List<Row> rows = new ArrayList<>();
+    // 背景建列（搜尋索引也在裡面，跟著 submitAll / applyChanges 增量更新）
+    private final NoteRowPipeline pipeline = new NoteRowPipeline(NoteRowPipeline.sharedWorker(),
+            new Handler(Looper.getMainLooper())::post, (gen, rows) -> submitRows(rows));
+    // 顯示中的列（Header + Notes）在 differ.getCurrentList()；新的列送進去時還沒算完的舊 diff 會被丟掉
+    private final AsyncListDiffer<Row> differ = new AsyncListDiffer<>(this, ROW_DIFF);
+    // 最後送出的列（diff 可能還在背景算，本地移除要以它為準）
+    private List<Row> latest = Collections.emptyList();
+    // row key → stable id
+    private final Map<String, Long> ids = new HashMap<>();
+    private Runnable onRowsCommitted;
 
     // 狀態
     private boolean grouped = false;
@@ -46,84 +65,146 @@ public class NoteAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     private OnItemClickListener listener;
     public void setOnItemClickListener(OnItemClickListener l) { this.listener = l; }
 
+    /** 新的列換上畫面後呼叫（例如更新空狀態；diff 是非同步的，getItemCount 會晚一點才變） */
+    public void setOnRowsCommittedListener(@Nullable Runnable r) { this.onRowsCommitted = r; }
+
+    public NoteAdapter() {
+        setHasStableIds(true);
+    }
+
     // 內部行定義
     public static class Row {
+        final String key;              // header:<stack> / note:<owner>#<id>
         final boolean header;
         final String headerTitle;      // 僅 header 用（類別名）
         final int headerChildCount;    // header 下子項總數
         final int headerSharedCount;   // ✅ 該類別內共筆數
+        final boolean expanded;        // 僅 header 用（▲/▼）
         final Note note;               // 僅 note 用
 
         // Header 列
-        Row(String headerTitle, int childCount, int sharedCount) {
+        Row(String headerTitle, int childCount, int sharedCount, boolean expanded) {
+            this.key = "header:" + headerTitle;
             this.header = true;
             this.headerTitle = headerTitle;
             this.headerChildCount = childCount;
             this.headerSharedCount = sharedCount;
+            this.expanded = expanded;
             this.note = null;
         }
 
         // Note 列
         Row(Note n) {
+            this.key = "note:" + NoteListMerger.keyOf(n);
             this.header = false;
             this.headerTitle = null;
             this.headerChildCount = 0;
             this.headerSharedCount = 0;
+            this.expanded = false;
             this.note = n;
         }
+
+        /** 畫面上看得到的欄位是否相同（相同就不重新 bind） */
+        boolean sameContent(Row o) {
+            if (header) {
+                return headerChildCount == o.headerChildCount
+                        && headerSharedCount == o.headerSharedCount
+                        && expanded == o.expanded;
+            }
+            Note a = note, b = o.note;
+            if (a == b) return true;
+            return TextUtils.equals(a.getTitle(), b.getTitle())
+                    && TextUtils.equals(a.getContent(), b.getContent())
+                    && a.getChapter().equals(b.getChapter())
+                    && a.getSection().equals(b.getSection())
+                    && a.isShared() == b.isShared()
+                    && Objects.equals(a.getTimestamp(), b.getTimestamp());
+        }
     }
 
+    private static final DiffUtil.ItemCallback<Row> ROW_DIFF = new DiffUtil.ItemCallback<Row>() {
+        @Override public boolean areItemsTheSame(@NonNull Row a, @NonNull Row b) { return a.key.equals(b.key); }
+        @Override public boolean areContentsTheSame(@NonNull Row a, @NonNull Row b) { return a.sameContent(b); }
+    };
+
     // ============= 對外 API =============
 
     public void submitAll(List<Note> notes) {
         all.clear();
         if (notes != null) all.addAll(notes);
-        rebuild();
+        pipeline.resetIndex(all);
+        requestRows(0);
+    }
+
+    /** 套用 NoteListMerger 的增量變動（all 與 merger 的排序清單保持一致），再交給 diff 更新變動的列 */
+    public void applyChanges(List<NoteListMerger.Change> changes, List<Note> current) {
+        if (changes.isEmpty()) return;
+        for (NoteListMerger.Change c : changes) {
+            switch (c.type) {
+                case RESET:
+                    submitAll(current);
+                    return;
+                case INSERT:
+                    all.add(c.index, c.note);
+                    pipeline.indexPut(c.note);
+                    break;
+                case REMOVE:
+                    pipeline.indexRemove(all.remove(c.index));
+                    break;
+                case UPDATE:
+                    all.set(c.index, c.note);
+                    pipeline.indexPut(c.note);
+                    break;
+            }
+        }
+        requestRows(0);
     }
 
     public void setGrouped(boolean on) {
         this.grouped = on;
-        rebuild();
+        requestRows(0);
     }
 
+    /** 關鍵字變動：SEARCH_DEBOUNCE_MS 內的連續輸入只重建一次 */
     public void setKeyword(String kw) {
         this.keyword = TextUtils.isEmpty(kw) ? null : kw.toLowerCase(Locale.ROOT);
-        rebuild();
+        requestRows(SEARCH_DEBOUNCE_MS);
     }
 
     /** 群組模式下：設定哪些類別是展開狀態 */
     public void setExpandedCategories(Set<String> expanded) {
         expandedCategories.clear();
         if (expanded != null) expandedCategories.addAll(expanded);
-        if (grouped) rebuild();  // 只有群組模式需要重建 rows
+        if (grouped) requestRows(0);  // 只有群組模式需要重建 rows
     }
 
     /** 回傳該 position 的 Header 所代表的類別名稱；若非 Header 或越界，回傳 null */
     @Nullable
     public String getHeaderForPosition(int position) {
-        if (position < 0 || position >= rows.size()) return null;
-        Row r = rows.get(position);
-        return r.header ? r.headerTitle : null;
+        Row r = rowAt(position);
+        return r != null && r.header ? r.headerTitle : null;
     }
 
-    /** 供外部在滑動刪除後即時拿掉一列（注意：不會更動 all） */
-    public void removeLocalAt(int position) {
-        if (position < 0 || position >= rows.size()) return;
-        if (rows.get(position).header) return; // 不移除 header
-        rows.remove(position);
-        notifyItemRemoved(position);
+    /**
+     * 供外部在刪除成功後即時拿掉該筆的列（注意：不會更動 all）
+     * 以 key 找列，刪除期間清單若已因 snapshot 變動也不會拿錯列
+     */
+    public void removeLocal(@NonNull Note n) {
+        String key = "note:" + NoteListMerger.keyOf(n);
+        List<Row> next = new ArrayList<>(latest.size());
+        for (Row r : latest) if (!r.key.equals(key)) next.add(r);
+        if (next.size() != latest.size()) submitRows(next);
     }
 
     public boolean isHeader(int position) {
-        if (position < 0 || position >= rows.size()) return false;
-        return rows.get(position).header;
+        Row r = rowAt(position);
+        return r != null && r.header;
     }
 
     @Nullable
     public Note getItem(int position) {
-        if (position < 0 || position >= rows.size()) return null;
-        Row r = rows.get(position);
-        return r.header ? null : r.note;
+        Row r = rowAt(position);
+        return r == null || r.header ? null : r.note;
     }
 
     /** 需要時可取出目前的原始資料（例如外部統計或導出） */
@@ -131,62 +212,39 @@ public class NoteAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
 
     // ============= 內部重建展示列 =============
 
-    private void rebuild() {
-        rows.clear();
-
-        // 1) 過濾（關鍵字比對標題/內容；必要時可加 stack 比對）
-        List<Note> filtered = new ArrayList<>();
-        for (Note n : all) {
-            if (keyword == null) {
-                filtered.add(n);
-            } else {
-                String t = safeLower(n.getTitle());
-                String c = safeLower(n.getContent());
-                if (t.contains(keyword) || c.contains(keyword)) filtered.add(n);
-            }
-        }
-
-        if (!grouped) {
-            // 2A) 扁平模式：照順序直接塞 rows
-            for (Note n : filtered) rows.add(new Row(n));
-        } else {
-            // 2B) 群組模式：依 stack 分組；空值視為 "(未分組)"
-            // 保持插入順序：LinkedHashMap
-            LinkedHashMap<String, List<Note>> map = new LinkedHashMap<>();
-            for (Note n : filtered) {
-                String key = normalizeStack(n.getStack());
-                map.computeIfAbsent(key, k -> new ArrayList<>()).add(n);
-            }
+    /** 取目前狀態的快照交給背景建列；建好且沒過期才會回到 submitRows */
+    private void requestRows(long delayMs) {
+        pipeline.request(NoteRowPipeline.snapshot(all, keyword, grouped, expandedCategories), delayMs);
+    }
 
-            // 按章節排序 & 計算共筆數
-            for (Map.Entry<String, List<Note>> e : map.entrySet()) {
-                List<Note> group = e.getValue();
-                group.sort((a, b) -> {
-                    int c = Integer.compare(a.getChapter(), b.getChapter());
-                    if (c != 0) return c;
-                    return Integer.compare(a.getSection(), b.getSection());
-                });
-
-                int sharedCount = 0;
-                for (Note n : group) if (n.isShared()) sharedCount++;
-
-                String cat = e.getKey();
-                boolean expanded = expandedCategories.contains(cat);
-
-                rows.add(new Row(cat, group.size(), sharedCount));
-                if (expanded) {
-                    for (Note n : group) rows.add(new Row(n));
-                }
-            }
-        }
+    /** 背景算 diff；換上後才通知外部（送出後不可再修改 rows） */
+    private void submitRows(List<Row> rows) {
+        latest = rows;
+        differ.submitList(rows, () -> {
+            if (onRowsCommitted != null) onRowsCommitted.run();
+        });
+    }
 
-        notifyDataSetChanged();
+    @Nullable
+    private Row rowAt(int position) {
+        List<Row> rows = differ.getCurrentList();
+        return position < 0 || position >= rows.size() ? null : rows.get(position);
     }
 
     // ============= RecyclerView 標準實作 =============
 
     @Override public int getItemViewType(int position) {
-        return rows.get(position).header ? VIEW_HEADER : VIEW_NOTE;
+        return differ.getCurrentList().get(position).header ? VIEW_HEADER : VIEW_NOTE;
+    }
+
+    @Override public long getItemId(int position) {
+        String key = differ.getCurrentList().get(position).key;
+        Long id = ids.get(key);
+        if (id == null) {
+            id = (long) ids.size();
+            ids.put(key, id);
+        }
+        return id;
     }
 
     @NonNull @Override
@@ -203,14 +261,13 @@ public class NoteAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
 
     @Override
     public void onBindViewHolder(@NonNull RecyclerView.ViewHolder h, int pos) {
-        Row r = rows.get(pos);
+        Row r = differ.getCurrentList().get(pos);
         if (r.header) {
             HeaderVH vh = (HeaderVH) h;
 
             // 顯示「類別名（總數｜共筆M）▼/▲」，若共筆=0 則顯示「（總數）」
             String cat = r.headerTitle;
-            boolean expanded = expandedCategories.contains(cat);
-            String arrow = expanded ? " ▲" : " ▼";
+            String arrow = r.expanded ? " ▲" : " ▼";
             String countText = (r.headerSharedCount > 0)
                     ? ("（" + r.headerChildCount + "｜共筆" + r.headerSharedCount + "）")
                     : ("（" + r.headerChildCount + "）");
@@ -245,7 +302,7 @@ public class NoteAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
         }
     }
 
-    @Override public int getItemCount() { return rows.size(); }
+    @Override public int getItemCount() { return differ.getCurrentList().size(); }
 
     // ============= ViewHolders =============
 
@@ -266,16 +323,6 @@ public class NoteAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
 
     // ============= 小工具 =============
 
-    private static String safeLower(String s) {
-        return s == null ? "" : s.toLowerCase(Locale.ROOT);
-    }
-
-    private static String normalizeStack(String s) {
-        if (s == null) return "(未分組)";
-        String t = s.trim();
-        return t.isEmpty() ? "(未分組)" : t;
-    }
-
     private static String buildIndexPrefix(int chapter, int section) {
         if (chapter > 0 && section > 0) return chapter + "-" + section;
         if (chapter > 0) return String.valueOf(chapter);
@@ -0,0 +1,219 @@
+package com.ld.ainote.adapters;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.ld.ainote.data.NoteSearchIndex;
+import com.ld.ainote.models.Note;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NoteAdapter 的列產生流程：搜尋 / 過濾 / 分組 / 排序都在背景執行緒
+ * - 搜尋索引只在背景執行緒使用；put / remove 依序排進去，不會被略過
+ * - 每次 request 把 generation +1；背景建列途中發現有更新的 generation 就中止，回到 UI 前再比一次
+ * - 有延遲（debounce）的 request 還沒開始時，後面的 request 併進去一起等，連續輸入只建最後一次
+ * UI 只會收到建好的列（onRows 在 ui executor 上呼叫）
+ */
+final class NoteRowPipeline {
+
+    interface Sink { void onRows(int generation, @NonNull List<NoteAdapter.Row> rows); }
+
+    /** 一次建列需要的輸入（UI 執行緒上取快照，之後不再變動） */
+    static final class Query {
+        final List<Note> notes;
+        @Nullable final String keyword;
+        final boolean grouped;
+        final Set<String> expanded;
+
+        Query(@NonNull List<Note> notes, @Nullable String keyword, boolean grouped, @NonNull Set<String> expanded) {
+            this.notes = notes;
+            this.keyword = keyword;
+            this.grouped = grouped;
+            this.expanded = expanded;
+        }
+    }
+
+    private static final int CHECK_EVERY = 256; // 每處理這麼多筆檢查一次是否已過期
+
+    private static volatile ScheduledExecutorService shared;
+
+    /** 所有清單共用的背景執行緒（單一執行緒 → 索引更新與建列自然依序） */
+    static ScheduledExecutorService sharedWorker() {
+        if (shared == null) {
+            synchronized (NoteRowPipeline.class) {
+                if (shared == null) {
+                    shared = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread t = new Thread(r, "note-rows");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+            }
+        }
+        return shared;
+    }
+
+    private final ScheduledExecutorService worker;
+    private final Executor ui;
+    private final Sink sink;
+    private final NoteSearchIndex index = new NoteSearchIndex(); // 只在 worker 上使用
+    private final AtomicInteger generation = new AtomicInteger();
+
+    // 以下只在 UI 執行緒使用
+    @Nullable private ScheduledFuture<?> pending;
+    private long pendingAtMs;
+
+    NoteRowPipeline(@NonNull ScheduledExecutorService worker, @NonNull Executor ui, @NonNull Sink sink) {
+        this.worker = worker;
+        this.ui = ui;
+        this.sink = sink;
+    }
+
+    // ================== 索引更新（依序、不略過） ==================
+
+    void resetIndex(@NonNull List<Note> notes) {
+        List<Note> copy = new ArrayList<>(notes);
+        worker.execute(() -> {
+            index.clear();
+            for (Note n : copy) index.put(n);
+        });
+    }
+
+    void indexPut(@NonNull Note n) { worker.execute(() -> index.put(n)); }
+
+    void indexRemove(@NonNull Note n) { worker.execute(() -> index.remove(n)); }
+
+    // ================== 建列 ==================
+
+    /** 要求重建；delayMs > 0 為 debounce。回傳這次的 generation */
+    int request(@NonNull Query q, long delayMs) {
+        int gen = generation.incrementAndGet();
+        long now = System.nanoTime() / 1_000_000L;
+        long at = now + Math.max(0, delayMs);
+        if (pending != null && !pending.isDone()) {
+            at = Math.max(at, pendingAtMs); // 還在等 debounce：併進去一起等
+            pending.cancel(false);
+        }
+        pendingAtMs = at;
+        pending = worker.schedule(() -> run(gen, q), at - now, TimeUnit.MILLISECONDS);
+        return gen;
+    }
+
+    /** 目前最新的 generation（之前的結果都會被丟掉） */
+    int generation() { return generation.get(); }
+
+    private boolean stale(int gen) { return gen != generation.get(); }
+
+    private void run(int gen, Query q) {
+        if (stale(gen)) return;
+        List<NoteAdapter.Row> rows = build(q, index, () -> stale(gen));
+        if (rows == null) return;
+        ui.execute(() -> {
+            if (!stale(gen)) sink.onRows(gen, rows);
+        });
+    }
+
+    interface Cancel { boolean cancelled(); }
+
+    /** 過濾 → 分組 → 排序；cancel 回傳 true 時中止並回傳 null */
+    @Nullable
+    static List<NoteAdapter.Row> build(@NonNull Query q, @NonNull NoteSearchIndex index, @NonNull Cancel cancel) {
+        List<NoteAdapter.Row> rows = new ArrayList<>();
+
+        // 1) 過濾（關鍵字比對標題/內容；必要時可加 stack 比對）
+        List<Note> filtered;
+        if (q.keyword == null) {
+            filtered = q.notes;
+        } else if (NoteSearchIndex.isIndexable(q.keyword)) {
+            // 索引結果依相關度排序；群組模式仍照原本順序分組
+            filtered = index.search(q.keyword, 0);
+            if (cancel.cancelled()) return null;
+            if (q.grouped) {
+                Set<Note> hit = Collections.newSetFromMap(new IdentityHashMap<>());
+                hit.addAll(filtered);
+                filtered = new ArrayList<>();
+                for (Note n : q.notes) if (hit.contains(n)) filtered.add(n);
+            }
+        } else {
+            // 只有標點 / 符號的關鍵字：索引沒有 token，退回逐筆比對
+            filtered = new ArrayList<>();
+            int i = 0;
+            for (Note n : q.notes) {
+                if (++i % CHECK_EVERY == 0 && cancel.cancelled()) return null;
+                String t = safeLower(n.getTitle());
+                String c = safeLower(n.getContent());
+                if (t.contains(q.keyword) || c.contains(q.keyword)) filtered.add(n);
+            }
+        }
+        if (cancel.cancelled()) return null;
+
+        if (!q.grouped) {
+            // 2A) 扁平模式：照順序直接塞 rows
+            for (Note n : filtered) rows.add(new NoteAdapter.Row(n));
+            return rows;
+        }
+
+        // 2B) 群組模式：依 stack 分組；空值視為 "(未分組)"
+        // 保持插入順序：LinkedHashMap
+        LinkedHashMap<String, List<Note>> map = new LinkedHashMap<>();
+        for (Note n : filtered) {
+            String key = normalizeStack(n.getStack());
+            map.computeIfAbsent(key, k -> new ArrayList<>()).add(n);
+        }
+
+        // 按章節排序 & 計算共筆數
+        for (Map.Entry<String, List<Note>> e : map.entrySet()) {
+            if (cancel.cancelled()) return null;
+            List<Note> group = e.getValue();
+            group.sort((a, b) -> {
+                int c = Integer.compare(a.getChapter(), b.getChapter());
+                if (c != 0) return c;
+                return Integer.compare(a.getSection(), b.getSection());
+            });
+
+            int sharedCount = 0;
+            for (Note n : group) if (n.isShared()) sharedCount++;
+
+            String cat = e.getKey();
+            boolean expanded = q.expanded.contains(cat);
+
+            rows.add(new NoteAdapter.Row(cat, group.size(), sharedCount, expanded));
+            if (expanded) {
+                for (Note n : group) rows.add(new NoteAdapter.Row(n));
+            }
+        }
+        return rows;
+    }
+
+    /** UI 狀態的快照（notes / expanded 都複製一份，之後 UI 怎麼改都不影響背景） */
+    @NonNull
+    static Query snapshot(@NonNull List<Note> notes, @Nullable String keyword, boolean grouped,
+                          @NonNull Set<String> expanded) {
+        return new Query(new ArrayList<>(notes), keyword, grouped, new HashSet<>(expanded));
+    }
+
+    private static String safeLower(String s) {
+        return s == null ? "" : s.toLowerCase(Locale.ROOT);
+    }
+
+    static String normalizeStack(String s) {
+        if (s == null) return "(未分組)";
+        String t = s.trim();
+        return t.isEmpty() ? "(未分組)" : t;
+    }
+}
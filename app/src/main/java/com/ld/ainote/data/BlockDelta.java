@@ -0,0 +1,27 @@
+package com.ld.ainote.data;
+
+import androidx.annotation.NonNull;
+
+import com.ld.ainote.models.NoteBlock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * listBlocks 的回應（完整或增量）
+ * - full=true：blocks 是完整清單，本機快取整份換掉
+ * - full=false：blocks 只有變動過的；deletedIds 是要移除的 blockId
+ * - cursor：下次增量查詢要帶的 sinceUpdatedAt（伺服器時間，毫秒；0 表示後端不支援增量）
+ */
+public class BlockDelta {
+    public final List<NoteBlock> blocks = new ArrayList<>();
+    public final List<String> deletedIds = new ArrayList<>();
+    public long cursor;
+    public boolean full = true;
+
+    @NonNull @Override
+    public String toString() {
+        return (full ? "full" : "delta") + " blocks=" + blocks.size()
+                + " deleted=" + deletedIds.size() + " cursor=" + cursor;
+    }
+}
@@ -0,0 +1,88 @@
+package com.ld.ainote.data;
+
+import androidx.annotation.NonNull;
+
+import com.ld.ainote.models.NoteBlock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 每篇筆記的 block 清單快取（程序內 LRU）
+ * - 記住上次 listBlocks 的 cursor，下次只抓增量
+ * - 增量結果合併：同 id 覆蓋、墓碑移除；回傳依 index 排序的完整清單
+ */
+public final class BlockListCache {
+
+    private static final int MAX_NOTES = 32;
+
+    private static final BlockListCache SHARED = new BlockListCache(MAX_NOTES);
+
+    public static BlockListCache shared() { return SHARED; }
+
+    private static final class Entry {
+        final Map<String, NoteBlock> byId = new HashMap<>();
+        long cursor;
+    }
+
+    private final LinkedHashMap<String, Entry> notes;
+
+    BlockListCache(int maxNotes) {
+        notes = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxNotes;
+            }
+        };
+    }
+
+    /** 上次同步的 cursor；沒有快取回 0（代表要抓完整清單） */
+    public synchronized long cursorOf(@NonNull String key) {
+        Entry e = notes.get(key);
+        return e == null ? 0L : e.cursor;
+    }
+
+    /** 合併一次 listBlocks 的結果並回傳目前完整清單；比現有 cursor 舊的增量（晚回來的舊請求）直接略過 */
+    @NonNull
+    public synchronized List<NoteBlock> apply(@NonNull String key, @NonNull BlockDelta delta) {
+        Entry e = notes.get(key);
+        if (e != null && !delta.full && delta.cursor < e.cursor) return sorted(e);
+        if (e == null || delta.full) {
+            e = new Entry();
+            notes.put(key, e);
+        }
+        for (String id : delta.deletedIds) e.byId.remove(id);
+        for (NoteBlock b : delta.blocks) {
+            if (b.getId() != null && !b.getId().isEmpty()) e.byId.put(b.getId(), b);
+        }
+        e.cursor = delta.cursor;
+        return sorted(e);
+    }
+
+    /** 目前快取的清單（沒有則為空） */
+    @NonNull
+    public synchronized List<NoteBlock> peek(@NonNull String key) {
+        Entry e = notes.get(key);
+        return e == null ? new ArrayList<>() : sorted(e);
+    }
+
+    public synchronized void invalidate(@NonNull String key) {
+        notes.remove(key);
+    }
+
+    public synchronized void clear() {
+        notes.clear();
+    }
+
+    private static List<NoteBlock> sorted(Entry e) {
+        List<NoteBlock> out = new ArrayList<>(e.byId.values());
+        out.sort((a, b) -> {
+            int c = Integer.compare(a.getIndex(), b.getIndex());
+            return c != 0 ? c : String.valueOf(a.getId()).compareTo(String.valueOf(b.getId()));
+        });
+        return out;
+    }
+}
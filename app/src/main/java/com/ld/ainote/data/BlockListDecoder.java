@@ -0,0 +1,193 @@
+package com.ld.ainote.data;
+
+import androidx.annotation.NonNull;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.ld.ainote.models.NoteBlock;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * listBlocks 回應的串流解析：{ success, full?, cursor?, blocks: [ {...}, ... ], deleted?: [id, ...] }
+ * 直接從 Reader 逐欄位填進 NoteBlock，不先讀成整段字串、也不建 JSONObject。
+ * 欄位預設值與舊版 org.json 寫法一致（id→blockId→""、index→陣列位置、type→"text"...）。
+ */
+final class BlockListDecoder {
+
+    private BlockListDecoder() {}
+
+    @NonNull
+    static List<NoteBlock> decode(@NonNull Reader in) throws IOException {
+        return decodeDelta(in).blocks;
+    }
+
+    /** 沒有 full 欄位的舊版回應視為完整清單 */
+    @NonNull
+    static BlockDelta decodeDelta(@NonNull Reader in) throws IOException {
+        BlockDelta d = new BlockDelta();
+        List<NoteBlock> out = d.blocks;
+        try (JsonReader r = new JsonReader(in)) {
+            r.beginObject();
+            while (r.hasNext()) {
+                String name = r.nextName();
+                JsonToken t = r.peek();
+                if ("blocks".equals(name) && t == JsonToken.BEGIN_ARRAY) {
+                    r.beginArray();
+                    while (r.hasNext()) out.add(readBlock(r, out.size()));
+                    r.endArray();
+                } else if ("deleted".equals(name) && t == JsonToken.BEGIN_ARRAY) {
+                    r.beginArray();
+                    while (r.hasNext()) {
+                        String id = stringOr(r, null);
+                        if (id != null) d.deletedIds.add(id);
+                    }
+                    r.endArray();
+                } else if ("full".equals(name) && t == JsonToken.BOOLEAN) {
+                    d.full = r.nextBoolean();
+                } else if ("cursor".equals(name) && (t == JsonToken.NUMBER || t == JsonToken.STRING)) {
+                    d.cursor = longOr(r);
+                } else {
+                    r.skipValue();
+                }
+            }
+            r.endObject();
+        }
+        return d;
+    }
+
+    private static NoteBlock readBlock(JsonReader r, int position) throws IOException {
+        NoteBlock nb = new NoteBlock();
+        String id = null, blockId = null;
+        int index = position;
+        String type = "text", text = "";
+        int version = 0;
+
+        r.beginObject();
+        while (r.hasNext()) {
+            String name = r.nextName();
+            switch (name) {
+                case "id":         id = stringOr(r, id); break;
+                case "blockId":    blockId = stringOr(r, blockId); break;
+                case "index":      index = intOr(r, position); break;
+                case "type":       type = stringOr(r, "text"); break;
+                case "text":       text = stringOr(r, ""); break;
+                case "version":    version = intOr(r, 0); break;
+                case "updatedBy":  nb.setUpdatedBy(stringOr(r, null)); break;
+                case "lockHolder": nb.setLockHolder(stringOr(r, null)); break;
+                case "updatedAt": {
+                    long ms = readTimestampMillis(r);
+                    if (ms > 0) nb.setUpdatedAt(new Date(ms));
+                    break;
+                }
+                case "lockUntil": {
+                    long ms = readTimestampMillis(r);
+                    if (ms > 0) nb.setLockUntil(new Date(ms));
+                    break;
+                }
+                default: r.skipValue();
+            }
+        }
+        r.endObject();
+
+        nb.setId(id != null ? id : (blockId != null ? blockId : ""));
+        nb.setIndex(index);
+        nb.setType(type);
+        nb.setText(text);
+        nb.setVersion(version);
+        return nb;
+    }
+
+    // ================== 欄位讀取 ==================
+
+    /** 字串 / 數字 / 布林都轉成字串（同 optString）；null 用預設值；物件陣列略過 */
+    private static String stringOr(JsonReader r, String def) throws IOException {
+        switch (r.peek()) {
+            case STRING:
+            case NUMBER:  return r.nextString();
+            case BOOLEAN: return String.valueOf(r.nextBoolean());
+            case NULL:    r.nextNull(); return def;
+            default:      r.skipValue(); return def;
+        }
+    }
+
+    /** 同 optInt：數字或數字字串都可，小數捨去；其他用預設值 */
+    private static int intOr(JsonReader r, int def) throws IOException {
+        JsonToken t = r.peek();
+        if (t == JsonToken.NUMBER || t == JsonToken.STRING) {
+            String s = r.nextString();
+            try {
+                return (int) Double.parseDouble(s.trim());
+            } catch (NumberFormatException e) {
+                return def;
+            }
+        }
+        r.skipValue();
+        return def;
+    }
+
+    /**
+     * 與舊版 BlockRepository.parseTimestampMillis 相同語意：
+     * - {_seconds,_nanoseconds} 或 {seconds,nanoseconds} 物件
+     * - 數字字串（>= 1e12 視為毫秒，否則秒）
+     * - 其他（含 JSON 數字、ISO 字串）回 0
+     */
+    static long readTimestampMillis(JsonReader r) throws IOException {
+        JsonToken t = r.peek();
+        if (t == JsonToken.STRING) {
+            return epochStringMillis(r.nextString());
+        }
+        if (t != JsonToken.BEGIN_OBJECT) {
+            r.skipValue();
+            return 0L;
+        }
+        long underSec = 0, underNanos = 0, sec = 0, nanos = 0;
+        boolean hasUnder = false, hasPlain = false;
+        r.beginObject();
+        while (r.hasNext()) {
+            switch (r.nextName()) {
+                case "_seconds":     hasUnder = true; underSec = longOr(r); break;
+                case "_nanoseconds": underNanos = longOr(r); break;
+                case "seconds":      hasPlain = true; sec = longOr(r); break;
+                case "nanoseconds":  nanos = longOr(r); break;
+                default:             r.skipValue();
+            }
+        }
+        r.endObject();
+        if (hasUnder) return underSec * 1000L + underNanos / 1_000_000L;
+        if (hasPlain) return sec * 1000L + nanos / 1_000_000L;
+        return 0L;
+    }
+
+    static long epochStringMillis(String s) {
+        try {
+            long epoch = Long.parseLong(s.trim());
+            return (epoch >= 1_000_000_000_000L) ? epoch : epoch * 1000L;
+        } catch (NumberFormatException ignore) {
+            return 0L;
+        }
+    }
+
+    /** 同 optLong(key, 0) */
+    private static long longOr(JsonReader r) throws IOException {
+        JsonToken t = r.peek();
+        if (t == JsonToken.NUMBER || t == JsonToken.STRING) {
+            String s = r.nextString();
+            try {
+                return Long.parseLong(s.trim());
+            } catch (NumberFormatException e) {
+                try {
+                    return (long) Double.parseDouble(s.trim());
+                } catch (NumberFormatException e2) {
+                    return 0L;
+                }
+            }
+        }
+        r.skipValue();
+        return 0L;
+    }
+}
@@ -1,44 +1,51 @@
 package com.ld.ainote.data;
 
-import android.util.Log;
+import androidx.annotation.NonNull;
 
 import com.google.android.gms.tasks.Task;
-import com.google.android.gms.tasks.TaskCompletionSource;
 import com.google.android.gms.tasks.Tasks;
-import com.google.firebase.auth.FirebaseAuth;
+import com.ld.ainote.data.outbox.OutboxEntry;
+import com.ld.ainote.data.outbox.WriteOutbox;
+import com.ld.ainote.models.BlockOp;
 import com.ld.ainote.models.NoteBlock;
 
-import org.json.JSONArray;
+import com.ld.ainote.net.CloudFunctionClient;
+import com.ld.ainote.net.CloudFunctionClient.Endpoint;
+
 import org.json.JSONObject;
 
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+
+import okhttp3.ResponseBody;
 
 /** Cloud Run 版 BlockRepository（送 blockId / expectedVersion） */
 public class BlockRepository {
 
-    private static final String TAG = "BlockRepository";
-
-    // ✅ Cloud Run 完整 URL
-    private static final String FN_CREATE_BLOCK = "https://createblock-qoe2g6zspa-de.a.run.app";
-    private static final String FN_UPDATE_BLOCK = "https://updateblock-qoe2g6zspa-de.a.run.app";
-    private static final String FN_DELETE_BLOCK = "https://deleteblock-qoe2g6zspa-de.a.run.app";
-    private static final String FN_LIST_BLOCKS  = "https://listblocks-qoe2g6zspa-de.a.run.app";
-    private static final String FN_ACQUIRE_LOCK = "https://acquireblocklock-qoe2g6zspa-de.a.run.app";
-    private static final String FN_RENEW_LOCK   = "https://renewblocklock-qoe2g6zspa-de.a.run.app";
-    private static final String FN_RELEASE_LOCK = "https://releaseblocklock-qoe2g6zspa-de.a.run.app";
+    // ✅ Cloud Run 端點（https://{name}-qoe2g6zspa-de.a.run.app；鎖相關請求很小，讀取逾時較短）
+    private static final Endpoint FN_CREATE_BLOCK = Endpoint.mutating("createblock", 30000);
+    private static final Endpoint FN_UPDATE_BLOCK = Endpoint.mutating("updateblock", 30000);
+    private static final Endpoint FN_DELETE_BLOCK = Endpoint.mutating("deleteblock", 30000);
+    private static final Endpoint FN_LIST_BLOCKS  = Endpoint.of("listblocks", 30000);
+    // 鎖的操作重送會重複生效（例如釋放後又被別人拿走）：帶 Idempotency-Key，後端回放第一次的結果
+    private static final Endpoint FN_ACQUIRE_LOCK = Endpoint.mutating("acquireblocklock", 10000);
+    private static final Endpoint FN_RENEW_LOCK   = Endpoint.mutating("renewblocklock", 10000);
+    private static final Endpoint FN_RELEASE_LOCK = Endpoint.mutating("releaseblocklock", 10000);
+    private static final Endpoint FN_APPLY_BATCH  = Endpoint.mutating("applyblockbatch", 30000);
+
+    // 同一篇筆記依序送出、不同筆記平行（見 KeyedSerialExecutor）
+    private static final KeyedSerialExecutor IO = KeyedSerialExecutor.shared();
+
+    // 建立呼叫的方式（預設走 Cloud Run；測試可換成打本機替身）
+    private final CloudCall.Opener opener;
+
+    public BlockRepository() {
+        this(CloudCall.CLOUD_RUN);
+    }
 
-    private static final ExecutorService IO = Executors.newSingleThreadExecutor();
+    BlockRepository(@NonNull CloudCall.Opener opener) {
+        this.opener = opener;
+    }
 
     // ---------- 建立 ----------
     public Task<Void> createBlock(String ownerId, String noteId, int index, String type, String text) {
@@ -49,8 +56,7 @@ public class BlockRepository {
             body.put("index", index);
             body.put("type", type == null ? "text" : type); // 與後端預設一致
             body.put("text", text == null ? "" : text);
-            return callFunctionJson(FN_CREATE_BLOCK, body)
-                    .onSuccessTask(IO, resp -> Tasks.forResult(null));
+            return enqueueOrSend(OutboxEntry.CREATE_BLOCK, FN_CREATE_BLOCK, ownerId, noteId, null, body, -1);
         } catch (Exception e) {
             return Tasks.forException(e);
         }
@@ -73,8 +79,8 @@ public class BlockRepository {
             // ✅ 重點：改送 expectedVersion（不要送 version）
             if (version >= 0)  body.put("expectedVersion", version);
 
-            return callFunctionJson(FN_UPDATE_BLOCK, body)
-                    .onSuccessTask(IO, resp -> Tasks.forResult(null));
+            return enqueueOrSend(OutboxEntry.UPDATE_BLOCK, FN_UPDATE_BLOCK, ownerId, noteId,
+                    OutboxEntry.blockTarget(blockId), body, version);
         } catch (Exception e) {
             return Tasks.forException(e);
         }
@@ -88,55 +94,38 @@ public class BlockRepository {
             body.put("noteId", noteId);
             body.put("blockId", blockId);
             body.put("id", blockId); // 相容
-            return callFunctionJson(FN_DELETE_BLOCK, body)
-                    .onSuccessTask(IO, resp -> Tasks.forResult(null));
+            return enqueueOrSend(OutboxEntry.DELETE_BLOCK, FN_DELETE_BLOCK, ownerId, noteId,
+                    OutboxEntry.blockTarget(blockId), body, -1);
         } catch (Exception e) {
             return Tasks.forException(e);
         }
     }
 
     // ---------- 取得清單 ----------
+    /** 有快取就只抓上次之後的變動，合併進 BlockListCache 後回傳完整清單 */
     public Task<List<NoteBlock>> listBlocks(String ownerId, String noteId) {
-        TaskCompletionSource<List<NoteBlock>> tcs = new TaskCompletionSource<>();
-        IO.execute(() -> {
-            try {
-                JSONObject body = new JSONObject();
-                body.put("ownerId", ownerId);
-                body.put("noteId", noteId);
-
-                String resp = Tasks.await(callFunctionJson(FN_LIST_BLOCKS, body));
-                JSONObject js = new JSONObject(resp);
-                List<NoteBlock> out = new ArrayList<>();
-                JSONArray arr = js.optJSONArray("blocks");
-                if (arr != null) {
-                    for (int i = 0; i < arr.length(); i++) {
-                        JSONObject b = arr.getJSONObject(i);
-                        NoteBlock nb = new NoteBlock();
-                        nb.setId(b.optString("id", b.optString("blockId", "")));
-                        nb.setIndex(b.optInt("index", i));
-                        nb.setType(b.optString("type", "text"));
-                        nb.setText(b.optString("text", ""));
-                        nb.setVersion(b.optInt("version", 0));
-
-                        // 若你的 NoteBlock 有以下欄位/Setter，可一併帶入（沒有就刪掉這幾行）
-                        try {
-                            if (b.has("updatedBy")) nb.setUpdatedBy(b.optString("updatedBy", null));
-                            if (b.has("lockHolder")) nb.setLockHolder(b.optString("lockHolder", null));
-                            long updatedAtMs = parseTimestampMillis(b.opt("updatedAt"));
-                            if (updatedAtMs > 0) nb.setUpdatedAt(new Date(updatedAtMs));
-                            long lockUntilMs = parseTimestampMillis(b.opt("lockUntil"));
-                            if (lockUntilMs > 0) nb.setLockUntil(new Date(lockUntilMs));
-                        } catch (Throwable ignore) {}
+        String key = KeyedSerialExecutor.key(ownerId, noteId);
+        BlockListCache cache = BlockListCache.shared();
+        return listBlocksSince(ownerId, noteId, cache.cursorOf(key))
+                .onSuccessTask(IO.forKey(key), d -> Tasks.forResult(cache.apply(key, d))); // 同一篇依序合併
+    }
 
-                        out.add(nb);
-                    }
-                }
-                tcs.setResult(out);
-            } catch (Exception e) {
-                tcs.setException(e);
-            }
-        });
-        return tcs.getTask();
+    /**
+     * sinceUpdatedAtMs > 0：只回傳 updatedAt 之後變動的 block ＋ 刪除墓碑（full=false）
+     * sinceUpdatedAtMs = 0 或伺服器不支援：完整清單（full=true）
+     */
+    public Task<BlockDelta> listBlocksSince(String ownerId, String noteId, long sinceUpdatedAtMs) {
+        try {
+            JSONObject body = new JSONObject();
+            body.put("ownerId", ownerId);
+            body.put("noteId", noteId);
+            if (sinceUpdatedAtMs > 0) body.put("sinceUpdatedAt", sinceUpdatedAtMs);
+            // 回應直接串流解析成 NoteBlock（區塊多、內容長時不必整段讀成字串再建 JSONObject）
+            return callFunction(KeyedSerialExecutor.key(ownerId, noteId), FN_LIST_BLOCKS, body,
+                    resp -> BlockListDecoder.decodeDelta(resp.charStream()));
+        } catch (Exception e) {
+            return Tasks.forException(e);
+        }
     }
 
     // ---------- 鎖定 ----------
@@ -147,7 +136,7 @@ public class BlockRepository {
             body.put("noteId", noteId);
             body.put("blockId", blockId);
             body.put("id", blockId); // 相容
-            return callFunctionJson(FN_ACQUIRE_LOCK, body)
+            return callFunctionJson(KeyedSerialExecutor.key(ownerId, noteId), FN_ACQUIRE_LOCK, body)
                     .onSuccessTask(IO, resp -> Tasks.forResult(null));
         } catch (Exception e) {
             return Tasks.forException(e);
@@ -161,7 +150,7 @@ public class BlockRepository {
             body.put("noteId", noteId);
             body.put("blockId", blockId);
             body.put("id", blockId); // 相容
-            return callFunctionJson(FN_RENEW_LOCK, body)
+            return callFunctionJson(KeyedSerialExecutor.key(ownerId, noteId), FN_RENEW_LOCK, body)
                     .onSuccessTask(IO, resp -> Tasks.forResult(null));
         } catch (Exception e) {
             return Tasks.forException(e);
@@ -175,115 +164,67 @@ public class BlockRepository {
             body.put("noteId", noteId);
             body.put("blockId", blockId);
             body.put("id", blockId); // 相容
-            return callFunctionJson(FN_RELEASE_LOCK, body)
+            return callFunctionJson(KeyedSerialExecutor.key(ownerId, noteId), FN_RELEASE_LOCK, body)
                     .onSuccessTask(IO, resp -> Tasks.forResult(null));
         } catch (Exception e) {
             return Tasks.forException(e);
         }
     }
 
-    // ================== utilities ==================
-
-    /** 支援 Firestore Timestamp JSON（{_seconds,_nanoseconds}）或 ISO8601 字串；失敗回 0 */
-    private static long parseTimestampMillis(Object v) {
+    /**
+     * 排在 outbox 裡已暫存的寫入後面才釋放鎖（離線存檔時用）：
+     * 直接釋放可能比暫存的更新先到，更新就會因為沒持有鎖被拒絕
+     */
+    public Task<Void> releaseLockAfterPendingWrites(String ownerId, String noteId, String blockId) {
         try {
-            if (v == null) return 0L;
-            if (v instanceof JSONObject) {
-                JSONObject o = (JSONObject) v;
-                if (o.has("_seconds")) {
-                    long sec = o.optLong("_seconds", 0L);
-                    long nanos = o.optLong("_nanoseconds", 0L);
-                    return sec * 1000L + (nanos / 1_000_000L);
-                }
-                // 也有可能長這樣 {seconds:123, nanoseconds:456000000}
-                if (o.has("seconds")) {
-                    long sec = o.optLong("seconds", 0L);
-                    long nanos = o.optLong("nanoseconds", 0L);
-                    return sec * 1000L + (nanos / 1_000_000L);
-                }
-            } else if (v instanceof String) {
-                // 嘗試解析 ISO 字串（簡易版）
-                String s = (String) v;
-                // java.util.Date 不直接吃 ISO；用 javax.xml.bind 在舊 Android 會缺
-                // 這裡只處理毫秒/秒級 epoch 字串
-                try {
-                    // 若是數字字串
-                    long epoch = Long.parseLong(s.trim());
-                    // 假設 >= 1e12 視為毫秒，否則秒
-                    return (epoch >= 1_000_000_000_000L) ? epoch : epoch * 1000L;
-                } catch (NumberFormatException ignore) {
-                    // 放棄 ISO 解析，回 0
-                }
-            }
-        } catch (Throwable ignore) {}
-        return 0L;
+            JSONObject body = new JSONObject();
+            body.put("ownerId", ownerId);
+            body.put("noteId", noteId);
+            body.put("blockId", blockId);
+            body.put("id", blockId); // 相容
+            return enqueueOrSend(OutboxEntry.RELEASE_LOCK, FN_RELEASE_LOCK, ownerId, noteId,
+                    OutboxEntry.blockTarget(blockId), body, -1);
+        } catch (Exception e) {
+            return Tasks.forException(e);
+        }
     }
 
-    // ================== HTTP helper ==================
-    private Task<String> callFunctionJson(String fullUrl, JSONObject body) {
-        TaskCompletionSource<String> tcs = new TaskCompletionSource<>();
-        IO.execute(() -> {
-            try {
-                FirebaseAuth auth = FirebaseAuth.getInstance();
-                if (auth.getCurrentUser() == null) {
-                    tcs.setException(new IllegalStateException("尚未登入"));
-                    return;
-                }
-                String idToken = Tasks.await(auth.getCurrentUser().getIdToken(true)).getToken();
-                if (idToken == null || idToken.isEmpty()) {
-                    tcs.setException(new IllegalStateException("取得 ID Token 失敗"));
-                    return;
-                }
-                if (!fullUrl.startsWith("http")) {
-                    tcs.setException(new IllegalArgumentException("無效的 URL：" + fullUrl));
-                    return;
-                }
-
-                String json = body != null ? body.toString() : "{}";
-                String resp = postJson(fullUrl, idToken, json);
-                tcs.setResult(resp);
-            } catch (Exception e) {
-                Log.e(TAG, "callFunctionJson error", e);
-                tcs.setException(e);
-            }
-        });
-        return tcs.getTask();
+    // ---------- 批次（update / create / delete / releaseLock 一次送出） ----------
+    /** 結果順序與 ops 相同；單一 op 衝突不會讓整批失敗，請逐一檢查 Result.status */
+    public Task<List<BlockOp.Result>> applyBatch(String ownerId, String noteId, List<BlockOp> ops) {
+        if (ops == null || ops.isEmpty()) return Tasks.forResult(new ArrayList<>());
+        try {
+            JSONObject body = BlockOp.buildBatchBody(ownerId, noteId, ops);
+            return callFunctionJson(KeyedSerialExecutor.key(ownerId, noteId), FN_APPLY_BATCH, body)
+                    .onSuccessTask(IO, resp -> Tasks.forResult(BlockOp.Result.parseAll(resp)));
+        } catch (Exception e) {
+            return Tasks.forException(e);
+        }
     }
 
-    private String postJson(String urlStr, String idToken, String json) throws Exception {
-        HttpURLConnection conn = null;
-        try {
-            URL url = new URL(urlStr);
-            conn = (HttpURLConnection) url.openConnection();
-            conn.setConnectTimeout(15000);
-            conn.setReadTimeout(30000);
-            conn.setRequestMethod("POST");
-            conn.setDoOutput(true);
-            conn.setRequestProperty("Authorization", "Bearer " + idToken);
-            conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+    // ================== Outbox ==================
 
-            byte[] data = json.getBytes(StandardCharsets.UTF_8);
-            conn.setFixedLengthStreamingMode(data.length);
-            try (OutputStream os = new BufferedOutputStream(conn.getOutputStream())) {
-                os.write(data);
-                os.flush();
-            }
+    /** 有 outbox 時先存本機就回成功（離線也能存），否則直接送出 */
+    private Task<Void> enqueueOrSend(String kind, Endpoint endpoint, String ownerId, String noteId,
+                                     String target, JSONObject body, long expectedVersion) {
+        WriteOutbox outbox = WriteOutbox.get();
+        if (outbox != null) {
+            return outbox.enqueue(OutboxEntry.of(kind, endpoint.name, endpoint.readTimeoutMs,
+                    target, body, expectedVersion));
+        }
+        return callFunctionJson(KeyedSerialExecutor.key(ownerId, noteId), endpoint, body)
+                .onSuccessTask(IO, resp -> Tasks.forResult(null));
+    }
 
-            int code = conn.getResponseCode();
-            BufferedReader br = new BufferedReader(new InputStreamReader(
-                    code >= 200 && code < 300 ? conn.getInputStream() : conn.getErrorStream(),
-                    StandardCharsets.UTF_8));
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = br.readLine()) != null) sb.append(line);
-            String resp = sb.toString();
+    // ================== HTTP helper ==================
+    /** ioKey：同一 key 的請求依序送出（見 KeyedSerialExecutor.key） */
+    private Task<String> callFunctionJson(String ioKey, Endpoint endpoint, JSONObject body) {
+        return callFunction(ioKey, endpoint, body, ResponseBody::string);
+    }
 
-            if (code < 200 || code >= 300) {
-                throw new Exception("HTTP " + code + ": " + resp);
-            }
-            return resp;
-        } finally {
-            if (conn != null) conn.disconnect();
-        }
+    /** 同 callFunctionJson，但 2xx 回應交給 reader 直接讀取 */
+    private <T> Task<T> callFunction(String ioKey, Endpoint endpoint, JSONObject body,
+                                     CloudFunctionClient.BodyReader<T> reader) {
+        return CloudCall.enqueue(ioKey, endpoint, body != null ? body.toString() : "{}", null, reader, opener);
     }
 }
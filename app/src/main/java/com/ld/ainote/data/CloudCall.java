@@ -0,0 +1,91 @@
+package com.ld.ainote.data;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.ld.ainote.net.CloudFunctionClient;
+import com.ld.ainote.net.CloudFunctionClient.Endpoint;
+import com.ld.ainote.net.IdTokenProvider;
+
+/**
+ * Repository / outbox 共用：在 KeyedSerialExecutor 的 key 上送出一次 Cloud Run 呼叫
+ * - 同一 key（同一篇筆記）依序送出；退避等待交給 IO 排程，不佔著執行緒睡
+ * - 同一次呼叫（含 401 重送、退避重試）沿用同一把 Idempotency-Key
+ */
+public final class CloudCall {
+
+    private static final String TAG = "CloudCall";
+
+    private static final KeyedSerialExecutor IO = KeyedSerialExecutor.shared();
+
+    /** 建立一次呼叫（取 token、斷路器、newCall）；測試可換成打本機替身 */
+    public interface Opener {
+        <T> CloudFunctionClient.PendingCall<T> open(@NonNull Endpoint endpoint, @NonNull String json,
+                                                    @Nullable String idempotencyKey,
+                                                    @NonNull CloudFunctionClient.BodyReader<T> reader) throws Exception;
+    }
+
+    /** 正式環境：共用 token 快取；只有被後端拒絕（401）時才強制刷新並重送一次 */
+    public static final Opener CLOUD_RUN = new Opener() {
+        @Override
+        public <T> CloudFunctionClient.PendingCall<T> open(@NonNull Endpoint endpoint, @NonNull String json,
+                                                           @Nullable String idempotencyKey,
+                                                           @NonNull CloudFunctionClient.BodyReader<T> reader)
+                throws Exception {
+            CloudFunctionClient client = CloudFunctionClient.get();
+            // 斷路器斷開時不必先取 token，直接失敗（呼叫端可改走備援）
+            client.failFastIfOpen(endpoint.name);
+            IdTokenProvider tokens = IdTokenProvider.get();
+            long tokenStartNs = System.nanoTime();
+            String idToken = tokens.getToken();
+            client.metrics().recordTokenWait(endpoint.name, (System.nanoTime() - tokenStartNs) / 1_000_000L);
+            return client.newCall(endpoint, idToken, json, idempotencyKey, reader, tokens::refreshAfterUnauthorized);
+        }
+    };
+
+    private CloudCall() {}
+
+    /**
+     * 排在 ioKey 後面送出；2xx 回應交給 reader 讀取
+     * @param idempotencyKey null 時，會改寫資料的端點自動產生一把（outbox 傳入存下來的那把）
+     */
+    @NonNull
+    public static <T> Task<T> enqueue(@NonNull String ioKey, @NonNull Endpoint endpoint, @NonNull String json,
+                                      @Nullable String idempotencyKey,
+                                      @NonNull CloudFunctionClient.BodyReader<T> reader, @NonNull Opener opener) {
+        TaskCompletionSource<T> tcs = new TaskCompletionSource<>();
+        long queuedAtNs = System.nanoTime();
+        IO.executeResumable(ioKey, new KeyedSerialExecutor.Resumable() {
+            CloudFunctionClient.PendingCall<T> call;
+
+            @Override
+            public long run() {
+                try {
+                    if (call == null) {
+                        CloudFunctionClient.get().metrics()
+                                .recordQueueWait(endpoint.name, (System.nanoTime() - queuedAtNs) / 1_000_000L);
+                        String idemKey = idempotencyKey != null ? idempotencyKey
+                                : endpoint.mutating ? CloudFunctionClient.newIdempotencyKey() : null;
+                        call = opener.open(endpoint, json, idemKey, reader);
+                    }
+                    // 暫時性錯誤：回傳等待時間，同一 key 的後續請求仍排在後面
+                    long wait = call.step();
+                    if (wait >= 0) return wait;
+                    tcs.setResult(call.result());
+                } catch (CloudFunctionClient.CircuitOpenException e) {
+                    Log.w(TAG, e.getMessage());
+                    tcs.setException(e);
+                } catch (Exception e) {
+                    Log.e(TAG, endpoint.name + " error", e);
+                    tcs.setException(e);
+                }
+                return -1;
+            }
+        });
+        return tcs.getTask();
+    }
+}
@@ -0,0 +1,227 @@
+package com.ld.ainote.data;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Repository 共用的 I/O 執行器
+ * - 不同 key（ownerId + noteId）在固定大小的執行緒池上平行執行
+ * - 同一個 key 嚴格依送出順序、一次一個執行（保住 block 版號順序）
+ * - execute(Runnable) 不帶 key：不保證順序，給解析回應這類不在乎順序的工作用
+ * - executeResumable：工作可以要求「過一段時間再接著跑」（例如退避重試），
+ *   等待期間不佔執行緒，但同 key 後面的工作仍排在它之後
+ */
+public final class KeyedSerialExecutor implements Executor {
+
+    private static final int DEFAULT_THREADS = 4;
+
+    /** 可分段執行的工作：回傳 -1 表示完成；回傳 >= 0 表示這麼多毫秒後再呼叫一次 */
+    public interface Resumable {
+        long run();
+    }
+
+    private static volatile KeyedSerialExecutor shared;
+
+    public static KeyedSerialExecutor shared() {
+        if (shared == null) {
+            synchronized (KeyedSerialExecutor.class) {
+                if (shared == null) shared = new KeyedSerialExecutor(DEFAULT_THREADS, "repo-io");
+            }
+        }
+        return shared;
+    }
+
+    /** 一篇筆記對應的序列化 key；noteId 為空時代表「該使用者的筆記清單」 */
+    @NonNull
+    public static String key(@Nullable String ownerId, @Nullable String noteId) {
+        return (ownerId == null ? "" : ownerId) + "/" + (noteId == null ? "*" : noteId);
+    }
+
+    private final ThreadPoolExecutor pool;
+    // 只負責把等待結束的工作丟回 pool，不執行工作本身
+    private final ScheduledExecutorService timer;
+    private final Object lock = new Object();
+    // 目前有工作在排隊或執行中的 key；清空後即移除，不會無限長大
+    private final Map<String, SerialQueue> queues = new HashMap<>();
+
+    // 統計
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger maxPending = new AtomicInteger();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    KeyedSerialExecutor(int threads, @NonNull String namePrefix) {
+        AtomicInteger seq = new AtomicInteger();
+        ThreadFactory tf = r -> {
+            Thread t = new Thread(r, namePrefix + "-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), tf);
+        pool.allowCoreThreadTimeOut(true);
+        timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, namePrefix + "-timer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** 取得某個 key 的序列執行器（可直接交給 Task.onSuccessTask 等 API） */
+    @NonNull
+    public Executor forKey(@NonNull String key) {
+        return r -> execute(key, r);
+    }
+
+    /** 依 key 排隊執行 */
+    public void execute(@NonNull String key, @NonNull Runnable r) {
+        executeResumable(key, () -> {
+            r.run();
+            return -1;
+        });
+    }
+
+    /** 依 key 排隊執行；r 要求等待時先讓出執行緒，時間到再接著跑（期間同 key 的後續工作不會先跑） */
+    public void executeResumable(@NonNull String key, @NonNull Resumable r) {
+        Timed job = new Timed(r);
+        onEnqueued();
+        boolean start;
+        SerialQueue q;
+        synchronized (lock) {
+            q = queues.get(key);
+            if (q == null) {
+                q = new SerialQueue(key);
+                queues.put(key, q);
+            }
+            q.tasks.addLast(job);
+            start = !q.running;
+            if (start) q.running = true;
+        }
+        if (start) pool.execute(q);
+    }
+
+    /** 不分 key、不保證順序 */
+    @Override
+    public void execute(@NonNull Runnable r) {
+        Timed job = new Timed(() -> {
+            r.run();
+            return -1;
+        });
+        onEnqueued();
+        pool.execute(job::run);
+    }
+
+    /** 同一 key 的工作佇列；每次只跑一個，跑完再把自己丟回池子（讓其他 key 有機會插隊） */
+    private final class SerialQueue implements Runnable {
+        final String key;
+        final ArrayDeque<Timed> tasks = new ArrayDeque<>();
+        boolean running;
+
+        SerialQueue(String key) { this.key = key; }
+
+        @Override
+        public void run() {
+            Timed next;
+            synchronized (lock) { next = tasks.pollFirst(); }
+            long again = -1;
+            try {
+                if (next != null) again = next.run();
+            } finally {
+                if (again >= 0) resumeLater(next, again);
+                else advance();
+            }
+        }
+
+        /** 還沒做完：放回隊首（key 仍視為執行中），時間到再丟回池子 */
+        private void resumeLater(Timed job, long delayMs) {
+            synchronized (lock) { tasks.addFirst(job); }
+            timer.schedule(() -> pool.execute(this), delayMs, TimeUnit.MILLISECONDS);
+        }
+
+        private void advance() {
+            boolean more;
+            synchronized (lock) {
+                more = !tasks.isEmpty();
+                if (!more) {
+                    running = false;
+                    queues.remove(key);
+                }
+            }
+            if (more) pool.execute(this);
+        }
+    }
+
+    /** 記錄從排入到第一次開始執行的等待時間（分段執行的後續不算排隊） */
+    private final class Timed {
+        final Resumable inner;
+        final long enqueuedAt = System.nanoTime();
+        boolean started;
+
+        Timed(Resumable inner) { this.inner = inner; }
+
+        long run() {
+            if (!started) {
+                started = true;
+                long wait = System.nanoTime() - enqueuedAt;
+                pending.decrementAndGet();
+                totalWaitNanos.addAndGet(wait);
+                maxWaitNanos.accumulateAndGet(wait, Math::max);
+            }
+            long again = -1;
+            try {
+                again = inner.run();
+            } finally {
+                if (again < 0) completed.incrementAndGet();
+            }
+            return again;
+        }
+    }
+
+    private void onEnqueued() {
+        submitted.incrementAndGet();
+        maxPending.accumulateAndGet(pending.incrementAndGet(), Math::max);
+    }
+
+    // ================== 統計 ==================
+
+    /** 目前排隊中（尚未開始執行）的工作數 */
+    public int queueDepth() { return pending.get(); }
+    public int maxQueueDepth() { return maxPending.get(); }
+    public long submitted() { return submitted.get(); }
+    public long completed() { return completed.get(); }
+
+    /** 目前有工作的 key 數 */
+    public int activeKeys() {
+        synchronized (lock) { return queues.size(); }
+    }
+
+    public double avgWaitMs() {
+        long started = submitted.get() - pending.get();
+        return started <= 0 ? 0d : totalWaitNanos.get() / 1e6 / started;
+    }
+
+    public double maxWaitMs() { return maxWaitNanos.get() / 1e6; }
+
+    @NonNull
+    public String statsLine() {
+        return "io depth=" + queueDepth() + " maxDepth=" + maxQueueDepth()
+                + " keys=" + activeKeys() + " done=" + completed() + "/" + submitted()
+                + String.format(Locale.ROOT, " waitAvg=%.2fms waitMax=%.2fms", avgWaitMs(), maxWaitMs());
+    }
+}
@@ -0,0 +1,168 @@
+package com.ld.ainote.data;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.ld.ainote.models.Note;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 筆記列表：「我的筆記」與「共筆」兩條監聽的合併結果（只在 UI 執行緒使用）
+ * - 每次 snapshot 只套用 getDocumentChanges() 的新增 / 修改 / 刪除，不重建整份
+ * - 依 類別 → 章 → 節 → 標題 排序的清單就地維護（二分搜尋插入 / 移除），回傳實際變動的位置
+ * - 同一份筆記同時出現在兩個來源時以共筆那份為準（與原本 mergeMap.putAll 的順序相同）
+ * - 一次變動很多（例如第一次載入）時直接重排，回傳 RESET
+ * - 放進來的 Note 之後不可再修改（排序欄位一變，二分搜尋就找不到它）
+ */
+public final class NoteListMerger {
+
+    public enum Source { MINE, SHARED }
+
+    /** 一筆 snapshot 變更；note == null 表示刪除 */
+    public static final class Edit {
+        @NonNull public final String key;
+        @Nullable public final Note note;
+
+        private Edit(@NonNull String key, @Nullable Note note) {
+            this.key = key;
+            this.note = note;
+        }
+
+        public static Edit upsert(@NonNull Note note) { return new Edit(keyOf(note), note); }
+
+        public static Edit remove(@NonNull String key) { return new Edit(key, null); }
+    }
+
+    /** 排序清單上的一個變動；依序套用即可得到新的清單 */
+    public static final class Change {
+        public enum Type { INSERT, REMOVE, UPDATE, RESET }
+
+        @NonNull public final Type type;
+        public final int index;
+        @Nullable public final Note note; // INSERT / UPDATE 的新值
+
+        Change(@NonNull Type type, int index, @Nullable Note note) {
+            this.type = type;
+            this.index = index;
+            this.note = note;
+        }
+    }
+
+    // 變動數超過清單的 1/BULK_DIVISOR（且至少 BULK_MIN 筆）就整份重排
+    private static final int BULK_MIN = 64;
+    private static final int BULK_DIVISOR = 4;
+
+    public static final Comparator<Note> ORDER = (a, b) -> {
+        int c = nullSafe(a.getStack()).compareToIgnoreCase(nullSafe(b.getStack()));
+        if (c != 0) return c;
+        c = Integer.compare(a.getChapter(), b.getChapter());
+        if (c != 0) return c;
+        c = Integer.compare(a.getSection(), b.getSection());
+        if (c != 0) return c;
+        c = nullSafe(a.getTitle()).compareToIgnoreCase(nullSafe(b.getTitle()));
+        if (c != 0) return c;
+        return keyOf(a).compareTo(keyOf(b)); // 讓順序唯一，二分搜尋才找得到原本那筆
+    };
+
+    private final Map<String, Note> mine = new HashMap<>();
+    private final Map<String, Note> shared = new HashMap<>();
+    private final List<Note> sorted = new ArrayList<>();
+    private final Map<String, Integer> stackCounts = new HashMap<>();
+
+    /** key = ownerId#noteId */
+    @NonNull
+    public static String keyOf(@NonNull Note n) {
+        return n.getOwnerId() + "#" + n.getId();
+    }
+
+    /** 目前排序好的清單（唯讀） */
+    @NonNull
+    public List<Note> notes() { return Collections.unmodifiableList(sorted); }
+
+    public int size() { return sorted.size(); }
+
+    /** 目前有筆記的類別（stack 原字串，不含空白類別） */
+    @NonNull
+    public Set<String> stacks() { return Collections.unmodifiableSet(stackCounts.keySet()); }
+
+    /** 重新開始監聽前呼叫 */
+    public void clear() {
+        mine.clear();
+        shared.clear();
+        sorted.clear();
+        stackCounts.clear();
+    }
+
+    /** 套用某個來源的一批變更，回傳排序清單上的變動（沒有實際變動時回傳空 list） */
+    @NonNull
+    public List<Change> apply(@NonNull Source source, @NonNull List<Edit> edits) {
+        Map<String, Note> target = source == Source.MINE ? mine : shared;
+        boolean bulk = edits.size() >= BULK_MIN && edits.size() * BULK_DIVISOR > sorted.size();
+        List<Change> out = new ArrayList<>();
+        for (Edit e : edits) {
+            Note before = effective(e.key);
+            if (e.note == null) target.remove(e.key);
+            else target.put(e.key, e.note);
+            Note after = effective(e.key);
+            if (before == after) continue;
+
+            count(before, -1);
+            count(after, +1);
+            if (!bulk) move(before, after, out);
+        }
+        if (bulk) {
+            sorted.clear();
+            for (Map.Entry<String, Note> m : mine.entrySet()) {
+                if (!shared.containsKey(m.getKey())) sorted.add(m.getValue());
+            }
+            sorted.addAll(shared.values());
+            Collections.sort(sorted, ORDER);
+            out.clear();
+            out.add(new Change(Change.Type.RESET, -1, null));
+        }
+        return out;
+    }
+
+    @Nullable
+    private Note effective(String key) {
+        Note s = shared.get(key);
+        return s != null ? s : mine.get(key);
+    }
+
+    private void move(@Nullable Note before, @Nullable Note after, List<Change> out) {
+        int from = before == null ? -1 : Collections.binarySearch(sorted, before, ORDER);
+        if (before != null && from < 0) throw new IllegalStateException("note not in list: " + keyOf(before));
+        if (before != null && after != null && ORDER.compare(before, after) == 0) {
+            sorted.set(from, after); // 排序欄位沒變（例如只改內容）：原地更新
+            out.add(new Change(Change.Type.UPDATE, from, after));
+            return;
+        }
+        if (before != null) {
+            sorted.remove(from);
+            out.add(new Change(Change.Type.REMOVE, from, null));
+        }
+        if (after != null) {
+            int to = -Collections.binarySearch(sorted, after, ORDER) - 1;
+            sorted.add(to, after);
+            out.add(new Change(Change.Type.INSERT, to, after));
+        }
+    }
+
+    private void count(@Nullable Note n, int delta) {
+        if (n == null) return;
+        String stack = nullSafe(n.getStack()).trim();
+        if (stack.isEmpty()) return;
+        int v = stackCounts.getOrDefault(n.getStack(), 0) + delta;
+        if (v <= 0) stackCounts.remove(n.getStack());
+        else stackCounts.put(n.getStack(), v);
+    }
+
+    private static String nullSafe(String s) { return s == null ? "" : s; }
+}
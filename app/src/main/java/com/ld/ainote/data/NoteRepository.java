@@ -6,30 +6,31 @@ import androidx.annotation.Nullable;
 import com.google.android.gms.tasks.*;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.firestore.*;
+import com.ld.ainote.data.outbox.OutboxEntry;
+import com.ld.ainote.data.outbox.WriteOutbox;
 import com.ld.ainote.models.Note;
+import com.ld.ainote.net.CloudFunctionClient.Endpoint;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+
+import okhttp3.ResponseBody;
 
 public class NoteRepository {
     private static final String TAG = "NoteRepository";
 
-    // ✅ Cloud Run 完整 URL（不使用 FUNCTION_BASE_URL）
-    private static final String FN_CREATE            = "https://createnote-qoe2g6zspa-de.a.run.app";
-    private static final String FN_UPDATE            = "https://updatenote-qoe2g6zspa-de.a.run.app";
-    private static final String FN_DELETE            = "https://deletenote-qoe2g6zspa-de.a.run.app";
-    private static final String FN_DELETE_BY_STACK   = "https://deletenotesbycategory-qoe2g6zspa-de.a.run.app";
-    private static final String FN_SET_COLLABORATORS = "https://setcollaborators-qoe2g6zspa-de.a.run.app";
+    // ✅ Cloud Run 端點（https://{name}-qoe2g6zspa-de.a.run.app，不使用 FUNCTION_BASE_URL）
+    private static final Endpoint FN_CREATE            = Endpoint.mutating("createnote", 30000);
+    private static final Endpoint FN_UPDATE            = Endpoint.of("updatenote", 30000);
+    // 刪除重送時第一次可能已生效（會變成 404）：帶 Idempotency-Key，後端回放第一次的結果
+    private static final Endpoint FN_DELETE            = Endpoint.mutating("deletenote", 30000);
+    private static final Endpoint FN_DELETE_BY_STACK   = Endpoint.mutating("deletenotesbycategory", 30000);
+    private static final Endpoint FN_SET_COLLABORATORS = Endpoint.mutating("setcollaborators", 15000);
 
-    private static final ExecutorService IO = Executors.newSingleThreadExecutor();
+    // 同一篇筆記依序送出、不同筆記平行（見 KeyedSerialExecutor）
+    private static final KeyedSerialExecutor IO = KeyedSerialExecutor.shared();
 
     private final FirebaseFirestore db;
     private final String myUid;
@@ -211,7 +212,7 @@ public class NoteRepository {
             body.put("collaborators", arr);
         } catch (Exception ignore) {}
 
-        Task<Void> apiTask = callFunctionJson(FN_SET_COLLABORATORS, body)
+        Task<Void> apiTask = callFunctionJson(KeyedSerialExecutor.key(ownerId, noteId), FN_SET_COLLABORATORS, body)
                 .onSuccessTask(IO, resp -> {
                     try {
                         JSONObject js = new JSONObject(resp);
@@ -230,6 +231,7 @@ public class NoteRepository {
                 if (callback != null) callback.onComplete(Tasks.forResult(null));
             } else {
                 // 🔁 Fallback：用 Firestore 直接 merge 寫 collaborators
+                // （setcollaborators 斷路器斷開時不會等逾時，立即走這裡）
                 Map<String, Object> data = new HashMap<>();
                 data.put("collaborators", uids != null ? uids : new ArrayList<>());
                 FirebaseFirestore.getInstance()
@@ -272,7 +274,20 @@ public class NoteRepository {
             if (note.getSection() > 0) body.put("section", note.getSection());
         } catch (Exception ignore) {}
 
-        Task<DocumentReference> task = callFunctionJson(FN_CREATE, body)
+        // 有 outbox：先在本機產生 id 並存進 outbox，立即回報成功；後端以同一 id 建立（可重送）
+        WriteOutbox outbox = WriteOutbox.get();
+        if (outbox != null) {
+            String id = myNotesRef.document().getId();
+            try { body.put("id", id); } catch (Exception ignore) {}
+            DocumentReference ref = myNotesRef.document(id);
+            Task<DocumentReference> queued = outbox.enqueue(OutboxEntry.of(OutboxEntry.CREATE_NOTE,
+                            FN_CREATE.name, FN_CREATE.readTimeoutMs, OutboxEntry.noteTarget(myUid, id), body, -1))
+                    .onSuccessTask(v -> Tasks.forResult(ref));
+            if (callback != null) queued.addOnCompleteListener(callback);
+            return;
+        }
+
+        Task<DocumentReference> task = callFunctionJson(KeyedSerialExecutor.key(myUid, null), FN_CREATE, body)
                 .onSuccessTask(IO, resp -> {
                     try {
                         JSONObject js = new JSONObject(resp);
@@ -314,7 +329,15 @@ public class NoteRepository {
             if (note.getSection() > 0) body.put("section", note.getSection());
         } catch (Exception ignore) {}
 
-        return callFunctionJson(FN_UPDATE, body).onSuccessTask(IO, resp -> {
+        String owner = ownerId != null ? ownerId : myUid;
+        WriteOutbox outbox = WriteOutbox.get();
+        if (outbox != null) {
+            return outbox.enqueue(OutboxEntry.of(OutboxEntry.UPDATE_NOTE, FN_UPDATE.name, FN_UPDATE.readTimeoutMs,
+                    OutboxEntry.noteTarget(owner, note.getId()), body, -1));
+        }
+
+        String ioKey = KeyedSerialExecutor.key(owner, note.getId());
+        return callFunctionJson(ioKey, FN_UPDATE, body).onSuccessTask(IO, resp -> {
             try {
                 JSONObject js = new JSONObject(resp);
                 if (js.optBoolean("success") || js.optBoolean("noChange"))
@@ -335,7 +358,7 @@ public class NoteRepository {
         JSONObject body = new JSONObject();
         try { body.put("id", id); } catch (Exception ignore) {}
 
-        return callFunctionJson(FN_DELETE, body).onSuccessTask(IO, resp -> {
+        return callFunctionJson(KeyedSerialExecutor.key(myUid, id), FN_DELETE, body).onSuccessTask(IO, resp -> {
             try {
                 JSONObject js = new JSONObject(resp);
                 if (js.optBoolean("success")) return Tasks.forResult(null);
@@ -355,7 +378,7 @@ public class NoteRepository {
         JSONObject body = new JSONObject();
         try { body.put("stack", stack.trim()); } catch (Exception ignore) {}
 
-        return callFunctionJson(FN_DELETE_BY_STACK, body).onSuccessTask(IO, resp -> {
+        return callFunctionJson(KeyedSerialExecutor.key(myUid, null), FN_DELETE_BY_STACK, body).onSuccessTask(IO, resp -> {
             try {
                 JSONObject js = new JSONObject(resp);
                 if (js.optBoolean("success"))
@@ -368,68 +391,9 @@ public class NoteRepository {
     }
 
     // ================== HTTP helpers ==================
-    private Task<String> callFunctionJson(String fullUrl, JSONObject body) {
-        TaskCompletionSource<String> tcs = new TaskCompletionSource<>();
-        IO.execute(() -> {
-            try {
-                FirebaseAuth auth = FirebaseAuth.getInstance();
-                if (auth.getCurrentUser() == null) {
-                    tcs.setException(new IllegalStateException("尚未登入"));
-                    return;
-                }
-                String idToken = Tasks.await(auth.getCurrentUser().getIdToken(true)).getToken();
-                if (idToken == null || idToken.isEmpty()) {
-                    tcs.setException(new IllegalStateException("取得 ID Token 失敗"));
-                    return;
-                }
-
-                if (!fullUrl.startsWith("http")) {
-                    tcs.setException(new IllegalArgumentException("無效的 URL：" + fullUrl));
-                    return;
-                }
-
-                String resp = postJson(fullUrl, idToken, body != null ? body.toString() : "{}");
-                tcs.setResult(resp);
-            } catch (Exception e) {
-                Log.e(TAG, "callFunctionJson error", e);
-                tcs.setException(e);
-            }
-        });
-        return tcs.getTask();
-    }
-
-    private String postJson(String urlStr, String idToken, String json) throws Exception {
-        HttpURLConnection conn = null;
-        try {
-            URL url = new URL(urlStr);
-            conn = (HttpURLConnection) url.openConnection();
-            conn.setConnectTimeout(15000);
-            conn.setReadTimeout(30000);
-            conn.setRequestMethod("POST");
-            conn.setDoOutput(true);
-            conn.setRequestProperty("Authorization", "Bearer " + idToken);
-            conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
-
-            byte[] data = json.getBytes(StandardCharsets.UTF_8);
-            conn.setFixedLengthStreamingMode(data.length);
-            try (OutputStream os = new BufferedOutputStream(conn.getOutputStream())) {
-                os.write(data);
-                os.flush();
-            }
-
-            int code = conn.getResponseCode();
-            BufferedReader br = new BufferedReader(new InputStreamReader(
-                    code >= 200 && code < 300 ? conn.getInputStream() : conn.getErrorStream(),
-                    StandardCharsets.UTF_8));
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = br.readLine()) != null) sb.append(line);
-            String resp = sb.toString();
-            if (code < 200 || code >= 300)
-                throw new Exception("HTTP " + code + ": " + resp);
-            return resp;
-        } finally {
-            if (conn != null) conn.disconnect();
-        }
+    /** ioKey：同一 key 的請求依序送出（見 KeyedSerialExecutor.key） */
+    private Task<String> callFunctionJson(String ioKey, Endpoint endpoint, JSONObject body) {
+        return CloudCall.enqueue(ioKey, endpoint, body != null ? body.toString() : "{}", null,
+                ResponseBody::string, CloudCall.CLOUD_RUN);
     }
 }
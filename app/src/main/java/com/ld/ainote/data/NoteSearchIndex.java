@@ -0,0 +1,286 @@
+package com.ld.ainote.data;
+
+import androidx.annotation.NonNull;
+
+import com.ld.ainote.models.Note;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * 筆記搜尋用的記憶體倒排索引（標題 + 內容）
+ * - 中文（CJK）：連續字切成兩字一組（bigram），每段最後一個字另外收單字，單字查詢用前綴就找得到
+ * - 英數：以單字為 token（小寫、全形轉半形）
+ * - 查詢：所有 token 都要命中（AND）；最後一個英數 token 與單一中文字當前綴（邊打邊查）
+ * - 排序：idf × 詞頻飽和，標題命中加權
+ * - 增量：put / remove 只動該筆；刪除先標記，死掉的比例過半才整理 postings
+ * 非執行緒安全；中文多字查詢只要求各 bigram 都出現，不保證相連
+ */
+public final class NoteSearchIndex {
+
+    private static final int TITLE_WEIGHT = 3;
+    private static final float TF_K = 1.2f;
+    private static final int MAX_TF = 0xFFFF;
+
+    /** 一個 term 的 postings：docId 遞增，tf = (標題次數 << 16) | 內容次數 */
+    private static final class Postings {
+        int[] docs = new int[4];
+        int[] tf = new int[4];
+        int size;
+
+        void add(int doc, int packed) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                tf = Arrays.copyOf(tf, size * 2);
+            }
+            docs[size] = doc;
+            tf[size] = packed;
+            size++;
+        }
+    }
+
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+    private final List<Note> docs = new ArrayList<>();      // docId → note（null = 已刪除）
+    private final Map<String, Integer> docOf = new HashMap<>(); // ownerId#noteId → docId
+    private int dead;
+
+    /** 目前索引中的筆記數 */
+    public int size() { return docOf.size(); }
+
+    public void clear() {
+        terms.clear();
+        docs.clear();
+        docOf.clear();
+        dead = 0;
+    }
+
+    /** 新增或更新一筆（更新 = 舊的標記刪除 + 以新 docId 重新加入） */
+    public void put(@NonNull Note n) {
+        String key = NoteListMerger.keyOf(n);
+        removeKey(key);
+
+        Map<String, int[]> counts = new HashMap<>();
+        for (String t : tokens(n.getTitle())) counts.computeIfAbsent(t, k -> new int[2])[0]++;
+        for (String t : tokens(n.getContent())) counts.computeIfAbsent(t, k -> new int[2])[1]++;
+
+        int doc = docs.size();
+        docs.add(n);
+        docOf.put(key, doc);
+        for (Map.Entry<String, int[]> e : counts.entrySet()) {
+            int[] c = e.getValue();
+            int packed = (Math.min(c[0], MAX_TF) << 16) | Math.min(c[1], MAX_TF);
+            Postings p = terms.get(e.getKey());
+            if (p == null) terms.put(e.getKey(), p = new Postings());
+            p.add(doc, packed);
+        }
+    }
+
+    public void remove(@NonNull Note n) {
+        removeKey(NoteListMerger.keyOf(n));
+    }
+
+    public void removeKey(@NonNull String key) {
+        Integer doc = docOf.remove(key);
+        if (doc == null) return;
+        docs.set(doc, null);
+        dead++;
+        if (dead > 64 && dead * 2 > docs.size()) compact();
+    }
+
+    /**
+     * 依相關度排序的搜尋結果（最多 limit 筆；limit <= 0 表示不限）
+     * 查詢沒有任何 token（空白或全是標點）時回傳空 list
+     */
+    @NonNull
+    public List<Note> search(@NonNull String query, int limit) {
+        List<QueryTerm> q = parseQuery(query);
+        if (q.isEmpty() || docOf.isEmpty()) return Collections.emptyList();
+
+        int n = docs.size();
+        float[] score = new float[n];
+        int[] hits = new int[n];   // 命中幾個查詢 token
+        int[] seen = new int[n];   // 這個查詢 token 是否已算過（前綴展開時同一筆只算一次）
+        float live = docOf.size();
+
+        for (int g = 0; g < q.size(); g++) {
+            QueryTerm qt = q.get(g);
+            Map<String, Postings> matched = qt.prefix ? prefixRange(qt.text) : exact(qt.text);
+            if (matched.isEmpty()) return Collections.emptyList();
+            for (Postings p : matched.values()) {
+                float idf = (float) Math.log(1 + live / p.size);
+                for (int i = 0; i < p.size; i++) {
+                    int doc = p.docs[i];
+                    if (docs.get(doc) == null || hits[doc] != g) continue; // 已刪除或前面的 token 沒命中
+                    int t = p.tf[i];
+                    float tf = TITLE_WEIGHT * (t >>> 16) + (t & 0xFFFF);
+                    score[doc] += idf * tf / (tf + TF_K);
+                    seen[doc] = g + 1;
+                }
+            }
+            for (int d = 0; d < n; d++) if (seen[d] == g + 1) hits[d] = g + 1;
+        }
+
+        List<Integer> found = new ArrayList<>();
+        for (int d = 0; d < n; d++) if (hits[d] == q.size()) found.add(d);
+        Collections.sort(found, (a, b) -> {
+            int c = Float.compare(score[b], score[a]);
+            return c != 0 ? c : Integer.compare(a, b);
+        });
+        int end = limit > 0 ? Math.min(limit, found.size()) : found.size();
+        List<Note> out = new ArrayList<>(end);
+        for (int i = 0; i < end; i++) out.add(docs.get(found.get(i)));
+        return out;
+    }
+
+    /** 查詢字串是否切得出 token（全是標點 / 空白時 search 一定回傳空） */
+    public static boolean isIndexable(@NonNull String query) {
+        return !parseQuery(query).isEmpty();
+    }
+
+    private Map<String, Postings> exact(String term) {
+        Postings p = terms.get(term);
+        return p == null ? Collections.emptyMap() : Collections.singletonMap(term, p);
+    }
+
+    private SortedMap<String, Postings> prefixRange(String prefix) {
+        return terms.subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    /** 刪除的 docId 太多時重新編號，並把 postings 中死掉的項目拿掉 */
+    private void compact() {
+        int[] remap = new int[docs.size()];
+        List<Note> kept = new ArrayList<>(docOf.size());
+        for (int d = 0; d < docs.size(); d++) {
+            Note n = docs.get(d);
+            if (n == null) { remap[d] = -1; continue; }
+            remap[d] = kept.size();
+            kept.add(n);
+        }
+        docs.clear();
+        docs.addAll(kept);
+        for (Map.Entry<String, Integer> e : docOf.entrySet()) e.setValue(remap[e.getValue()]);
+
+        Iterator<Postings> it = terms.values().iterator();
+        while (it.hasNext()) {
+            Postings p = it.next();
+            int w = 0;
+            for (int i = 0; i < p.size; i++) {
+                int to = remap[p.docs[i]];
+                if (to < 0) continue;
+                p.docs[w] = to;
+                p.tf[w] = p.tf[i];
+                w++;
+            }
+            p.size = w;
+            if (w == 0) it.remove();
+        }
+        dead = 0;
+    }
+
+    // ================== 斷詞 ==================
+
+    static final class QueryTerm {
+        final String text;
+        final boolean prefix;
+
+        QueryTerm(String text, boolean prefix) {
+            this.text = text;
+            this.prefix = prefix;
+        }
+
+        @Override public String toString() { return prefix ? text + "*" : text; }
+    }
+
+    /** 索引用的 token：英數單字、中文 bigram 與每段中文的最後一個字 */
+    @NonNull
+    static List<String> tokens(String text) {
+        List<String> out = new ArrayList<>();
+        scan(text, new Sink() {
+            @Override public void word(char[] cs, int from, int to, boolean last) {
+                out.add(new String(cs, from, to - from));
+            }
+            @Override public void cjk(char[] cs, int from, int to) {
+                for (int i = from; i + 1 < to; i++) out.add(new String(cs, i, 2));
+                out.add(String.valueOf(cs[to - 1]));
+            }
+        });
+        return out;
+    }
+
+    /** 查詢用的 token：中文兩字以上用 bigram 精確比對，單字用前綴；最後一個英數字當前綴 */
+    @NonNull
+    static List<QueryTerm> parseQuery(String query) {
+        List<QueryTerm> out = new ArrayList<>();
+        scan(query, new Sink() {
+            @Override public void word(char[] cs, int from, int to, boolean last) {
+                out.add(new QueryTerm(new String(cs, from, to - from), last));
+            }
+            @Override public void cjk(char[] cs, int from, int to) {
+                if (to - from == 1) { out.add(new QueryTerm(String.valueOf(cs[from]), true)); return; }
+                for (int i = from; i + 1 < to; i++) out.add(new QueryTerm(new String(cs, i, 2), false));
+            }
+        });
+        return out;
+    }
+
+    private interface Sink {
+        void word(char[] cs, int from, int to, boolean last);
+        void cjk(char[] cs, int from, int to);
+    }
+
+    private static final int OTHER = 0, WORD = 1, CJK = 2;
+
+    /**
+     * 逐字切出英數單字與中文段落；word 的 last 表示後面沒有其他 token
+     * 以 char 為單位（BMP 外的字，例如 emoji、擴充 B 區漢字，當作分隔）
+     */
+    private static void scan(String text, Sink sink) {
+        if (text == null || text.isEmpty()) return;
+        int len = text.length();
+        char[] cs = new char[len];
+        byte[] kind = new byte[len];
+        int lastToken = -1;
+        for (int i = 0; i < len; i++) {
+            char c = normalize(text.charAt(i));
+            cs[i] = c;
+            if (isCjk(c)) kind[i] = CJK;
+            else if (!Character.isSurrogate(c) && Character.isLetterOrDigit(c)) kind[i] = WORD;
+            if (kind[i] != OTHER) lastToken = i;
+        }
+        int i = 0;
+        while (i < len) {
+            int k = kind[i];
+            if (k == OTHER) { i++; continue; }
+            int j = i;
+            while (j < len && kind[j] == k) j++;
+            if (k == CJK) sink.cjk(cs, i, j);
+            else sink.word(cs, i, j, j > lastToken);
+            i = j;
+        }
+    }
+
+    /** 全形英數轉半形並轉小寫 */
+    private static char normalize(char c) {
+        if (c >= 0xFF01 && c <= 0xFF5E) c -= 0xFEE0;
+        return Character.toLowerCase(c);
+    }
+
+    private static boolean isCjk(char c) {
+        if (c < 0x2E80) return false;                    // 英數 / 標點：不用查 UnicodeScript
+        if (c >= 0x4E00 && c <= 0x9FFF) return true;     // 常用漢字
+        if (Character.isSurrogate(c)) return false;
+        Character.UnicodeScript s = Character.UnicodeScript.of(c);
+        return s == Character.UnicodeScript.HAN
+                || s == Character.UnicodeScript.HIRAGANA
+                || s == Character.UnicodeScript.KATAKANA
+                || s == Character.UnicodeScript.HANGUL
+                || s == Character.UnicodeScript.BOPOMOFO;
+    }
+}
@@ -0,0 +1,202 @@
+package com.ld.ainote.data;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.firebase.firestore.DocumentChange;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.ld.ainote.models.Note;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 分頁載入一個筆記來源（我的筆記 / 共筆），依 stack → chapter → section → 文件 id 排序
+ * - 第 k 頁 = (第 k-1 頁最後一筆, 第 k 頁最後一筆]；最後一頁用 limit(pageSize)，載入下一頁時改成以 endAt 封口
+ * - 每一頁各自一個即時監聽，只監聽已載入的頁；stop() 全部移除
+ * - 頁內變動轉成 NoteListMerger.Edit 交給外部（只在 UI 執行緒使用）
+ * 注意：orderBy 會排除沒有 stack / chapter / section 欄位的文件（createNote 一律會寫入，可為 null / 空字串）
+ * 需要的複合索引（我的筆記 / 共筆 collectionGroup + collaborators）在專案根目錄 firestore.indexes.json，
+ * 以 firebase deploy --only firestore:indexes 建立
+ */
+public final class PagedNoteSource {
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    public interface Mapper {
+        @NonNull Note toNote(@NonNull DocumentSnapshot d);
+        @NonNull String keyOf(@NonNull DocumentSnapshot d);
+    }
+
+    public interface Listener {
+        void onEdits(@NonNull List<NoteListMerger.Edit> edits);
+        void onError(@NonNull Exception e);
+    }
+
+    private static final class Page {
+        @Nullable DocumentSnapshot endCursor; // null = 最後一頁（limit 中）
+        @Nullable ListenerRegistration reg;
+        @Nullable DocumentSnapshot lastDoc;
+        int size;
+        boolean loaded;   // 收過第一個 snapshot
+        int attach;       // 第幾次掛監聽（重新掛上後第一個 snapshot 要對帳）
+    }
+
+    private final Query base;
+    private final int pageSize;
+    private final Mapper mapper;
+    private final Listener listener;
+    private final List<Page> pages = new ArrayList<>();
+    private final PageOwnership ownership = new PageOwnership();
+
+    public PagedNoteSource(@NonNull Query query, int pageSize, @NonNull Mapper mapper, @NonNull Listener listener) {
+        this.base = query.orderBy("stack").orderBy("chapter").orderBy("section").orderBy(FieldPath.documentId());
+        this.pageSize = Math.max(1, pageSize);
+        this.mapper = mapper;
+        this.listener = listener;
+    }
+
+    /** 載入並監聽第一頁 */
+    public void start() {
+        stop();
+        Page first = new Page();
+        pages.add(first);
+        attach(0);
+    }
+
+    /** 移除所有監聽（已交出去的資料由外部自行清除） */
+    public void stop() {
+        for (Page p : pages) if (p.reg != null) p.reg.remove();
+        pages.clear();
+        ownership.clear();
+    }
+
+    /** 最後一頁還在載入中 */
+    public boolean isLoading() {
+        return !pages.isEmpty() && !pages.get(pages.size() - 1).loaded;
+    }
+
+    /** 最後一頁是滿的 → 後面可能還有 */
+    public boolean hasMore() {
+        if (pages.isEmpty()) return false;
+        Page last = pages.get(pages.size() - 1);
+        return last.loaded && last.size >= pageSize && last.lastDoc != null;
+    }
+
+    public int loadedPages() { return pages.size(); }
+
+    /** 已載入的最後一筆的 stack（依 stack 排序，之前的類別都已載完）；還沒有資料回 null */
+    @Nullable
+    public String lastStack() {
+        for (int i = pages.size() - 1; i >= 0; i--) {
+            DocumentSnapshot d = pages.get(i).lastDoc;
+            if (d != null) {
+                String s = d.getString("stack");
+                return s == null ? "" : s;
+            }
+        }
+        return null;
+    }
+
+    /** 載入下一頁：目前最後一頁以它的最後一筆封口重新監聽，新的一頁從那之後開始 */
+    public void loadMore() {
+        if (!hasMore()) return;
+        int k = pages.size() - 1;
+        Page last = pages.get(k);
+        last.endCursor = last.lastDoc;
+        attach(k);
+        pages.add(new Page());
+        attach(k + 1);
+    }
+
+    private Query queryFor(int k) {
+        Query q = base;
+        if (k > 0) q = q.startAfter(pages.get(k - 1).endCursor);
+        Page p = pages.get(k);
+        return p.endCursor != null ? q.endAt(p.endCursor) : q.limit(pageSize);
+    }
+
+    private void attach(int k) {
+        Page p = pages.get(k);
+        if (p.reg != null) p.reg.remove();
+        p.loaded = false;
+        int attach = ++p.attach;
+        p.reg = queryFor(k).addSnapshotListener((snap, err) -> {
+            if (pages.size() <= k || pages.get(k) != p || p.attach != attach) return; // 已被 stop / 重新掛上
+            if (err != null) {
+                listener.onError(err);
+                return;
+            }
+            if (snap != null) onSnapshot(k, p, snap);
+        });
+    }
+
+    private void onSnapshot(int k, Page p, QuerySnapshot snap) {
+        List<DocumentSnapshot> docs = snap.getDocuments();
+        p.size = docs.size();
+        p.lastDoc = docs.isEmpty() ? null : docs.get(docs.size() - 1);
+
+        List<NoteListMerger.Edit> edits = new ArrayList<>();
+        for (DocumentChange dc : snap.getDocumentChanges()) {
+            DocumentSnapshot d = dc.getDocument();
+            String key = mapper.keyOf(d);
+            if (dc.getType() == DocumentChange.Type.REMOVED) {
+                if (ownership.remove(key, k)) edits.add(NoteListMerger.Edit.remove(key));
+            } else {
+                ownership.upsert(key, k);
+                edits.add(NoteListMerger.Edit.upsert(mapper.toNote(d)));
+            }
+        }
+        boolean first = !p.loaded;
+        if (first) {
+            // 第一次（或重新掛上後第一次）收到：這頁以前有、現在不在的筆記要移除
+            Set<String> present = new HashSet<>();
+            for (DocumentSnapshot d : docs) present.add(mapper.keyOf(d));
+            for (String key : ownership.reconcile(k, present)) edits.add(NoteListMerger.Edit.remove(key));
+            p.loaded = true;
+        }
+        // 第一次一定通知（空的一頁也算載入完成），之後只在有變動時通知
+        if (first || !edits.isEmpty()) listener.onEdits(edits);
+    }
+
+    /**
+     * 每個 key 目前由哪一頁負責。筆記跨頁移動時（例如改了類別），
+     * 新頁的 ADDED 可能比舊頁的 REMOVED 先到，舊頁的 REMOVED 就不能把它刪掉
+     */
+    static final class PageOwnership {
+        private final Map<String, Integer> owner = new HashMap<>();
+
+        void upsert(@NonNull String key, int page) { owner.put(key, page); }
+
+        /** 只有目前負責的那一頁可以刪除 */
+        boolean remove(@NonNull String key, int page) {
+            Integer p = owner.get(key);
+            if (p == null || p != page) return false;
+            owner.remove(key);
+            return true;
+        }
+
+        /** 這頁負責、但不在 present 裡的 key（同時放掉它們） */
+        @NonNull
+        List<String> reconcile(int page, @NonNull Set<String> present) {
+            List<String> gone = new ArrayList<>();
+            for (Map.Entry<String, Integer> e : owner.entrySet()) {
+                if (e.getValue() == page && !present.contains(e.getKey())) gone.add(e.getKey());
+            }
+            for (String key : gone) owner.remove(key);
+            return gone;
+        }
+
+        int size() { return owner.size(); }
+
+        void clear() { owner.clear(); }
+    }
+}
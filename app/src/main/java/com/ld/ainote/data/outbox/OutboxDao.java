@@ -0,0 +1,50 @@
+package com.ld.ainote.data.outbox;
+
+import androidx.annotation.Nullable;
+import androidx.room.Dao;
+import androidx.room.Delete;
+import androidx.room.Insert;
+import androidx.room.Query;
+import androidx.room.Update;
+
+import java.util.List;
+
+@Dao
+public interface OutboxDao {
+
+    @Insert
+    long insert(OutboxEntry e);
+
+    @Update
+    void update(OutboxEntry e);
+
+    @Delete
+    void delete(OutboxEntry e);
+
+    /** 下一筆要送的（最舊、未失敗） */
+    @Nullable
+    @Query("SELECT * FROM outbox WHERE failed = 0 ORDER BY seq LIMIT 1")
+    OutboxEntry peek();
+
+    /** 同一對象最後一筆待送的寫入（用來判斷能否合併） */
+    @Nullable
+    @Query("SELECT * FROM outbox WHERE failed = 0 AND target = :target ORDER BY seq DESC LIMIT 1")
+    OutboxEntry latestFor(String target);
+
+    /** 前一筆更新成功後，把後面同一 block 的基準版號換成伺服器的新版號 */
+    @Query("UPDATE outbox SET expectedVersion = :version "
+            + "WHERE failed = 0 AND target = :target AND seq > :afterSeq AND expectedVersion >= 0")
+    void rebaseVersion(String target, long afterSeq, long version);
+
+    @Query("SELECT COUNT(*) FROM outbox WHERE failed = 0")
+    int pendingCount();
+
+    @Query("SELECT * FROM outbox WHERE failed = 1 ORDER BY seq")
+    List<OutboxEntry> failedEntries();
+
+    @Query("DELETE FROM outbox WHERE failed = 1")
+    void clearFailed();
+
+    @Query("DELETE FROM outbox")
+    void clearAll();
+}
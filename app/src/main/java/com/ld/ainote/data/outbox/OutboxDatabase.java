@@ -0,0 +1,27 @@
+package com.ld.ainote.data.outbox;
+
+import android.content.Context;
+
+import androidx.room.Database;
+import androidx.room.Room;
+import androidx.room.RoomDatabase;
+
+@Database(entities = {OutboxEntry.class}, version = 1, exportSchema = false)
+public abstract class OutboxDatabase extends RoomDatabase {
+
+    public abstract OutboxDao outbox();
+
+    private static volatile OutboxDatabase instance;
+
+    public static OutboxDatabase get(Context context) {
+        if (instance == null) {
+            synchronized (OutboxDatabase.class) {
+                if (instance == null) {
+                    instance = Room.databaseBuilder(context.getApplicationContext(),
+                            OutboxDatabase.class, "ainote-outbox.db").build();
+                }
+            }
+        }
+        return instance;
+    }
+}
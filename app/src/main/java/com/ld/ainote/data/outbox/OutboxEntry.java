@@ -0,0 +1,122 @@
+package com.ld.ainote.data.outbox;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.UUID;
+
+/**
+ * Outbox 裡的一筆待送寫入（依 seq 順序重送）
+ * - endpoint / readTimeoutMs：重送時要打的 Cloud Run 端點
+ * - target：被寫入的對象（"b:{blockId}" 或 "n:{ownerId}/{noteId}"），用來合併連續編輯
+ * - expectedVersion：block 更新的基準版號；前一筆成功後會被改成伺服器回傳的新版號
+ * - idempotencyKey：建立時產生並存下來，App 重啟後重送仍用同一把，後端不會重複寫入
+ */
+@Entity(tableName = "outbox", indices = {@Index("target")})
+public class OutboxEntry {
+
+    public static final String CREATE_NOTE  = "createNote";
+    public static final String UPDATE_NOTE  = "updateNote";
+    public static final String CREATE_BLOCK = "createBlock";
+    public static final String UPDATE_BLOCK = "updateBlock";
+    public static final String DELETE_BLOCK = "deleteBlock";
+    /** 排在暫存寫入後面的釋放鎖；被拒絕（鎖已過期 / 被別人拿走）就直接丟掉 */
+    public static final String RELEASE_LOCK = "releaseLock";
+
+    @PrimaryKey(autoGenerate = true)
+    public long seq;
+
+    @NonNull public String kind = "";
+    @NonNull public String endpoint = "";
+    public int readTimeoutMs;
+    @Nullable public String target;
+    @NonNull public String body = "{}";
+    public long expectedVersion = -1;
+    @NonNull public String idempotencyKey = "";
+
+    public int attempts;
+    @Nullable public String lastError;
+    /** 伺服器明確拒絕（409 / 403 ...）；不再重送，留著讓使用者看得到 */
+    public boolean failed;
+    public long createdAt;
+
+    public OutboxEntry() {}
+
+    public static OutboxEntry of(@NonNull String kind, @NonNull String endpoint, int readTimeoutMs,
+                                 @Nullable String target, @NonNull JSONObject body, long expectedVersion) {
+        OutboxEntry e = new OutboxEntry();
+        e.kind = kind;
+        e.endpoint = endpoint;
+        e.readTimeoutMs = readTimeoutMs;
+        e.target = target;
+        e.body = body.toString();
+        e.expectedVersion = expectedVersion;
+        e.idempotencyKey = UUID.randomUUID().toString();
+        e.createdAt = System.currentTimeMillis();
+        return e;
+    }
+
+    @NonNull
+    public static String blockTarget(@NonNull String blockId) { return "b:" + blockId; }
+
+    @NonNull
+    public static String noteTarget(@Nullable String ownerId, @NonNull String noteId) {
+        return "n:" + (ownerId == null ? "" : ownerId) + "/" + noteId;
+    }
+
+    /** block 寫入的 blockId（target 為 "b:{blockId}"）；筆記寫入回傳 null */
+    @Nullable
+    public String blockId() {
+        return target != null && target.startsWith("b:") ? target.substring(2) : null;
+    }
+
+    /** body 裡的字串欄位（例如 "noteId" / "text"）；沒有或解析失敗回傳 null */
+    @Nullable
+    public String bodyString(@NonNull String field) {
+        try {
+            JSONObject o = new JSONObject(body);
+            return o.isNull(field) ? null : o.optString(field);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * 只有同類型的「更新」可以合併（建立 / 刪除要保留原本的順序語意）；
+     * 已送過的不合併：伺服器可能已用這把 Idempotency-Key 套用舊內容
+     */
+    public boolean canAbsorb(@NonNull OutboxEntry next) {
+        return !failed && attempts == 0
+                && kind.equals(next.kind)
+                && (UPDATE_BLOCK.equals(kind) || UPDATE_NOTE.equals(kind))
+                && target != null && target.equals(next.target);
+    }
+
+    /** 把後來的編輯疊到這一筆：欄位以新的為準，但保留最早的 expectedVersion（伺服器上的基準） */
+    public void absorb(@NonNull OutboxEntry next) throws Exception {
+        JSONObject merged = new JSONObject(body);
+        JSONObject incoming = new JSONObject(next.body);
+        Iterator<String> it = incoming.keys();
+        while (it.hasNext()) {
+            String k = it.next();
+            if ("expectedVersion".equals(k)) continue;
+            merged.put(k, incoming.get(k));
+        }
+        body = merged.toString();
+    }
+
+    /** 送出前把 expectedVersion 寫進 body */
+    @NonNull
+    public String bodyForSend() throws Exception {
+        if (expectedVersion < 0) return body;
+        JSONObject o = new JSONObject(body);
+        o.put("expectedVersion", expectedVersion);
+        return o.toString();
+    }
+}
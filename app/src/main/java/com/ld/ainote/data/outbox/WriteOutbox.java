@@ -0,0 +1,307 @@
+package com.ld.ainote.data.outbox;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
+import com.ld.ainote.data.CloudCall;
+import com.ld.ainote.data.KeyedSerialExecutor;
+import com.ld.ainote.net.CloudFunctionClient;
+import com.ld.ainote.net.CloudFunctionClient.Endpoint;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.ResponseBody;
+
+/**
+ * 寫入 outbox（write-ahead）
+ * - 寫入先存進 Room 就回報成功，UI 不必等網路
+ * - 依 seq 一筆一筆重送；網路錯誤就停下，等連線恢復或退避時間到再送
+ * - 同一 block / 筆記的連續更新合併成一筆（保留最早的 expectedVersion）
+ * - 前一筆 block 更新成功後，後面同一 block 的 expectedVersion 換成伺服器新版號
+ * - 被伺服器拒絕的寫入標成 failed 留在 outbox：failedEntries() 可列出，retryFailed() / discard() 由使用者決定
+ * - 只有網路類錯誤（IOException）才重送；其他例外重送也一樣會失敗，直接當成被拒絕，不擋住後面的寫入
+ * - 送出時排進該篇筆記的 KeyedSerialExecutor key，和 Repository 直接送出的請求維持先後順序
+ */
+public final class WriteOutbox {
+
+    private static final String TAG = "WriteOutbox";
+    private static final long MAX_BACKOFF_MS = 60_000L;
+
+    /** 寫入送達，或被伺服器明確拒絕（衝突 / 權限）而擱置；在背景執行緒呼叫 */
+    public interface Listener {
+        void onRejected(@NonNull OutboxEntry entry, @NonNull Exception error);
+
+        /** 已送達伺服器（草稿可以放掉了） */
+        default void onDelivered(@NonNull OutboxEntry entry) {}
+    }
+
+    /** 實際送出一筆（預設走共用 token + CloudFunctionClient；測試可換掉） */
+    interface Sender {
+        @NonNull String send(@NonNull OutboxEntry e) throws Exception;
+    }
+
+    private static volatile WriteOutbox shared;
+
+    /** 在 Application.onCreate 呼叫一次 */
+    public static void init(@NonNull Context context) {
+        if (shared != null) return;
+        synchronized (WriteOutbox.class) {
+            if (shared != null) return;
+            shared = new WriteOutbox(OutboxDatabase.get(context).outbox(), WriteOutbox::sendToCloudRun);
+        }
+        shared.watchConnectivity(context.getApplicationContext());
+        shared.flush();
+    }
+
+    /** 尚未 init（例如單元測試）時回傳 null，呼叫端改走直接送出 */
+    @Nullable
+    public static WriteOutbox get() { return shared; }
+
+    private final OutboxDao dao;
+    private final Sender sender;
+    private final Object lock = new Object();
+    // Room 不能在主執行緒操作；排入與重送分開，重送卡在網路時仍可立即排入
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private long inFlightSeq = -1; // 送出中的那筆不可再合併（受 lock 保護）
+
+    WriteOutbox(@NonNull OutboxDao dao, @NonNull Sender sender) {
+        this.dao = dao;
+        this.sender = sender;
+    }
+
+    // ================== 排入 ==================
+
+    /** 存進 outbox 後即完成；之後在背景依序送出 */
+    public Task<Void> enqueue(@NonNull OutboxEntry entry) {
+        TaskCompletionSource<Void> tcs = new TaskCompletionSource<>();
+        writer.execute(() -> {
+            try {
+                synchronized (lock) {
+                    OutboxEntry last = entry.target != null ? dao.latestFor(entry.target) : null;
+                    if (last != null && last.seq != inFlightSeq && last.canAbsorb(entry)) {
+                        last.absorb(entry);
+                        dao.update(last);
+                    } else {
+                        dao.insert(entry);
+                    }
+                }
+                tcs.setResult(null);
+                flush();
+            } catch (Exception e) {
+                Log.e(TAG, "enqueue error", e);
+                tcs.setException(e);
+            }
+        });
+        return tcs.getTask();
+    }
+
+    // ================== 重送 ==================
+
+    public void flush() {
+        if (flushQueued.compareAndSet(false, true)) flusher.execute(this::drain);
+    }
+
+    private void drain() {
+        flushQueued.set(false);
+        while (true) {
+            OutboxEntry head;
+            synchronized (lock) {
+                head = dao.peek();
+                inFlightSeq = head != null ? head.seq : -1;
+            }
+            if (head == null) return;
+
+            try {
+                String resp = sender.send(head);
+                long newVersion = OutboxEntry.UPDATE_BLOCK.equals(head.kind) ? serverVersion(head, resp) : -1;
+                synchronized (lock) {
+                    dao.delete(head);
+                    if (newVersion >= 0 && head.target != null) {
+                        dao.rebaseVersion(head.target, head.seq, newVersion);
+                    }
+                    inFlightSeq = -1;
+                }
+                for (Listener l : listeners) l.onDelivered(head);
+            } catch (CloudFunctionClient.CloudFunctionException e) {
+                if (isPermanent(e.code)) {
+                    reject(head, e);
+                } else {
+                    retryLater(head, e);
+                    return;
+                }
+            } catch (IOException | InterruptedException e) { // 含 CircuitOpenException；中斷也留著下次再送
+                retryLater(head, e);
+                return;
+            } catch (Exception e) {
+                // 例如 body 解析失敗：每次都會一樣，重送只會卡住後面所有寫入
+                reject(head, e);
+            }
+        }
+    }
+
+    /** 排在同一篇筆記的 key 後面送出（401 換 token 重送、退避都在 CloudCall 裡），在 drain 執行緒等結果 */
+    private static String sendToCloudRun(OutboxEntry e) throws Exception {
+        Endpoint ep = Endpoint.of(e.endpoint, e.readTimeoutMs);
+        Task<String> call = CloudCall.enqueue(ioKeyOf(e), ep, e.bodyForSend(), e.idempotencyKey,
+                ResponseBody::string, CloudCall.CLOUD_RUN);
+        try {
+            return Tasks.await(call);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw ex;
+        }
+    }
+
+    /** updateBlock 回傳 { success, version }；沒帶版號時以 expectedVersion + 1 推算 */
+    private static long serverVersion(OutboxEntry e, String resp) {
+        long fallback = e.expectedVersion >= 0 ? e.expectedVersion + 1 : -1;
+        try {
+            return new JSONObject(resp).optLong("version", fallback);
+        } catch (Exception ignore) {
+            return fallback;
+        }
+    }
+
+    /** 4xx（除了 401 / 408 / 429）重送也不會成功 */
+    private static boolean isPermanent(int code) {
+        return code >= 400 && code < 500 && code != 401 && code != 408 && code != 429;
+    }
+
+    /** 和 Repository 直接送出時同一把 key：筆記寫入看 target，block 寫入看 body 裡的 ownerId / noteId */
+    static String ioKeyOf(OutboxEntry e) {
+        if (e.target != null && e.target.startsWith("n:")) {
+            String ownerAndNote = e.target.substring(2);
+            int slash = ownerAndNote.indexOf('/');
+            String owner = ownerAndNote.substring(0, slash);
+            return KeyedSerialExecutor.key(owner.isEmpty() ? null : owner, ownerAndNote.substring(slash + 1));
+        }
+        return KeyedSerialExecutor.key(e.bodyString("ownerId"), e.bodyString("noteId"));
+    }
+
+    private void reject(OutboxEntry e, Exception err) {
+        Log.w(TAG, "outbox rejected " + e.kind + " #" + e.seq + ": " + err.getMessage());
+        if (OutboxEntry.RELEASE_LOCK.equals(e.kind)) {
+            // 鎖已過期或已被別人拿走：沒有要還原的內容，不必留給使用者處理
+            synchronized (lock) {
+                dao.delete(e);
+                inFlightSeq = -1;
+            }
+            return;
+        }
+        synchronized (lock) {
+            e.failed = true;
+            e.lastError = err.getMessage();
+            dao.update(e);
+            inFlightSeq = -1;
+        }
+        for (Listener l : listeners) l.onRejected(e, err);
+    }
+
+    private void retryLater(OutboxEntry e, Exception err) {
+        long delay;
+        synchronized (lock) {
+            e.attempts++;
+            e.lastError = err.getMessage();
+            dao.update(e);
+            inFlightSeq = -1;
+            delay = Math.min(MAX_BACKOFF_MS, 2000L << Math.min(e.attempts, 5));
+        }
+        // 斷路器斷開：等到可以探測再送，不要在斷開期間空轉
+        if (err instanceof CloudFunctionClient.CircuitOpenException) {
+            delay = Math.max(delay, ((CloudFunctionClient.CircuitOpenException) err).retryInMs);
+        }
+        Log.d(TAG, "outbox paused (" + err.getMessage() + "), retry in " + delay + "ms");
+        flusher.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void watchConnectivity(Context app) {
+        ConnectivityManager cm = (ConnectivityManager) app.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm == null) return;
+        try {
+            cm.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+                @Override public void onAvailable(@NonNull Network network) { flush(); }
+            });
+        } catch (SecurityException e) {
+            Log.w(TAG, "缺少 ACCESS_NETWORK_STATE，改靠退避重試", e);
+        }
+    }
+
+    // ================== 狀態 / 監聽 ==================
+
+    public void addListener(@NonNull Listener l) { listeners.add(l); }
+    public void removeListener(@NonNull Listener l) { listeners.remove(l); }
+
+    /** 尚未送出的筆數 */
+    public Task<Integer> pendingCount() {
+        TaskCompletionSource<Integer> tcs = new TaskCompletionSource<>();
+        writer.execute(() -> tcs.setResult(dao.pendingCount()));
+        return tcs.getTask();
+    }
+
+    /** 被伺服器拒絕、等使用者處理的寫入（依 seq） */
+    public Task<List<OutboxEntry>> failedEntries() {
+        TaskCompletionSource<List<OutboxEntry>> tcs = new TaskCompletionSource<>();
+        writer.execute(() -> {
+            synchronized (lock) { tcs.setResult(dao.failedEntries()); }
+        });
+        return tcs.getTask();
+    }
+
+    /** 使用者要求重送：放回佇列（依原本的 seq 順序），重新計算退避 */
+    public void retryFailed() {
+        writer.execute(() -> {
+            synchronized (lock) {
+                for (OutboxEntry e : dao.failedEntries()) {
+                    e.failed = false;
+                    e.attempts = 0;
+                    e.lastError = null;
+                    dao.update(e);
+                }
+            }
+            flush();
+        });
+    }
+
+    /** 使用者放棄這些被拒絕的寫入（例如內容已還原到編輯區重新儲存）；已被重送的不動 */
+    public void discard(@NonNull List<OutboxEntry> entries) {
+        Set<Long> seqs = new HashSet<>();
+        for (OutboxEntry e : entries) seqs.add(e.seq);
+        writer.execute(() -> {
+            synchronized (lock) {
+                for (OutboxEntry e : dao.failedEntries()) if (seqs.contains(e.seq)) dao.delete(e);
+            }
+        });
+    }
+
+    /** 登出時清掉：不要用下一個帳號的 token 送上一個帳號的寫入 */
+    public void clearAll() {
+        writer.execute(() -> {
+            synchronized (lock) { dao.clearAll(); }
+        });
+    }
+}
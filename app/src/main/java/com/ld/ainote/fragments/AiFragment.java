@@ -3,6 +3,7 @@ package com.ld.ainote.fragments;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.*;
 import android.widget.*;
@@ -14,10 +15,18 @@ import androidx.fragment.app.Fragment;
 import com.google.android.material.chip.Chip;
 import com.google.android.material.chip.ChipGroup;
 import com.google.android.material.textfield.TextInputEditText;
+import com.google.android.material.textfield.TextInputLayout;
 import com.ld.ainote.R;
 import com.ld.ainote.data.NoteRepository;
 import com.ld.ainote.models.Note;
+import com.ld.ainote.models.QuizItem;
+import com.ld.ainote.net.AiResultCache;
 import com.ld.ainote.net.AiService;
+import com.ld.ainote.net.CancelToken;
+import com.ld.ainote.net.MapReduceSummarizer;
+import com.ld.ainote.utils.QuizParser;
+import com.ld.ainote.utils.QuizSharder;
+import com.ld.ainote.utils.TokenBudgeter;
 
 import com.google.firebase.Timestamp;
 import com.google.firebase.auth.FirebaseAuth;
@@ -28,8 +37,6 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * AiFragment
@@ -46,6 +53,9 @@ public class AiFragment extends Fragment {
     // ===== SharedPreferences（本機備援） =====
     private static final String SP_NAME = "aiquiz_prefs";
     private static final String KEY_WRONG_BANK = "wrong_bank_v1";
+    // 送出前修剪的 token 預算（可在 prefs 調整）；出題每組各一次呼叫，每組另有上限
+    private static final String KEY_PROMPT_BUDGET = "prompt_budget_tokens";
+    private static final int QUIZ_BUDGET_TOKENS = 8000;
 
     // ===== 分類/章節選取 =====
     private LinearLayout containerCategories;
@@ -68,17 +78,22 @@ public class AiFragment extends Fragment {
     // ===== 測驗 UI =====
     private LinearLayout quizHost;
     private LinearLayout quizList;
-    private View btnSubmitQuiz;
+    private View btnSubmitQuiz, btnRegenQuiz;
 
     // ===== 題庫（當前畫面顯示） =====
     private final List<Question> currentQuiz = new ArrayList<>();
     // 🔴 新增：把每篇 note 的 blocks → 文字結果做快取，避免重複抓取
     private final Map<String, String> blocksTextCache = new HashMap<>();
+    // 同一篇的「路徑@version」清單，給 AI 結果快取判斷來源有沒有改過
+    private final Map<String, List<String>> blockVersionsCache = new HashMap<>();
 
     // 本次 AI 出題時的章節 tags（供交卷寫入錯題庫）
     private List<String> currentContextTags = new ArrayList<>();
     private View tilAgeLayout;
 
+    // 進行中的 AI 請求：畫面關閉時取消（不再回呼、沒人等的請求直接中斷）
+    @Nullable private CancelToken aiCancel;
+
     // ================== 小型資料結構 ==================
     private static class ItemRef {
         CheckBox cb; Note note;
@@ -93,6 +108,14 @@ public class AiFragment extends Fragment {
         RadioGroup group;                 // UI ref
         TextView   tvStem;                // for marking
         int number = -1;                  // 題號（1-based）
+
+        static Question of(QuizItem item) {
+            Question q = new Question();
+            q.stem = item.getStem();
+            q.options = item.getOptions().clone();
+            q.correct = item.getAnswer();
+            return q;
+        }
     }
 
     /** 存到雲端/本機用的精簡版結構（含 tags） */
@@ -205,6 +228,7 @@ public class AiFragment extends Fragment {
         quizHost      = v.findViewById(R.id.quizHost);
         quizList      = v.findViewById(R.id.quizList);
         btnSubmitQuiz = v.findViewById(R.id.btnSubmitQuiz);
+        btnRegenQuiz  = v.findViewById(R.id.btnRegenQuiz);
         tilAgeLayout = v.findViewById(R.id.tilAge);
         tilAgeLayout.setVisibility(View.GONE);
 
@@ -262,14 +286,26 @@ public class AiFragment extends Fragment {
             @Override public void onError(Exception e) { toast("載入筆記失敗：" + e.getMessage()); }
         });
 
-        btnRun.setOnClickListener(c -> runTask());
+        btnRun.setOnClickListener(c -> runTask(false));
         btnSaveAsNote.setOnClickListener(c -> saveAsNewNote());
         btnSubmitQuiz.setOnClickListener(c -> submitQuiz());
+        // 同樣的選取與設定會命中快取（7 天內回同一份題目）；這顆按鈕略過快取重出
+        btnRegenQuiz.setOnClickListener(c -> runTask(true));
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        if (aiCancel != null) {
+            aiCancel.cancel();
+            aiCancel = null;
+        }
     }
 
     // ================== 任務執行 ==================
 
-    private void runTask() {
+    /** freshQuiz：出題時不讀快取（「換一批題目」） */
+    private void runTask(boolean freshQuiz) {
         List<Note> picked = getAllCheckedNotes();
         if (picked.isEmpty()) { toast("請至少勾選一個章節"); return; }
 
@@ -318,54 +354,329 @@ public class AiFragment extends Fragment {
         currentContextTags = chQuiz.isChecked() ? buildSelectedTags(picked) : new ArrayList<>();
 
         setLoading(true);
+        if (aiCancel != null) aiCancel.cancel();
+        CancelToken cancel = new CancelToken();
+        aiCancel = cancel;
+
+        // 每次執行都重抓 blocks：來源指紋要反映目前版本，改過的內容才不會命中舊的 AI 結果
+        blocksTextCache.clear();
+        blockVersionsCache.clear();
+
+        // 出題：依類別 / 章分組，各組同時出自己那份題數
+        if (chQuiz.isChecked()) {
+            runShardedQuiz(picked, n, age, freshQuiz, cancel);
+            return;
+        }
 
         // 先把 blocks 合併成文字，再呼叫 AI
         buildCombinedNoteTextAsync(picked, combined -> {
-            String text = combined;
-            if (chQuiz.isChecked()) {
-                text = buildQuizRules(n) + "\n\n" + text;
+            if (cancel.isCancelled()) return; // 合併期間畫面已關閉
+            String sources = buildSourcesFingerprint(picked);
+
+            // 不修剪：askLarge 超過單次上限時會自己分段摘要再合併，全部內容都會用到
+            AiService.Estimate est = AiService.estimate(task, combined, n, age);
+            Log.i(TAG, task + ": " + est);
+
+            // 整理 / 融會貫通：確認用量後串流顯示，邊產生邊填進結果欄
+            confirmCost("預估 " + est, cancel, () -> runStreaming(task, combined, n, age, sources, cancel));
+        });
+    }
+
+    /** 送出前先讓使用者看預估用量；取消就不呼叫 AI */
+    private void confirmCost(String estimate, CancelToken cancel, Runnable send) {
+        if (getContext() == null || cancel.isCancelled()) {
+            // 不會送出：收起轉圈、按鈕恢復可按（畫面已關閉時 view 也不在了）
+            if (getView() != null) setLoading(false);
+            return;
+        }
+        new AlertDialog.Builder(requireContext())
+                .setTitle("送出前確認")
+                .setMessage(estimate + "\n\n要送出嗎？")
+                .setCancelable(false)
+                .setPositiveButton("送出", (d, w) -> {
+                    if (cancel.isCancelled()) setLoading(false);
+                    else send.run();
+                })
+                .setNegativeButton("取消", (d, w) -> {
+                    cancel.cancel();
+                    setLoading(false);
+                })
+                .show();
+    }
+
+    // ================== 串流輸出 ==================
+
+    // 背景執行緒收到的片段先累積，約每 STREAM_UI_INTERVAL_MS 才更新一次畫面
+    private static final long STREAM_UI_INTERVAL_MS = 50;
+    private final StringBuilder streamPending = new StringBuilder();
+    private boolean streamPostScheduled; // 受 streamPending 保護
+
+    private void runStreaming(String task, String text, int n, @Nullable Integer age,
+                              @Nullable String sources, CancelToken cancel) {
+        synchronized (streamPending) { streamPending.setLength(0); }
+        etResult.setText("");
+        quizHost.setVisibility(View.GONE);
+        TextInputLayout tilResult = requireView().findViewById(R.id.tilResult);
+        tilResult.setVisibility(View.VISIBLE);
+
+        // 選取內容太大時會先分段摘要再合併；分段進度顯示在結果欄下方
+        MapReduceSummarizer.Progress progress = (stage, done, total) -> tilResult.post(() ->
+                tilResult.setHelperText(("map".equals(stage) ? "分段整理中 " : "合併重點中 ") + done + "/" + total));
+
+        AiService.askLarge(task, text, n, age, sources, cancel, new AiService.StreamCallback() {
+            @Override public void onDelta(String delta) {
+                synchronized (streamPending) {
+                    streamPending.append(delta);
+                    if (streamPostScheduled) return;
+                    streamPostScheduled = true;
+                }
+                etResult.postDelayed(AiFragment.this::drainStreamed, STREAM_UI_INTERVAL_MS);
+            }
+            @Override public void onSuccess(String out) {
+                if (getActivity()==null) return;
+                getActivity().runOnUiThread(() -> {
+                    synchronized (streamPending) { streamPending.setLength(0); }
+                    setLoading(false);
+                    tilResult.setHelperText(null);
+                    etResult.setText(out);
+                    Log.d(TAG, "AI stream output length=" + (out==null?0:out.length()));
+                });
             }
+            @Override public void onError(Exception e) {
+                if (getActivity()==null) return;
+                getActivity().runOnUiThread(() -> {
+                    setLoading(false);
+                    tilResult.setHelperText(null);
+                    toast("AI 呼叫失敗：" + e.getMessage());
+                    Log.e(TAG, "AiService.askStreaming error", e);
+                });
+            }
+        }, progress);
+    }
 
-            AiService.ask(task, text, n, age, new AiService.Callback() {
-                @Override public void onSuccess(String out) {
-                    if (getActivity()==null) return;
-                    getActivity().runOnUiThread(() -> {
-                        setLoading(false);
-                        Log.d(TAG, "AI output length=" + (out==null?0:out.length())
-                                + ", preview=\n" + truncateForLog(out, 1200));
-
-                        if (chQuiz.isChecked()) {
-                            if (parseQuiz(out, currentQuiz)) {
-                                renderQuizUI(currentQuiz);
-                                quizHost.setVisibility(View.VISIBLE);
-                                requireView().findViewById(R.id.tilResult).setVisibility(View.GONE);
-                            } else {
-                                etResult.setText(out);
-                                quizHost.setVisibility(View.GONE);
-                                requireView().findViewById(R.id.tilResult).setVisibility(View.VISIBLE);
-                                toast("格式略有偏差，已以文字方式顯示");
-                                Log.e(TAG, "parseQuiz=false; fallback to text. Raw (truncated):\n"
-                                        + truncateForLog(out, 4000));
-                            }
-                        } else {
-                            etResult.setText(out);
-                            quizHost.setVisibility(View.GONE);
-                            requireView().findViewById(R.id.tilResult).setVisibility(View.VISIBLE);
-                        }
-                    });
+    private void drainStreamed() {
+        String chunk;
+        synchronized (streamPending) {
+            chunk = streamPending.toString();
+            streamPending.setLength(0);
+            streamPostScheduled = false;
+        }
+        if (!chunk.isEmpty() && etResult != null) etResult.append(chunk);
+    }
+
+    // ================== 分組出題 ==================
+
+    // 分組上限；與 AiScheduler 的 worker 數相同，全部分組可以同時送出
+    private static final int MAX_QUIZ_SHARDS = 4;
+
+    /**
+     * 依 buildSelectedTags 的層級（類別 → 章）分組，每組各出 quota 題並同時送出；
+     * 各組的題目一到就依到達順序編號、接進 currentQuiz（見 sendQuizShards）。
+     * 某組失敗時仍顯示其他組的題目。
+     */
+    private void runShardedQuiz(List<Note> picked, int n, @Nullable Integer age, boolean fresh, CancelToken cancel) {
+        List<QuizSharder.Shard<Note>> shards = QuizSharder.plan(picked,
+                note -> normalizeStack(note.getStack()),
+                note -> normalizeStack(note.getStack()) + "|" + note.getChapter(),
+                n, MAX_QUIZ_SHARDS);
+        int budget = Math.min(promptBudgetTokens(), QUIZ_BUDGET_TOKENS);
+        int k = shards.size();
+        String[] texts = new String[k];
+        int[] built = { 0 };
+
+        // 先把各組文字都組好，一次報預估用量後再全部送出
+        for (int i = 0; i < k; i++) {
+            QuizSharder.Shard<Note> shard = shards.get(i);
+            int idx = i;
+            buildCombinedNoteTextAsync(shard.items, combined -> {
+                if (cancel.isCancelled()) return;
+                TokenBudgeter.Result fitted = TokenBudgeter.fit(combined, budget);
+                texts[idx] = fitted.text;
+                if (++built[0] < k) return;
+
+                int promptTokens = 0, outputTokens = 0;
+                double usd = 0;
+                for (int j = 0; j < k; j++) {
+                    AiService.Estimate est = AiService.estimate("quiz-json", texts[j], shards.get(j).quota, age);
+                    promptTokens += est.promptTokens;
+                    outputTokens += est.outputTokens;
+                    usd += est.usd;
+                    Log.i(TAG, "quiz shard " + (j + 1) + "/" + k + " [" + shards.get(j) + "]: " + est);
+                }
+                confirmCost(String.format(Locale.ROOT, "分 %d 組出題；預估約 %,d + %,d tokens（≈ US$%.4f）",
+                        k, promptTokens, outputTokens, usd), cancel, () -> sendQuizShards(shards, texts, age, fresh, cancel));
+            });
+        }
+    }
+
+    /** 一組出題的進度（只在 UI 執行緒存取） */
+    private static final class ShardRun {
+        final QuizSharder.Shard<Note> shard;
+        final Map<Integer, List<Question>> byNumber = new HashMap<>(); // 文字出題：模型題號 → 題目
+        int shown;
+        boolean answersStarted;
+        boolean finished;
+        @Nullable String raw;          // 文字出題的原文（一題都解不出時以文字顯示）
+        @Nullable Exception error;
+
+        ShardRun(QuizSharder.Shard<Note> shard) { this.shard = shard; }
+    }
+
+    /**
+     * 各組先用結構化 JSON 出題；某組失敗（模型不支援 / 解不出任何一題）才改用原本的文字格式（串流 + QuizParser）。
+     * 每題一到就接在 quizList 後面；全部題目的答案都到了才開放交卷。
+     */
+    private void sendQuizShards(List<QuizSharder.Shard<Note>> shards, String[] texts,
+                                @Nullable Integer age, boolean fresh, CancelToken cancel) {
+        clearQuizUI();
+        List<ShardRun> runs = new ArrayList<>();
+        for (QuizSharder.Shard<Note> shard : shards) runs.add(new ShardRun(shard));
+        long startMs = SystemClock.elapsedRealtime();
+
+        for (int i = 0; i < runs.size(); i++) {
+            ShardRun run = runs.get(i);
+            String text = texts[i];
+            String sources = buildSourcesFingerprint(run.shard.items);
+            AiService.askQuizJson(text, run.shard.quota, age, sources, fresh, cancel, new AiService.QuizCallback() {
+                @Override public void onItem(int index, @NonNull QuizItem item) {
+                    runOnUi(cancel, () -> appendStreamedQuestion(runs, run, -1, Question.of(item)));
                 }
-                @Override public void onError(Exception e) {
-                    if (getActivity()==null) return;
-                    getActivity().runOnUiThread(() -> {
-                        setLoading(false);
-                        toast("AI 呼叫失敗：" + e.getMessage());
-                        Log.e(TAG, "AiService.ask error", e);
+
+                @Override public void onSuccess(@NonNull List<QuizItem> items) {
+                    runOnUi(cancel, () -> shardFinished(runs, run, startMs));
+                }
+
+                @Override public void onError(@NonNull Exception jsonError) {
+                    Log.w(TAG, "quiz-json shard " + run.shard + " failed; fallback to text", jsonError);
+                    // 已經顯示的 JSON 題目留著，文字出題只補剩下的題數（run.shown 只在 UI 執行緒讀寫）
+                    runOnUi(cancel, () -> {
+                        int remaining = run.shard.quota - run.shown;
+                        if (remaining <= 0) shardFinished(runs, run, startMs);
+                        else streamTextQuiz(runs, run, remaining, text, age, sources, fresh, cancel, startMs);
                     });
                 }
             });
+        }
+    }
+
+    /** 文字格式出題（出 count 題）：串流輸出邊收邊解析，題目與答案一到就更新畫面 */
+    private void streamTextQuiz(List<ShardRun> runs, ShardRun run, int count, String text, @Nullable Integer age,
+                                @Nullable String sources, boolean fresh, CancelToken cancel, long startMs) {
+        QuizParser parser = new QuizParser(new QuizParser.Listener() {
+            @Override public void onQuestion(int number, QuizItem item) {
+                runOnUi(cancel, () -> appendStreamedQuestion(runs, run, number, Question.of(item)));
+            }
+            @Override public void onAnswer(int number, int answer) {
+                runOnUi(cancel, () -> applyStreamedAnswer(runs, run, number, answer));
+            }
+        });
+        String prompt = buildQuizRules(count) + "\n\n" + text;
+        AiService.askStreaming("quiz", prompt, count, age, sources, fresh, cancel, new AiService.StreamCallback() {
+            @Override public void onDelta(String delta) { parser.feed(delta); }
+
+            @Override public void onSuccess(String out) {
+                parser.finish();
+                runOnUi(cancel, () -> {
+                    run.raw = out;
+                    shardFinished(runs, run, startMs);
+                });
+            }
+
+            @Override public void onError(Exception e) {
+                runOnUi(cancel, () -> {
+                    run.error = e;
+                    shardFinished(runs, run, startMs);
+                });
+            }
+        });
+    }
+
+    private void runOnUi(CancelToken cancel, Runnable r) {
+        if (getActivity() == null) return;
+        getActivity().runOnUiThread(() -> {
+            if (!cancel.isCancelled() && quizList != null) r.run();
         });
     }
 
+    /** modelNumber：文字出題時模型給的題號（對答案用）；JSON 出題已帶答案，傳 -1 */
+    private void appendStreamedQuestion(List<ShardRun> runs, ShardRun run, int modelNumber, Question q) {
+        if (currentQuiz.isEmpty()) {
+            quizHost.setVisibility(View.VISIBLE);
+            requireView().findViewById(R.id.tilResult).setVisibility(View.GONE);
+        }
+        q.number = currentQuiz.size() + 1;
+        currentQuiz.add(q);
+        appendQuestionView(q);
+        run.shown++;
+        if (modelNumber >= 0) {
+            List<Question> same = run.byNumber.get(modelNumber);
+            if (same == null) run.byNumber.put(modelNumber, same = new ArrayList<>());
+            same.add(q);
+        }
+        updateSubmitEnabled(runs);
+    }
+
+    private void applyStreamedAnswer(List<ShardRun> runs, ShardRun run, int modelNumber, int answer) {
+        run.answersStarted = true;
+        List<Question> qs = run.byNumber.get(modelNumber);
+        if (qs != null) for (Question q : qs) q.correct = answer;
+        updateSubmitEnabled(runs);
+    }
+
+    /** 每組都結束，或已進入答案區且這組每題都有答案，才能交卷 */
+    private void updateSubmitEnabled(List<ShardRun> runs) {
+        boolean ready = !currentQuiz.isEmpty();
+        for (ShardRun run : runs) {
+            if (run.finished) continue;
+            boolean answered = run.answersStarted;
+            for (List<Question> qs : run.byNumber.values()) {
+                for (Question q : qs) if (q.correct < 0) answered = false;
+            }
+            if (!answered) ready = false;
+        }
+        btnSubmitQuiz.setEnabled(ready);
+    }
+
+    private void shardFinished(List<ShardRun> runs, ShardRun run, long startMs) {
+        run.finished = true;
+        if (run.error != null) Log.e(TAG, "quiz shard " + run.shard + " failed", run.error);
+        else if (run.shown == 0 && run.raw != null) {
+            Log.e(TAG, "no question parsed for shard " + run.shard + "; raw (truncated):\n" + truncateForLog(run.raw, 4000));
+        }
+        for (ShardRun r : runs) {
+            if (!r.finished) {
+                updateSubmitEnabled(runs);
+                return;
+            }
+        }
+
+        Log.i(TAG, "quiz " + runs.size() + " shards done in " + (SystemClock.elapsedRealtime() - startMs) + "ms");
+        setLoading(false);
+        int failed = 0;
+        for (ShardRun r : runs) if (r.shown == 0) failed++;
+
+        if (currentQuiz.isEmpty()) {
+            // 全部失敗：有原文就以文字顯示，否則只提示錯誤
+            StringBuilder raw = new StringBuilder();
+            Exception firstError = null;
+            for (ShardRun r : runs) {
+                if (r.raw != null) raw.append(r.raw).append("\n\n");
+                if (firstError == null) firstError = r.error;
+            }
+            if (raw.length() > 0) {
+                etResult.setText(raw.toString().trim());
+                quizHost.setVisibility(View.GONE);
+                requireView().findViewById(R.id.tilResult).setVisibility(View.VISIBLE);
+                toast("格式略有偏差，已以文字方式顯示");
+            } else {
+                toast("AI 呼叫失敗：" + (firstError == null ? "" : firstError.getMessage()));
+            }
+            return;
+        }
+        btnRegenQuiz.setVisibility(View.VISIBLE);
+        if (failed > 0) toast(failed + " 組出題失敗，先顯示其餘 " + currentQuiz.size() + " 題");
+    }
+
     // ================== Quiz 規則（請 AI 用 Q1:） ==================
 
     private String buildQuizRules(int count) {
@@ -388,152 +699,47 @@ public class AiFragment extends Fragment {
                 + "...\n";
     }
 
-    // ================== Quiz 解析 ==================
-
-    /** 同時支援「Q1:」與「1. / 1)」題號；答案區支援「1. C / 1) C / Q1: C」。 */
-    private boolean parseQuiz(String raw, List<Question> out) {
-        try {
-            Log.d(TAG, "parseQuiz: start, rawLen=" + (raw == null ? 0 : raw.length()));
-            out.clear();
-            if (raw == null) return false;
-
-            // 標準化空白
-            String norm = raw.replace('\u00A0',' ').replace('\u3000',' ');
-
-            // 分成 題目區 / 答案區（答案區開頭獨立行「【答案】」）
-            String[] parts = norm.split("(?m)^\\s*【答案】\\s*$");
-            String qPart = parts[0];
-            String aPart = (parts.length > 1) ? parts[1] : "";
-
-            Log.d(TAG, "qPartLen=" + qPart.length() + ", aPartLen=" + aPart.length());
-            Log.d(TAG, "qPart preview:\n" + truncateForLog(qPart, 800));
-            Log.d(TAG, "aPart preview:\n" + truncateForLog(aPart, 400));
-
-            // 解析答案：允許「1. C」「1) C」「Q1: C」「Q1 C」
-            Map<Integer, Integer> answerMap = new HashMap<>();
-            Pattern ansPat = Pattern.compile("^\\s*(?:Q\\s*)?(\\d+)\\s*[\\.|\\):：]??\\s*([A-Da-d])\\s*$", Pattern.MULTILINE);
-            Matcher ma = ansPat.matcher(aPart);
-            while (ma.find()) {
-                int idx = safeInt(ma.group(1));
-                char letter = Character.toUpperCase(ma.group(2).charAt(0));
-                if (idx > 0 && letter >= 'A' && letter <= 'D') {
-                    answerMap.put(idx, letter - 'A');
-                    Log.d(TAG, "ans: #" + idx + " -> " + letter);
-                }
-            }
-            if (answerMap.isEmpty()) Log.w(TAG, "answerMap is empty");
-
-            // 以題號切題：支援 Qn: 或 n. / n)（保留題首）
-            Pattern qStart = Pattern.compile("(?m)^(?=\\s*(?:Q\\s*)?\\d+\\s*[\\.:：\\)])");
-            String[] blocks = qStart.split(qPart);
-            int parsed = 0;
-
-            // 標頭（題號 + 題幹）正則
-            Pattern headPat = Pattern.compile("^\\s*(?:Q\\s*)?(\\d+)\\s*[\\.:：\\)]\\s*(.*)$", Pattern.MULTILINE);
-
-            for (String blk : blocks) {
-                String b = blk.trim();
-                if (b.isEmpty()) continue;
-
-                Matcher mh = headPat.matcher(b);
-                if (!mh.find()) {
-                    Log.w(TAG, "skip block (no header): " + truncateForLog(b, 200));
-                    continue;
-                }
-                int number = safeInt(mh.group(1));
-                int headerEnd = mh.end();
-                String afterHeader = b.substring(headerEnd).trim();
-
-                // 題幹
-                Matcher mApos = Pattern.compile("(?m)^\\s*A[\\.|\\)．、]\\s").matcher(afterHeader);
-                String stem;
-                if (mApos.find()) {
-                    stem = (mh.group(2) + "\n" + afterHeader.substring(0, mApos.start())).trim();
-                } else {
-                    stem = (mh.group(2) + "\n" + afterHeader).trim();
-                }
-                stem = stem.replaceAll("^[\\r\\n\\s]+|[\\r\\n\\s]+$", "");
-                Log.d(TAG, "#" + number + " stem len=" + stem.length());
-
-                // 取 A..D
-                List<String> opts = new ArrayList<>(4);
-                for (char c='A'; c<='D'; c++) {
-                    Matcher mo = Pattern.compile("(?m)^\\s*" + c + "[\\.|\\)．、]\\s*(.*)$").matcher(b);
-                    if (mo.find()) {
-                        String opt = mo.group(1).trim();
-                        opts.add(opt);
-                        Log.d(TAG, "#" + number + " opt " + c + ": " + truncateForLog(opt, 120));
-                    } else {
-                        Log.w(TAG, "#" + number + " missing option " + c);
-                    }
-                }
-                if (opts.size() != 4) {
-                    Log.w(TAG, "#" + number + " options!=4, got=" + opts.size() + " block=\n" + truncateForLog(b, 400));
-                    continue;
-                }
-
-                Question q = new Question();
-                q.number = number;
-                q.stem = stem.isEmpty() ? ("第 " + number + " 題") : stem;
-                for (int i=0;i<4;i++) q.options[i] = opts.get(i);
-                if (answerMap.containsKey(number)) q.correct = answerMap.get(number);
-                else Log.w(TAG, "#" + number + " has no answer");
-
-                out.add(q);
-                parsed++;
-            }
-
-            if (parsed == 0) {
-                Log.e(TAG, "no question parsed");
-                return false;
-            }
-
-            out.sort(Comparator.comparingInt(q -> q.number));
-            Log.d(TAG, "parseQuiz success, parsed=" + parsed);
-            return true;
-
-        } catch (Exception e) {
-            Log.e(TAG, "parseQuiz exception", e);
-            return false;
-        }
-    }
-
     // ================== Quiz 呈現 / 批改 ==================
 
     private void clearQuizUI() {
         currentQuiz.clear();
         quizList.removeAllViews();
+        btnRegenQuiz.setVisibility(View.GONE);
     }
 
     private void renderQuizUI(List<Question> quiz) {
         quizList.removeAllViews();
-        int pad = dp(8);
         for (int i = 0; i < quiz.size(); i++) {
-            Question q = quiz.get(i);
+            quiz.get(i).number = i + 1;
+            appendQuestionView(quiz.get(i));
+        }
+    }
 
-            TextView tv = new TextView(requireContext());
-            tv.setText((i+1) + ". " + q.stem);
-            tv.setTextSize(16f);
-            tv.setPadding(pad, pad, pad, pad);
-            quizList.addView(tv);
-            q.tvStem = tv;
-
-            RadioGroup rg = new RadioGroup(requireContext());
-            rg.setOrientation(RadioGroup.VERTICAL);
-            rg.setPadding(pad, 0, pad, pad);
-
-            for (int j = 0; j < 4; j++) {
-                RadioButton rb = new RadioButton(requireContext());
-                rb.setText((char)('A'+j) + ". " + q.options[j]);
-                int finalJ = j;
-                rb.setOnCheckedChangeListener((buttonView, isChecked) -> {
-                    if (isChecked) q.chosen = finalJ;
-                });
-                rg.addView(rb);
-            }
-            quizList.addView(rg);
-            q.group = rg;
+    /** 把一題（題幹 + A~D）接在 quizList 最後面；出題串流時一題一題加 */
+    private void appendQuestionView(Question q) {
+        int pad = dp(8);
+        TextView tv = new TextView(requireContext());
+        tv.setText(q.number + ". " + q.stem);
+        tv.setTextSize(16f);
+        tv.setPadding(pad, pad, pad, pad);
+        quizList.addView(tv);
+        q.tvStem = tv;
+
+        RadioGroup rg = new RadioGroup(requireContext());
+        rg.setOrientation(RadioGroup.VERTICAL);
+        rg.setPadding(pad, 0, pad, pad);
+
+        for (int j = 0; j < 4; j++) {
+            RadioButton rb = new RadioButton(requireContext());
+            rb.setText((char)('A'+j) + ". " + q.options[j]);
+            int finalJ = j;
+            rb.setOnCheckedChangeListener((buttonView, isChecked) -> {
+                if (isChecked) q.chosen = finalJ;
+            });
+            rg.addView(rb);
         }
+        quizList.addView(rg);
+        q.group = rg;
     }
 
     private void submitQuiz() {
@@ -781,6 +987,7 @@ public class AiFragment extends Fragment {
         if (btnRun != null)        btnRun.setEnabled(!on);
         if (btnSaveAsNote != null) btnSaveAsNote.setEnabled(!on);
         if (btnSubmitQuiz != null) btnSubmitQuiz.setEnabled(!on);
+        if (btnRegenQuiz != null)  btnRegenQuiz.setEnabled(!on);
     }
 
     private void toast(String s){
@@ -812,10 +1019,6 @@ public class AiFragment extends Fragment {
         });
     }
 
-    private static int safeInt(String s) {
-        try { return Integer.parseInt(s.trim()); } catch (Exception e) { return -1; }
-    }
-
     // ================== Firestore helpers ==================
 
     private FirebaseFirestore db() { return FirebaseFirestore.getInstance(); }
@@ -1013,6 +1216,7 @@ public class AiFragment extends Fragment {
         int num = 1;
         for (StoredQuestion sq : pickedSq) currentQuiz.add(sq.toQuestion(num++));
         renderQuizUI(currentQuiz);
+        btnRegenQuiz.setVisibility(View.GONE); // 錯題複習不經過 AI
         quizHost.setVisibility(View.VISIBLE);
         requireView().findViewById(R.id.tilResult).setVisibility(View.GONE);
     }
@@ -1021,6 +1225,10 @@ public class AiFragment extends Fragment {
         return requireContext().getSharedPreferences(SP_NAME, Context.MODE_PRIVATE);
     }
 
+    private int promptBudgetTokens() {
+        return Math.max(1000, prefs().getInt(KEY_PROMPT_BUDGET, TokenBudgeter.DEFAULT_BUDGET_TOKENS));
+    }
+
     /** 取得單一 Note 的「blocks 純文字」。優先 blocks；若沒有 blocks 就回退 note.content。 */
     private void fetchNoteBlocksText(@NonNull Note note, @NonNull OnString cb) {
         // 嘗試用 Note 模型上的 ownerId；沒有就先用本人
@@ -1052,12 +1260,16 @@ public class AiFragment extends Fragment {
                         // 沒有 blocks → 回退 NOTE.content
                         String fallback = note.getContent() == null ? "" : note.getContent();
                         blocksTextCache.put(cacheKey, fallback);
+                        blockVersionsCache.put(cacheKey, contentVersion(cacheKey, fallback));
                         cb.onResult(fallback);
                         return;
                     }
 
                     StringBuilder sb = new StringBuilder();
+                    List<String> versions = new ArrayList<>();
                     for (DocumentSnapshot d : snap.getDocuments()) {
+                        Long v = d.getLong("version");
+                        versions.add(cacheKey + "/" + d.getId() + "@" + (v == null ? 0 : v));
                         // 只取文字型 block
                         String type = String.valueOf(d.getString("type"));
                         if (type == null) type = "";
@@ -1076,18 +1288,38 @@ public class AiFragment extends Fragment {
                     if (out.isEmpty()) {
                         // blocks 都是空字/非文字 → 再退回 note.content
                         out = note.getContent() == null ? "" : note.getContent();
+                        versions.add(contentVersion(cacheKey, out).get(0));
                     }
                     blocksTextCache.put(cacheKey, out);
+                    blockVersionsCache.put(cacheKey, versions);
                     cb.onResult(out);
                 })
                 .addOnFailureListener(e -> {
                     // 讀取失敗也回退 NOTE.content，避免整個流程卡住
                     String fallback = note.getContent() == null ? "" : note.getContent();
                     blocksTextCache.put(cacheKey, fallback);
+                    blockVersionsCache.put(cacheKey, contentVersion(cacheKey, fallback));
                     cb.onResult(fallback);
                 });
     }
 
+    /** 沒有 blocks、改用 note.content 時，以內容雜湊代替版本號 */
+    private static List<String> contentVersion(String cacheKey, String content) {
+        return Collections.singletonList(cacheKey + "@content:" + Integer.toHexString(content.hashCode()));
+    }
+
+    /** 這次選取的所有來源 block 版本指紋；合併完成後呼叫（各篇都已進 blockVersionsCache） */
+    @NonNull
+    private String buildSourcesFingerprint(@NonNull List<Note> picked) {
+        List<String> all = new ArrayList<>();
+        for (Note n : picked) {
+            String owner = n.getOwnerId() != null ? n.getOwnerId() : uid();
+            List<String> v = blockVersionsCache.get(owner + "/" + n.getId());
+            if (v != null) all.addAll(v);
+        }
+        return AiResultCache.sourcesOf(all);
+    }
+
     private interface OnString {
         void onResult(String text);
     }
@@ -1103,32 +1335,39 @@ public class AiFragment extends Fragment {
             if (s != 0) return s;
             int c = Integer.compare(a.getChapter(), b.getChapter());
             if (c != 0) return c;
-            return Integer.compare(a.getSection(), b.getSection());
+            int s2 = Integer.compare(a.getSection(), b.getSection());
+            if (s2 != 0) return s2;
+            return safeCmp(a.getId(), b.getId()); // 同章節號時也固定順序
         });
 
-        // 逐篇抓 blocks → 串起來
-        StringBuilder finalSb = new StringBuilder();
-        String[] lastCat = { null }; // 用陣列包起來給 inner lambda 改
+        // 逐篇抓 blocks（回來的順序不一定）→ 依排序位置放好，全部到齊才照順序串起來；
+        // 同樣的選取每次組出同一份 prompt，AI 結果快取才對得上
         int total = sorted.size();
+        String[] texts = new String[total];
         int[] done = { 0 };
 
-        for (Note n : sorted) {
-            fetchNoteBlocksText(n, blocksText -> {
-                String cat = normalizeStack(n.getStack());
-                if (!Objects.equals(lastCat[0], cat)) {
-                    if (finalSb.length() > 0) finalSb.append('\n');
-                    finalSb.append("【大類別】").append(cat).append('\n');
-                    lastCat[0] = cat;
-                }
-                String prefix = buildIndexPrefix(n.getChapter(), n.getSection());
-                String title  = n.getTitle() == null ? "" : n.getTitle();
-                finalSb.append("《章節》").append(prefix.isEmpty() ? title : (prefix + " " + title)).append('\n');
-                finalSb.append("《內容》\n").append(blocksText == null ? "" : blocksText).append("\n\n");
-
-                done[0]++;
-                if (done[0] == total) {
-                    cb.onResult(finalSb.toString().trim());
+        for (int i = 0; i < total; i++) {
+            int idx = i;
+            fetchNoteBlocksText(sorted.get(i), blocksText -> {
+                texts[idx] = blocksText == null ? "" : blocksText;
+                if (++done[0] < total) return;
+
+                StringBuilder finalSb = new StringBuilder();
+                String lastCat = null;
+                for (int j = 0; j < total; j++) {
+                    Note n = sorted.get(j);
+                    String cat = normalizeStack(n.getStack());
+                    if (!Objects.equals(lastCat, cat)) {
+                        if (finalSb.length() > 0) finalSb.append('\n');
+                        finalSb.append("【大類別】").append(cat).append('\n');
+                        lastCat = cat;
+                    }
+                    String prefix = buildIndexPrefix(n.getChapter(), n.getSection());
+                    String title  = n.getTitle() == null ? "" : n.getTitle();
+                    finalSb.append("《章節》").append(prefix.isEmpty() ? title : (prefix + " " + title)).append('\n');
+                    finalSb.append("《內容》\n").append(texts[j]).append("\n\n");
                 }
+                cb.onResult(finalSb.toString().trim());
             });
         }
     }
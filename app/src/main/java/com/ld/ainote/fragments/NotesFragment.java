@@ -36,31 +36,33 @@ import com.google.firebase.firestore.CollectionReference;
 import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.FirebaseFirestore;
-import com.google.firebase.firestore.ListenerRegistration;
 import com.google.firebase.firestore.Query;
-import com.google.firebase.firestore.QuerySnapshot;
 import com.ld.ainote.NoteEditActivity;
 import com.ld.ainote.R;
 import com.ld.ainote.adapters.NoteAdapter;
 import com.ld.ainote.data.BlockRepository;
+import com.ld.ainote.data.NoteListMerger;
 import com.ld.ainote.data.NoteRepository;
+import com.ld.ainote.data.PagedNoteSource;
 import com.ld.ainote.models.Note;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 public class NotesFragment extends Fragment {
 
     // Firestore
     private FirebaseFirestore db;
-    private ListenerRegistration regMine;
-    private ListenerRegistration regShared;
+    // 分頁載入：我的筆記 / 共筆各自分頁，只監聽已載入的頁
+    private PagedNoteSource pagerMine;
+    private PagedNoteSource pagerShared;
+
+    // 清單底部剩幾列時就先載入下一頁
+    private static final int LOAD_MORE_THRESHOLD = 10;
 
     // 既有 Repo（用於新增/刪除）
     private NoteRepository repo;
@@ -72,22 +74,18 @@ public class NotesFragment extends Fragment {
     private TextView tvEmpty;
     private ProgressBar progress;
     private MaterialButton btnAdd;
+    private MaterialButton btnLoadMore;
     private TextView tvScope; // 可為 null（舊 layout 沒有時不會崩潰）
 
     // Adapter 與本地快取
     private NoteAdapter adapter;
-    private final List<Note> notesCache = new ArrayList<>();
-    private final Set<String> categoriesLocal = new HashSet<>();
+    private final Set<String> categoriesLocal = new HashSet<>(); // 使用者新增、還沒有筆記的類別
 
     // 群組模式下：展開中的類別
     private final Set<String> expandedCategories = new HashSet<>();
 
-    // 合併兩條監聽資料的暫存（key = ownerId#noteId）
-    private final Map<String, Note> mergeMap = new HashMap<>();
-
-    // 來源分離的快取：我的 / 共筆
-    private final Map<String, Note> mapMine   = new HashMap<>();
-    private final Map<String, Note> mapShared = new HashMap<>();
+    // 合併兩條監聽資料（key = ownerId#noteId），排序好的清單就地維護
+    private final NoteListMerger merger = new NoteListMerger();
 
     @Nullable
     @Override
@@ -111,6 +109,7 @@ public class NotesFragment extends Fragment {
         tvEmpty  = v.findViewById(R.id.tvEmpty);
         progress = v.findViewById(R.id.progress);
         btnAdd   = v.findViewById(R.id.btnAdd);
+        btnLoadMore = v.findViewById(R.id.btnLoadMore);
         tvScope  = v.findViewById(R.id.tvScope);
 
         if (tvScope != null) {
@@ -120,6 +119,18 @@ public class NotesFragment extends Fragment {
         rv.setLayoutManager(new LinearLayoutManager(getContext()));
         adapter = new NoteAdapter();
         rv.setAdapter(adapter);
+        adapter.setOnRowsCommittedListener(this::updateEmpty);
+        btnLoadMore.setOnClickListener(view -> loadNextPages());
+        // 只在使用者往下捲時載入下一頁：群組模式預設全部收起、搜尋結果也可能很短，
+        // 若以「底部可見」判斷會一路把所有頁都載完。清單不滿一頁時拖動也算（DRAGGING 仍會觸發）
+        rv.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override public void onScrolled(@NonNull RecyclerView r, int dx, int dy) {
+                if (dy > 0) maybeLoadMore();
+            }
+            @Override public void onScrollStateChanged(@NonNull RecyclerView r, int state) {
+                if (state == RecyclerView.SCROLL_STATE_DRAGGING) maybeLoadMore();
+            }
+        });
 
         adapter.setOnItemClickListener(note -> {
             // 進編輯頁時要帶真正擁有者的 ownerId（共筆時不能用自己的 UID）
@@ -178,6 +189,7 @@ public class NotesFragment extends Fragment {
             else expandedCategories.add(category);
 
             adapter.setExpandedCategories(expandedCategories);
+            loadExpandedCategories(); // 展開的類別可能還有筆記在後面的頁
         }));
 
         // 新增（選單）
@@ -202,7 +214,9 @@ public class NotesFragment extends Fragment {
                     expandedCategories.clear();
                     adapter.setExpandedCategories(expandedCategories);
                 }
+                loadAllWhileSearching(); // 搜尋索引只涵蓋已載入的筆記
                 updateEmpty();
+                updateLoadMore();
             }
             @Override public void afterTextChanged(Editable s) {}
         });
@@ -236,118 +250,145 @@ public class NotesFragment extends Fragment {
         }
 
         setLoading(true);
+        merger.clear();
 
         // 我的筆記：/users/{uid}/notes
         CollectionReference myNotesCol = db.collection("users").document(myUid).collection("notes");
-        regMine = myNotesCol.addSnapshotListener((snap, err) -> {
-            if (!isAdded()) return;
-            if (err != null) {
-                setLoading(false);
-                Toast.makeText(requireContext(), "同步失敗（我的筆記）：" + err.getMessage(), Toast.LENGTH_LONG).show();
-                return;
-            }
-            mergeFromSnapshot(snap, /*fromMine=*/true, myUid);
-        });
+        pagerMine = new PagedNoteSource(myNotesCol, PagedNoteSource.DEFAULT_PAGE_SIZE,
+                mapperFor(true, myUid), new PagedNoteSource.Listener() {
+                    @Override public void onEdits(@NonNull List<NoteListMerger.Edit> edits) { applyEdits(true, edits); }
+                    @Override public void onError(@NonNull Exception err) {
+                        if (!isAdded()) return;
+                        setLoading(false);
+                        Toast.makeText(requireContext(), "同步失敗（我的筆記）：" + err.getMessage(), Toast.LENGTH_LONG).show();
+                    }
+                });
 
         // 被分享給我的筆記：
         // 假設每個 Note 有欄位 collaborators:Array<String>，放共編者 uid
         // 用 collectionGroup("notes") + array-contains 查到所有擁有者的 notes 中「包含我」的
         Query sharedQuery = db.collectionGroup("notes").whereArrayContains("collaborators", myUid);
-        regShared = sharedQuery.addSnapshotListener((snap, err) -> {
-            if (!isAdded()) return;
-            if (err != null) {
-                setLoading(false);
-                Log.d("ERROR", "startListening: err ="+ err.getMessage());
-                Toast.makeText(requireContext(), "同步失敗（共筆）：" + err.getMessage(), Toast.LENGTH_LONG).show();
-                return;
-            }
-            mergeFromSnapshot(snap, /*fromMine=*/false, myUid);
-        });
+        pagerShared = new PagedNoteSource(sharedQuery, PagedNoteSource.DEFAULT_PAGE_SIZE,
+                mapperFor(false, myUid), new PagedNoteSource.Listener() {
+                    @Override public void onEdits(@NonNull List<NoteListMerger.Edit> edits) { applyEdits(false, edits); }
+                    @Override public void onError(@NonNull Exception err) {
+                        if (!isAdded()) return;
+                        setLoading(false);
+                        Log.d("ERROR", "startListening: err ="+ err.getMessage());
+                        Toast.makeText(requireContext(), "同步失敗（共筆）：" + err.getMessage(), Toast.LENGTH_LONG).show();
+                    }
+                });
+
+        pagerMine.start();
+        pagerShared.start();
     }
 
     private void stopListening() {
-        if (regMine != null) { regMine.remove(); regMine = null; }
-        if (regShared != null) { regShared.remove(); regShared = null; }
+        if (pagerMine != null) { pagerMine.stop(); pagerMine = null; }
+        if (pagerShared != null) { pagerShared.stop(); pagerShared = null; }
     }
 
-    private void mergeFromSnapshot(@Nullable QuerySnapshot snap, boolean fromMine, @NonNull String myUid) {
-        if (snap == null) return;
-
-        // 針對「此次回來的來源」先清空，再重建（這一步修正了刪除後殘留的問題）
-        Map<String, Note> target = fromMine ? mapMine : mapShared;
-        target.clear();
-
-        for (DocumentSnapshot d : snap.getDocuments()) {
-            Note n = new Note();
-            n.setId(d.getId());
-            n.setTitle(emptyIfNull(d.getString("title")));
-            n.setContent(emptyIfNull(d.getString("content")));
-            n.setStack(emptyIfNull(d.getString("stack")));
-            n.setChapter(intFrom(d.get("chapter")));
-            n.setSection(intFrom(d.get("section")));
-
-            // 讀 collaborators（若有）
-            List<String> collabs = (List<String>) d.get("collaborators");
-            if (collabs != null) n.setCollaborators(collabs);
-
-            // 讀 timestamp（若有）
-            Date ts = d.getDate("timestamp");
-            if (ts != null) n.setTimestamp(ts);
-
-            // 取得 ownerId：我的→myUid；共筆→由文件路徑取上層 users/{ownerId}
-            String ownerId;
-            if (fromMine) {
-                ownerId = myUid;
-            } else {
-                DocumentReference ref = d.getReference();
-                // ref: .../users/{ownerId}/notes/{noteId}
-                ownerId = "";
-                if (ref != null && ref.getParent() != null && ref.getParent().getParent() != null) {
-                    ownerId = ref.getParent().getParent().getId();
-                }
-            }
-            n.setOwnerId(ownerId);
+    /** 使用者捲到清單底部附近時，兩個來源各載入下一頁 */
+    private void maybeLoadMore() {
+        if (rv == null || adapter == null || !(rv.getLayoutManager() instanceof LinearLayoutManager)) return;
+        int last = ((LinearLayoutManager) rv.getLayoutManager()).findLastVisibleItemPosition();
+        if (last < adapter.getItemCount() - LOAD_MORE_THRESHOLD) return;
+        loadNextPages();
+    }
 
-            // ✅ 設定是否共筆：owner 不是自己即視為共筆
-            n.setShared(!TextUtils.equals(ownerId, myUid));
+    private void loadNextPages() {
+        if (pagerMine != null && !pagerMine.isLoading()) pagerMine.loadMore();
+        if (pagerShared != null && !pagerShared.isLoading()) pagerShared.loadMore();
+    }
 
-            String key = ownerId + "#" + n.getId();
-            target.put(key, n);
+    /** 有關鍵字時把兩個來源都載完（每頁回來後再呼叫一次），否則還沒載入的筆記永遠搜不到 */
+    private void loadAllWhileSearching() {
+        if (etSearch == null || etSearch.getText() == null
+                || etSearch.getText().toString().trim().isEmpty()) return;
+        loadNextPages();
+    }
+
+    /** 後面還有頁時顯示「載入更多」：群組模式預設全收起、不會捲動，沒載到的類別要靠它補上 */
+    private void updateLoadMore() {
+        if (btnLoadMore == null) return;
+        boolean more = (pagerMine != null && pagerMine.hasMore())
+                || (pagerShared != null && pagerShared.hasMore());
+        btnLoadMore.setVisibility(more ? View.VISIBLE : View.GONE);
+    }
+
+    /** 群組模式：展開中的類別若可能延續到下一頁（來源依 stack 排序），就把那個來源再載一頁；每頁回來後再檢查一次 */
+    private void loadExpandedCategories() {
+        if (swGroup == null || !swGroup.isChecked() || expandedCategories.isEmpty()) return;
+        for (String category : expandedCategories) {
+            if (pagerMine != null && !pagerMine.isLoading() && mayContinue(pagerMine, category)) pagerMine.loadMore();
+            if (pagerShared != null && !pagerShared.isLoading() && mayContinue(pagerShared, category)) pagerShared.loadMore();
         }
+    }
 
-        // 重新組合兩個來源的快取 → 給 Adapter
-        mergeMap.clear();
-        mergeMap.putAll(mapMine);
-        mergeMap.putAll(mapShared);
-
-        // 轉 List、排序、更新本地快取與 UI
-        List<Note> merged = new ArrayList<>(mergeMap.values());
-
-        notesCache.clear();
-        notesCache.addAll(merged);
-        rebuildCategoriesFromNotes();
-
-        Collections.sort(merged, (a, b) -> {
-            String sa = nullSafe(a.getStack());
-            String sb = nullSafe(b.getStack());
-            int c = sa.compareToIgnoreCase(sb);
-            if (c != 0) return c;
-            c = Integer.compare(a.getChapter(), b.getChapter());
-            if (c != 0) return c;
-            c = Integer.compare(a.getSection(), b.getSection());
-            if (c != 0) return c;
-            return nullSafe(a.getTitle()).compareToIgnoreCase(nullSafe(b.getTitle()));
-        });
+    /** 已載入的最後一筆還沒超過這個類別，且後面還有頁 */
+    private static boolean mayContinue(@NonNull PagedNoteSource pager, @NonNull String category) {
+        if (!pager.hasMore()) return false;
+        String last = pager.lastStack();
+        String stack = "(未分組)".equals(category) ? "" : category; // 與 NoteRowPipeline.normalizeStack 對應
+        return last == null || last.trim().compareTo(stack) <= 0;
+    }
 
-        adapter.submitAll(merged);
+    private PagedNoteSource.Mapper mapperFor(boolean fromMine, @NonNull String myUid) {
+        return new PagedNoteSource.Mapper() {
+            @NonNull @Override public Note toNote(@NonNull DocumentSnapshot d) { return NotesFragment.this.toNote(d, fromMine, myUid); }
+            @NonNull @Override public String keyOf(@NonNull DocumentSnapshot d) { return ownerIdOf(d, fromMine, myUid) + "#" + d.getId(); }
+        };
+    }
 
-        if (swGroup != null && swGroup.isChecked()) {
-            expandedCategories.clear(); // 群組模式下維持預設收起
-            adapter.setExpandedCategories(expandedCategories);
-        }
+    /** 某一頁的新增 / 修改 / 刪除（第一次回來時全部都是 ADDED） */
+    private void applyEdits(boolean fromMine, @NonNull List<NoteListMerger.Edit> edits) {
+        if (!isAdded()) return;
+        List<NoteListMerger.Change> changes = merger.apply(
+                fromMine ? NoteListMerger.Source.MINE : NoteListMerger.Source.SHARED, edits);
+        adapter.applyChanges(changes, merger.notes());
 
         setLoading(false);
         updateEmpty();
+        loadExpandedCategories();
+        loadAllWhileSearching();
+        updateLoadMore();
+    }
+
+    private Note toNote(@NonNull DocumentSnapshot d, boolean fromMine, @NonNull String myUid) {
+        Note n = new Note();
+        n.setId(d.getId());
+        n.setTitle(emptyIfNull(d.getString("title")));
+        n.setContent(emptyIfNull(d.getString("content")));
+        n.setStack(emptyIfNull(d.getString("stack")));
+        n.setChapter(intFrom(d.get("chapter")));
+        n.setSection(intFrom(d.get("section")));
+
+        // 讀 collaborators（若有）
+        List<String> collabs = (List<String>) d.get("collaborators");
+        if (collabs != null) n.setCollaborators(collabs);
+
+        // 讀 timestamp（若有）
+        Date ts = d.getDate("timestamp");
+        if (ts != null) n.setTimestamp(ts);
+
+        String ownerId = ownerIdOf(d, fromMine, myUid);
+        n.setOwnerId(ownerId);
+
+        // ✅ 設定是否共筆：owner 不是自己即視為共筆
+        n.setShared(!TextUtils.equals(ownerId, myUid));
+        return n;
+    }
+
+    /** 取得 ownerId：我的→myUid；共筆→由文件路徑取上層 users/{ownerId} */
+    @NonNull
+    private static String ownerIdOf(@NonNull DocumentSnapshot d, boolean fromMine, @NonNull String myUid) {
+        if (fromMine) return myUid;
+        DocumentReference ref = d.getReference();
+        // ref: .../users/{ownerId}/notes/{noteId}
+        if (ref != null && ref.getParent() != null && ref.getParent().getParent() != null) {
+            return ref.getParent().getParent().getId();
+        }
+        return "";
     }
     // ===================== 新增類別/筆記 =====================
 
@@ -510,34 +551,42 @@ public class NotesFragment extends Fragment {
     }
 
     private List<String> buildCategoryListForDropdown() {
-        List<String> categories = new ArrayList<>(categoriesLocal);
-        for (Note n : notesCache) {
-            if (!TextUtils.isEmpty(n.getStack())) categories.add(n.getStack());
-        }
         // 去重 + 排序
-        categories = new ArrayList<>(new HashSet<>(categories));
+        Set<String> all = new HashSet<>(categoriesLocal);
+        all.addAll(merger.stacks());
+        List<String> categories = new ArrayList<>(all);
         Collections.sort(categories, String::compareToIgnoreCase);
         return categories;
     }
 
-    private void rebuildCategoriesFromNotes() {
-        categoriesLocal.clear();
-        for (Note n : notesCache) {
-            if (!TextUtils.isEmpty(n.getStack())) categoriesLocal.add(n.getStack());
-        }
-    }
-
     // 依「類別 + 章」回傳目前最大節號 + 1
+    // 分頁載入時該章可能還沒載完：先用已載入的回報，再查一次我的筆記補正
     private void computeNextSection(String category, int chapter, IntCallback cb) {
         int max = 0;
         if (!TextUtils.isEmpty(category) && chapter > 0) {
-            for (Note n : notesCache) {
+            for (Note n : merger.notes()) {
                 if (category.equals(n.getStack()) && n.getChapter() == chapter) {
                     if (n.getSection() > max) max = n.getSection();
                 }
             }
         }
         cb.accept(max + 1);
+
+        String myUid = FirebaseAuth.getInstance().getCurrentUser() != null
+                ? FirebaseAuth.getInstance().getCurrentUser().getUid() : null;
+        if (TextUtils.isEmpty(category) || chapter <= 0 || TextUtils.isEmpty(myUid)
+                || pagerMine == null || !pagerMine.hasMore()) return;
+        final int loadedMax = max;
+        db.collection("users").document(myUid).collection("notes")
+                .whereEqualTo("stack", category)
+                .whereEqualTo("chapter", chapter)
+                .get()
+                .addOnSuccessListener(qs -> {
+                    if (!isAdded()) return;
+                    int m = loadedMax;
+                    for (DocumentSnapshot d : qs.getDocuments()) m = Math.max(m, intFrom(d.get("section")));
+                    if (m > loadedMax) cb.accept(m + 1);
+                });
     }
 
     // ===================== UI 狀態 =====================
@@ -561,7 +610,6 @@ public class NotesFragment extends Fragment {
     // ===================== 小工具 =====================
 
     private interface IntCallback { void accept(int v); }
-    private static String nullSafe(String s) { return s == null ? "" : s; }
     private static String s(TextInputEditText et) { return et.getText() == null ? "" : et.getText().toString().trim(); }
 
     private static int safeParse(CharSequence cs) {
@@ -621,7 +669,7 @@ public class NotesFragment extends Fragment {
     private void confirmAndCascadeDeleteCategory(@NonNull String category, int headerPos, @NonNull String myUid) {
         // 找出你擁有且屬於此大類別的所有筆記（僅用來顯示數量與權限檢查）
         List<Note> owned = new ArrayList<>();
-        for (Note n : notesCache) {
+        for (Note n : merger.notes()) {
             if (n == null) continue;
             if (TextUtils.equals(category, n.getStack()) && TextUtils.equals(myUid, n.getOwnerId())) {
                 owned.add(n);
@@ -637,7 +685,9 @@ public class NotesFragment extends Fragment {
 
         new AlertDialog.Builder(requireContext())
                 .setTitle("刪除大類別")
-                .setMessage("將刪除「" + category + "」底下你擁有的 " + owned.size() + " 筆章節/筆記，且無法復原。確定要刪除嗎？")
+                .setMessage("將刪除「" + category + "」底下你擁有的 "
+                        + (pagerMine != null && pagerMine.hasMore() ? "至少 " : "") // 還有沒載入的頁
+                        + owned.size() + " 筆章節/筆記，且無法復原。確定要刪除嗎？")
                 .setPositiveButton("刪除", (d, w) -> {
                     setLoading(true);
 
@@ -677,7 +727,7 @@ public class NotesFragment extends Fragment {
 
                         if (t.isSuccessful()) {
                             // 讓 UI 立即有感（等 Firestore 回補也可以，但這樣更即時）
-                            adapter.removeLocalAt(pos);
+                            adapter.removeLocal(n);
 
                             Snackbar.make(getView(),
                                             "已刪除「" + title + "」",
@@ -9,6 +9,7 @@ import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.appcompat.app.AlertDialog;
 import androidx.fragment.app.Fragment;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
@@ -23,7 +24,16 @@ import com.ld.ainote.LoginActivity;
 import com.ld.ainote.R;
 import com.ld.ainote.adapters.FriendAdapter;
 import com.ld.ainote.models.Friend;
-
+import com.ld.ainote.data.BlockListCache;
+import com.ld.ainote.data.KeyedSerialExecutor;
+import com.ld.ainote.data.outbox.OutboxEntry;
+import com.ld.ainote.data.outbox.WriteOutbox;
+import com.ld.ainote.net.AiResultCache;
+import com.ld.ainote.net.AiScheduler;
+import com.ld.ainote.net.CloudFunctionClient;
+import com.ld.ainote.net.IdTokenProvider;
+
+import java.io.File;
 import java.security.SecureRandom;
 import java.util.*;
 
@@ -41,6 +51,7 @@ public class ProfileFragment extends Fragment {
     private TextView tvEmail, tvVerify, tvFriendCode;
     private TextInputEditText etDisplayName, etFriendCode;
     private MaterialButton btnSaveName, btnSendVerify, btnResetPwd, btnLogout, btnAddFriend;
+    private MaterialButton btnSyncIssues;
 
     private FriendAdapter friendAdapter;
     private ListenerRegistration friendReg;
@@ -79,6 +90,7 @@ public class ProfileFragment extends Fragment {
         btnResetPwd   = v.findViewById(R.id.btnResetPwd);
         btnLogout     = v.findViewById(R.id.btnLogout);
         btnAddFriend  = v.findViewById(R.id.btnAddFriend);
+        btnSyncIssues = v.findViewById(R.id.btnSyncIssues);
 
         RecyclerView rvFriends = v.findViewById(R.id.rvFriends);
         rvFriends.setLayoutManager(new LinearLayoutManager(getContext()));
@@ -115,6 +127,12 @@ public class ProfileFragment extends Fragment {
 
         btnLogout.setOnClickListener(view -> {
             auth.signOut();
+            IdTokenProvider.get().invalidate();
+            // 未送出的離線寫入屬於上一個帳號，不要用下一個帳號的身分補送
+            if (WriteOutbox.get() != null) WriteOutbox.get().clearAll();
+            BlockListCache.shared().clear();
+            AiResultCache cache = AiResultCache.get();
+            if (cache != null) cache.clear();
             if (getActivity() != null) {
                 Intent it = new Intent(getActivity(), LoginActivity.class);
                 it.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
@@ -124,6 +142,14 @@ public class ProfileFragment extends Fragment {
 
         btnAddFriend.setOnClickListener(view -> addFriendByCode());
 
+        btnSyncIssues.setOnClickListener(view -> showSyncIssues());
+
+        // 隱藏的除錯入口：長按信箱顯示後端呼叫統計
+        tvEmail.setOnLongClickListener(view -> {
+            showBackendMetrics();
+            return true;
+        });
+
         listenMyFriends();
     }
 
@@ -131,6 +157,7 @@ public class ProfileFragment extends Fragment {
     public void onResume() {
         super.onResume();
         setPresence(true);
+        refreshSyncIssues();
     }
 
     @Override
@@ -148,6 +175,111 @@ public class ProfileFragment extends Fragment {
         }
     }
 
+    // ================== 未同步的變更 ==================
+
+    /** 有被伺服器拒絕的離線寫入才顯示按鈕 */
+    private void refreshSyncIssues() {
+        WriteOutbox outbox = WriteOutbox.get();
+        if (outbox == null || btnSyncIssues == null) return;
+        outbox.failedEntries().addOnSuccessListener(requireActivity(), list -> {
+            if (btnSyncIssues == null) return;
+            btnSyncIssues.setVisibility(list.isEmpty() ? View.GONE : View.VISIBLE);
+            btnSyncIssues.setText("未同步的變更（" + list.size() + "）");
+        });
+    }
+
+    /** 列出被拒絕的寫入：全部重送或放棄 */
+    private void showSyncIssues() {
+        WriteOutbox outbox = WriteOutbox.get();
+        if (outbox == null) return;
+        outbox.failedEntries().addOnSuccessListener(requireActivity(), list -> {
+            if (list.isEmpty()) {
+                refreshSyncIssues();
+                return;
+            }
+            StringBuilder sb = new StringBuilder();
+            for (OutboxEntry e : list) {
+                String text = e.bodyString("text");
+                if (text == null) text = e.bodyString("title");
+                sb.append("• ").append(e.kind);
+                if (!TextUtils.isEmpty(text)) {
+                    sb.append("「").append(text.length() > 30 ? text.substring(0, 30) + "…" : text).append("」");
+                }
+                sb.append("\n   ").append(e.lastError == null ? "" : e.lastError).append('\n');
+            }
+            new AlertDialog.Builder(requireContext())
+                    .setTitle("未同步的變更（" + list.size() + "）")
+                    .setMessage(sb.toString().trim())
+                    .setPositiveButton("全部重試", (d, w) -> {
+                        outbox.retryFailed();
+                        btnSyncIssues.setVisibility(View.GONE);
+                    })
+                    .setNeutralButton("全部捨棄", (d, w) -> new AlertDialog.Builder(requireContext())
+                            .setTitle("捨棄這些變更？")
+                            .setMessage("捨棄後無法復原。")
+                            .setPositiveButton("捨棄", (d2, w2) -> {
+                                outbox.discard(list);
+                                btnSyncIssues.setVisibility(View.GONE);
+                            })
+                            .setNegativeButton("取消", null)
+                            .show())
+                    .setNegativeButton("關閉", null)
+                    .show();
+        });
+    }
+
+    /** 後端端點統計（延遲百分位 / 位元組 / 狀態碼 / 重試 / 斷路器 / token 快取 / 排隊），可匯出成檔案 */
+    private void showBackendMetrics() {
+        CloudFunctionClient client = CloudFunctionClient.get();
+        String text = client.metrics().dump()
+                + "\nretry: " + client.retryStatsLine()
+                + "\nbreaker: " + client.breakerStatsLine()
+                + "\n" + IdTokenProvider.get().statsLine()
+                + "\nexecutor: " + KeyedSerialExecutor.shared().statsLine()
+                + "\n" + AiScheduler.get().statsLine()
+                + "\n" + aiCacheStatsLine();
+        new AlertDialog.Builder(requireContext())
+                .setTitle("後端呼叫統計")
+                .setMessage(text)
+                .setPositiveButton("匯出檔案", (d, w) -> exportBackendMetrics())
+                .setNeutralButton("歸零", (d, w) -> client.metrics().reset())
+                .setNegativeButton("關閉", null)
+                .show();
+    }
+
+    /** 寫到 Android/data/<pkg>/files/metrics/（adb pull 即可收集） */
+    private void exportBackendMetrics() {
+        File dir = requireContext().getExternalFilesDir("metrics");
+        if (dir == null) dir = new File(requireContext().getFilesDir(), "metrics");
+        final File target = dir;
+        CloudFunctionClient client = CloudFunctionClient.get();
+        Map<String, String> extra = new LinkedHashMap<>();
+        extra.put("retry", client.retryStatsLine());
+        extra.put("breaker", client.breakerStatsLine());
+        extra.put("token", IdTokenProvider.get().statsLine());
+        extra.put("executor", KeyedSerialExecutor.shared().statsLine());
+        extra.put("ai", AiScheduler.get().statsLine());
+        extra.put("aiCache", aiCacheStatsLine());
+        new Thread(() -> {
+            String msg;
+            try {
+                msg = "已匯出：" + client.metrics().exportTo(target, extra).getAbsolutePath();
+            } catch (Exception e) {
+                msg = "匯出失敗：" + e.getMessage();
+            }
+            final String toast = msg;
+            if (getActivity() != null) {
+                getActivity().runOnUiThread(() ->
+                        Toast.makeText(getActivity(), toast, Toast.LENGTH_LONG).show());
+            }
+        }).start();
+    }
+
+    private static String aiCacheStatsLine() {
+        AiResultCache cache = AiResultCache.get();
+        return cache == null ? "ai-cache off" : cache.statsLine();
+    }
+
     /** 產生或讀取好友代碼（8 碼），顯示到 UI */
     private void ensureFriendCode() {
         DocumentReference me = db.collection("users").document(user.getUid());
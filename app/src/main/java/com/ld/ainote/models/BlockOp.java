@@ -0,0 +1,125 @@
+package com.ld.ainote.models;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批次送出的單一 block 操作（對應後端 applyBlockBatch 的 ops[]）
+ * - update / delete 可帶 expectedVersion 做衝突檢查（< 0 表示不檢查）
+ * - releaseLock 只需 blockId
+ */
+public class BlockOp {
+
+    public static final String UPDATE = "update";
+    public static final String CREATE = "create";
+    public static final String DELETE = "delete";
+    public static final String RELEASE_LOCK = "releaseLock";
+
+    public final String op;
+    @Nullable public final String blockId;
+    @Nullable public final String text;
+    @Nullable public final String type;
+    public final int index;            // < 0 表示不送
+    public final long expectedVersion; // < 0 表示不送
+
+    private BlockOp(String op, @Nullable String blockId, @Nullable String text,
+                    @Nullable String type, int index, long expectedVersion) {
+        this.op = op;
+        this.blockId = blockId;
+        this.text = text;
+        this.type = type;
+        this.index = index;
+        this.expectedVersion = expectedVersion;
+    }
+
+    public static BlockOp update(@NonNull String blockId, @Nullable String text, @Nullable String type,
+                                 int index, long expectedVersion) {
+        return new BlockOp(UPDATE, blockId, text, type, index, expectedVersion);
+    }
+
+    public static BlockOp create(int index, @Nullable String type, @Nullable String text) {
+        return new BlockOp(CREATE, null, text == null ? "" : text, type == null ? "text" : type,
+                Math.max(0, index), -1);
+    }
+
+    public static BlockOp delete(@NonNull String blockId, long expectedVersion) {
+        return new BlockOp(DELETE, blockId, null, null, -1, expectedVersion);
+    }
+
+    public static BlockOp releaseLock(@NonNull String blockId) {
+        return new BlockOp(RELEASE_LOCK, blockId, null, null, -1, -1);
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject o = new JSONObject();
+        o.put("op", op);
+        if (blockId != null) o.put("blockId", blockId);
+        if (text != null) o.put("text", text);
+        if (type != null) o.put("type", type);
+        if (index >= 0) o.put("index", index);
+        if (expectedVersion >= 0) o.put("expectedVersion", expectedVersion);
+        return o;
+    }
+
+    /** 組出 applyBlockBatch 的 request body */
+    public static JSONObject buildBatchBody(String ownerId, String noteId, List<BlockOp> ops) throws JSONException {
+        JSONObject body = new JSONObject();
+        body.put("ownerId", ownerId);
+        body.put("noteId", noteId);
+        JSONArray arr = new JSONArray();
+        for (BlockOp op : ops) arr.put(op.toJson());
+        body.put("ops", arr);
+        return body;
+    }
+
+    // ================== 回應 ==================
+
+    /** 每個 op 的結果（順序與送出的 ops 相同） */
+    public static class Result {
+        public static final String OK = "ok";
+        public static final String CONFLICT = "conflict";
+        public static final String LOCKED = "locked";
+        public static final String NOT_FOUND = "notFound";
+        public static final String ERROR = "error";
+
+        public final int opIndex;
+        public final String status;
+        @Nullable public final String blockId;
+        public final long version; // ok 時為新版號；conflict 時為伺服器目前版號；沒有則 -1
+
+        public Result(int opIndex, String status, @Nullable String blockId, long version) {
+            this.opIndex = opIndex;
+            this.status = status;
+            this.blockId = blockId;
+            this.version = version;
+        }
+
+        public boolean isOk() { return OK.equals(status); }
+        public boolean isConflict() { return CONFLICT.equals(status); }
+
+        /** 解析 { success, results:[{op, status, blockId?, version?}] } */
+        public static List<Result> parseAll(String resp) throws JSONException {
+            JSONObject js = new JSONObject(resp);
+            if (!js.optBoolean("success")) throw new JSONException("applyBlockBatch failed: " + resp);
+            List<Result> out = new ArrayList<>();
+            JSONArray arr = js.optJSONArray("results");
+            if (arr == null) return out;
+            for (int i = 0; i < arr.length(); i++) {
+                JSONObject r = arr.getJSONObject(i);
+                out.add(new Result(
+                        r.optInt("op", i),
+                        r.optString("status", ERROR),
+                        r.has("blockId") ? r.optString("blockId") : null,
+                        r.optLong("version", -1L)));
+            }
+            return out;
+        }
+    }
+}
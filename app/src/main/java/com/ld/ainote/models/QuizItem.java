@@ -0,0 +1,22 @@
+package com.ld.ainote.models;
+
+/** 一題四選一選擇題（AI 出題結果；answer 為 0..3，-1 表示沒有答案） */
+public class QuizItem {
+    private String stem;
+    private String[] options;
+    private int answer;
+
+    public QuizItem(String stem, String[] options, int answer) {
+        this.stem = stem;
+        this.options = options;
+        this.answer = answer;
+    }
+
+    public String getStem() { return stem; }
+    public String[] getOptions() { return options; }
+    public int getAnswer() { return answer; }
+
+    public void setStem(String stem) { this.stem = stem; }
+    public void setOptions(String[] options) { this.options = options; }
+    public void setAnswer(int answer) { this.answer = answer; }
+}
@@ -0,0 +1,261 @@
+package com.ld.ainote.net;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AI 結果的磁碟快取（summary / integrate / quiz）
+ * - key = SHA-256(task, model, 正規化後的 prompt, age, n)，一筆一個檔案
+ * - 依最近使用淘汰（LRU），總大小超過 maxBytes 就刪最久沒用的；超過 ttlMs 視為過期
+ * - 存入時記下來源 blocks 的版本指紋；讀取時指紋不同（有 block 改過）就作廢
+ */
+public final class AiResultCache {
+
+    private static final String TAG = "AiResultCache";
+    private static final String DIR = "ai-cache";
+
+    static final long DEFAULT_MAX_BYTES = 4L * 1024 * 1024;
+    static final long DEFAULT_TTL_MS = TimeUnit.DAYS.toMillis(7);
+
+    /** 可替換的時鐘（測試用） */
+    interface Clock {
+        long nowMs();
+    }
+
+    private static volatile AiResultCache shared;
+
+    /** 在 Application.onCreate 呼叫一次 */
+    public static void init(@NonNull Context context) {
+        if (shared != null) return;
+        synchronized (AiResultCache.class) {
+            if (shared != null) return;
+            shared = new AiResultCache(new File(context.getCacheDir(), DIR),
+                    DEFAULT_MAX_BYTES, DEFAULT_TTL_MS, System::currentTimeMillis);
+        }
+    }
+
+    /** 尚未 init（例如單元測試）時回傳 null，呼叫端直接呼叫 AI */
+    @Nullable
+    public static AiResultCache get() { return shared; }
+
+    private final File dir;
+    private final long maxBytes;
+    private final long ttlMs;
+    private final Clock clock;
+
+    // 以下受 this 保護；accessOrder=true → 迭代順序即 LRU 順序
+    private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private long hits;
+    private long misses;
+    private long expired;
+    private long invalidated;
+    private long evicted;
+
+    AiResultCache(@NonNull File dir, long maxBytes, long ttlMs, @NonNull Clock clock) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.ttlMs = ttlMs;
+        this.clock = clock;
+        loadIndex();
+    }
+
+    /** 啟動時依檔案修改時間（＝最後使用時間）重建 LRU 順序 */
+    private synchronized void loadIndex() {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "cannot create " + dir);
+            return;
+        }
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File f : files) {
+            if (f.getName().endsWith(".tmp")) { // 上次寫到一半
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+                continue;
+            }
+            sizes.put(f.getName(), f.length());
+            totalBytes += f.length();
+        }
+        trim();
+    }
+
+    // ================== key ==================
+
+    /** 空白正規化：換行統一、行尾空白去掉、連續空行壓成一行；不影響語意的差異不會讓快取失效 */
+    @NonNull
+    static String normalize(@NonNull String prompt) {
+        String s = prompt.replace("\r\n", "\n").replace('\r', '\n');
+        s = s.replaceAll("[ \\t\\u3000]+\n", "\n").replaceAll("\n{3,}", "\n\n");
+        return s.trim();
+    }
+
+    @NonNull
+    public static String keyOf(@NonNull String task, @NonNull String model, @NonNull String prompt,
+                               @Nullable Integer age, int n) {
+        String raw = task + '\u0000' + model + '\u0000' + normalize(prompt)
+                + '\u0000' + (age == null ? "" : age) + '\u0000' + n;
+        return sha256(raw);
+    }
+
+    /** 來源版本指紋：每個 block 一個「路徑@version」，與順序無關 */
+    @NonNull
+    public static String sourcesOf(@NonNull Collection<String> blockVersions) {
+        List<String> sorted = new ArrayList<>(blockVersions);
+        Collections.sort(sorted);
+        return sha256(String.join("\n", sorted));
+    }
+
+    private static String sha256(String s) {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(d.length * 2);
+            for (byte b : d) sb.append(String.format(Locale.ROOT, "%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ================== 讀寫 ==================
+
+    /**
+     * 命中回傳結果；過期、來源版本不同或檔案壞掉都算 miss（並刪檔）
+     * @param sources 來源 blocks 的版本指紋（見 sourcesOf）；null 表示不檢查
+     */
+    @Nullable
+    public synchronized String get(@NonNull String key, @Nullable String sources) {
+        if (sizes.get(key) == null) { // get（不是 containsKey）才會更新 LRU 順序
+            misses++;
+            return null;
+        }
+        File f = new File(dir, key);
+        try {
+            JSONObject o = new JSONObject(readUtf8(f));
+            long now = clock.nowMs();
+            if (now - o.getLong("created") > ttlMs) {
+                expired++;
+            } else if (sources != null && !sources.equals(o.optString("sources", ""))) {
+                invalidated++;
+            } else {
+                hits++;
+                //noinspection ResultOfMethodCallIgnored
+                f.setLastModified(now); // 讓重新啟動後的 LRU 順序也正確
+                return o.getString("text");
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "drop unreadable entry " + key, e);
+        }
+        remove(key);
+        misses++;
+        return null;
+    }
+
+    public synchronized void put(@NonNull String key, @Nullable String sources, @NonNull String text) {
+        byte[] bytes;
+        try {
+            bytes = new JSONObject()
+                    .put("created", clock.nowMs())
+                    .put("sources", sources == null ? "" : sources)
+                    .put("text", text)
+                    .toString().getBytes(StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            Log.e(TAG, "encode failed", e);
+            return;
+        }
+        if (bytes.length > maxBytes) return; // 單筆就超過上限，不存
+
+        File tmp = new File(dir, key + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(bytes);
+        } catch (IOException e) {
+            Log.e(TAG, "write failed", e);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            return;
+        }
+        remove(key);
+        if (!tmp.renameTo(new File(dir, key))) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            return;
+        }
+        sizes.put(key, (long) bytes.length);
+        totalBytes += bytes.length;
+        trim();
+    }
+
+    public synchronized void clear() {
+        for (String key : sizes.keySet().toArray(new String[0])) remove(key);
+    }
+
+    /** 不用 java.nio.file.Files：minSdk 24 沒有（API 26 才有） */
+    private static String readUtf8(File f) throws IOException {
+        try (FileInputStream in = new FileInputStream(f)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(0, f.length()));
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private void remove(String key) {
+        Long size = sizes.remove(key);
+        if (size != null) totalBytes -= size;
+        //noinspection ResultOfMethodCallIgnored
+        new File(dir, key).delete();
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> it = sizes.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            totalBytes -= eldest.getValue();
+            //noinspection ResultOfMethodCallIgnored
+            new File(dir, eldest.getKey()).delete();
+            evicted++;
+        }
+    }
+
+    // ================== 統計 ==================
+
+    public synchronized long hits() { return hits; }
+
+    public synchronized long misses() { return misses; }
+
+    /** 例：ai-cache entries=12 bytes=48211 hits=5 misses=9 expired=0 invalidated=1 evicted=0 */
+    @NonNull
+    public synchronized String statsLine() {
+        return "ai-cache entries=" + sizes.size() + " bytes=" + totalBytes
+                + " hits=" + hits + " misses=" + misses + " expired=" + expired
+                + " invalidated=" + invalidated + " evicted=" + evicted;
+    }
+}
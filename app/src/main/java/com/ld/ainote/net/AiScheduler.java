@@ -0,0 +1,270 @@
+package com.ld.ainote.net;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AI 請求排程（取代每次 new Thread）
+ * - 固定數量的 worker ＋ 有上限的等待佇列；INTERACTIVE 優先於 BACKGROUND，同優先依送出順序
+ * - 相同 key 的請求還在排隊或執行中時直接合併（不重複呼叫 OpenAI），晚加入的會先收到已累積的片段
+ * - 每個訂閱者可帶 CancelToken；取消後不再收到任何回呼，全部訂閱者都取消時中止該請求
+ * - 統計排隊時間與執行時間（見 statsLine()）
+ */
+public final class AiScheduler {
+
+    private static final String TAG = "AiScheduler";
+
+    public enum Priority { INTERACTIVE, BACKGROUND }
+
+    /** 實際工作；串流時用 out 送出片段，並在 token 取消時儘快結束 */
+    public interface Work {
+        String run(@NonNull Emitter out, @NonNull CancelToken token) throws Exception;
+    }
+
+    public interface Emitter {
+        void delta(@NonNull String delta);
+    }
+
+    /** 回呼在 worker 執行緒 */
+    public interface Subscriber {
+        void onDelta(@NonNull String delta);
+        void onSuccess(@NonNull String out);
+        void onError(@NonNull Exception e);
+    }
+
+    private static volatile AiScheduler shared;
+
+    public static AiScheduler get() {
+        if (shared == null) {
+            synchronized (AiScheduler.class) {
+                // 都是等網路回應的 I/O；4 個 worker 讓分組出題可以同時送出
+                if (shared == null) shared = new AiScheduler(4, 32);
+            }
+        }
+        return shared;
+    }
+
+    private final ThreadPoolExecutor pool;
+    private final int maxQueued;
+    private final Map<String, Job> inFlight = new HashMap<>(); // 受 this 保護
+    private final AtomicLong seq = new AtomicLong();
+
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram execTime = new LatencyHistogram();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong deduped = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    AiScheduler(int workers, int maxQueued) {
+        this.maxQueued = maxQueued;
+        AtomicInteger n = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(workers, workers, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "ai-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 送出請求；key 相同且仍在進行中的會合併。
+     * 佇列已滿時 subscriber 立即收到 RejectedExecutionException。
+     */
+    public void submit(@NonNull String key, @NonNull Priority priority, @NonNull Work work,
+                       @NonNull Subscriber subscriber, @Nullable CancelToken cancel) {
+        submitted.incrementAndGet();
+        Sub sub = new Sub(subscriber);
+        String replay;
+        // 先鎖住這個訂閱者：補送的累積片段一定早於之後的新片段
+        synchronized (sub) {
+            try {
+                replay = attach(key, priority, work, sub);
+            } catch (RejectedExecutionException e) {
+                rejected.incrementAndGet();
+                subscriber.onError(e);
+                return;
+            }
+            if (replay != null && !replay.isEmpty()) sub.delta(replay);
+        }
+        Job job = sub.job;
+        if (cancel != null) cancel.onCancel(() -> unsubscribe(job, sub));
+        if (replay == null) {
+            try {
+                pool.execute(job);
+            } catch (RejectedExecutionException e) {
+                finish(job, null, e);
+            }
+        }
+    }
+
+    /** 加入進行中的同 key 工作（回傳已累積片段），或建立新工作（回傳 null，由呼叫端排入） */
+    @Nullable
+    private synchronized String attach(String key, Priority priority, Work work, Sub sub) {
+        Job job = inFlight.get(key);
+        if (job != null && !job.token.isCancelled()) {
+            deduped.incrementAndGet();
+            sub.job = job;
+            if (priority == Priority.INTERACTIVE && job.priority != Priority.INTERACTIVE
+                    && pool.getQueue().remove(job)) {
+                // 還在排隊的背景工作被互動請求需要 → 提到前面
+                job.priority = Priority.INTERACTIVE;
+                pool.execute(job);
+            }
+            return job.add(sub);
+        }
+        if (pool.getQueue().size() >= maxQueued) {
+            throw new RejectedExecutionException("AI 請求過多，請稍後再試");
+        }
+        job = new Job(key, priority, work, seq.incrementAndGet());
+        job.add(sub);
+        sub.job = job;
+        inFlight.put(key, job);
+        return null;
+    }
+
+    private void unsubscribe(Job job, Sub sub) {
+        sub.cancelled = true;
+        boolean abort;
+        synchronized (this) {
+            if (job.done) return;
+            abort = job.remove(sub);
+            if (abort && inFlight.get(job.key) == job) inFlight.remove(job.key);
+        }
+        if (abort) {
+            cancelled.incrementAndGet();
+            pool.getQueue().remove(job);
+            job.token.cancel();
+        }
+    }
+
+    private void finish(Job job, @Nullable String out, @Nullable Exception err) {
+        List<Sub> subs;
+        synchronized (this) {
+            if (inFlight.get(job.key) == job) inFlight.remove(job.key);
+            job.done = true;
+            subs = job.drain();
+        }
+        for (Sub s : subs) {
+            if (err != null) s.error(err);
+            else s.success(out);
+        }
+    }
+
+    // ================== 統計 ==================
+
+    public int queued() { return pool.getQueue().size(); }
+
+    public int running() { return pool.getActiveCount(); }
+
+    @NonNull
+    public String statsLine() {
+        return String.format(Locale.ROOT,
+                "ai submitted=%d deduped=%d cancelled=%d rejected=%d failed=%d queued=%d running=%d queueWait[%s] exec[%s]",
+                submitted.get(), deduped.get(), cancelled.get(), rejected.get(), failed.get(),
+                queued(), running(), queueWait, execTime);
+    }
+
+    // ================== 內部 ==================
+
+    private static final class Sub {
+        final Subscriber target;
+        volatile boolean cancelled;
+        Job job;
+
+        Sub(Subscriber target) { this.target = target; }
+
+        synchronized void delta(String d) { if (!cancelled) target.onDelta(d); }
+        synchronized void success(String out) { if (!cancelled) target.onSuccess(out); }
+        synchronized void error(Exception e) { if (!cancelled) target.onError(e); }
+    }
+
+    private final class Job implements Runnable, Comparable<Job> {
+        final String key;
+        final Work work;
+        final long order;
+        final long queuedNs = System.nanoTime();
+        final CancelToken token = new CancelToken();
+        volatile Priority priority;
+        volatile long startedNs;
+
+        // 以下受 AiScheduler.this 保護
+        boolean done;
+        private final List<Sub> subs = new ArrayList<>();
+        private final StringBuilder soFar = new StringBuilder();
+
+        Job(String key, Priority priority, Work work, long order) {
+            this.key = key;
+            this.priority = priority;
+            this.work = work;
+            this.order = order;
+        }
+
+        /** 回傳目前已累積的片段（給晚加入的訂閱者補送） */
+        String add(Sub s) {
+            subs.add(s);
+            return soFar.toString();
+        }
+
+        /** 回傳 true 表示已沒有訂閱者 */
+        boolean remove(Sub s) {
+            subs.remove(s);
+            return subs.isEmpty();
+        }
+
+        List<Sub> drain() {
+            List<Sub> out = new ArrayList<>(subs);
+            subs.clear();
+            return out;
+        }
+
+        @Override public void run() {
+            if (token.isCancelled()) return;
+            startedNs = System.nanoTime();
+            queueWait.record((startedNs - queuedNs) / 1_000_000L);
+            String out = null;
+            Exception err = null;
+            try {
+                out = work.run(d -> {
+                    List<Sub> targets;
+                    synchronized (AiScheduler.this) {
+                        soFar.append(d);
+                        targets = new ArrayList<>(subs);
+                    }
+                    for (Sub s : targets) s.delta(d);
+                }, token);
+            } catch (Exception e) {
+                err = e;
+            }
+            execTime.record((System.nanoTime() - startedNs) / 1_000_000L);
+            if (token.isCancelled()) return; // 訂閱者都已離開
+            if (err != null && !(err instanceof CancellationException)) {
+                failed.incrementAndGet();
+                Log.w(TAG, "job failed: " + err.getMessage());
+            }
+            finish(this, out, err);
+        }
+
+        @Override public int compareTo(Job o) {
+            int c = Integer.compare(priority.ordinal(), o.priority.ordinal());
+            return c != 0 ? c : Long.compare(order, o.order);
+        }
+    }
+}
@@ -1,15 +1,19 @@
 package com.ld.ainote.net;
 
 import android.util.Log;
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import org.json.JSONArray;
-import org.json.JSONObject;
-import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
 
 import com.ld.ainote.BuildConfig; // 需在 module 的 build.gradle 中有 buildConfigField OPENAI_API_KEY
+import com.ld.ainote.models.QuizItem;
+import com.ld.ainote.utils.TokenEstimator;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 
 public class AiService {
 
@@ -18,6 +22,20 @@ public class AiService {
         void onError(Exception e);
     }
 
+    /** 串流版：onDelta 帶新收到的一段文字（背景執行緒），結束時仍以完整內容呼叫 onSuccess */
+    public interface StreamCallback extends Callback {
+        void onDelta(String delta);
+    }
+
+    private static volatile LlmBackend backend =
+            new OpenAiClient(OpenAiClient.DEFAULT_URL, BuildConfig.OPENAI_API_KEY, OpenAiClient.DEFAULT_MODEL);
+
+    /** 換掉背後的模型（例如 LocalLlmBackend 離線壓測）；之後送出的請求才生效 */
+    public static void setBackend(@NonNull LlmBackend b) { backend = b; }
+
+    @NonNull
+    public static LlmBackend backend() { return backend; }
+
     // 相容舊呼叫
     public static void ask(String task, String text, int n, Callback cb) {
         ask(task, text, n, null, cb);
@@ -25,15 +43,271 @@ public class AiService {
 
     // 新版：可帶 age，出題時依年齡調整難度
     public static void ask(String task, String text, int n, @Nullable Integer age, Callback cb) {
-        new Thread(() -> {
-            try {
-                String prompt = buildPrompt(task, text, n, age);
-                String result = callOpenAI(prompt);
-                cb.onSuccess(result);
-            } catch (Exception e) {
-                cb.onError(e);
+        ask(task, text, n, age, null, cb);
+    }
+
+    /**
+     * 交給 AiScheduler 排程（有上限的 worker、相同 prompt 合併）；
+     * cancel 觸發後不再回呼（例如畫面已關閉）
+     */
+    public static void ask(String task, String text, int n, @Nullable Integer age,
+                           @Nullable CancelToken cancel, Callback cb) {
+        ask(task, text, n, age, null, cancel, cb);
+    }
+
+    /**
+     * sources：來源 blocks 的版本指紋（AiResultCache.sourcesOf）；
+     * 有開快取時同樣的選取與設定直接回傳上次結果，任何 block 版本變了就重新呼叫
+     */
+    public static void ask(String task, String text, int n, @Nullable Integer age, @Nullable String sources,
+                           @Nullable CancelToken cancel, Callback cb) {
+        complete(task, buildPrompt(task, text, n, age), n, age, sources, AiScheduler.Priority.INTERACTIVE,
+                null, cancel, cb);
+    }
+
+    private static void complete(String task, String prompt, int n, @Nullable Integer age, @Nullable String sources,
+                                 AiScheduler.Priority priority, @Nullable JSONObject responseFormat,
+                                 @Nullable CancelToken cancel, Callback cb) {
+        LlmBackend llm = backend;
+        String cacheKey = AiResultCache.keyOf(task, llm.model(), prompt, age, n);
+        AiScheduler.get().submit("full|" + cacheKey, priority,
+                (out, token) -> {
+                    AiResultCache cache = AiResultCache.get();
+                    String hit = cache == null ? null : cache.get(cacheKey, sources);
+                    if (hit != null) return hit;
+                    String result = llm.complete(prompt, responseFormat, token);
+                    if (cache != null && !result.isEmpty()) cache.put(cacheKey, sources, result);
+                    return result;
+                }, subscriber(cb), cancel);
+    }
+
+    /** 串流模式（stream=true）：邊產生邊回傳，長輸出不必等整段完成 */
+    public static void askStreaming(String task, String text, int n, @Nullable Integer age, StreamCallback cb) {
+        askStreaming(task, text, n, age, null, cb);
+    }
+
+    public static void askStreaming(String task, String text, int n, @Nullable Integer age,
+                                    @Nullable CancelToken cancel, StreamCallback cb) {
+        askStreaming(task, text, n, age, null, cancel, cb);
+    }
+
+    /** 快取命中時整段結果當成一個 delta 送出 */
+    public static void askStreaming(String task, String text, int n, @Nullable Integer age, @Nullable String sources,
+                                    @Nullable CancelToken cancel, StreamCallback cb) {
+        askStreaming(task, text, n, age, sources, false, cancel, cb);
+    }
+
+    /** fresh：不讀快取、一定重新呼叫（結果仍會寫回快取，取代舊的） */
+    public static void askStreaming(String task, String text, int n, @Nullable Integer age, @Nullable String sources,
+                                    boolean fresh, @Nullable CancelToken cancel, StreamCallback cb) {
+        String prompt = buildPrompt(task, text, n, age);
+        LlmBackend llm = backend;
+        String cacheKey = AiResultCache.keyOf(task, llm.model(), prompt, age, n);
+        AiScheduler.get().submit((fresh ? "stream-fresh|" : "stream|") + cacheKey, AiScheduler.Priority.INTERACTIVE,
+                (out, token) -> {
+                    AiResultCache cache = AiResultCache.get();
+                    String hit = cache == null || fresh ? null : cache.get(cacheKey, sources);
+                    if (hit != null) {
+                        out.delta(hit);
+                        return hit;
+                    }
+                    long startNs = System.nanoTime();
+                    long[] firstNs = { 0 };
+                    String result = llm.stream(prompt, delta -> {
+                        if (firstNs[0] == 0) firstNs[0] = System.nanoTime();
+                        out.delta(delta);
+                    }, null, token);
+                    long end = System.nanoTime();
+                    Log.d("AiService", "stream " + task + ": ttft=" + (firstNs[0] == 0 ? -1 : (firstNs[0] - startNs) / 1_000_000L)
+                            + "ms total=" + (end - startNs) / 1_000_000L + "ms chars=" + result.length());
+                    if (cache != null && !result.isEmpty()) cache.put(cacheKey, sources, result);
+                    return result;
+                }, subscriber(cb), cancel);
+    }
+
+    // ================== 送出前估算 ==================
+
+    // gpt-4o-mini 牌價（USD / 1M tokens）；換模型時一起調整
+    private static final double USD_PER_M_INPUT = 0.15;
+    private static final double USD_PER_M_OUTPUT = 0.60;
+
+    /** prompt 與輸出的估計 token 數、費用 */
+    public static final class Estimate {
+        public final int promptTokens;
+        public final int outputTokens;
+        public final double usd;
+
+        Estimate(int promptTokens, int outputTokens) {
+            this.promptTokens = promptTokens;
+            this.outputTokens = outputTokens;
+            this.usd = (promptTokens * USD_PER_M_INPUT + outputTokens * USD_PER_M_OUTPUT) / 1_000_000d;
+        }
+
+        /** 例：約 3,200 + 800 tokens（≈ US$0.0010） */
+        @NonNull @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "約 %,d + %,d tokens（≈ US$%.4f）", promptTokens, outputTokens, usd);
+        }
+    }
+
+    /** 以實際會送出的 prompt 估算（輸出長度依任務粗估；分段摘要另有中間結果，實際略高） */
+    public static Estimate estimate(String task, String text, int n, @Nullable Integer age) {
+        int prompt = TokenEstimator.estimate("quiz-json".equals(task)
+                ? buildQuizJsonPrompt(text, n, age) : buildPrompt(task, text, n, age));
+        int output;
+        switch (task) {
+            case "summary":   output = 800; break;
+            case "integrate": output = 1200; break;
+            default:          output = 120 * Math.max(1, n); break;
+        }
+        return new Estimate(prompt, output);
+    }
+
+    // ================== 結構化出題（JSON） ==================
+
+    /** 結構化出題結果；皆在背景執行緒回呼 */
+    public interface QuizCallback {
+        /** 每解出一題合格的題目就回呼（index 為第幾題合格的，0 起算；補出來的題目接在後面） */
+        void onItem(int index, @NonNull QuizItem item);
+
+        /** 驗證、補題後的完整結果（可能少於 n 題：補題也失敗時） */
+        void onSuccess(@NonNull List<QuizItem> items);
+
+        /** 連一題合格的都沒有（或呼叫失敗）；呼叫端改走文字出題 + parseQuiz */
+        void onError(@NonNull Exception e);
+    }
+
+    /**
+     * response_format = json_schema 出題，串流解碼成 QuizItem；
+     * 不合格或不足的題目只針對那幾題再要一次（不重出整份）
+     */
+    public static void askQuizJson(String text, int n, @Nullable Integer age, @Nullable String sources,
+                                   @Nullable CancelToken cancel, QuizCallback cb) {
+        askQuizJson(text, n, age, sources, false, cancel, cb);
+    }
+
+    /** fresh：「換一批題目」，不讀快取（新的一份仍會寫回快取） */
+    public static void askQuizJson(String text, int n, @Nullable Integer age, @Nullable String sources,
+                                   boolean fresh, @Nullable CancelToken cancel, QuizCallback cb) {
+        String prompt = buildQuizJsonPrompt(text, n, age);
+        LlmBackend llm = backend;
+        String cacheKey = AiResultCache.keyOf("quiz-json", llm.model(), prompt, age, n);
+        QuizJsonDecoder decoder = new QuizJsonDecoder();
+        int[] emitted = { 0 };
+        AiScheduler.get().submit((fresh ? "json-fresh|" : "json|") + cacheKey, AiScheduler.Priority.INTERACTIVE,
+                (out, token) -> {
+                    AiResultCache cache = AiResultCache.get();
+                    String hit = cache == null || fresh ? null : cache.get(cacheKey, sources);
+                    if (hit != null) {
+                        out.delta(hit);
+                        return hit;
+                    }
+                    return llm.stream(prompt, out::delta, QuizJsonDecoder.responseFormat(), token);
+                }, subscriber(new StreamCallback() {
+                    @Override public void onDelta(String delta) {
+                        for (QuizJsonDecoder.Decoded d : decoder.feed(delta)) {
+                            if (d.item != null && emitted[0] < n) cb.onItem(emitted[0]++, d.item);
+                        }
+                    }
+                    @Override public void onSuccess(String out) {
+                        finishQuizJson(out, text, n, age, sources, cacheKey, cancel, cb);
+                    }
+                    @Override public void onError(Exception e) { cb.onError(e); }
+                }), cancel);
+    }
+
+    private static void finishQuizJson(String out, String text, int n, @Nullable Integer age, @Nullable String sources,
+                                       String cacheKey, @Nullable CancelToken cancel, QuizCallback cb) {
+        List<QuizItem> items = new ArrayList<>();
+        List<String> problems = new ArrayList<>();
+        for (QuizJsonDecoder.Decoded d : QuizJsonDecoder.decodeAll(out)) {
+            if (d.item != null) {
+                if (items.size() < n) items.add(d.item);
+            } else {
+                problems.add(d.problem);
+            }
+        }
+        if (items.isEmpty()) {
+            cb.onError(new IOException("結構化出題無法解析（" + problems.size() + " 題不合格）"));
+            return;
+        }
+        int missing = n - items.size();
+        if (missing <= 0) {
+            cacheQuiz(cacheKey, sources, items);
+            cb.onSuccess(items);
+            return;
+        }
+
+        Log.w("AiService", "quiz-json: " + items.size() + "/" + n + " ok, repairing " + missing + " " + problems);
+        int keptBefore = items.size();
+        complete("quiz-repair", buildQuizRepairPrompt(text, missing, age, problems, items), missing, age, null,
+                AiScheduler.Priority.INTERACTIVE, QuizJsonDecoder.responseFormat(), cancel, new Callback() {
+                    @Override public void onSuccess(String repaired) {
+                        int index = keptBefore;
+                        for (QuizJsonDecoder.Decoded d : QuizJsonDecoder.decodeAll(repaired)) {
+                            if (d.item == null || items.size() >= n) continue;
+                            items.add(d.item);
+                            cb.onItem(index++, d.item);
+                        }
+                        if (items.size() == n) cacheQuiz(cacheKey, sources, items);
+                        cb.onSuccess(items);
+                    }
+                    @Override public void onError(Exception e) {
+                        Log.w("AiService", "quiz-json repair failed", e);
+                        cb.onSuccess(items); // 補題失敗就先用已有的題目
+                    }
+                });
+    }
+
+    private static void cacheQuiz(String cacheKey, @Nullable String sources, List<QuizItem> items) {
+        AiResultCache cache = AiResultCache.get();
+        if (cache != null) cache.put(cacheKey, sources, QuizJsonDecoder.encode(items));
+    }
+
+    // ================== 大量章節（map-reduce） ==================
+
+    private static final MapReduceSummarizer SUMMARIZER = new MapReduceSummarizer(new MapReduceSummarizer.Backend() {
+        @Override
+        public void part(@NonNull String text, @Nullable CancelToken cancel, @NonNull Callback cb) {
+            // 快取 key 只看段落內容：同一章節沒改過就重用，不受這次選了哪些章節影響
+            complete("summary-part", buildPartPrompt(text), 0, null, null, AiScheduler.Priority.BACKGROUND,
+                    null, cancel, cb);
+        }
+
+        @Override
+        public void answer(@NonNull String task, @NonNull String text, int n, @Nullable Integer age,
+                           @Nullable String sources, @Nullable CancelToken cancel, @NonNull StreamCallback cb) {
+            askStreaming(task, text, n, age, sources, cancel, cb);
+        }
+    }, MapReduceSummarizer.DEFAULT_SINGLE_CALL_TOKENS, MapReduceSummarizer.DEFAULT_CHUNK_TOKENS,
+            MapReduceSummarizer.DEFAULT_PARALLEL);
+
+    /**
+     * 整理 / 融會貫通用：內容不大時等同 askStreaming；
+     * 太大時依章節分段摘要後再合併（見 MapReduceSummarizer），progress 回報分段進度
+     */
+    public static void askLarge(String task, String text, int n, @Nullable Integer age, @Nullable String sources,
+                                @Nullable CancelToken cancel, StreamCallback cb,
+                                @Nullable MapReduceSummarizer.Progress progress) {
+        SUMMARIZER.run(task, text, n, age, sources, cancel, cb, progress);
+    }
+
+    private static String buildPartPrompt(String chunk) {
+        return "你是專業的讀書助教。以下是一份較長筆記中的一個段落，請整理成精簡的條列重點，供之後與其他段落合併。" +
+                "\n- 語言用繁體中文，不要開場白與結語。" +
+                "\n- 保留關鍵術語、數字與定義；[[這樣的標記]] 原文保留。" +
+                "\n- 長度約為原文的五分之一以內。" +
+                "\n\n【段落內容】\n" + chunk;
+    }
+
+    private static AiScheduler.Subscriber subscriber(Callback cb) {
+        return new AiScheduler.Subscriber() {
+            @Override public void onDelta(@NonNull String delta) {
+                if (cb instanceof StreamCallback) ((StreamCallback) cb).onDelta(delta);
             }
-        }).start();
+            @Override public void onSuccess(@NonNull String out) { cb.onSuccess(out); }
+            @Override public void onError(@NonNull Exception e) { cb.onError(e); }
+        };
     }
 
     private static String buildPrompt(String task, String text, int n, @Nullable Integer age) {
@@ -56,74 +330,51 @@ public class AiService {
 
             case "quiz":
             default:
-                // 依年齡調整出題風格
-                String ageGuide;
-                if (age == null) {
-                    ageGuide = "難度以一般大學生為準；詞彙中等、題型兼具選擇與簡答。";
-                } else if (age <= 10) {
-                    ageGuide = "使用淺白詞彙與生活化例子；多用四選一選擇題；每題後附一句提示。";
-                } else if (age <= 15) {
-                    ageGuide = "詞彙簡潔、概念清楚；選擇題與是非題為主；偶有簡答題。";
-                } else if (age <= 18) {
-                    ageGuide = "混合選擇題與短答題，著重理解與應用。";
-                } else if (age <= 25) {
-                    ageGuide = "偏向理解與應用的短答/情境題；必要時附關鍵術語。";
-                } else {
-                    ageGuide = "可加入實務情境與批判思考題；題幹精煉，術語完整。";
-                }
-
                 return "你是出題老師。請根據筆記內容出 " + Math.max(1, n) + " 題練習題（繁體中文）。" +
                         "\n- 題目難度需依讀者年齡調整：" + userAge +
-                        "\n- 出題風格指南：" + ageGuide +
+                        "\n- 出題風格指南：" + ageGuide(age) +
                         "\n- 若筆記含有 [[這樣的標記]]，題目要優先圍繞其重點。" +
                         "\n- 請用「Q1, Q2, ...」編號，必要時附答案或解析（簡短）。" +
                         "\n\n【筆記內容】\n" + text;
         }
     }
 
-    private static String callOpenAI(String prompt) throws Exception {
-        URL url = new URL("https://api.openai.com/v1/chat/completions");
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestMethod("POST");
-        conn.setReadTimeout(60000);
-        conn.setConnectTimeout(60000);
-        conn.setRequestProperty("Content-Type", "application/json");
-        conn.setRequestProperty("Authorization", "Bearer " + BuildConfig.OPENAI_API_KEY);
-        conn.setDoOutput(true);
-
-        JSONObject req = new JSONObject();
-        req.put("model", "gpt-4o-mini");
-
-        JSONArray messages = new JSONArray();
-        messages.put(new JSONObject().put("role", "system").put("content", "你是一位中文學習助理。"));
-        messages.put(new JSONObject().put("role", "user").put("content", prompt));
-        req.put("messages", messages);
-        req.put("temperature", 0.7);
-
-        try(OutputStream os = conn.getOutputStream()) {
-            os.write(req.toString().getBytes(StandardCharsets.UTF_8));
-        }
+    /** 依年齡調整出題風格 */
+    private static String ageGuide(@Nullable Integer age) {
+        if (age == null) return "難度以一般大學生為準；詞彙中等、題型兼具選擇與簡答。";
+        if (age <= 10) return "使用淺白詞彙與生活化例子；多用四選一選擇題；每題後附一句提示。";
+        if (age <= 15) return "詞彙簡潔、概念清楚；選擇題與是非題為主；偶有簡答題。";
+        if (age <= 18) return "混合選擇題與短答題，著重理解與應用。";
+        if (age <= 25) return "偏向理解與應用的短答/情境題；必要時附關鍵術語。";
+        return "可加入實務情境與批判思考題；題幹精煉，術語完整。";
+    }
 
-        int code = conn.getResponseCode();
-        InputStream is = (code >= 200 && code < 300) ? conn.getInputStream() : conn.getErrorStream();
-        String body;
-        try(BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while((line = br.readLine()) != null) sb.append(line);
-            body = sb.toString();
-        }
+    private static final String QUIZ_JSON_SHAPE =
+            "{\"questions\":[{\"stem\":\"題幹\",\"options\":[\"選項一\",\"選項二\",\"選項三\",\"選項四\"],\"answer\":\"A\"}]}";
 
-        if (code < 200 || code >= 300) {
-            Log.e("AiService", "OpenAI error: " + body);
-            throw new IOException("OpenAI HTTP " + code);
-        }
+    private static String buildQuizJsonPrompt(String text, int n, @Nullable Integer age) {
+        return "你是出題老師。請根據筆記內容出 " + Math.max(1, n) + " 題『單選選擇題』（繁體中文）。" +
+                "\n- 題目難度需依讀者年齡調整：" + (age == null ? "未指定" : (age + " 歲")) +
+                "\n- 出題風格指南：" + ageGuide(age) + "（本次一律為四選一單選題）" +
+                "\n- 每題恰好 4 個選項、只有 1 個正確答案；選項文字前不要加 A. B. 等代號。" +
+                "\n- 若筆記含有 [[這樣的標記]]，題目要優先圍繞其重點；涵蓋不同章節、避免重複。" +
+                "\n- 只輸出 JSON，格式：" + QUIZ_JSON_SHAPE + "；answer 為正確選項的字母 A~D。" +
+                "\n\n【筆記內容】\n" + text;
+    }
 
-        JSONObject json = new JSONObject(body);
-        String out = json.getJSONArray("choices")
-                .getJSONObject(0)
-                .getJSONObject("message")
-                .getString("content");
-        return out.trim();
+    /** 只補出格式有問題 / 不足的題目；列出已有題幹避免重複 */
+    private static String buildQuizRepairPrompt(String text, int count, @Nullable Integer age,
+                                                List<String> problems, List<QuizItem> kept) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("你是出題老師。先前依這份筆記出的選擇題中，有 ").append(count).append(" 題無法使用");
+        if (!problems.isEmpty()) sb.append("（").append(String.join("；", problems)).append("）");
+        sb.append("。請再補出 ").append(count).append(" 題新的『單選選擇題』（繁體中文）。")
+          .append("\n- 題目難度需依讀者年齡調整：").append(age == null ? "未指定" : (age + " 歲"))
+          .append("\n- 每題恰好 4 個選項、只有 1 個正確答案；選項文字前不要加 A. B. 等代號。")
+          .append("\n- 不要與下列已有的題目重複：");
+        for (QuizItem it : kept) sb.append("\n  • ").append(it.getStem());
+        sb.append("\n- 只輸出 JSON，格式：").append(QUIZ_JSON_SHAPE).append("；answer 為正確選項的字母 A~D。")
+          .append("\n\n【筆記內容】\n").append(text);
+        return sb.toString();
     }
 }
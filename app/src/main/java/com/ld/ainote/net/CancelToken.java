@@ -0,0 +1,41 @@
+package com.ld.ainote.net;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 取消訊號（例如綁在 Fragment 生命週期：onDestroyView 時 cancel）
+ * - onCancel 註冊的動作在 cancel() 的執行緒執行；已取消時註冊會立即執行
+ */
+public final class CancelToken {
+
+    private final List<Runnable> actions = new ArrayList<>();
+    private boolean cancelled; // 受 actions 保護
+
+    public void cancel() {
+        List<Runnable> run;
+        synchronized (actions) {
+            if (cancelled) return;
+            cancelled = true;
+            run = new ArrayList<>(actions);
+            actions.clear();
+        }
+        for (Runnable r : run) r.run();
+    }
+
+    public boolean isCancelled() {
+        synchronized (actions) { return cancelled; }
+    }
+
+    public void onCancel(@NonNull Runnable r) {
+        synchronized (actions) {
+            if (!cancelled) {
+                actions.add(r);
+                return;
+            }
+        }
+        r.run();
+    }
+}
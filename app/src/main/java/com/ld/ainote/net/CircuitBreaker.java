@@ -0,0 +1,143 @@
+package com.ld.ainote.net;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 單一端點的斷路器
+ * - CLOSED：正常放行；連續失敗（含過慢的回應）達門檻就 OPEN
+ * - OPEN：直接拒絕（呼叫端立即失敗或改走備援），openMs 後轉 HALF_OPEN
+ * - HALF_OPEN：只放一個探測請求；成功回 CLOSED，失敗再 OPEN 一輪
+ */
+public final class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /** 狀態變化通知（metrics / log 用）；在呼叫端執行緒回呼，不要做耗時工作 */
+    public interface Listener {
+        void onStateChange(@NonNull String endpoint, @NonNull State from, @NonNull State to);
+    }
+
+    /** 可替換的時鐘（測試用）；需單調遞增 */
+    interface Clock {
+        long nowMs();
+    }
+
+    static final class Config {
+        static final Config DEFAULT = new Config(5, 10_000, 30_000, () -> System.nanoTime() / 1_000_000L);
+
+        final int failureThreshold;
+        final long slowCallMs;
+        final long openMs;
+        final Clock clock;
+
+        Config(int failureThreshold, long slowCallMs, long openMs, @NonNull Clock clock) {
+            this.failureThreshold = Math.max(1, failureThreshold);
+            this.slowCallMs = slowCallMs;
+            this.openMs = openMs;
+            this.clock = clock;
+        }
+    }
+
+    private final String name;
+    private final Config cfg;
+    @Nullable private volatile Listener listener;
+
+    // 以下受 this 保護
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAtMs;
+    private boolean probeInFlight;
+    private long opens;
+    private long rejected;
+    private long slowCalls;
+
+    CircuitBreaker(@NonNull String name, @NonNull Config cfg) {
+        this.name = name;
+        this.cfg = cfg;
+    }
+
+    void setListener(@Nullable Listener l) { this.listener = l; }
+
+    /** 是否放行這次請求；放行後必須呼叫 onSuccess / onFailure 其中之一 */
+    boolean tryAcquire() {
+        State from, to;
+        synchronized (this) {
+            if (state == State.CLOSED) return true;
+            if (state == State.OPEN) {
+                if (cfg.clock.nowMs() - openedAtMs < cfg.openMs) {
+                    rejected++;
+                    return false;
+                }
+                from = state;
+                to = state = State.HALF_OPEN;
+                probeInFlight = true;
+            } else {
+                if (probeInFlight) {
+                    rejected++;
+                    return false;
+                }
+                probeInFlight = true;
+                return true;
+            }
+        }
+        notifyChange(from, to);
+        return true;
+    }
+
+    /** 伺服器有回應（含 4xx）；超過 slowCallMs 視同失敗 */
+    void onSuccess(long elapsedMs) {
+        if (elapsedMs >= cfg.slowCallMs) {
+            synchronized (this) { slowCalls++; }
+            onFailure();
+            return;
+        }
+        State from;
+        synchronized (this) {
+            consecutiveFailures = 0;
+            probeInFlight = false;
+            if (state != State.HALF_OPEN) return;
+            from = state;
+            state = State.CLOSED;
+        }
+        notifyChange(from, State.CLOSED);
+    }
+
+    /** 連線失敗 / 逾時 / 5xx / 429 */
+    void onFailure() {
+        State from;
+        synchronized (this) {
+            probeInFlight = false;
+            consecutiveFailures++;
+            if (state == State.OPEN) return;
+            if (state == State.CLOSED && consecutiveFailures < cfg.failureThreshold) return;
+            from = state;
+            state = State.OPEN;
+            openedAtMs = cfg.clock.nowMs();
+            opens++;
+        }
+        notifyChange(from, State.OPEN);
+    }
+
+    private void notifyChange(State from, State to) {
+        Listener l = listener;
+        if (l != null) l.onStateChange(name, from, to);
+    }
+
+    // ================== 狀態 ==================
+
+    @NonNull
+    public synchronized State state() { return state; }
+
+    /** OPEN 時距離可以探測還有多久；其他狀態回 0 */
+    public synchronized long retryInMs() {
+        if (state != State.OPEN) return 0;
+        return Math.max(0, cfg.openMs - (cfg.clock.nowMs() - openedAtMs));
+    }
+
+    /** 例：listblocks OPEN opens=2 rejected=14 slow=3 */
+    @NonNull @Override
+    public synchronized String toString() {
+        return name + " " + state + " opens=" + opens + " rejected=" + rejected + " slow=" + slowCalls;
+    }
+}
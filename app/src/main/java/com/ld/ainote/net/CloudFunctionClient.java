@@ -0,0 +1,513 @@
+package com.ld.ainote.net;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * 共用的 Cloud Run 呼叫端（NoteRepository / BlockRepository 共用）
+ * - 同一個 OkHttpClient：連線池 + keep-alive + HTTP/2 多工，避免每次重做 TCP/TLS 握手
+ * - 每個端點可設定自己的逾時（衍生 client 共用同一個連線池與 dispatcher）
+ * - 暫時性錯誤依 RetryPolicy 退避重試；會改寫資料的端點帶 Idempotency-Key，重試不會重複寫入
+ *   （沒帶 key 的改寫呼叫不重試）；退避可由呼叫端排程（newCall / PendingCall），不必佔著執行緒等
+ * - 每個端點一個 CircuitBreaker：連續失敗或過慢就斷開，斷開期間直接丟 CircuitOpenException
+ * - 每個端點的延遲 / 位元組 / 狀態碼記在 EndpointMetrics（見 metrics()）
+ */
+public final class CloudFunctionClient {
+
+    private static final String HOST_SUFFIX = "-qoe2g6zspa-de.a.run.app";
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    static final String IDEMPOTENCY_HEADER = "Idempotency-Key";
+
+    /** 單一 Cloud Run 端點：名稱 + 完整 URL + 逾時 */
+    public static final class Endpoint {
+        public final String name;
+        public final String url;
+        public final int connectTimeoutMs;
+        public final int readTimeoutMs;
+        /** 會新增/改寫資料：每次呼叫帶 Idempotency-Key；沒帶 key 時不重試 */
+        public final boolean mutating;
+
+        public Endpoint(@NonNull String name, @NonNull String url, int connectTimeoutMs, int readTimeoutMs) {
+            this(name, url, connectTimeoutMs, readTimeoutMs, false);
+        }
+
+        public Endpoint(@NonNull String name, @NonNull String url, int connectTimeoutMs, int readTimeoutMs,
+                        boolean mutating) {
+            this.name = name;
+            this.url = url;
+            this.connectTimeoutMs = connectTimeoutMs;
+            this.readTimeoutMs = readTimeoutMs;
+            this.mutating = mutating;
+        }
+
+        /** Cloud Run 預設網址：https://{name}-qoe2g6zspa-de.a.run.app */
+        public static Endpoint of(@NonNull String name, int readTimeoutMs) {
+            return new Endpoint(name, "https://" + name + HOST_SUFFIX, 15000, readTimeoutMs);
+        }
+
+        /** 同 of()，但呼叫會帶 Idempotency-Key（建立 / 更新 / 刪除 / 鎖定這類重送會重複生效的端點） */
+        public static Endpoint mutating(@NonNull String name, int readTimeoutMs) {
+            return new Endpoint(name, "https://" + name + HOST_SUFFIX, 15000, readTimeoutMs, true);
+        }
+
+        @NonNull @Override public String toString() { return name; }
+    }
+
+    private static volatile CloudFunctionClient shared;
+
+    public static CloudFunctionClient get() {
+        if (shared == null) {
+            synchronized (CloudFunctionClient.class) {
+                if (shared == null) {
+                    shared = new CloudFunctionClient(buildDefaultHttp(), RetryPolicy.DEFAULT,
+                            CircuitBreaker.Config.DEFAULT, new EndpointMetrics());
+                }
+            }
+        }
+        return shared;
+    }
+
+    private final OkHttpClient http;
+    private final RetryPolicy retry;
+    // 每個端點一個衍生 client（newBuilder 會共用 ConnectionPool / Dispatcher）
+    private final Map<String, OkHttpClient> perEndpoint = new ConcurrentHashMap<>();
+    private final Map<String, RetryStats> retryStats = new ConcurrentHashMap<>();
+    private final CircuitBreaker.Config breakerConfig;
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    @Nullable private volatile CircuitBreaker.Listener breakerListener;
+    private final EndpointMetrics metrics;
+
+    CloudFunctionClient(@NonNull OkHttpClient http) {
+        this(http, RetryPolicy.NONE);
+    }
+
+    CloudFunctionClient(@NonNull OkHttpClient http, @NonNull RetryPolicy retry) {
+        this(http, retry, CircuitBreaker.Config.DEFAULT);
+    }
+
+    CloudFunctionClient(@NonNull OkHttpClient http, @NonNull RetryPolicy retry,
+                        @NonNull CircuitBreaker.Config breakerConfig) {
+        this(http, retry, breakerConfig, new EndpointMetrics());
+    }
+
+    CloudFunctionClient(@NonNull OkHttpClient http, @NonNull RetryPolicy retry,
+                        @NonNull CircuitBreaker.Config breakerConfig, @NonNull EndpointMetrics metrics) {
+        this.http = http;
+        this.retry = retry;
+        this.breakerConfig = breakerConfig;
+        this.metrics = metrics;
+    }
+
+    /** 每個端點的延遲 / 位元組 / 狀態碼統計 */
+    @NonNull
+    public EndpointMetrics metrics() { return metrics; }
+
+    /** 一次邏輯呼叫用一把；重試（含 401 後重送）要沿用同一把 */
+    @NonNull
+    public static String newIdempotencyKey() {
+        return UUID.randomUUID().toString();
+    }
+
+    static OkHttpClient buildDefaultHttp() {
+        Dispatcher dispatcher = new Dispatcher();
+        // 所有端點都在同一個 *.a.run.app 網域族群；預設 5 對 Cloud Run 偏少
+        dispatcher.setMaxRequestsPerHost(8);
+        return new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(8, 5, TimeUnit.MINUTES))
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .dispatcher(dispatcher)
+                .connectTimeout(15, TimeUnit.SECONDS)
+                .readTimeout(30, TimeUnit.SECONDS)
+                .writeTimeout(30, TimeUnit.SECONDS)
+                .retryOnConnectionFailure(true)
+                .build();
+    }
+
+    /** 同步 POST JSON；非 2xx 丟 CloudFunctionException（訊息格式同舊版：HTTP code: body） */
+    public String postJson(@NonNull Endpoint ep, @NonNull String idToken, @NonNull String json) throws IOException {
+        return postJson(ep, idToken, json, ep.mutating ? newIdempotencyKey() : null);
+    }
+
+    /** idempotencyKey 由呼叫端指定（例如 outbox 重送要用存下來的那把） */
+    public String postJson(@NonNull Endpoint ep, @NonNull String idToken, @NonNull String json,
+                           @Nullable String idempotencyKey) throws IOException {
+        return postJson(ep, idToken, json, idempotencyKey, ResponseBody::string);
+    }
+
+    /** 讀取 2xx 回應本文的方式（例如直接串流解析，不先轉成整個字串） */
+    public interface BodyReader<T> {
+        T read(@NonNull ResponseBody body) throws IOException;
+    }
+
+    /** 同 postJson，但成功時把回應本文交給 reader 串流讀取；錯誤回應仍整段讀成字串 */
+    public <T> T postJson(@NonNull Endpoint ep, @NonNull String idToken, @NonNull String json,
+                          @Nullable String idempotencyKey, @NonNull BodyReader<T> reader) throws IOException {
+        PendingCall<T> call = newCall(ep, idToken, json, idempotencyKey, reader, null);
+        for (long wait; (wait = call.step()) >= 0; ) {
+            try {
+                retry.sleeper.sleep(wait);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw call.abandon();
+            }
+        }
+        return call.result();
+    }
+
+    /** 收到 401 時換一把新 token（例如 IdTokenProvider.refreshAfterUnauthorized） */
+    public interface TokenRefresher {
+        @NonNull String refresh(@NonNull String rejectedToken) throws Exception;
+    }
+
+    /**
+     * 建立一次邏輯呼叫但先不送出：由呼叫端反覆呼叫 step()，退避等待自己排程
+     * （KeyedSerialExecutor 上的呼叫不要佔著 I/O 執行緒睡覺）。
+     * onUnauthorized 不為 null 時，401 會換新 token 立即重送一次。
+     */
+    @NonNull
+    public <T> PendingCall<T> newCall(@NonNull Endpoint ep, @NonNull String idToken, @NonNull String json,
+                                      @Nullable String idempotencyKey, @NonNull BodyReader<T> reader,
+                                      @Nullable TokenRefresher onUnauthorized) {
+        return new PendingCall<>(ep, idToken, json, idempotencyKey, reader, onUnauthorized);
+    }
+
+    /**
+     * 一次邏輯呼叫（含重試與 401 重送），每次 step() 只送一個請求。
+     * - 會改寫資料、卻沒帶 Idempotency-Key 的呼叫不重試：送出的請求可能已生效，重送會重複套用
+     * - 斷路器 / 延遲統計與重試統計都以整個邏輯呼叫為單位
+     */
+    public final class PendingCall<T> {
+        private final Endpoint ep;
+        private final String json;
+        @Nullable private final String idempotencyKey;
+        private final BodyReader<T> reader;
+        @Nullable private final TokenRefresher onUnauthorized;
+        private final boolean retryable;
+        private final RetryStats stats;
+        private final CircuitBreaker breaker;
+
+        private String idToken;
+        private int attempt;
+        private boolean sent;
+        private boolean refreshedToken;
+        private boolean succeeded;
+        private boolean finished;
+        private long callStartNs;
+        @Nullable private IOException failure;
+        @Nullable private T result;
+
+        private PendingCall(Endpoint ep, String idToken, String json, @Nullable String idempotencyKey,
+                            BodyReader<T> reader, @Nullable TokenRefresher onUnauthorized) {
+            this.ep = ep;
+            this.idToken = idToken;
+            this.json = json;
+            this.idempotencyKey = idempotencyKey;
+            this.reader = reader;
+            this.onUnauthorized = onUnauthorized;
+            this.retryable = !ep.mutating || idempotencyKey != null;
+            this.stats = statsFor(ep);
+            this.breaker = breakerFor(ep.name);
+        }
+
+        /**
+         * 送出一次。回傳 -1：成功（見 result()）；回傳 >= 0：暫時性錯誤，過這麼多毫秒後再呼叫一次。
+         * 不可重試的錯誤（或重試用盡）直接丟出。
+         */
+        public long step() throws IOException {
+            if (finished) throw new IllegalStateException("call already finished: " + ep.name);
+            if (attempt == 0 && !refreshedToken) {
+                stats.calls.incrementAndGet();
+                callStartNs = System.nanoTime();
+            }
+            attempt++;
+            try {
+                long wait = attemptOnce();
+                if (wait < 0) finish();
+                return wait;
+            } catch (IOException | RuntimeException e) {
+                finish();
+                throw e;
+            }
+        }
+
+        /** step() 回傳 -1 之後的回應 */
+        public T result() {
+            if (!succeeded) throw new IllegalStateException("call not finished: " + ep.name);
+            return result;
+        }
+
+        /** 呼叫端放棄（例如等待中被中斷）：結束統計並回傳最後一次的錯誤 */
+        @NonNull
+        public IOException abandon() {
+            if (!finished) finish();
+            return failure != null ? failure : new InterruptedIOException("call abandoned: " + ep.name);
+        }
+
+        private long attemptOnce() throws IOException {
+            if (!breaker.tryAcquire()) {
+                metrics.recordStatus(ep.name, EndpointMetrics.STATUS_CIRCUIT_OPEN);
+                // 重試途中斷開：丟出實際的最後一次錯誤
+                if (failure != null) throw failure;
+                throw new CircuitOpenException(ep.name, breaker.retryInMs());
+            }
+            sent = true;
+            String retryAfter;
+            boolean unauthorized = false;
+            boolean healthy = true; // 伺服器有正常回應（含 4xx / 解析錯誤）
+            long startNs = System.nanoTime();
+            try (Response resp = clientFor(ep).newCall(request()).execute()) {
+                metrics.recordStatus(ep.name, resp.code());
+                ResponseBody body = resp.body();
+                if (resp.isSuccessful()) {
+                    if (body == null) throw new IOException("empty response body");
+                    try {
+                        result = reader.read(body);
+                    } catch (IOException e) {
+                        // 伺服器已正常回應，是本文讀不完 / 解析不了：重送多半一樣，也不算端點故障
+                        throw new ResponseReadException(ep.name, e);
+                    }
+                    succeeded = true;
+                    return -1;
+                }
+                // 先依狀態碼記下端點是否健康，後面不論丟出或重試，finally 都記對斷路器
+                healthy = !isServerTrouble(resp.code());
+                String text = body != null ? body.string() : "";
+                failure = new CloudFunctionException(resp.code(), text);
+                unauthorized = resp.code() == 401;
+                if (!unauthorized && (!retryable || !RetryPolicy.isRetryableStatus(resp.code()))) throw failure;
+                retryAfter = resp.header("Retry-After");
+            } catch (CloudFunctionException | ResponseReadException e) {
+                throw e;
+            } catch (InterruptedIOException e) {
+                healthy = false;
+                metrics.recordStatus(ep.name, EndpointMetrics.STATUS_IO_ERROR);
+                // 逾時屬暫時性；但執行緒被中斷就不要再重試
+                if (!retryable || Thread.currentThread().isInterrupted()) throw e;
+                failure = e;
+                retryAfter = null;
+            } catch (IOException e) {
+                healthy = false;
+                metrics.recordStatus(ep.name, EndpointMetrics.STATUS_IO_ERROR);
+                if (!retryable) throw e;
+                failure = e;
+                retryAfter = null;
+            } finally {
+                if (healthy) breaker.onSuccess((System.nanoTime() - startNs) / 1_000_000L);
+                else breaker.onFailure();
+            }
+
+            if (unauthorized) {
+                // token 被拒：換新 token 立即重送一次（不算退避重試）；沒有換 token 的方式或已換過就丟出
+                if (onUnauthorized == null || refreshedToken) throw failure;
+                refreshedToken = true;
+                attempt--;
+                try {
+                    idToken = onUnauthorized.refresh(idToken);
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException("token refresh failed: " + e.getMessage(), e);
+                }
+                return 0;
+            }
+
+            if (attempt >= retry.maxAttempts) {
+                stats.exhausted.incrementAndGet();
+                throw failure;
+            }
+            stats.retries.incrementAndGet();
+            return retry.delayMs(attempt, retryAfter);
+        }
+
+        private Request request() {
+            Request.Builder rb = new Request.Builder()
+                    .url(ep.url)
+                    .header("Authorization", "Bearer " + idToken)
+                    .post(RequestBody.create(json, JSON));
+            if (idempotencyKey != null) rb.header(IDEMPOTENCY_HEADER, idempotencyKey);
+            return rb.build();
+        }
+
+        private void finish() {
+            finished = true;
+            // 延遲以一次邏輯呼叫計（含重試與退避）；斷路器直接擋下、沒送出的不計
+            if (sent) metrics.recordLatency(ep.name, (System.nanoTime() - callStartNs) / 1_000_000L);
+        }
+    }
+
+    private OkHttpClient clientFor(Endpoint ep) {
+        OkHttpClient c = perEndpoint.get(ep.name);
+        if (c != null) return c;
+        c = http.newBuilder()
+                .connectTimeout(ep.connectTimeoutMs, TimeUnit.MILLISECONDS)
+                .readTimeout(ep.readTimeoutMs, TimeUnit.MILLISECONDS)
+                .eventListener(new ByteCounter(metrics, ep.name))
+                .build();
+        OkHttpClient prev = perEndpoint.putIfAbsent(ep.name, c);
+        return prev != null ? prev : c;
+    }
+
+    /** 實際送出 / 收到的本文位元組（串流讀取的回應也算得到） */
+    private static final class ByteCounter extends EventListener {
+        private final EndpointMetrics metrics;
+        private final String endpoint;
+
+        ByteCounter(EndpointMetrics metrics, String endpoint) {
+            this.metrics = metrics;
+            this.endpoint = endpoint;
+        }
+
+        @Override public void requestBodyEnd(@NonNull Call call, long byteCount) {
+            metrics.addRequestBytes(endpoint, byteCount);
+        }
+
+        @Override public void responseBodyEnd(@NonNull Call call, long byteCount) {
+            metrics.addResponseBytes(endpoint, byteCount);
+        }
+    }
+
+    // ================== 重試統計 ==================
+
+    static final class RetryStats {
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong retries = new AtomicLong();
+        final AtomicLong exhausted = new AtomicLong();
+    }
+
+    private RetryStats statsFor(Endpoint ep) {
+        RetryStats s = retryStats.get(ep.name);
+        if (s != null) return s;
+        RetryStats fresh = new RetryStats();
+        RetryStats prev = retryStats.putIfAbsent(ep.name, fresh);
+        return prev != null ? prev : fresh;
+    }
+
+    /** 某端點累計的重試次數（不含第一次送出） */
+    public long retries(@NonNull String endpointName) {
+        RetryStats s = retryStats.get(endpointName);
+        return s == null ? 0 : s.retries.get();
+    }
+
+    /** 重試用盡仍失敗的呼叫數 */
+    public long exhausted(@NonNull String endpointName) {
+        RetryStats s = retryStats.get(endpointName);
+        return s == null ? 0 : s.exhausted.get();
+    }
+
+    /** 例：createblock calls=12 retries=3 exhausted=0; listblocks ... */
+    @NonNull
+    public String retryStatsLine() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, RetryStats> e : new TreeMap<>(retryStats).entrySet()) {
+            if (sb.length() > 0) sb.append("; ");
+            RetryStats s = e.getValue();
+            sb.append(e.getKey()).append(" calls=").append(s.calls.get())
+                    .append(" retries=").append(s.retries.get())
+                    .append(" exhausted=").append(s.exhausted.get());
+        }
+        return sb.toString();
+    }
+
+    // ================== 斷路器 ==================
+
+    private CircuitBreaker breakerFor(String name) {
+        CircuitBreaker b = breakers.get(name);
+        if (b != null) return b;
+        CircuitBreaker fresh = new CircuitBreaker(name, breakerConfig);
+        fresh.setListener(breakerListener);
+        CircuitBreaker prev = breakers.putIfAbsent(name, fresh);
+        return prev != null ? prev : fresh;
+    }
+
+    /** 斷路器狀態變化的 metrics hook（所有端點共用一個） */
+    public void setBreakerListener(@Nullable CircuitBreaker.Listener l) {
+        breakerListener = l;
+        for (CircuitBreaker b : breakers.values()) b.setListener(l);
+    }
+
+    @NonNull
+    public CircuitBreaker.State breakerState(@NonNull String endpointName) {
+        CircuitBreaker b = breakers.get(endpointName);
+        return b == null ? CircuitBreaker.State.CLOSED : b.state();
+    }
+
+    /** 斷開中（尚未到探測時間）就立即丟出：呼叫端不必先取 token 再被拒 */
+    public void failFastIfOpen(@NonNull String endpointName) throws CircuitOpenException {
+        CircuitBreaker b = breakers.get(endpointName);
+        long wait = b == null ? 0 : b.retryInMs();
+        if (wait > 0) {
+            metrics.recordStatus(endpointName, EndpointMetrics.STATUS_CIRCUIT_OPEN);
+            throw new CircuitOpenException(endpointName, wait);
+        }
+    }
+
+    /** 例：listblocks OPEN opens=1 rejected=4 slow=0; updateblock CLOSED ... */
+    @NonNull
+    public String breakerStatsLine() {
+        StringBuilder sb = new StringBuilder();
+        for (CircuitBreaker b : new TreeMap<>(breakers).values()) {
+            if (sb.length() > 0) sb.append("; ");
+            sb.append(b);
+        }
+        return sb.toString();
+    }
+
+    /** 斷路器斷開時立即失敗（不送出請求）；retryInMs 後會放一個探測請求 */
+    public static class CircuitOpenException extends IOException {
+        public final String endpoint;
+        public final long retryInMs;
+
+        public CircuitOpenException(String endpoint, long retryInMs) {
+            super("circuit open: " + endpoint + " (retry in " + retryInMs + "ms)");
+            this.endpoint = endpoint;
+            this.retryInMs = retryInMs;
+        }
+    }
+
+    /** 後端回非 2xx 時的例外；保留狀態碼供上層判斷（401 / 409 / 423 ...） */
+    /** 5xx / 429 / 408：端點本身有狀況（計入斷路器失敗）；其他 4xx 是請求被拒，端點是健康的 */
+    static boolean isServerTrouble(int code) {
+        return code >= 500 || RetryPolicy.isRetryableStatus(code);
+    }
+
+    /** 2xx 回應的本文讀取 / 解析失敗：不重試，也不計入斷路器失敗 */
+    public static class ResponseReadException extends IOException {
+        public ResponseReadException(String endpoint, IOException cause) {
+            super(endpoint + ": failed to read response: " + cause.getMessage(), cause);
+        }
+    }
+
+    public static class CloudFunctionException extends IOException {
+        public final int code;
+        public final String body;
+
+        public CloudFunctionException(int code, String body) {
+            super("HTTP " + code + ": " + body);
+            this.code = code;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.ld.ainote.net;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cloud Run 端點的呼叫統計（每個端點一份）
+ * - latency：一次邏輯呼叫的總時間（含重試與退避）
+ * - queueWait / tokenWait：排進 repo 執行緒到開始執行、取得 ID token 花的時間
+ * - 請求 / 回應位元組、HTTP 狀態碼次數（0 = 連線失敗或逾時，-1 = 斷路器擋下）
+ * 用 dump() 在 app 內檢視，exportTo() 寫成 JSON 檔供測試機收集。
+ */
+public final class EndpointMetrics {
+
+    public static final int STATUS_IO_ERROR = 0;
+    public static final int STATUS_CIRCUIT_OPEN = -1;
+
+    /** 單一端點的統計 */
+    public static final class Stats {
+        public final LatencyHistogram latency = new LatencyHistogram();
+        public final LatencyHistogram queueWait = new LatencyHistogram();
+        public final LatencyHistogram tokenWait = new LatencyHistogram();
+        final AtomicLong requestBytes = new AtomicLong();
+        final AtomicLong responseBytes = new AtomicLong();
+        private final Map<Integer, AtomicLong> statuses = new ConcurrentHashMap<>();
+
+        public long requestBytes() { return requestBytes.get(); }
+        public long responseBytes() { return responseBytes.get(); }
+
+        public long statusCount(int code) {
+            AtomicLong n = statuses.get(code);
+            return n == null ? 0 : n.get();
+        }
+
+        void countStatus(int code) {
+            AtomicLong n = statuses.get(code);
+            if (n == null) {
+                AtomicLong fresh = new AtomicLong();
+                n = statuses.putIfAbsent(code, fresh);
+                if (n == null) n = fresh;
+            }
+            n.incrementAndGet();
+        }
+
+        Map<Integer, Long> statusSnapshot() {
+            Map<Integer, Long> out = new TreeMap<>();
+            for (Map.Entry<Integer, AtomicLong> e : statuses.entrySet()) out.put(e.getKey(), e.getValue().get());
+            return out;
+        }
+    }
+
+    private final Map<String, Stats> byEndpoint = new ConcurrentHashMap<>();
+
+    @NonNull
+    public Stats of(@NonNull String endpoint) {
+        Stats s = byEndpoint.get(endpoint);
+        if (s != null) return s;
+        Stats fresh = new Stats();
+        Stats prev = byEndpoint.putIfAbsent(endpoint, fresh);
+        return prev != null ? prev : fresh;
+    }
+
+    // ================== 記錄 ==================
+
+    public void recordLatency(@NonNull String endpoint, long ms) { of(endpoint).latency.record(ms); }
+
+    public void recordQueueWait(@NonNull String endpoint, long ms) { of(endpoint).queueWait.record(ms); }
+
+    public void recordTokenWait(@NonNull String endpoint, long ms) { of(endpoint).tokenWait.record(ms); }
+
+    public void recordStatus(@NonNull String endpoint, int code) { of(endpoint).countStatus(code); }
+
+    public void addRequestBytes(@NonNull String endpoint, long bytes) {
+        if (bytes > 0) of(endpoint).requestBytes.addAndGet(bytes);
+    }
+
+    public void addResponseBytes(@NonNull String endpoint, long bytes) {
+        if (bytes > 0) of(endpoint).responseBytes.addAndGet(bytes);
+    }
+
+    public void reset() { byEndpoint.clear(); }
+
+    // ================== 輸出 ==================
+
+    /** 給除錯畫面看的純文字，每個端點一段 */
+    @NonNull
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Stats> e : new TreeMap<>(byEndpoint).entrySet()) {
+            Stats s = e.getValue();
+            sb.append(e.getKey()).append('\n')
+                    .append("  latency   ").append(s.latency).append('\n')
+                    .append("  queueWait ").append(s.queueWait).append('\n')
+                    .append("  tokenWait ").append(s.tokenWait).append('\n')
+                    .append("  bytes     req=").append(s.requestBytes()).append(" resp=").append(s.responseBytes()).append('\n')
+                    .append("  status    ").append(statusText(s.statusSnapshot())).append('\n');
+        }
+        return sb.length() == 0 ? "(尚無呼叫紀錄)\n" : sb.toString();
+    }
+
+    @NonNull
+    public JSONObject toJson() throws JSONException {
+        JSONObject root = new JSONObject();
+        for (Map.Entry<String, Stats> e : new TreeMap<>(byEndpoint).entrySet()) {
+            Stats s = e.getValue();
+            JSONObject o = new JSONObject();
+            o.put("latencyMs", histogramJson(s.latency));
+            o.put("queueWaitMs", histogramJson(s.queueWait));
+            o.put("tokenWaitMs", histogramJson(s.tokenWait));
+            o.put("requestBytes", s.requestBytes());
+            o.put("responseBytes", s.responseBytes());
+            JSONObject st = new JSONObject();
+            for (Map.Entry<Integer, Long> c : s.statusSnapshot().entrySet()) st.put(statusName(c.getKey()), c.getValue());
+            o.put("status", st);
+            root.put(e.getKey(), o);
+        }
+        return root;
+    }
+
+    /** 寫成 dir/endpoint-metrics-yyyyMMdd-HHmmss.json；extra 會一起寫進去（例如重試 / 斷路器統計） */
+    @NonNull
+    public File exportTo(@NonNull File dir, @NonNull Map<String, String> extra) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) throw new IOException("無法建立目錄：" + dir);
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ROOT).format(new Date());
+        File out = new File(dir, "endpoint-metrics-" + stamp + ".json");
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(out), StandardCharsets.UTF_8)) {
+            JSONObject root = new JSONObject();
+            root.put("exportedAt", System.currentTimeMillis());
+            root.put("endpoints", toJson());
+            for (Map.Entry<String, String> e : extra.entrySet()) root.put(e.getKey(), e.getValue());
+            w.write(root.toString(2));
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        return out;
+    }
+
+    private static JSONObject histogramJson(LatencyHistogram h) throws JSONException {
+        JSONObject o = new JSONObject();
+        o.put("count", h.count());
+        o.put("p50", h.percentileMs(0.50));
+        o.put("p95", h.percentileMs(0.95));
+        o.put("p99", h.percentileMs(0.99));
+        o.put("max", h.maxMs());
+        o.put("mean", Math.round(h.meanMs() * 10) / 10.0);
+        return o;
+    }
+
+    private static String statusText(Map<Integer, Long> statuses) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Integer, Long> e : statuses.entrySet()) {
+            if (sb.length() > 0) sb.append(' ');
+            sb.append(statusName(e.getKey())).append('=').append(e.getValue());
+        }
+        return sb.length() == 0 ? "-" : sb.toString();
+    }
+
+    private static String statusName(int code) {
+        if (code == STATUS_IO_ERROR) return "io_error";
+        if (code == STATUS_CIRCUIT_OPEN) return "circuit_open";
+        return String.valueOf(code);
+    }
+}
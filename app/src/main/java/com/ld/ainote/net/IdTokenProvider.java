@@ -0,0 +1,202 @@
+package com.ld.ainote.net;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
+import com.google.firebase.auth.GetTokenResult;
+
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 全程序共用的 Firebase ID Token 快取
+ * - 依 token 的 exp 提前 5 分鐘更新，不再每次呼叫都 getIdToken(true)
+ * - 同時間多個呼叫端只會有一個更新請求，其他人等同一個結果
+ * - 只有後端回 401 時才強制刷新；強制刷新不會併入先前的一般更新（那個結果可能就是被拒絕的 token）
+ */
+public final class IdTokenProvider {
+
+    /** 距離過期少於此時間就視為需要更新 */
+    private static final long REFRESH_AHEAD_MS = 5 * 60 * 1000L;
+
+    /** 取得 token 的來源（預設走 FirebaseAuth；抽出來方便替換） */
+    interface Fetcher {
+        @Nullable String currentUid();
+        @NonNull Token fetch(boolean forceRefresh) throws Exception;
+    }
+
+    static final class Token {
+        final String value;
+        final long expiresAtMs;
+        final String uid;
+
+        Token(String value, long expiresAtMs, String uid) {
+            this.value = value;
+            this.expiresAtMs = expiresAtMs;
+            this.uid = uid;
+        }
+    }
+
+    private static volatile IdTokenProvider shared;
+
+    public static IdTokenProvider get() {
+        if (shared == null) {
+            synchronized (IdTokenProvider.class) {
+                if (shared == null) shared = new IdTokenProvider(new FirebaseFetcher());
+            }
+        }
+        return shared;
+    }
+
+    private final Fetcher fetcher;
+    private final Object lock = new Object();
+    private Token cached;
+    private long cachedSeq;                     // cached 來自第幾次 fetch；較舊的結果不能蓋掉較新的
+    private CompletableFuture<Token> inFlight;
+    private boolean inFlightForced;
+    private long fetchSeq;
+
+    // 統計
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong forcedRefreshes = new AtomicLong();
+    private final AtomicLong joinedWaits = new AtomicLong();
+
+    IdTokenProvider(@NonNull Fetcher fetcher) {
+        this.fetcher = fetcher;
+    }
+
+    /** 取得可用的 ID Token（阻塞；請在背景執行緒呼叫） */
+    @NonNull
+    public String getToken() throws Exception {
+        return obtain(false);
+    }
+
+    /**
+     * 後端回 401 後呼叫：作廢被拒絕的 token 並強制刷新。
+     * 若其他執行緒已換過新 token，直接回傳新的，不再重複刷新。
+     */
+    @NonNull
+    public String refreshAfterUnauthorized(@Nullable String rejectedToken) throws Exception {
+        synchronized (lock) {
+            if (cached != null && rejectedToken != null && !rejectedToken.equals(cached.value)
+                    && isFresh(cached, fetcher.currentUid())) {
+                hits.incrementAndGet();
+                return cached.value;
+            }
+            cached = null;
+        }
+        return obtain(true);
+    }
+
+    /** 登出或切換帳號時呼叫 */
+    public void invalidate() {
+        synchronized (lock) { cached = null; }
+    }
+
+    private String obtain(boolean force) throws Exception {
+        CompletableFuture<Token> future;
+        boolean owner = false;
+        long seq = 0;
+        synchronized (lock) {
+            String uid = fetcher.currentUid();
+            if (uid == null) throw new IllegalStateException("尚未登入");
+            if (!force && isFresh(cached, uid)) {
+                hits.incrementAndGet();
+                return cached.value;
+            }
+            // 一般呼叫可以等任何進行中的更新；強制刷新只能等另一個強制刷新
+            if (inFlight != null && (!force || inFlightForced)) {
+                joinedWaits.incrementAndGet();
+                future = inFlight;
+            } else {
+                future = new CompletableFuture<>();
+                inFlight = future;
+                inFlightForced = force;
+                seq = ++fetchSeq;
+                owner = true;
+                if (force) forcedRefreshes.incrementAndGet(); else refreshes.incrementAndGet();
+            }
+        }
+
+        if (owner) {
+            try {
+                Token t = fetcher.fetch(force);
+                synchronized (lock) {
+                    if (seq > cachedSeq) {
+                        cached = t;
+                        cachedSeq = seq;
+                    }
+                    if (inFlight == future) inFlight = null;
+                }
+                future.complete(t);
+            } catch (Exception e) {
+                synchronized (lock) { if (inFlight == future) inFlight = null; }
+                future.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        try {
+            return future.get().value;
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof Exception) throw (Exception) c;
+            throw e;
+        }
+    }
+
+    private static boolean isFresh(@Nullable Token t, @Nullable String uid) {
+        return t != null
+                && t.uid.equals(uid)
+                && System.currentTimeMillis() < t.expiresAtMs - REFRESH_AHEAD_MS;
+    }
+
+    // ================== 統計 ==================
+
+    public long hits() { return hits.get(); }
+    public long refreshes() { return refreshes.get(); }
+    public long forcedRefreshes() { return forcedRefreshes.get(); }
+    public long joinedWaits() { return joinedWaits.get(); }
+
+    /** 快取命中率（0~1）；等待別人刷新的呼叫不算命中 */
+    public double hitRate() {
+        long h = hits.get();
+        long total = h + refreshes.get() + forcedRefreshes.get() + joinedWaits.get();
+        return total == 0 ? 0d : (double) h / total;
+    }
+
+    @NonNull
+    public String statsLine() {
+        return "token hits=" + hits() + " refreshes=" + refreshes()
+                + " forced=" + forcedRefreshes() + " joined=" + joinedWaits()
+                + " hitRate=" + String.format(Locale.ROOT, "%.2f", hitRate());
+    }
+
+    // ================== FirebaseAuth 來源 ==================
+
+    private static class FirebaseFetcher implements Fetcher {
+        @Nullable @Override
+        public String currentUid() {
+            FirebaseUser u = FirebaseAuth.getInstance().getCurrentUser();
+            return u == null ? null : u.getUid();
+        }
+
+        @NonNull @Override
+        public Token fetch(boolean forceRefresh) throws Exception {
+            FirebaseUser u = FirebaseAuth.getInstance().getCurrentUser();
+            if (u == null) throw new IllegalStateException("尚未登入");
+            // 非強制時 Firebase SDK 本身也會用快取；過期才會真的打網路
+            GetTokenResult r = Tasks.await(u.getIdToken(forceRefresh));
+            String token = r.getToken();
+            if (token == null || token.isEmpty()) throw new IllegalStateException("取得 ID Token 失敗");
+            long expMs = r.getExpirationTimestamp() * 1000L;
+            return new Token(token, expMs, u.getUid());
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.ld.ainote.net;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * 固定桶的毫秒直方圖（約 1-2-3-5 等比刻度，1ms ~ 60s）
+ * - 記錄 O(1)、不保留樣本；百分位回傳所在桶的上界（超過最後一桶回傳觀測最大值）
+ */
+public final class LatencyHistogram {
+
+    static final long[] BOUNDS_MS = {
+            1, 2, 3, 5, 7, 10, 15, 20, 30, 50, 75, 100, 150, 200, 300, 500, 750,
+            1000, 1500, 2000, 3000, 5000, 7500, 10000, 15000, 20000, 30000, 60000
+    };
+
+    private final long[] counts = new long[BOUNDS_MS.length + 1];
+    private long count;
+    private long sumMs;
+    private long maxMs;
+
+    public synchronized void record(long ms) {
+        if (ms < 0) ms = 0;
+        int i = 0;
+        while (i < BOUNDS_MS.length && ms > BOUNDS_MS[i]) i++;
+        counts[i]++;
+        count++;
+        sumMs += ms;
+        if (ms > maxMs) maxMs = ms;
+    }
+
+    public synchronized long count() { return count; }
+
+    public synchronized long maxMs() { return maxMs; }
+
+    public synchronized double meanMs() { return count == 0 ? 0 : (double) sumMs / count; }
+
+    /** p 介於 0~1；沒有樣本回 0 */
+    public synchronized long percentileMs(double p) {
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(p * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return i < BOUNDS_MS.length ? Math.min(BOUNDS_MS[i], maxMs) : maxMs;
+        }
+        return maxMs;
+    }
+
+    /** 例：n=42 p50=150 p95=750 p99=1500 max=1320 */
+    @NonNull @Override
+    public synchronized String toString() {
+        return String.format(Locale.ROOT, "n=%d p50=%d p95=%d p99=%d max=%d",
+                count, percentileMs(0.50), percentileMs(0.95), percentileMs(0.99), maxMs);
+    }
+}
@@ -0,0 +1,32 @@
+package com.ld.ainote.net;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONObject;
+
+/**
+ * AiService 背後實際產生文字的模型（皆在背景執行緒呼叫、會阻塞）
+ * - OpenAiClient：正式版，呼叫 OpenAI chat/completions
+ * - LocalLlmBackend：本機假模型，可設定延遲與串流速度；離線壓測 / CI 量測用
+ */
+public interface LlmBackend {
+
+    /** 串流中收到的每一段文字；在背景執行緒回呼 */
+    interface StreamListener {
+        void onDelta(@NonNull String delta);
+    }
+
+    /** 模型名稱（也是 AiResultCache key 的一部分，換模型不會拿到舊結果） */
+    @NonNull String model();
+
+    /** 非串流：回傳完整內容（已 trim）；cancel 觸發時丟 CancellationException */
+    @NonNull
+    String complete(@NonNull String prompt, @Nullable JSONObject responseFormat,
+                    @Nullable CancelToken cancel) throws Exception;
+
+    /** 串流：每收到一段就回呼 listener；結束時回傳完整內容（已 trim） */
+    @NonNull
+    String stream(@NonNull String prompt, @NonNull StreamListener listener,
+                  @Nullable JSONObject responseFormat, @Nullable CancelToken cancel) throws Exception;
+}
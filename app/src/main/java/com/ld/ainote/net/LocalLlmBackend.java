@@ -0,0 +1,172 @@
+package com.ld.ainote.net;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 本機假模型（不連網）：同樣的 prompt 一定得到同樣的輸出，延遲與串流速度可設定
+ * - 出題：有 response_format 時輸出 {questions:[...]} JSON，否則輸出 Q1: / 【答案】 文字格式；題數取自 prompt 的「出 N 題」
+ * - 其他任務：把筆記內容前幾行整理成條列
+ * - 延遲：firstTokenMs 後送出第一段，之後每 chunkChars 個字等 chunkMs；非串流等同整段送完才回傳
+ */
+public final class LocalLlmBackend implements LlmBackend {
+
+    public static final String MODEL = "local-mock";
+
+    private static final Pattern QUIZ_COUNT = Pattern.compile("出 (\\d+) 題");
+    private static final String[] CONTENT_HEADERS = { "【筆記內容】\n", "【段落內容】\n" };
+    private static final int SUMMARY_LINES = 5;
+
+    private final long firstTokenMs;
+    private final long chunkMs;
+    private final int chunkChars;
+    private final AtomicInteger calls = new AtomicInteger();
+
+    public LocalLlmBackend(long firstTokenMs, long chunkMs, int chunkChars) {
+        this.firstTokenMs = Math.max(0, firstTokenMs);
+        this.chunkMs = Math.max(0, chunkMs);
+        this.chunkChars = Math.max(1, chunkChars);
+    }
+
+    /** 接近 gpt-4o-mini 手感的預設值：首字約 400ms，之後每 8 字 30ms */
+    @NonNull
+    public static LocalLlmBackend realistic() {
+        return new LocalLlmBackend(400, 30, 8);
+    }
+
+    @NonNull @Override
+    public String model() { return MODEL; }
+
+    /** 到目前為止被呼叫幾次（complete + stream） */
+    public int calls() { return calls.get(); }
+
+    @NonNull @Override
+    public String complete(@NonNull String prompt, @Nullable JSONObject responseFormat,
+                           @Nullable CancelToken cancel) throws Exception {
+        calls.incrementAndGet();
+        String out = respond(prompt, responseFormat);
+        CountDownLatch cancelled = watch(cancel);
+        pause(firstTokenMs + chunkMs * chunkCount(out), cancelled);
+        return out.trim();
+    }
+
+    @NonNull @Override
+    public String stream(@NonNull String prompt, @NonNull StreamListener listener,
+                         @Nullable JSONObject responseFormat, @Nullable CancelToken cancel) throws Exception {
+        calls.incrementAndGet();
+        String out = respond(prompt, responseFormat);
+        CountDownLatch cancelled = watch(cancel);
+        pause(firstTokenMs, cancelled);
+        for (int i = 0; i < out.length(); i += chunkChars) {
+            if (i > 0) pause(chunkMs, cancelled);
+            listener.onDelta(out.substring(i, Math.min(out.length(), i + chunkChars)));
+        }
+        return out.trim();
+    }
+
+    private int chunkCount(String out) {
+        return Math.max(0, (out.length() + chunkChars - 1) / chunkChars - 1);
+    }
+
+    private static CountDownLatch watch(@Nullable CancelToken cancel) {
+        CountDownLatch latch = new CountDownLatch(1);
+        if (cancel != null) cancel.onCancel(latch::countDown);
+        return latch;
+    }
+
+    private static void pause(long ms, CountDownLatch cancelled) throws InterruptedException {
+        boolean hit = ms <= 0 ? cancelled.getCount() == 0 : cancelled.await(ms, TimeUnit.MILLISECONDS);
+        if (hit) throw new CancellationException("AI 請求已取消");
+    }
+
+    // ================== 產生內容 ==================
+
+    @NonNull
+    static String respond(@NonNull String prompt, @Nullable JSONObject responseFormat) {
+        List<String> lines = contentLines(prompt);
+        int seed = prompt.hashCode() & 0x7fffffff;
+        if (responseFormat != null) return jsonQuiz(quizCount(prompt), lines, seed);
+        if (prompt.startsWith("你是出題老師") || prompt.contains("【出題規則】")) {
+            return textQuiz(quizCount(prompt), lines, seed);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < Math.min(SUMMARY_LINES, lines.size()); i++) {
+            sb.append("- ").append(clip(lines.get(i), 40)).append('\n');
+        }
+        return sb.length() == 0 ? "- （沒有內容）" : sb.toString();
+    }
+
+    private static int quizCount(String prompt) {
+        Matcher m = QUIZ_COUNT.matcher(prompt);
+        return m.find() ? Math.max(1, Integer.parseInt(m.group(1))) : 5;
+    }
+
+    /** 筆記內容區塊裡的非空白、非標頭行 */
+    private static List<String> contentLines(String prompt) {
+        int at = -1;
+        for (String h : CONTENT_HEADERS) {
+            int i = prompt.lastIndexOf(h);
+            if (i >= 0) at = Math.max(at, i + h.length());
+        }
+        List<String> out = new ArrayList<>();
+        if (at < 0) return out;
+        for (String line : prompt.substring(at).split("\n")) {
+            String t = line.trim();
+            if (t.isEmpty() || t.startsWith("【") || t.startsWith("《")) continue;
+            out.add(t);
+        }
+        return out;
+    }
+
+    private static String topic(List<String> lines, int i) {
+        return lines.isEmpty() ? "第 " + (i + 1) + " 個重點" : clip(lines.get(i % lines.size()), 20);
+    }
+
+    private static String clip(String s, int max) {
+        return s.length() <= max ? s : s.substring(0, max) + "…";
+    }
+
+    private static String jsonQuiz(int n, List<String> lines, int seed) {
+        try {
+            JSONArray qs = new JSONArray();
+            for (int i = 0; i < n; i++) {
+                JSONArray opts = new JSONArray();
+                for (int j = 0; j < 4; j++) opts.put("敘述 " + (i + 1) + "-" + (j + 1));
+                qs.put(new JSONObject()
+                        .put("stem", "關於「" + topic(lines, i) + "」，下列何者正確？")
+                        .put("options", opts)
+                        .put("answer", String.valueOf((char) ('A' + (seed + i) % 4))));
+            }
+            return new JSONObject().put("questions", qs).toString();
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String textQuiz(int n, List<String> lines, int seed) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            sb.append("Q").append(i + 1).append(": 關於「").append(topic(lines, i)).append("」，下列何者正確？\n");
+            for (int j = 0; j < 4; j++) {
+                sb.append((char) ('A' + j)).append(". 敘述 ").append(i + 1).append('-').append(j + 1).append('\n');
+            }
+            sb.append('\n');
+        }
+        sb.append("【答案】\n");
+        for (int i = 0; i < n; i++) sb.append(i + 1).append(". ").append((char) ('A' + (seed + i) % 4)).append('\n');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,203 @@
+package com.ld.ainote.net;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.ld.ainote.utils.ChapterChunker;
+import com.ld.ainote.utils.TokenEstimator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 大量章節的整理 / 融會貫通（map-reduce）
+ * - 選取內容在 singleCallTokens 以內：照舊一次呼叫
+ * - 超過：依【大類別】/《章節》切成 chunkTokens 以內的段落，同時最多 parallel 段各自摘要（map），
+ *   再把各段重點合併成最後的答案（reduce，串流輸出）；合併內容仍太大就先分組再摘要一輪
+ * - 每段摘要依段落內容快取（AiResultCache），沒改過的章節下次直接重用
+ */
+public final class MapReduceSummarizer {
+
+    private static final String TAG = "MapReduceSummarizer";
+
+    static final int DEFAULT_SINGLE_CALL_TOKENS = 6000;
+    static final int DEFAULT_CHUNK_TOKENS = 2500;
+    static final int DEFAULT_PARALLEL = 2; // AiScheduler worker 的一半，其餘留給互動請求
+
+    static final String REDUCE_INTRO = "（以下為各章節已整理好的重點，請據此完成任務）\n\n";
+
+    /** 進度（背景執行緒回呼）；stage：map = 分段摘要、reduce = 合併 */
+    public interface Progress {
+        void onProgress(@NonNull String stage, int done, int total);
+    }
+
+    /** 實際呼叫 AI 的部分；正式版見 AiService，測試可換成假的 */
+    interface Backend {
+        /** 單段摘要（map / 中間層 reduce） */
+        void part(@NonNull String text, @Nullable CancelToken cancel, @NonNull AiService.Callback cb);
+
+        /** 最後的答案（串流） */
+        void answer(@NonNull String task, @NonNull String text, int n, @Nullable Integer age,
+                    @Nullable String sources, @Nullable CancelToken cancel, @NonNull AiService.StreamCallback cb);
+    }
+
+    private final Backend backend;
+    private final int singleCallTokens;
+    private final int chunkTokens;
+    private final int parallel;
+
+    MapReduceSummarizer(@NonNull Backend backend, int singleCallTokens, int chunkTokens, int parallel) {
+        this.backend = backend;
+        this.singleCallTokens = singleCallTokens;
+        this.chunkTokens = Math.min(chunkTokens, singleCallTokens);
+        this.parallel = Math.max(1, parallel);
+    }
+
+    public void run(@NonNull String task, @NonNull String combined, int n, @Nullable Integer age,
+                    @Nullable String sources, @Nullable CancelToken cancel,
+                    @NonNull AiService.StreamCallback cb, @Nullable Progress progress) {
+        if (TokenEstimator.estimate(combined) <= singleCallTokens) {
+            backend.answer(task, combined, n, age, sources, cancel, cb);
+            return;
+        }
+
+        List<ChapterChunker.Chunk> chunks = ChapterChunker.split(combined, chunkTokens);
+        if (chunks.isEmpty()) {
+            // 只有類別標題、沒有章節內文：切不出段落，照舊一次呼叫
+            backend.answer(task, combined, n, age, sources, cancel, cb);
+            return;
+        }
+        List<String> labels = new ArrayList<>();
+        List<String> texts = new ArrayList<>();
+        for (ChapterChunker.Chunk c : chunks) {
+            labels.add(c.label());
+            texts.add(c.text);
+        }
+        Log.d(TAG, task + ": " + TokenEstimator.estimate(combined) + " tokens → " + chunks.size() + " chunks");
+
+        // 出錯時停掉其他還沒完成的段落；外部取消也一起取消
+        CancelToken inner = new CancelToken();
+        if (cancel != null) cancel.onCancel(inner::cancel);
+        Consumer<Exception> fail = e -> {
+            inner.cancel();
+            cb.onError(e);
+        };
+
+        new Stage("map", texts, inner, progress, partials ->
+                reduce(task, labels, partials, n, age, sources, inner, cb, progress, fail), fail).start();
+    }
+
+    private void reduce(String task, List<String> labels, List<String> partials, int n, @Nullable Integer age,
+                        @Nullable String sources, CancelToken token, AiService.StreamCallback cb,
+                        @Nullable Progress progress, Consumer<Exception> fail) {
+        String joined = joinPartials(labels, partials);
+        if (partials.size() <= 1 || TokenEstimator.estimate(joined) <= singleCallTokens) {
+            backend.answer(task, REDUCE_INTRO + joined, n, age, sources, token, cb);
+            return;
+        }
+
+        // 合併後仍太大：相鄰的部分結果分組，每組再摘要一次（每組至少 2 段，保證會收斂）
+        List<String> groupLabels = new ArrayList<>();
+        List<String> groupTexts = new ArrayList<>();
+        int i = 0;
+        while (i < partials.size()) {
+            int j = i;
+            StringBuilder sb = new StringBuilder();
+            while (j < partials.size()) {
+                String piece = ChapterChunker.CHAPTER + labels.get(j) + "\n" + partials.get(j) + "\n\n";
+                if (j - i >= 2 && TokenEstimator.estimate(sb) + TokenEstimator.estimate(piece) > singleCallTokens) break;
+                sb.append(piece);
+                j++;
+            }
+            groupLabels.add(j - i == 1 ? labels.get(i) : labels.get(i) + " ～ " + labels.get(j - 1));
+            groupTexts.add(sb.toString().trim());
+            i = j;
+        }
+        new Stage("reduce", groupTexts, token, progress, merged ->
+                reduce(task, groupLabels, merged, n, age, sources, token, cb, progress, fail), fail).start();
+    }
+
+    static String joinPartials(List<String> labels, List<String> partials) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < partials.size(); i++) {
+            sb.append(ChapterChunker.CHAPTER).append(labels.get(i)).append('\n')
+                    .append(partials.get(i).trim()).append("\n\n");
+        }
+        return sb.toString().trim();
+    }
+
+    // ================== 有上限的平行摘要 ==================
+
+    /** 同時最多 parallel 段在跑；一段完成才送下一段，不會一次把整批塞進 AiScheduler 佇列 */
+    private final class Stage {
+        final String name;
+        final List<String> inputs;
+        final String[] results;
+        final CancelToken token;
+        @Nullable final Progress progress;
+        final Consumer<List<String>> onDone;
+        final Consumer<Exception> onError;
+
+        // 以下受 this 保護
+        int next;
+        int done;
+        boolean failed;
+
+        Stage(String name, List<String> inputs, CancelToken token, @Nullable Progress progress,
+              Consumer<List<String>> onDone, Consumer<Exception> onError) {
+            this.name = name;
+            this.inputs = inputs;
+            this.results = new String[inputs.size()];
+            this.token = token;
+            this.progress = progress;
+            this.onDone = onDone;
+            this.onError = onError;
+        }
+
+        void start() {
+            if (progress != null) progress.onProgress(name, 0, inputs.size());
+            if (inputs.isEmpty()) { // 沒有段落就不會有回呼：直接完成
+                onDone.accept(new ArrayList<>());
+                return;
+            }
+            for (int k = 0; k < parallel; k++) pump();
+        }
+
+        private void pump() {
+            int idx;
+            synchronized (this) {
+                if (failed || next >= inputs.size()) return;
+                idx = next++;
+            }
+            backend.part(inputs.get(idx), token, new AiService.Callback() {
+                @Override public void onSuccess(String out) { completed(idx, out); }
+                @Override public void onError(Exception e) { failed(e); }
+            });
+        }
+
+        private void completed(int idx, String out) {
+            int d;
+            synchronized (this) {
+                if (failed) return;
+                results[idx] = out == null ? "" : out;
+                d = ++done;
+            }
+            if (progress != null) progress.onProgress(name, d, inputs.size());
+            if (d == inputs.size()) onDone.accept(Arrays.asList(results));
+            else pump();
+        }
+
+        private void failed(Exception e) {
+            synchronized (this) {
+                if (failed) return;
+                failed = true;
+            }
+            Log.e(TAG, name + " failed", e);
+            onError.accept(e);
+        }
+    }
+}
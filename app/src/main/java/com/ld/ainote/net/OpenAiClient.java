@@ -0,0 +1,225 @@
+package com.ld.ainote.net;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CancellationException;
+
+/**
+ * OpenAI chat/completions 呼叫（LlmBackend 的正式實作，AiService 使用）
+ * - complete()：等整段回應再回傳（原本 callOpenAI 的寫法）
+ * - stream()：stream=true，逐段讀 server-sent events，邊收邊把文字交給 listener
+ * - responseFormat 不為 null 時帶 response_format（例如 json_schema 結構化輸出）
+ */
+public final class OpenAiClient implements LlmBackend {
+
+    private static final String TAG = "AiService";
+
+    public static final String DEFAULT_URL = "https://api.openai.com/v1/chat/completions";
+    public static final String DEFAULT_MODEL = "gpt-4o-mini";
+
+    private final String url;
+    private final String apiKey;
+    private final String model;
+
+    public OpenAiClient(@NonNull String url, @NonNull String apiKey, @NonNull String model) {
+        this.url = url;
+        this.apiKey = apiKey;
+        this.model = model;
+    }
+
+    @NonNull @Override public String model() { return model; }
+
+    /** 非串流：回傳完整內容（已 trim） */
+    @NonNull
+    public String complete(@NonNull String prompt) throws Exception {
+        return complete(prompt, null);
+    }
+
+    /** cancel 觸發時中斷連線並丟 CancellationException */
+    @NonNull
+    public String complete(@NonNull String prompt, @Nullable CancelToken cancel) throws Exception {
+        return complete(prompt, null, cancel);
+    }
+
+    @NonNull @Override
+    public String complete(@NonNull String prompt, @Nullable JSONObject responseFormat,
+                           @Nullable CancelToken cancel) throws Exception {
+        try {
+            return doComplete(prompt, responseFormat, cancel);
+        } catch (Exception e) {
+            throw cancelled(cancel, e);
+        }
+    }
+
+    private String doComplete(String prompt, @Nullable JSONObject responseFormat,
+                              @Nullable CancelToken cancel) throws Exception {
+        HttpURLConnection conn = open(buildRequest(prompt, false, responseFormat), cancel);
+        int code = conn.getResponseCode();
+        if (code < 200 || code >= 300) throw httpError(conn, code);
+
+        String body;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
+            StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = br.readLine()) != null) sb.append(line);
+            body = sb.toString();
+        }
+
+        JSONObject json = new JSONObject(body);
+        String out = json.getJSONArray("choices")
+                .getJSONObject(0)
+                .getJSONObject("message")
+                .getString("content");
+        return out.trim();
+    }
+
+    /** 串流：每收到一段 delta 就回呼；結束時回傳完整內容（已 trim） */
+    @NonNull
+    public String stream(@NonNull String prompt, @NonNull StreamListener listener) throws Exception {
+        return stream(prompt, listener, null);
+    }
+
+    /** cancel 觸發時中斷連線並丟 CancellationException（已收到的片段不會重送） */
+    @NonNull
+    public String stream(@NonNull String prompt, @NonNull StreamListener listener,
+                         @Nullable CancelToken cancel) throws Exception {
+        return stream(prompt, listener, null, cancel);
+    }
+
+    @NonNull @Override
+    public String stream(@NonNull String prompt, @NonNull StreamListener listener,
+                         @Nullable JSONObject responseFormat, @Nullable CancelToken cancel) throws Exception {
+        try {
+            return doStream(prompt, listener, responseFormat, cancel);
+        } catch (Exception e) {
+            throw cancelled(cancel, e);
+        }
+    }
+
+    private String doStream(String prompt, StreamListener listener, @Nullable JSONObject responseFormat,
+                            @Nullable CancelToken cancel) throws Exception {
+        HttpURLConnection conn = open(buildRequest(prompt, true, responseFormat), cancel);
+        int code = conn.getResponseCode();
+        if (code < 200 || code >= 300) throw httpError(conn, code);
+
+        StringBuilder all = new StringBuilder();
+        try (InputStream is = conn.getInputStream()) {
+            readEvents(is, delta -> {
+                all.append(delta);
+                listener.onDelta(delta);
+            });
+        } finally {
+            conn.disconnect();
+        }
+        return all.toString().trim();
+    }
+
+    // ================== SSE ==================
+
+    /**
+     * 讀 text/event-stream：事件以空行分隔，data: 可多行；
+     * 取 choices[0].delta.content，遇到 data: [DONE] 結束。
+     * 連線在 [DONE] 前就斷掉時丟 IOException（避免把半截結果當成完整答案）。
+     */
+    static void readEvents(@NonNull InputStream is, @NonNull StreamListener listener) throws Exception {
+        BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+        StringBuilder data = new StringBuilder();
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (line.isEmpty()) {
+                if (data.length() > 0 && dispatch(data.toString(), listener)) return;
+                data.setLength(0);
+            } else if (line.startsWith("data:")) {
+                if (data.length() > 0) data.append('\n');
+                data.append(line.startsWith("data: ") ? line.substring(6) : line.substring(5));
+            }
+            // 其他欄位（event: / id: / retry: / 註解 :）不需要
+        }
+        if (data.length() > 0 && dispatch(data.toString(), listener)) return;
+        throw new IOException("stream ended before [DONE]");
+    }
+
+    /** 回傳 true 表示串流結束 */
+    private static boolean dispatch(String data, StreamListener listener) throws Exception {
+        if ("[DONE]".equals(data.trim())) return true;
+        JSONObject ev = new JSONObject(data);
+        JSONObject err = ev.optJSONObject("error");
+        if (err != null) throw new IOException("OpenAI stream error: " + err.optString("message", err.toString()));
+        JSONArray choices = ev.optJSONArray("choices");
+        if (choices == null || choices.length() == 0) return false;
+        JSONObject delta = choices.getJSONObject(0).optJSONObject("delta");
+        if (delta == null) return false;
+        String content = delta.optString("content", "");
+        if (!content.isEmpty() && !delta.isNull("content")) listener.onDelta(content);
+        return false;
+    }
+
+    // ================== HTTP ==================
+
+    private JSONObject buildRequest(String prompt, boolean stream, @Nullable JSONObject responseFormat) throws Exception {
+        JSONObject req = new JSONObject();
+        req.put("model", model);
+
+        JSONArray messages = new JSONArray();
+        messages.put(new JSONObject().put("role", "system").put("content", "你是一位中文學習助理。"));
+        messages.put(new JSONObject().put("role", "user").put("content", prompt));
+        req.put("messages", messages);
+        req.put("temperature", 0.7);
+        if (stream) req.put("stream", true);
+        if (responseFormat != null) req.put("response_format", responseFormat);
+        return req;
+    }
+
+    /** 已取消時把（斷線造成的）任何錯誤統一成 CancellationException */
+    private static Exception cancelled(@Nullable CancelToken cancel, Exception e) {
+        if (cancel == null || !cancel.isCancelled() || e instanceof CancellationException) return e;
+        CancellationException ce = new CancellationException("AI 請求已取消");
+        ce.initCause(e);
+        return ce;
+    }
+
+    private HttpURLConnection open(JSONObject req, @Nullable CancelToken cancel) throws IOException {
+        if (cancel != null && cancel.isCancelled()) throw new CancellationException("AI 請求已取消");
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        if (cancel != null) cancel.onCancel(conn::disconnect);
+        conn.setRequestMethod("POST");
+        conn.setReadTimeout(60000);
+        conn.setConnectTimeout(60000);
+        conn.setRequestProperty("Content-Type", "application/json");
+        conn.setRequestProperty("Authorization", "Bearer " + apiKey);
+        conn.setDoOutput(true);
+        try (OutputStream os = conn.getOutputStream()) {
+            os.write(req.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return conn;
+    }
+
+    private static IOException httpError(HttpURLConnection conn, int code) {
+        String body = "";
+        InputStream es = conn.getErrorStream();
+        if (es != null) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(es, StandardCharsets.UTF_8))) {
+                StringBuilder sb = new StringBuilder();
+                String line;
+                while ((line = br.readLine()) != null) sb.append(line);
+                body = sb.toString();
+            } catch (IOException ignore) {}
+        }
+        Log.e(TAG, "OpenAI error: " + body);
+        return new IOException("OpenAI HTTP " + code);
+    }
+}
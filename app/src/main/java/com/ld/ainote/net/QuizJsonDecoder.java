@@ -0,0 +1,195 @@
+package com.ld.ainote.net;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.ld.ainote.models.QuizItem;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 結構化出題 {questions:[{stem, options[4], answer}]} 的解碼與驗證
+ * - feed()：串流中邊收邊解，questions 陣列裡的物件一完整就交出，不必等整段 JSON
+ * - 容忍 ```json 圍欄、前後多餘文字、根層直接是陣列
+ * - 小問題就地修正（選項前的「A.」、答案寫成「B. …」或 0~3、答案寫成選項原文）；
+ *   修不了的（缺題幹、選項不是 4 個、答案不在 A~D）回報原因，呼叫端只重新要這幾題
+ */
+public final class QuizJsonDecoder {
+
+    /** 一題的解碼結果：item 與 problem 恰有一個不為 null */
+    public static final class Decoded {
+        @Nullable public final QuizItem item;
+        @Nullable public final String problem;
+
+        Decoded(@Nullable QuizItem item, @Nullable String problem) {
+            this.item = item;
+            this.problem = problem;
+        }
+    }
+
+    private static final Pattern OPTION_PREFIX = Pattern.compile("^\\s*[(（]?[A-Da-d][)）.．、:：]\\s*");
+    private static final Pattern ANSWER_LETTER = Pattern.compile("^\\s*(?:答案\\s*[:：]?\\s*)?[(（]?([A-Da-d])(?:[)）.．、:：\\s].*)?$");
+
+    private final StringBuilder buf = new StringBuilder();
+    private final StringBuilder stack = new StringBuilder(); // 目前所在的 { / [ 層級
+    private int scanned;
+    private boolean inString;
+    private boolean escape;
+    private int itemsDepth = -1;  // questions 陣列所在層級（stack 長度）
+    private int itemStart = -1;
+
+    /** 餵入新收到的片段，回傳這次新完成的題目（依出現順序） */
+    @NonNull
+    public List<Decoded> feed(@NonNull String chunk) {
+        List<Decoded> out = new ArrayList<>();
+        buf.append(chunk);
+        for (int i = scanned; i < buf.length(); i++) {
+            char c = buf.charAt(i);
+            if (inString) {
+                if (escape) escape = false;
+                else if (c == '\\') escape = true;
+                else if (c == '"') inString = false;
+                continue;
+            }
+            if (c == '"') {
+                inString = true;
+            } else if (c == '{' || c == '[') {
+                stack.append(c);
+                // 根層或根物件裡的第一個陣列就是題目陣列
+                if (c == '[' && itemsDepth < 0 && stack.length() <= 2) itemsDepth = stack.length();
+                if (c == '{' && itemsDepth > 0 && stack.length() == itemsDepth + 1
+                        && stack.charAt(itemsDepth - 1) == '[') {
+                    itemStart = i;
+                }
+            } else if ((c == '}' || c == ']') && stack.length() > 0) {
+                stack.setLength(stack.length() - 1);
+                if (c == '}' && itemStart >= 0 && stack.length() == itemsDepth) {
+                    out.add(parse(buf.substring(itemStart, i + 1)));
+                    itemStart = -1;
+                }
+            }
+        }
+        scanned = buf.length();
+        return out;
+    }
+
+    /** 一次解完整段文字 */
+    @NonNull
+    public static List<Decoded> decodeAll(@Nullable String text) {
+        return text == null ? new ArrayList<>() : new QuizJsonDecoder().feed(text);
+    }
+
+    private static Decoded parse(String json) {
+        try {
+            return decode(new JSONObject(json));
+        } catch (JSONException e) {
+            return new Decoded(null, "JSON 格式錯誤");
+        }
+    }
+
+    @NonNull
+    public static Decoded decode(@NonNull JSONObject o) {
+        String stem = o.optString("stem", "").trim();
+        if (stem.isEmpty()) stem = o.optString("question", "").trim();
+        if (stem.isEmpty()) return new Decoded(null, "缺少題幹");
+
+        List<String> options = new ArrayList<>();
+        JSONArray arr = o.optJSONArray("options");
+        JSONObject byLetter = o.optJSONObject("options");
+        if (arr != null) {
+            for (int i = 0; i < arr.length(); i++) options.add(arr.optString(i, ""));
+        } else if (byLetter != null) {
+            for (char c = 'A'; c <= 'D'; c++) {
+                if (byLetter.has(String.valueOf(c))) options.add(byLetter.optString(String.valueOf(c), ""));
+            }
+        }
+        for (int i = 0; i < options.size(); i++) {
+            options.set(i, OPTION_PREFIX.matcher(options.get(i)).replaceFirst("").trim());
+        }
+        if (options.size() != 4) return new Decoded(null, "選項不是 4 個（" + options.size() + " 個）");
+        Set<String> distinct = new HashSet<>();
+        for (String opt : options) {
+            if (opt.isEmpty()) return new Decoded(null, "有空白選項");
+            distinct.add(opt);
+        }
+        if (distinct.size() != 4) return new Decoded(null, "選項重複");
+
+        int answer = answerIndex(o.opt("answer"), options);
+        if (answer < 0) return new Decoded(null, "答案不在 A~D");
+        return new Decoded(new QuizItem(stem, options.toArray(new String[0]), answer), null);
+    }
+
+    private static int answerIndex(@Nullable Object a, List<String> options) {
+        if (a instanceof Number) {
+            int v = ((Number) a).intValue();
+            return v >= 0 && v <= 3 ? v : -1;
+        }
+        if (!(a instanceof String)) return -1;
+        String s = ((String) a).trim();
+        Matcher m = ANSWER_LETTER.matcher(s);
+        if (m.matches()) return Character.toUpperCase(m.group(1).charAt(0)) - 'A';
+        String stripped = OPTION_PREFIX.matcher(s).replaceFirst("").trim();
+        return options.indexOf(stripped); // 答案寫成選項原文
+    }
+
+    // ================== 編碼 / schema ==================
+
+    /** 存進快取用：與模型輸出同樣的格式 */
+    @NonNull
+    public static String encode(@NonNull List<QuizItem> items) {
+        try {
+            JSONArray qs = new JSONArray();
+            for (QuizItem it : items) {
+                JSONArray opts = new JSONArray();
+                for (String opt : it.getOptions()) opts.put(opt);
+                qs.put(new JSONObject()
+                        .put("stem", it.getStem())
+                        .put("options", opts)
+                        .put("answer", String.valueOf((char) ('A' + it.getAnswer()))));
+            }
+            return new JSONObject().put("questions", qs).toString();
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** OpenAI response_format：json_schema（strict）；題數與選項數由 decode() 驗證 */
+    @NonNull
+    public static JSONObject responseFormat() {
+        try {
+            JSONObject str = new JSONObject().put("type", "string");
+            JSONObject item = new JSONObject()
+                    .put("type", "object")
+                    .put("properties", new JSONObject()
+                            .put("stem", str)
+                            .put("options", new JSONObject().put("type", "array").put("items", str))
+                            .put("answer", new JSONObject().put("type", "string")
+                                    .put("enum", new JSONArray().put("A").put("B").put("C").put("D"))))
+                    .put("required", new JSONArray().put("stem").put("options").put("answer"))
+                    .put("additionalProperties", false);
+            JSONObject schema = new JSONObject()
+                    .put("type", "object")
+                    .put("properties", new JSONObject()
+                            .put("questions", new JSONObject().put("type", "array").put("items", item)))
+                    .put("required", new JSONArray().put("questions"))
+                    .put("additionalProperties", false);
+            return new JSONObject()
+                    .put("type", "json_schema")
+                    .put("json_schema", new JSONObject()
+                            .put("name", "quiz")
+                            .put("strict", true)
+                            .put("schema", schema));
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
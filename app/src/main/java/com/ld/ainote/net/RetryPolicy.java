@@ -0,0 +1,70 @@
+package com.ld.ainote.net;
+
+import androidx.annotation.Nullable;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Cloud Run 呼叫的重試規則
+ * - 只重試暫時性錯誤：連線失敗 / 逾時、408、429、500、502、503、504
+ * - 指數退避 + full jitter：等待 random(0, min(maxDelay, base * 2^n))
+ * - 有 Retry-After 時以它為準（上限 maxRetryAfterMs）
+ */
+public final class RetryPolicy {
+
+    /** 可替換的等待方式（測試用） */
+    interface Sleeper {
+        void sleep(long ms) throws InterruptedException;
+    }
+
+    public static final RetryPolicy DEFAULT = new RetryPolicy(4, 400, 8000, 30000, Thread::sleep);
+    /** 不重試（維持舊行為） */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, 0, Thread::sleep);
+
+    final int maxAttempts;
+    final long baseDelayMs;
+    final long maxDelayMs;
+    final long maxRetryAfterMs;
+    final Sleeper sleeper;
+
+    RetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs, long maxRetryAfterMs, Sleeper sleeper) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.maxRetryAfterMs = maxRetryAfterMs;
+        this.sleeper = sleeper;
+    }
+
+    static boolean isRetryableStatus(int code) {
+        return code == 408 || code == 429 || code == 500 || code == 502 || code == 503 || code == 504;
+    }
+
+    /** 第 attempt 次（從 1 開始）失敗後要等多久 */
+    long delayMs(int attempt, @Nullable String retryAfter) {
+        long ra = parseRetryAfterMs(retryAfter, System.currentTimeMillis());
+        if (ra >= 0) return Math.min(ra, maxRetryAfterMs);
+        long cap = Math.min(maxDelayMs, baseDelayMs << Math.min(attempt - 1, 20));
+        return cap <= 0 ? 0 : ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    /** Retry-After：秒數或 HTTP 日期；無法解析回 -1 */
+    static long parseRetryAfterMs(@Nullable String v, long nowMs) {
+        if (v == null || v.trim().isEmpty()) return -1;
+        String s = v.trim();
+        try {
+            return Math.max(0, Long.parseLong(s) * 1000L);
+        } catch (NumberFormatException ignore) {}
+        try {
+            SimpleDateFormat f = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            f.setTimeZone(TimeZone.getTimeZone("GMT"));
+            Date d = f.parse(s);
+            return d == null ? -1 : Math.max(0, d.getTime() - nowMs);
+        } catch (Exception ignore) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.ld.ainote.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 把 AiFragment 合併出的「【大類別】/《章節》/《內容》」文字切成一段段，
+ * 每段不超過 token 預算，給 map-reduce 摘要用。
+ * - 以章節為單位，同一章節切出來的內容只跟自己的文字有關 → 沒改過的章節每次切法都一樣，部分結果可重用
+ * - 單一章節超過預算時，依行切成多段（第 i/n 段）；單行仍過長才硬切
+ */
+public final class ChapterChunker {
+
+    public static final String CATEGORY = "【大類別】";
+    public static final String CHAPTER = "《章節》";
+    public static final String CONTENT = "《內容》";
+
+    public static final class Chunk {
+        public final String category;
+        public final String chapter;
+        public final int part;   // 1-based
+        public final int parts;
+        public final String text; // 含標頭，可直接放進 prompt
+
+        Chunk(String category, String chapter, int part, int parts, String body) {
+            this.category = category;
+            this.chapter = chapter;
+            this.part = part;
+            this.parts = parts;
+            this.text = header(category, chapter, part, parts) + body;
+        }
+
+        /** 例：第3章 光合作用（第 2/3 段） */
+        public String label() {
+            return parts > 1 ? chapter + "（第 " + part + "/" + parts + " 段）" : chapter;
+        }
+    }
+
+    private ChapterChunker() {}
+
+    public static List<Chunk> split(String combined, int budgetTokens) {
+        List<Chunk> out = new ArrayList<>();
+        if (combined == null) return out;
+
+        String category = "";
+        String chapter = "";
+        StringBuilder body = new StringBuilder();
+        boolean inChapter = false;
+
+        for (String line : combined.split("\n", -1)) {
+            if (line.startsWith(CATEGORY) || line.startsWith(CHAPTER)) {
+                if (inChapter || body.toString().trim().length() > 0) {
+                    emit(out, category, chapter, body.toString(), budgetTokens);
+                }
+                body.setLength(0);
+                if (line.startsWith(CATEGORY)) {
+                    category = line.substring(CATEGORY.length()).trim();
+                    chapter = "";
+                    inChapter = false;
+                } else {
+                    chapter = line.substring(CHAPTER.length()).trim();
+                    inChapter = true;
+                }
+            } else if (line.startsWith(CONTENT) && inChapter && body.length() == 0) {
+                // 標頭固定由 Chunk 重新產生
+            } else {
+                body.append(line).append('\n');
+            }
+        }
+        if (inChapter || body.toString().trim().length() > 0) {
+            emit(out, category, chapter, body.toString(), budgetTokens);
+        }
+        return out;
+    }
+
+    private static void emit(List<Chunk> out, String category, String chapter, String body, int budget) {
+        String trimmed = body.trim();
+        if (trimmed.isEmpty()) return;
+
+        // 標頭本身也佔預算（「（第 i/n 段）」預留一點）
+        int room = Math.max(16, budget - TokenEstimator.estimate(header(category, chapter, 99, 99)));
+        List<String> pieces = new ArrayList<>();
+        StringBuilder cur = new StringBuilder();
+        int curTokens = 0;
+        for (String line : trimmed.split("\n")) {
+            int t = TokenEstimator.estimate(line) + 1;
+            if (t > room) {
+                if (cur.length() > 0) { pieces.add(cur.toString().trim()); cur.setLength(0); curTokens = 0; }
+                hardSplit(line, room, pieces);
+                continue;
+            }
+            if (curTokens + t > room && cur.length() > 0) {
+                pieces.add(cur.toString().trim());
+                cur.setLength(0);
+                curTokens = 0;
+            }
+            cur.append(line).append('\n');
+            curTokens += t;
+        }
+        if (cur.toString().trim().length() > 0) pieces.add(cur.toString().trim());
+
+        for (int i = 0; i < pieces.size(); i++) {
+            out.add(new Chunk(category, chapter, i + 1, pieces.size(), pieces.get(i)));
+        }
+    }
+
+    private static void hardSplit(String line, int room, List<String> pieces) {
+        int start = 0;
+        while (start < line.length()) {
+            // 二分找出不超過 room 的最長前綴（估算不是逐字可加的，英數詞會跨邊界）
+            int lo = start + 1, hi = line.length();
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (TokenEstimator.estimate(line.substring(start, mid)) <= room) lo = mid;
+                else hi = mid - 1;
+            }
+            int end = lo;
+            // 不要把代理對切開
+            if (end < line.length() && Character.isLowSurrogate(line.charAt(end))) end++;
+            pieces.add(line.substring(start, end));
+            start = end;
+        }
+    }
+
+    private static String header(String category, String chapter, int part, int parts) {
+        StringBuilder sb = new StringBuilder();
+        if (!category.isEmpty()) sb.append(CATEGORY).append(category).append('\n');
+        sb.append(CHAPTER).append(chapter);
+        if (parts > 1) sb.append("（第 ").append(part).append('/').append(parts).append(" 段）");
+        sb.append('\n').append(CONTENT).append('\n');
+        return sb.toString();
+    }
+}
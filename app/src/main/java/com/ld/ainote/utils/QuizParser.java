@@ -0,0 +1,215 @@
+package com.ld.ainote.utils;
+
+import com.ld.ainote.models.QuizItem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 文字格式出題結果的解析（JSON 出題失敗時的備援）
+ * - 一次掃過每一行：題號行開始新題 → 題幹 → A~D 選項 → 「【答案】」之後為答案區
+ * - 題號：「Q1:」「1.」「1)」「1：」；選項：「A.」「A)」「A．」「A、」；答案：「1. C」「1) C」「Q1: C」「1C」
+ * - 不用正則，逐字元判斷；4 個選項不齊的題目略過，沒有答案的題目 answer = -1
+ * - 串流時用 feed()：一題的 4 個選項到齊就回呼 onQuestion，答案區每讀到一行回呼 onAnswer
+ */
+public final class QuizParser {
+
+    public static final String ANSWER_HEADER = "【答案】";
+
+    /** 串流解析的回呼（在呼叫 feed / finish 的執行緒上） */
+    public interface Listener {
+        /** number 為模型給的題號；此時 answer 還是 -1 */
+        void onQuestion(int number, QuizItem item);
+
+        void onAnswer(int number, int answer);
+    }
+
+    private static final class Draft {
+        final int number;
+        final StringBuilder stem = new StringBuilder();
+        final String[] options = new String[4];
+        int optionCount;
+
+        Draft(int number, String headRest) {
+            this.number = number;
+            stem.append(headRest);
+        }
+    }
+
+    private final Listener listener;
+    private final StringBuilder pending = new StringBuilder(); // 還沒收到換行的尾段
+    private Draft cur;
+    private boolean inAnswers;
+
+    public QuizParser(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** 餵入新收到的片段；只處理已完整的行 */
+    public void feed(CharSequence chunk) {
+        int from = pending.length();
+        pending.append(chunk);
+        int start = 0;
+        int nl;
+        while ((nl = indexOf(pending, '\n', Math.max(start, from))) >= 0) {
+            line(pending, start, nl);
+            start = nl + 1;
+        }
+        pending.delete(0, start);
+    }
+
+    /** 輸出結束：處理最後一行（沒有換行結尾） */
+    public void finish() {
+        line(pending, 0, pending.length());
+        pending.setLength(0);
+    }
+
+    /** 依題號排序回傳；一題都解不出時回傳空 list */
+    public static List<QuizItem> parse(String raw) {
+        if (raw == null) return new ArrayList<>();
+
+        List<int[]> order = new ArrayList<>(); // {number, index}，穩定排序用
+        List<QuizItem> built = new ArrayList<>();
+        Map<Integer, Integer> answers = new HashMap<>();
+        QuizParser parser = new QuizParser(new Listener() {
+            @Override public void onQuestion(int number, QuizItem item) {
+                order.add(new int[]{number, built.size()});
+                built.add(item);
+            }
+            @Override public void onAnswer(int number, int answer) {
+                answers.put(number, answer);
+            }
+        });
+        parser.feed(raw);
+        parser.finish();
+
+        Collections.sort(order, (a, b) -> a[0] != b[0] ? Integer.compare(a[0], b[0]) : Integer.compare(a[1], b[1]));
+        List<QuizItem> out = new ArrayList<>(built.size());
+        for (int[] o : order) {
+            QuizItem item = built.get(o[1]);
+            Integer ans = answers.get(o[0]);
+            if (ans != null) item.setAnswer(ans);
+            out.add(item);
+        }
+        return out;
+    }
+
+    private void line(CharSequence raw, int start, int end) {
+        int s = skipWs(raw, start, end);
+        int e = trimEnd(raw, s, end);
+        if (s >= e) {
+            if (cur != null && cur.optionCount == 0) cur.stem.append('\n'); // 題幹中的空行
+            return;
+        }
+        if (!inAnswers && isAnswerHeader(raw, s, e)) {
+            inAnswers = true;
+            cur = null;
+            return;
+        }
+        if (inAnswers) {
+            readAnswer(raw, s, e);
+            return;
+        }
+        int head = headerEnd(raw, s, e);
+        if (head >= 0) {
+            cur = new Draft(number(raw, s, e), raw.subSequence(skipWs(raw, head, e), e).toString());
+            return;
+        }
+        if (cur == null) return;
+        int letter = optionLetter(raw, s, e);
+        if (letter < 0) {
+            if (cur.optionCount == 0) cur.stem.append('\n').append(raw, s, e);
+            return;
+        }
+        if (cur.options[letter] != null) return; // 同一字母只取第一個
+        cur.options[letter] = raw.subSequence(skipWs(raw, s + 2, e), e).toString();
+        if (++cur.optionCount == 4) {
+            String stem = cur.stem.toString().trim();
+            if (stem.isEmpty()) stem = "第 " + cur.number + " 題";
+            listener.onQuestion(cur.number, new QuizItem(stem, cur.options, -1));
+            cur = null; // 之後到下一個題號之前的行（解析、提示）略過
+        }
+    }
+
+    // ================== 單行判斷 ==================
+
+    private static boolean isAnswerHeader(CharSequence s, int i, int end) {
+        if (end - i != ANSWER_HEADER.length()) return false;
+        for (int k = 0; k < end - i; k++) if (s.charAt(i + k) != ANSWER_HEADER.charAt(k)) return false;
+        return true;
+    }
+
+    /** 「Q1:」「1.」「1)」：回傳分隔符之後的位置，不是題號行回傳 -1 */
+    static int headerEnd(CharSequence s, int i, int end) {
+        if (i < end && s.charAt(i) == 'Q') i = skipWs(s, i + 1, end);
+        int digits = i;
+        while (i < end && isDigit(s.charAt(i))) i++;
+        if (i == digits) return -1;
+        i = skipWs(s, i, end);
+        if (i >= end) return -1;
+        char c = s.charAt(i);
+        return (c == '.' || c == ':' || c == '：' || c == ')') ? i + 1 : -1;
+    }
+
+    private static int number(CharSequence s, int i, int end) {
+        if (s.charAt(i) == 'Q') i = skipWs(s, i + 1, end);
+        long v = 0;
+        while (i < end && isDigit(s.charAt(i))) {
+            v = v * 10 + (s.charAt(i++) - '0');
+            if (v > Integer.MAX_VALUE) return -1;
+        }
+        return (int) v;
+    }
+
+    /** 「A.」「A)」「A．」「A、」開頭：回傳 0..3，否則 -1 */
+    static int optionLetter(CharSequence s, int i, int end) {
+        if (i + 1 >= end) return -1;
+        char c = s.charAt(i);
+        if (c < 'A' || c > 'D') return -1;
+        char d = s.charAt(i + 1);
+        return (d == '.' || d == '|' || d == ')' || d == '．' || d == '、') ? c - 'A' : -1;
+    }
+
+    /** 答案行「1. C」「1) C」「Q1: C」「Q1 C」「1C」 */
+    private void readAnswer(CharSequence s, int i, int end) {
+        if (s.charAt(i) == 'Q') i = skipWs(s, i + 1, end);
+        int digits = i;
+        while (i < end && isDigit(s.charAt(i))) i++;
+        if (i == digits) return;
+        int number = number(s, digits, i);
+        i = skipWs(s, i, end);
+        if (i < end) {
+            char c = s.charAt(i);
+            if (c == '.' || c == '|' || c == ')' || c == ':' || c == '：') i = skipWs(s, i + 1, end);
+        }
+        if (i + 1 != end) return; // 字母後面不可再有其他字（結尾空白已去掉）
+        char letter = Character.toUpperCase(s.charAt(i));
+        if (number > 0 && letter >= 'A' && letter <= 'D') listener.onAnswer(number, letter - 'A');
+    }
+
+    // ================== 字元工具 ==================
+
+    private static int indexOf(CharSequence s, char c, int from) {
+        for (int i = from; i < s.length(); i++) if (s.charAt(i) == c) return i;
+        return -1;
+    }
+
+    private static boolean isDigit(char c) { return c >= '0' && c <= '9'; }
+
+    private static boolean isWs(char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\f' || c == '\u000B' || c == '\u00A0' || c == '\u3000';
+    }
+
+    private static int skipWs(CharSequence s, int i, int end) {
+        while (i < end && isWs(s.charAt(i))) i++;
+        return i;
+    }
+
+    private static int trimEnd(CharSequence s, int start, int end) {
+        while (end > start && isWs(s.charAt(end - 1))) end--;
+        return end;
+    }
+}
@@ -0,0 +1,89 @@
+package com.ld.ainote.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * 出題分組：把勾選的章節分成幾組，各組同時出自己那份題數
+ * - 先依大類別分組；只有一個類別時改依章分組
+ * - 組數超過 maxShards 或題數 n 時，相鄰的組合併（依章節數平均）
+ * - 題數平均分配，除不盡的多出來的題目給章節數較多的組 → 每組涵蓋度一致
+ */
+public final class QuizSharder {
+
+    public static final class Shard<T> {
+        public final String label;
+        public final List<T> items;
+        public final int quota;
+
+        Shard(String label, List<T> items, int quota) {
+            this.label = label;
+            this.items = items;
+            this.quota = quota;
+        }
+
+        @Override public String toString() { return label + " x" + items.size() + " n=" + quota; }
+    }
+
+    private QuizSharder() {}
+
+    public static <T> List<Shard<T>> plan(List<T> items, Function<T, String> categoryOf,
+                                          Function<T, String> chapterOf, int n, int maxShards) {
+        List<Shard<T>> out = new ArrayList<>();
+        if (items == null || items.isEmpty() || n <= 0) return out;
+
+        Map<String, List<T>> groups = groupBy(items, categoryOf);
+        if (groups.size() == 1) groups = groupBy(items, chapterOf);
+
+        List<String> labels = new ArrayList<>(groups.keySet());
+        List<List<T>> lists = new ArrayList<>(groups.values());
+        int k = Math.max(1, Math.min(Math.min(maxShards, n), lists.size()));
+
+        // 相鄰合併成 k 組，每組章節數接近 total/k
+        List<String> mergedLabels = new ArrayList<>();
+        List<List<T>> merged = new ArrayList<>();
+        int remainingItems = items.size();
+        int g = 0;
+        for (int b = 0; b < k; b++) {
+            int bucketsLeft = k - b;
+            int target = (remainingItems + bucketsLeft - 1) / bucketsLeft;
+            List<T> bucket = new ArrayList<>();
+            String first = labels.get(g), last = first;
+            // 至少放一組，且要留足夠的組給後面的 bucket
+            do {
+                bucket.addAll(lists.get(g));
+                last = labels.get(g);
+                g++;
+            } while (g < lists.size() && lists.size() - g > bucketsLeft - 1 && bucket.size() < target);
+            remainingItems -= bucket.size();
+            mergedLabels.add(first.equals(last) ? first : first + " ～ " + last);
+            merged.add(bucket);
+        }
+
+        // 題數：平均分配，餘數給章節數多的組（同樣多時給前面的）
+        int[] quota = new int[k];
+        for (int i = 0; i < k; i++) quota[i] = n / k;
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < k; i++) order.add(i);
+        Collections.sort(order, (a, b) -> merged.get(b).size() != merged.get(a).size()
+                ? Integer.compare(merged.get(b).size(), merged.get(a).size()) : Integer.compare(a, b));
+        for (int r = 0; r < n % k; r++) quota[order.get(r)]++;
+
+        for (int i = 0; i < k; i++) out.add(new Shard<>(mergedLabels.get(i), merged.get(i), quota[i]));
+        return out;
+    }
+
+    private static <T> Map<String, List<T>> groupBy(List<T> items, Function<T, String> keyOf) {
+        Map<String, List<T>> map = new LinkedHashMap<>();
+        for (T t : items) {
+            List<T> list = map.get(keyOf.apply(t));
+            if (list == null) map.put(keyOf.apply(t), list = new ArrayList<>());
+            list.add(t);
+        }
+        return map;
+    }
+}
@@ -0,0 +1,190 @@
+package com.ld.ainote.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 把合併好的筆記文字修剪到 token 預算內（送 AI 之前）
+ * 優先順序：
+ * 1) 標頭（【大類別】/《章節》/《內容》）一律保留
+ * 2) 含 [[重點]] 的行（HighlightUtils.extractHighlights 取得）
+ * 3) 一般內文：剩下的預算各章平分（用不完的再分給其他章），各章從頭保留，超出的改成「…（略）」
+ * 重點行本身就放不下時，只留 [[重點]] 片段本身；再放不下就各章從前面留起。
+ */
+public final class TokenBudgeter {
+
+    public static final int DEFAULT_BUDGET_TOKENS = 24000;
+    public static final String OMITTED = "…（略）";
+
+    public static final class Result {
+        public final String text;
+        public final int tokens;
+        public final int originalTokens;
+        public final int droppedLines;
+
+        Result(String text, int tokens, int originalTokens, int droppedLines) {
+            this.text = text;
+            this.tokens = tokens;
+            this.originalTokens = originalTokens;
+            this.droppedLines = droppedLines;
+        }
+
+        public boolean trimmed() { return tokens < originalTokens; }
+    }
+
+    private static final int HEADER = 0, HIGHLIGHT = 1, PLAIN = 2;
+
+    private static final class Line {
+        final String raw;
+        final int kind;
+        final int chapter;
+        String out;      // null = 丟掉
+        String spans;    // 只留 [[重點]] 片段時的內容
+        int tokens;
+
+        Line(String raw, int kind, int chapter) {
+            this.raw = raw;
+            this.kind = kind;
+            this.chapter = chapter;
+            this.tokens = TokenEstimator.estimate(raw);
+        }
+    }
+
+    private TokenBudgeter() {}
+
+    public static Result fit(String combined, int budgetTokens) {
+        if (combined == null) combined = "";
+        int original = TokenEstimator.estimate(combined);
+        if (original <= budgetTokens) return new Result(combined, original, original, 0);
+
+        List<Line> lines = new ArrayList<>();
+        int chapter = 0;
+        for (String raw : combined.split("\n", -1)) {
+            int kind;
+            if (raw.startsWith(ChapterChunker.CATEGORY) || raw.startsWith(ChapterChunker.CHAPTER)) {
+                kind = HEADER;
+                chapter++;
+            } else if (raw.startsWith(ChapterChunker.CONTENT)) {
+                kind = HEADER;
+            } else if (!HighlightUtils.extractHighlights(raw).isEmpty()) {
+                kind = HIGHLIGHT;
+            } else {
+                kind = PLAIN;
+            }
+            lines.add(new Line(raw, kind, chapter));
+        }
+        int chapters = chapter + 1;
+        // 每個可能被修剪的章節預留一個「…（略）」
+        boolean[] hasBody = new boolean[chapters];
+        int bodied = 0;
+        for (Line l : lines) {
+            if (l.kind != HEADER && l.tokens > 0 && !hasBody[l.chapter]) { hasBody[l.chapter] = true; bodied++; }
+        }
+        int omitted = TokenEstimator.estimate(OMITTED) * bodied;
+
+        int remaining = budgetTokens;
+        for (Line l : lines) if (l.kind == HEADER) { l.out = l.raw; remaining -= l.tokens; }
+
+        int highlightTokens = 0;
+        for (Line l : lines) if (l.kind == HIGHLIGHT) highlightTokens += l.tokens;
+
+        if (highlightTokens + omitted <= remaining) {
+            for (Line l : lines) if (l.kind == HIGHLIGHT) l.out = l.raw;
+            remaining -= highlightTokens + omitted;
+            fill(lines, PLAIN, chapters, remaining);
+        } else {
+            // 重點行整行放不下 → 只留 [[重點]] 片段
+            for (Line l : lines) {
+                if (l.kind != HIGHLIGHT) continue;
+                StringBuilder sb = new StringBuilder();
+                for (String h : HighlightUtils.extractHighlights(l.raw)) {
+                    if (sb.length() > 0) sb.append(' ');
+                    sb.append("[[").append(h).append("]]");
+                }
+                l.tokens = TokenEstimator.estimate(sb);
+                l.spans = sb.toString();
+            }
+            fill(lines, HIGHLIGHT, chapters, remaining - omitted);
+        }
+        return assemble(lines, original);
+    }
+
+    /**
+     * 把 budget 平均分給各章（內文少的章節用不完的再分給其他章），各章從頭保留到用完為止；
+     * 因為整行保留而剩下的零頭，再依章節順序補給還放得下下一行的章節
+     */
+    private static void fill(List<Line> lines, int kind, int chapters, int budget) {
+        int[] want = new int[chapters];
+        for (Line l : lines) if (l.kind == kind) want[l.chapter] += l.tokens;
+
+        int[] alloc = new int[chapters];
+        boolean[] settled = new boolean[chapters];
+        int left = Math.max(0, budget);
+        int open = 0;
+        for (int w : want) if (w > 0) open++;
+        for (int c = 0; c < chapters; c++) if (want[c] == 0) settled[c] = true;
+        // water-filling：先滿足需求低於平均份額的章節
+        boolean changed = true;
+        while (open > 0 && changed) {
+            changed = false;
+            int share = left / open;
+            for (int c = 0; c < chapters; c++) {
+                if (settled[c] || want[c] > share) continue;
+                alloc[c] = want[c];
+                left -= want[c];
+                settled[c] = true;
+                open--;
+                changed = true;
+            }
+        }
+        if (open > 0) {
+            int share = left / open;
+            for (int c = 0; c < chapters; c++) if (!settled[c]) alloc[c] = share;
+        }
+
+        int[] used = new int[chapters];
+        boolean[] full = new boolean[chapters];
+        int spare = Math.max(0, budget);
+        for (Line l : lines) {
+            if (l.kind != kind) continue;
+            if (!full[l.chapter] && used[l.chapter] + l.tokens <= alloc[l.chapter]) {
+                used[l.chapter] += l.tokens;
+                spare -= l.tokens;
+                l.out = l.spans != null ? l.spans : l.raw;
+            } else {
+                full[l.chapter] = true; // 保留前段、不跳著留，讀起來才連貫
+                l.out = null;
+            }
+        }
+
+        boolean[] stopped = new boolean[chapters];
+        for (Line l : lines) {
+            if (l.kind != kind || l.out != null || stopped[l.chapter]) continue;
+            if (l.tokens <= spare) {
+                spare -= l.tokens;
+                l.out = l.spans != null ? l.spans : l.raw;
+            } else {
+                stopped[l.chapter] = true;
+            }
+        }
+    }
+
+    private static Result assemble(List<Line> lines, int original) {
+        StringBuilder sb = new StringBuilder();
+        int dropped = 0;
+        int markedChapter = -1;
+        for (Line l : lines) {
+            if (l.out == null) {
+                if (!l.raw.trim().isEmpty()) dropped++;
+                if (markedChapter != l.chapter && !l.raw.trim().isEmpty()) {
+                    sb.append(OMITTED).append('\n');
+                    markedChapter = l.chapter;
+                }
+                continue;
+            }
+            sb.append(l.out).append('\n');
+        }
+        String text = sb.toString().trim();
+        return new Result(text, TokenEstimator.estimate(text), original, dropped);
+    }
+}
@@ -0,0 +1,36 @@
+package com.ld.ainote.utils;
+
+/**
+ * 粗估 prompt 的 token 數（不帶 tokenizer，寧可高估）
+ * - 中日韓文字、全形標點：每字約 1 token
+ * - 英數字連續成一個詞：每 4 字元約 1 token（不足 4 也算 1）
+ * - 半形標點每個 1 token；空白併入前後的詞，不另計
+ * 中英混排時比「字數」準得多：英文單字不會被當成好幾個 token，中文也不會被低估成 1/4。
+ */
+public final class TokenEstimator {
+
+    private TokenEstimator() {}
+
+    public static int estimate(CharSequence s) {
+        if (s == null) return 0;
+        int tokens = 0;
+        int word = 0; // 目前英數詞的長度
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isHighSurrogate(c)) continue; // 補充平面字元只算低位那半
+            if (isWordChar(c)) {
+                word++;
+                continue;
+            }
+            tokens += (word + 3) / 4;
+            word = 0;
+            if (c >= 0x2E80 || Character.isLowSurrogate(c)) tokens++;
+            else if (!Character.isWhitespace(c)) tokens++;
+        }
+        return tokens + (word + 3) / 4;
+    }
+
+    private static boolean isWordChar(char c) {
+        return (c < 0x2E80 && Character.isLetterOrDigit(c)) || c == '_';
+    }
+}
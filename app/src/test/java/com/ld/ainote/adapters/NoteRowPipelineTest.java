@@ -0,0 +1,156 @@
+package com.ld.ainote.adapters;
+
+import com.ld.ainote.data.NoteSearchIndex;
+import com.ld.ainote.models.Note;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * NoteRowPipeline：debounce、過期結果丟棄、分組 / 扁平建列，以及索引更新與建列的先後順序。
+ */
+public class NoteRowPipelineTest {
+
+    private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor();
+    private final List<Integer> delivered = Collections.synchronizedList(new ArrayList<>());
+    private final List<List<NoteAdapter.Row>> results = Collections.synchronizedList(new ArrayList<>());
+    private volatile long deliveredAtNs;
+
+    private NoteRowPipeline pipeline() {
+        return new NoteRowPipeline(worker, Runnable::run, (gen, rows) -> {
+            deliveredAtNs = System.nanoTime();
+            delivered.add(gen);
+            results.add(rows);
+        });
+    }
+
+    @After
+    public void shutdown() {
+        worker.shutdownNow();
+    }
+
+    @Test
+    public void typingBurst_buildsOnceWithLastKeyword() throws Exception {
+        NoteRowPipeline p = pipeline();
+        List<Note> notes = Arrays.asList(note("a", "生物", "細胞"), note("b", "生物", "酵素"), note("c", "化學", "酵母"));
+        p.resetIndex(notes);
+
+        int last = 0;
+        for (String kw : new String[] { "酵", "酵素" }) {
+            last = p.request(NoteRowPipeline.snapshot(notes, kw, false, Collections.emptySet()), 80);
+            Thread.sleep(20);
+        }
+        drain();
+
+        assertEquals(Collections.singletonList(last), delivered);
+        assertEquals(Collections.singletonList("b"), ids(results.get(0)));
+    }
+
+    @Test
+    public void immediateRequestDuringDebounce_waitsWithIt() throws Exception {
+        NoteRowPipeline p = pipeline();
+        List<Note> notes = Collections.singletonList(note("a", "生物", "細胞"));
+        p.resetIndex(notes);
+
+        long t0 = System.nanoTime();
+        p.request(NoteRowPipeline.snapshot(notes, "細", true, Collections.emptySet()), 100);
+        int last = p.request(NoteRowPipeline.snapshot(notes, "細", true, Collections.singleton("生物")), 0);
+        drain();
+
+        assertTrue((deliveredAtNs - t0) / 1_000_000L >= 90);
+        assertEquals(Collections.singletonList(last), delivered);
+        assertEquals(Arrays.asList("header:生物", "note:me#a"), keys(results.get(0)));
+    }
+
+    @Test
+    public void staleBuild_isCancelledMidway() throws Exception {
+        List<Note> many = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) many.add(note("n" + i, "類別" + (i % 50), "內容 " + i));
+        int[] checks = { 0 };
+        NoteRowPipeline.Query q = NoteRowPipeline.snapshot(many, "！", true, Collections.emptySet());
+        // 逐筆比對時第一次檢查就被告知過期 → 中止
+        assertNull(NoteRowPipeline.build(q, new NoteSearchIndex(), () -> ++checks[0] >= 1));
+        assertEquals(1, checks[0]);
+
+        NoteRowPipeline p = pipeline();
+        p.resetIndex(many);
+        p.request(q, 0);
+        int last = p.request(NoteRowPipeline.snapshot(many, null, false, Collections.emptySet()), 0);
+        drain();
+        assertEquals(Collections.singletonList(last), delivered);
+        assertEquals(20_000, results.get(0).size());
+    }
+
+    @Test
+    public void indexEdits_areAppliedBeforeLaterBuilds() throws Exception {
+        NoteRowPipeline p = pipeline();
+        Note a = note("a", "生物", "粒線體");
+        p.resetIndex(Collections.singletonList(a));
+        Note b = note("b", "生物", "粒線體與葉綠體");
+        p.indexPut(b);
+        p.indexRemove(a);
+        p.request(NoteRowPipeline.snapshot(Arrays.asList(a, b), "粒線", false, Collections.emptySet()), 0);
+        drain();
+        assertEquals(Collections.singletonList("b"), ids(results.get(0)));
+    }
+
+    @Test
+    public void build_groupsSortsAndCountsShared() {
+        Note s1 = note("s1", "生物", "二");
+        s1.setChapter(1);
+        s1.setSection(2);
+        Note s2 = note("s2", "生物", "一");
+        s2.setChapter(1);
+        s2.setSection(1);
+        s2.setShared(true);
+        Note s3 = note("s3", " ", "無類別");
+        NoteRowPipeline.Query q = NoteRowPipeline.snapshot(Arrays.asList(s1, s2, s3), null, true,
+                new HashSet<>(Collections.singletonList("生物")));
+
+        List<NoteAdapter.Row> rows = NoteRowPipeline.build(q, new NoteSearchIndex(), () -> false);
+        assertEquals(Arrays.asList("header:生物", "note:me#s2", "note:me#s1", "header:(未分組)"), keys(rows));
+        assertEquals(2, rows.get(0).headerChildCount);
+        assertEquals(1, rows.get(0).headerSharedCount);
+        assertTrue(rows.get(0).expanded);
+        assertFalse(rows.get(3).expanded);
+    }
+
+    // ================== helpers ==================
+
+    /** 等 debounce 到期，再等單一背景執行緒把排在前面的工作跑完 */
+    private void drain() throws Exception {
+        Thread.sleep(200);
+        worker.submit(() -> { }).get(5, TimeUnit.SECONDS);
+    }
+
+    private static Note note(String id, String stack, String title) {
+        Note n = new Note(title, "");
+        n.setId(id);
+        n.setOwnerId("me");
+        n.setStack(stack);
+        return n;
+    }
+
+    private static List<String> ids(List<NoteAdapter.Row> rows) {
+        List<String> out = new ArrayList<>();
+        for (NoteAdapter.Row r : rows) if (!r.header) out.add(r.note.getId());
+        return out;
+    }
+
+    private static List<String> keys(List<NoteAdapter.Row> rows) {
+        List<String> out = new ArrayList<>();
+        for (NoteAdapter.Row r : rows) out.add(r.key);
+        return out;
+    }
+}
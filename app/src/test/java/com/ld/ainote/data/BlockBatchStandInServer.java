@@ -0,0 +1,109 @@
+package com.ld.ainote.data;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * applyBlockBatch 的本機替身（只在記憶體保存 block / 版號 / 鎖）
+ * 規則與 functions/index.js 相同：逐一套用，單一 op 失敗不影響其他 op。
+ */
+class BlockBatchStandInServer extends Dispatcher {
+
+    static final class Block {
+        String text = "";
+        String type = "text";
+        int index;
+        long version = 1;
+        String lockHolder;
+        long lockUntilMs;
+    }
+
+    private final String callerUid;
+    final Map<String, Block> blocks = new HashMap<>();
+    private final AtomicInteger idSeq = new AtomicInteger();
+
+    BlockBatchStandInServer(String callerUid) {
+        this.callerUid = callerUid;
+    }
+
+    Block put(String id, int index, String text) {
+        Block b = new Block();
+        b.index = index;
+        b.text = text;
+        blocks.put(id, b);
+        return b;
+    }
+
+    @NonNull @Override
+    public synchronized MockResponse dispatch(@NonNull RecordedRequest req) {
+        try {
+            JSONObject body = new JSONObject(req.getBody().clone().readUtf8()); // clone：測試之後還要檢查送出的內容
+            JSONArray ops = body.optJSONArray("ops");
+            if (ops == null || !body.has("ownerId") || !body.has("noteId")) {
+                return new MockResponse().setResponseCode(400).setBody("{\"error\":\"ownerId, noteId, ops required\"}");
+            }
+            JSONArray results = new JSONArray();
+            for (int i = 0; i < ops.length(); i++) results.put(apply(i, ops.getJSONObject(i)));
+            return new MockResponse().setBody(new JSONObject()
+                    .put("success", true).put("results", results).toString());
+        } catch (Exception e) {
+            return new MockResponse().setResponseCode(500).setBody("{\"error\":\"Internal error\"}");
+        }
+    }
+
+    private JSONObject apply(int i, JSONObject o) throws Exception {
+        String kind = o.optString("op");
+        JSONObject r = new JSONObject().put("op", i);
+
+        if ("create".equals(kind)) {
+            if (!o.has("index")) return r.put("status", "error");
+            String id = "new-" + idSeq.incrementAndGet();
+            Block b = put(id, Math.max(0, o.getInt("index")), o.optString("text", ""));
+            b.type = o.optString("type", "paragraph");
+            return r.put("status", "ok").put("blockId", id).put("version", 1);
+        }
+
+        String id = o.optString("blockId", null);
+        if (id == null) return r.put("status", "error");
+        r.put("blockId", id);
+        Block b = blocks.get(id);
+        if (b == null) return r.put("status", "notFound");
+
+        boolean lockedByOther = b.lockHolder != null && !b.lockHolder.equals(callerUid)
+                && b.lockUntilMs > System.currentTimeMillis();
+        boolean versionMismatch = o.has("expectedVersion") && o.getLong("expectedVersion") != b.version;
+
+        switch (kind) {
+            case "update":
+                if (lockedByOther) return r.put("status", "locked");
+                if (versionMismatch) return r.put("status", "conflict").put("version", b.version);
+                if (o.has("text")) b.text = o.getString("text");
+                if (o.has("type")) b.type = o.getString("type");
+                if (o.has("index")) b.index = o.getInt("index");
+                b.version++;
+                return r.put("status", "ok").put("version", b.version);
+            case "delete":
+                if (lockedByOther) return r.put("status", "locked");
+                if (versionMismatch) return r.put("status", "conflict").put("version", b.version);
+                blocks.remove(id);
+                return r.put("status", "ok");
+            case "releaseLock":
+                if (!callerUid.equals(b.lockHolder)) return r.put("status", "locked");
+                b.lockHolder = null;
+                b.lockUntilMs = 0;
+                return r.put("status", "ok");
+            default:
+                return r.put("status", "error");
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.ld.ainote.data;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.android.gms.tasks.Task;
+import com.ld.ainote.models.BlockOp;
+import com.ld.ainote.net.CloudFunctionClient;
+import com.ld.ainote.net.CloudFunctionClient.Endpoint;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.*;
+
+/**
+ * 「全部儲存」改成一次 applyBlockBatch：
+ * 經由 BlockRepository.applyBatch 打本機替身，多段更新 + 釋放鎖只打一個請求，且每個 op 的結果各自回報。
+ */
+public class BlockBatchTest {
+
+    private static final String ME = "me";
+
+    private MockWebServer server;
+    private BlockBatchStandInServer backend;
+    private BlockRepository repo;
+
+    @Before
+    public void setUp() throws Exception {
+        backend = new BlockBatchStandInServer(ME);
+        server = new MockWebServer();
+        server.setDispatcher(backend);
+        server.start();
+        repo = new BlockRepository(new StandInTransport());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void saveAll_isSingleRequest_withPerOpResults() throws Exception {
+        BlockBatchStandInServer.Block a = backend.put("a", 0, "old a");
+        a.lockHolder = ME;
+        a.lockUntilMs = System.currentTimeMillis() + 60_000;
+        backend.put("b", 1, "old b").version = 3;          // 別人已更新過 → 衝突
+        BlockBatchStandInServer.Block c = backend.put("c", 2, "old c");
+        c.lockHolder = "other";
+        c.lockUntilMs = System.currentTimeMillis() + 60_000; // 被別人鎖住
+
+        List<BlockOp> ops = Arrays.asList(
+                BlockOp.update("a", "new a", "text", 0, 1),
+                BlockOp.update("b", "new b", "text", 1, 1),
+                BlockOp.update("c", "new c", "text", 2, 1),
+                BlockOp.update("missing", "x", "text", 3, 1),
+                BlockOp.releaseLock("a"));
+
+        List<BlockOp.Result> results = apply(ops);
+
+        assertEquals(1, server.getRequestCount());
+        RecordedRequest req = server.takeRequest();
+        assertEquals("/applyblockbatch", req.getPath());
+        assertEquals("Bearer test-token", req.getHeader("Authorization"));
+        assertNotNull("applyBlockBatch 會改寫資料，要帶 Idempotency-Key", req.getHeader("Idempotency-Key"));
+        JSONObject sent = new JSONObject(req.getBody().readUtf8());
+        assertEquals("owner", sent.getString("ownerId"));
+        assertEquals("note", sent.getString("noteId"));
+        assertEquals(5, sent.getJSONArray("ops").length());
+        assertEquals(5, results.size());
+        assertEquals(BlockOp.Result.OK, results.get(0).status);
+        assertEquals(2, results.get(0).version);
+        assertTrue(results.get(1).isConflict());
+        assertEquals(3, results.get(1).version);
+        assertEquals(BlockOp.Result.LOCKED, results.get(2).status);
+        assertEquals(BlockOp.Result.NOT_FOUND, results.get(3).status);
+        assertTrue(results.get(4).isOk());
+
+        assertEquals("new a", a.text);
+        assertNull(a.lockHolder);
+        assertEquals("old b", backend.blocks.get("b").text);
+        assertEquals("old c", c.text);
+    }
+
+    @Test
+    public void createAndDelete_inSameBatch() throws Exception {
+        backend.put("gone", 0, "bye");
+
+        List<BlockOp.Result> results = apply(Arrays.asList(
+                BlockOp.create(1, "text", "hello"),
+                BlockOp.delete("gone", 1),
+                BlockOp.delete("gone", 1)));
+
+        assertTrue(results.get(0).isOk());
+        assertNotNull(results.get(0).blockId);
+        assertEquals(1, results.get(0).version);
+        assertTrue(results.get(1).isOk());
+        assertEquals(BlockOp.Result.NOT_FOUND, results.get(2).status);
+        assertEquals("hello", backend.blocks.get(results.get(0).blockId).text);
+        assertFalse(backend.blocks.containsKey("gone"));
+    }
+
+    @Test
+    public void emptyBatch_sendsNothing() throws Exception {
+        assertTrue(apply(Arrays.asList()).isEmpty());
+        assertEquals(0, server.getRequestCount());
+    }
+
+    /** 不用 Tasks.await / 預設的主執行緒 listener：JVM 單元測試沒有 main Looper */
+    private List<BlockOp.Result> apply(List<BlockOp> ops) throws Exception {
+        Task<List<BlockOp.Result>> task = repo.applyBatch("owner", "note", ops);
+        CountDownLatch done = new CountDownLatch(1);
+        task.addOnCompleteListener(Runnable::run, t -> done.countDown());
+        assertTrue("applyBatch timeout", done.await(10, TimeUnit.SECONDS));
+        if (!task.isSuccessful()) throw task.getException();
+        return task.getResult();
+    }
+
+    /** 真正的 CloudFunctionClient，只是把端點換成本機替身、token 固定（不經過 FirebaseAuth） */
+    private class StandInTransport implements CloudCall.Opener {
+        @Override
+        public <T> CloudFunctionClient.PendingCall<T> open(@NonNull Endpoint ep, @NonNull String json,
+                                                           @Nullable String idempotencyKey,
+                                                           @NonNull CloudFunctionClient.BodyReader<T> reader) {
+            Endpoint local = new Endpoint(ep.name, server.url("/" + ep.name).toString(),
+                    ep.connectTimeoutMs, ep.readTimeoutMs, ep.mutating);
+            return CloudFunctionClient.get().newCall(local, "test-token", json, idempotencyKey, reader, null);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.ld.ainote.data;
+
+import com.ld.ainote.models.NoteBlock;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BlockListCacheTest {
+
+    @Test
+    public void deltaMergesIntoFullList() {
+        BlockListCache cache = new BlockListCache(8);
+        String key = KeyedSerialExecutor.key("o", "n");
+        assertEquals(0L, cache.cursorOf(key));
+
+        BlockDelta full = delta(true, 100L, block("a", 0, "A"), block("b", 1, "B"), block("c", 2, "C"));
+        assertEquals("ABC", texts(cache.apply(key, full)));
+        assertEquals(100L, cache.cursorOf(key));
+
+        // b 改內容、c 刪除、新增 d 插在最前面
+        BlockDelta d = delta(false, 200L, block("b", 1, "B2"), block("d", -1, "D"));
+        d.deletedIds.add("c");
+        d.deletedIds.add("missing");
+        assertEquals("DAB2", texts(cache.apply(key, d)));
+        assertEquals(200L, cache.cursorOf(key));
+
+        // 沒有任何變動
+        assertEquals("DAB2", texts(cache.apply(key, delta(false, 300L))));
+        assertEquals(300L, cache.cursorOf(key));
+    }
+
+    @Test
+    public void olderDeltaArrivingLate_isIgnored() {
+        BlockListCache cache = new BlockListCache(8);
+        String key = KeyedSerialExecutor.key("o", "n");
+        cache.apply(key, delta(true, 100L, block("a", 0, "A")));
+        cache.apply(key, delta(false, 300L, block("a", 0, "A3")));
+
+        // cursor 200 的請求比 300 晚回來：不能把內容與 cursor 倒回去
+        assertEquals("A3", texts(cache.apply(key, delta(false, 200L, block("a", 0, "A2")))));
+        assertEquals(300L, cache.cursorOf(key));
+    }
+
+    @Test
+    public void fullResponseReplacesCachedEntries() {
+        BlockListCache cache = new BlockListCache(8);
+        cache.apply("k", delta(true, 1L, block("a", 0, "A"), block("b", 1, "B")));
+        assertEquals("X", texts(cache.apply("k", delta(true, 2L, block("x", 0, "X")))));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedNote() {
+        BlockListCache cache = new BlockListCache(2);
+        cache.apply("n1", delta(true, 1L, block("a", 0, "A")));
+        cache.apply("n2", delta(true, 2L, block("b", 0, "B")));
+        cache.cursorOf("n1");                      // n1 變成最近使用
+        cache.apply("n3", delta(true, 3L, block("c", 0, "C")));
+
+        assertEquals(1L, cache.cursorOf("n1"));
+        assertEquals(0L, cache.cursorOf("n2"));
+        assertEquals(3L, cache.cursorOf("n3"));
+        assertTrue(cache.peek("n2").isEmpty());
+    }
+
+    private static BlockDelta delta(boolean full, long cursor, NoteBlock... blocks) {
+        BlockDelta d = new BlockDelta();
+        d.full = full;
+        d.cursor = cursor;
+        for (NoteBlock b : blocks) d.blocks.add(b);
+        return d;
+    }
+
+    private static NoteBlock block(String id, int index, String text) {
+        NoteBlock b = new NoteBlock();
+        b.setId(id);
+        b.setIndex(index);
+        b.setText(text);
+        return b;
+    }
+
+    private static String texts(List<NoteBlock> list) {
+        StringBuilder sb = new StringBuilder();
+        for (NoteBlock b : list) sb.append(b.getText());
+        return sb.toString();
+    }
+}
@@ -0,0 +1,210 @@
+package com.ld.ainote.data;
+
+import com.ld.ainote.models.NoteBlock;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * BlockListDecoder（Gson JsonReader 串流）與舊版 org.json DOM 解析：
+ * 結果必須一致；並在 1,000 個 block 的回應上比較配置量。
+ */
+public class BlockListDecoderTest {
+
+    private static final int BLOCKS = 1000;
+
+    @Test
+    public void matchesLegacy_onEdgeCases() throws Exception {
+        String json = "{\"success\":true,\"extra\":{\"a\":[1,2]},\"blocks\":["
+                + "{\"id\":\"a\",\"index\":3,\"type\":\"heading\",\"text\":\"標題\",\"version\":7,"
+                + "\"updatedBy\":\"u1\",\"lockHolder\":\"u2\","
+                + "\"updatedAt\":{\"_seconds\":1700000000,\"_nanoseconds\":123456789},"
+                + "\"lockUntil\":\"1700000030000\",\"updatedByDisplayName\":\"Amy\",\"block\":{\"x\":1}},"
+                + "{\"blockId\":\"b\",\"text\":\"no index\",\"updatedAt\":{\"seconds\":1700000001,\"nanoseconds\":5000000},"
+                + "\"lockUntil\":1700000030},"
+                + "{\"id\":\"c\",\"index\":\"4\",\"version\":\"2\",\"updatedAt\":\"1700000002\",\"lockUntil\":\"2024-01-01T00:00:00Z\"},"
+                + "{\"id\":\"d\",\"index\":1.9,\"type\":null,\"updatedAt\":{}}"
+                + "]}";
+
+        List<NoteBlock> legacy = legacyDecode(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+        List<NoteBlock> streamed = BlockListDecoder.decode(new StringReader(json));
+
+        assertSameBlocks(legacy, streamed);
+        assertEquals(1700000000123L, streamed.get(0).getUpdatedAt().getTime());
+        assertEquals(1700000030000L, streamed.get(0).getLockUntil().getTime());
+        assertEquals("b", streamed.get(1).getId());
+        assertEquals(1, streamed.get(1).getIndex());       // 沒帶 index → 陣列位置
+        assertNull(streamed.get(1).getLockUntil());         // JSON 數字 → 舊版也回 0
+        assertEquals(1700000002000L, streamed.get(2).getUpdatedAt().getTime());
+        assertNull(streamed.get(2).getLockUntil());         // ISO 字串 → 0
+        assertEquals(1, streamed.get(3).getIndex());
+    }
+
+    @Test
+    public void emptyOrMissingBlocks() throws Exception {
+        assertTrue(BlockListDecoder.decode(new StringReader("{\"success\":true}")).isEmpty());
+        assertTrue(BlockListDecoder.decode(new StringReader("{\"blocks\":[]}")).isEmpty());
+        assertTrue(BlockListDecoder.decode(new StringReader("{\"blocks\":null}")).isEmpty());
+    }
+
+    @Test
+    public void decodesDeltaFields() throws Exception {
+        String json = "{\"success\":true,\"full\":false,\"cursor\":1700000099000,"
+                + "\"blocks\":[{\"id\":\"a\",\"index\":0,\"text\":\"x\"}],"
+                + "\"deleted\":[\"b\",null,\"c\"]}";
+        BlockDelta d = BlockListDecoder.decodeDelta(new StringReader(json));
+        assertFalse(d.full);
+        assertEquals(1700000099000L, d.cursor);
+        assertEquals(1, d.blocks.size());
+        assertEquals(java.util.Arrays.asList("b", "c"), d.deletedIds);
+
+        // 舊版後端沒有 full / cursor → 完整清單、cursor 0
+        BlockDelta legacy = BlockListDecoder.decodeDelta(new StringReader("{\"blocks\":[]}"));
+        assertTrue(legacy.full);
+        assertEquals(0L, legacy.cursor);
+        assertTrue(legacy.deletedIds.isEmpty());
+    }
+
+    /** 非 JMH：以 JUnit 跑固定回合，比較每回合配置位元組數 */
+    @Test
+    public void benchmark_1000Blocks() throws Exception {
+        byte[] payload = buildPayload(BLOCKS).getBytes(StandardCharsets.UTF_8);
+
+        List<NoteBlock> a = legacyDecode(new ByteArrayInputStream(payload));
+        List<NoteBlock> b = BlockListDecoder.decode(reader(payload));
+        assertEquals(BLOCKS, b.size());
+        assertSameBlocks(a, b);
+
+        int warmup = 10, rounds = 20;
+        for (int i = 0; i < warmup; i++) {
+            legacyDecode(new ByteArrayInputStream(payload));
+            BlockListDecoder.decode(reader(payload));
+        }
+
+        long legacyBytes = allocatedBytes();
+        for (int i = 0; i < rounds; i++) legacyDecode(new ByteArrayInputStream(payload));
+        legacyBytes = allocatedBytes() - legacyBytes;
+
+        long streamBytes = allocatedBytes();
+        for (int i = 0; i < rounds; i++) BlockListDecoder.decode(reader(payload));
+        streamBytes = allocatedBytes() - streamBytes;
+
+        if (legacyBytes > 0 && streamBytes > 0) {
+            assertTrue("streaming should allocate less", streamBytes < legacyBytes);
+        }
+    }
+
+    // ================== 舊版（原 listBlocks 寫法） ==================
+
+    private static List<NoteBlock> legacyDecode(InputStream is) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) sb.append(line);
+        }
+        JSONObject js = new JSONObject(sb.toString());
+        List<NoteBlock> out = new ArrayList<>();
+        JSONArray arr = js.optJSONArray("blocks");
+        if (arr != null) {
+            for (int i = 0; i < arr.length(); i++) {
+                JSONObject b = arr.getJSONObject(i);
+                NoteBlock nb = new NoteBlock();
+                nb.setId(b.optString("id", b.optString("blockId", "")));
+                nb.setIndex(b.optInt("index", i));
+                nb.setType(b.optString("type", "text"));
+                nb.setText(b.optString("text", ""));
+                nb.setVersion(b.optInt("version", 0));
+                if (b.has("updatedBy")) nb.setUpdatedBy(b.optString("updatedBy", null));
+                if (b.has("lockHolder")) nb.setLockHolder(b.optString("lockHolder", null));
+                long updatedAtMs = parseTimestampMillis(b.opt("updatedAt"));
+                if (updatedAtMs > 0) nb.setUpdatedAt(new Date(updatedAtMs));
+                long lockUntilMs = parseTimestampMillis(b.opt("lockUntil"));
+                if (lockUntilMs > 0) nb.setLockUntil(new Date(lockUntilMs));
+                out.add(nb);
+            }
+        }
+        return out;
+    }
+
+    private static long parseTimestampMillis(Object v) {
+        if (v instanceof JSONObject) {
+            JSONObject o = (JSONObject) v;
+            if (o.has("_seconds")) return o.optLong("_seconds", 0L) * 1000L + o.optLong("_nanoseconds", 0L) / 1_000_000L;
+            if (o.has("seconds")) return o.optLong("seconds", 0L) * 1000L + o.optLong("nanoseconds", 0L) / 1_000_000L;
+        } else if (v instanceof String) {
+            try {
+                long epoch = Long.parseLong(((String) v).trim());
+                return (epoch >= 1_000_000_000_000L) ? epoch : epoch * 1000L;
+            } catch (NumberFormatException ignore) {}
+        }
+        return 0L;
+    }
+
+    // ================== 工具 ==================
+
+    private static InputStreamReader reader(byte[] payload) {
+        return new InputStreamReader(new ByteArrayInputStream(payload), StandardCharsets.UTF_8);
+    }
+
+    private static String buildPayload(int n) {
+        StringBuilder para = new StringBuilder();
+        while (para.length() < 1200) para.append("這是一段比較長的筆記內容 with some ASCII text, numbers 12345. ");
+        String text = para.toString().replace("\"", "'");
+
+        StringBuilder sb = new StringBuilder("{\"success\":true,\"blocks\":[");
+        for (int i = 0; i < n; i++) {
+            if (i > 0) sb.append(',');
+            sb.append("{\"id\":\"blk").append(i).append("\",\"index\":").append(i)
+                    .append(",\"type\":\"text\",\"text\":\"").append(i).append(' ').append(text)
+                    .append("\",\"version\":").append(i % 9 + 1)
+                    .append(",\"updatedBy\":\"uid").append(i % 5)
+                    .append("\",\"updatedByDisplayName\":\"User ").append(i % 5)
+                    .append("\",\"updatedByEmail\":\"u").append(i % 5).append("@example.com\"")
+                    .append(",\"updatedAt\":{\"_seconds\":").append(1700000000 + i)
+                    .append(",\"_nanoseconds\":").append(i * 1000)
+                    .append("},\"lockHolder\":null,\"lockUntil\":null}");
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static void assertSameBlocks(List<NoteBlock> expected, List<NoteBlock> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            NoteBlock e = expected.get(i), a = actual.get(i);
+            String at = "block " + i;
+            assertEquals(at, e.getId(), a.getId());
+            assertEquals(at, e.getIndex(), a.getIndex());
+            assertEquals(at, e.getType(), a.getType());
+            assertEquals(at, e.getText(), a.getText());
+            assertEquals(at, e.getVersion(), a.getVersion());
+            assertEquals(at, e.getUpdatedAt(), a.getUpdatedAt());
+            assertEquals(at, e.getLockUntil(), a.getLockUntil());
+            if (e.getUpdatedBy() != null && !"null".equals(e.getUpdatedBy())) {
+                assertEquals(at, e.getUpdatedBy(), a.getUpdatedBy());
+            }
+        }
+    }
+
+    /** HotSpot 才有 per-thread 配置量；其他 JVM 回 0（略過配置量比較） */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if (mx instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) mx).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0L;
+    }
+}
@@ -0,0 +1,140 @@
+package com.ld.ainote.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * 壓力測試：多個 key 同時大量送出，
+ * 同一 key 不可重疊執行、不可亂序；不同 key 要真的平行。
+ */
+public class KeyedSerialExecutorTest {
+
+    private static final int KEYS = 16;
+    private static final int PER_KEY = 2000;
+
+    @Test
+    public void sameKey_neverReorderedOrOverlapping() throws Exception {
+        KeyedSerialExecutor io = new KeyedSerialExecutor(4, "test-io");
+
+        List<List<Integer>> seen = new ArrayList<>();
+        AtomicBoolean[] running = new AtomicBoolean[KEYS];
+        AtomicInteger overlaps = new AtomicInteger();
+        AtomicInteger concurrent = new AtomicInteger();
+        AtomicInteger maxConcurrent = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(KEYS * PER_KEY);
+        for (int k = 0; k < KEYS; k++) {
+            seen.add(new ArrayList<>()); // 故意不用同步容器：若同 key 重疊執行會被抓到
+            running[k] = new AtomicBoolean();
+        }
+
+        // 每個 key 一條送出執行緒，全部同時開跑
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> producers = new ArrayList<>();
+        for (int k = 0; k < KEYS; k++) {
+            final int key = k;
+            final String ioKey = KeyedSerialExecutor.key("owner", "note-" + k);
+            Thread t = new Thread(() -> {
+                try { go.await(); } catch (InterruptedException ignore) {}
+                for (int i = 0; i < PER_KEY; i++) {
+                    final int seq = i;
+                    io.execute(ioKey, () -> {
+                        if (!running[key].compareAndSet(false, true)) overlaps.incrementAndGet();
+                        maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+                        seen.get(key).add(seq);
+                        if (seq % 200 == 0) sleepQuietly(1); // 偶爾模擬慢的網路呼叫
+                        concurrent.decrementAndGet();
+                        running[key].set(false);
+                        done.countDown();
+                    });
+                }
+            });
+            producers.add(t);
+            t.start();
+        }
+        go.countDown();
+        for (Thread t : producers) t.join();
+        assertTrue("timeout: " + io.statsLine(), done.await(30, TimeUnit.SECONDS));
+
+        assertEquals(0, overlaps.get());
+        for (int k = 0; k < KEYS; k++) {
+            List<Integer> got = seen.get(k);
+            assertEquals(PER_KEY, got.size());
+            for (int i = 0; i < PER_KEY; i++) {
+                assertEquals("key " + k + " reordered at " + i, i, (int) got.get(i));
+            }
+        }
+        assertTrue("different keys should run in parallel", maxConcurrent.get() > 1);
+
+        waitUntilIdle(io);
+        assertEquals(KEYS * PER_KEY, io.submitted());
+        assertEquals(KEYS * PER_KEY, io.completed());
+        assertEquals(0, io.queueDepth());
+        assertEquals(0, io.activeKeys());
+        assertTrue(io.maxQueueDepth() > 0);
+        assertTrue(io.maxWaitMs() >= io.avgWaitMs());
+    }
+
+    @Test
+    public void slowKey_doesNotBlockOtherKeys() throws Exception {
+        KeyedSerialExecutor io = new KeyedSerialExecutor(2, "test-io");
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch fastDone = new CountDownLatch(1);
+
+        io.execute(KeyedSerialExecutor.key("o", "slow"), () -> {
+            try { release.await(); } catch (InterruptedException ignore) {}
+        });
+        io.execute(KeyedSerialExecutor.key("o", "fast"), fastDone::countDown);
+
+        // 舊版單執行緒 executor 在這裡會卡住
+        assertTrue(fastDone.await(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void backoff_releasesThread_butKeepsKeyOrder() throws Exception {
+        KeyedSerialExecutor io = new KeyedSerialExecutor(1, "test-io");
+        String slow = KeyedSerialExecutor.key("o", "retrying");
+        List<String> order = new java.util.concurrent.CopyOnWriteArrayList<>();
+        CountDownLatch otherDone = new CountDownLatch(1);
+        CountDownLatch allDone = new CountDownLatch(2);
+        AtomicInteger attempts = new AtomicInteger();
+
+        io.executeResumable(slow, () -> {
+            if (attempts.incrementAndGet() == 1) return 300; // 第一次失敗：300ms 後再試
+            order.add("retried");
+            allDone.countDown();
+            return -1;
+        });
+        io.execute(slow, () -> {
+            order.add("next");
+            allDone.countDown();
+        });
+        // 唯一的執行緒沒有被退避佔住：別的 key 馬上跑得到
+        io.execute(KeyedSerialExecutor.key("o", "other"), otherDone::countDown);
+
+        assertTrue(otherDone.await(200, TimeUnit.MILLISECONDS));
+        assertTrue(order.isEmpty());
+        assertTrue(allDone.await(5, TimeUnit.SECONDS));
+        assertEquals(java.util.Arrays.asList("retried", "next"), order);
+        waitUntilIdle(io);
+        assertEquals(3, io.completed());
+        assertEquals(0, io.queueDepth());
+    }
+
+    private static void waitUntilIdle(KeyedSerialExecutor io) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (io.activeKeys() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+    }
+
+    private static void sleepQuietly(long ms) {
+        try { Thread.sleep(ms); } catch (InterruptedException ignore) {}
+    }
+}
@@ -0,0 +1,211 @@
+package com.ld.ainote.data;
+
+import com.ld.ainote.models.Note;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * NoteListMerger：增量套用的結果與整份重排一致、回傳的變動可以重播出同一份清單；
+ * 並量測 5000 筆時「整份重建」與「只改一筆」的成本（計時比較預設略過，-Painote.bench=true 才比）。
+ */
+public class NoteListMergerTest {
+
+    private static final String ME = "me";
+    private static final String[] STACKS = { "國文", "英文", "數學", "生物", "歷史", "" };
+
+    @Test
+    public void randomEdits_matchFullSortAndReplay() {
+        Random r = new Random(7);
+        NoteListMerger m = new NoteListMerger();
+        Map<String, Note> mine = new HashMap<>();
+        Map<String, Note> shared = new HashMap<>();
+        List<Note> replay = new ArrayList<>();
+
+        for (int round = 0; round < 300; round++) {
+            boolean fromMine = r.nextBoolean();
+            Map<String, Note> target = fromMine ? mine : shared;
+            List<NoteListMerger.Edit> edits = new ArrayList<>();
+            for (int i = 0, n = 1 + r.nextInt(4); i < n; i++) {
+                String id = "n" + r.nextInt(60);
+                String owner = fromMine || r.nextBoolean() ? ME : "u" + r.nextInt(3);
+                String key = owner + "#" + id;
+                if (target.containsKey(key) && r.nextInt(3) == 0) {
+                    target.remove(key);
+                    edits.add(NoteListMerger.Edit.remove(key));
+                } else {
+                    Note note = note(owner, id, STACKS[r.nextInt(STACKS.length)], r.nextInt(3), r.nextInt(3),
+                            "t" + r.nextInt(5));
+                    note.setContent("c" + round);
+                    target.put(key, note);
+                    edits.add(NoteListMerger.Edit.upsert(note));
+                }
+            }
+            List<NoteListMerger.Change> changes =
+                    m.apply(fromMine ? NoteListMerger.Source.MINE : NoteListMerger.Source.SHARED, edits);
+            replay(replay, changes, m.notes());
+
+            Map<String, Note> merged = new HashMap<>(mine);
+            merged.putAll(shared);
+            List<Note> expected = new ArrayList<>(merged.values());
+            Collections.sort(expected, NoteListMerger.ORDER);
+            assertEquals("round " + round, expected, m.notes());
+            assertEquals("round " + round, expected, replay);
+        }
+    }
+
+    @Test
+    public void sharedCopyWins_andRemovingItRevealsMine() {
+        NoteListMerger m = new NoteListMerger();
+        Note mineCopy = note(ME, "a", "國文", 1, 1, "我的");
+        Note sharedCopy = note(ME, "a", "國文", 1, 1, "共筆");
+        m.apply(NoteListMerger.Source.MINE, Collections.singletonList(NoteListMerger.Edit.upsert(mineCopy)));
+
+        List<NoteListMerger.Change> c = m.apply(NoteListMerger.Source.SHARED,
+                Collections.singletonList(NoteListMerger.Edit.upsert(sharedCopy)));
+        assertEquals(2, c.size()); // 標題不同：移除我的那份、插入共筆那份
+        assertEquals(NoteListMerger.Change.Type.REMOVE, c.get(0).type);
+        assertEquals(1, m.size());
+        assertSame(sharedCopy, m.notes().get(0));
+
+        m.apply(NoteListMerger.Source.SHARED, Collections.singletonList(NoteListMerger.Edit.remove(ME + "#a")));
+        assertSame(mineCopy, m.notes().get(0));
+    }
+
+    @Test
+    public void contentOnlyEdit_isSingleUpdate_andMissingRemoveIsNoop() {
+        NoteListMerger m = new NoteListMerger();
+        m.apply(NoteListMerger.Source.MINE, Arrays.asList(
+                NoteListMerger.Edit.upsert(note(ME, "a", "國文", 1, 1, "甲")),
+                NoteListMerger.Edit.upsert(note(ME, "b", "國文", 1, 2, "乙"))));
+        Note edited = note(ME, "b", "國文", 1, 2, "乙");
+        edited.setContent("新內容");
+
+        List<NoteListMerger.Change> c = m.apply(NoteListMerger.Source.MINE,
+                Collections.singletonList(NoteListMerger.Edit.upsert(edited)));
+        assertEquals(1, c.size());
+        assertEquals(NoteListMerger.Change.Type.UPDATE, c.get(0).type);
+        assertEquals(1, c.get(0).index);
+
+        assertTrue(m.apply(NoteListMerger.Source.MINE,
+                Collections.singletonList(NoteListMerger.Edit.remove(ME + "#missing"))).isEmpty());
+    }
+
+    @Test
+    public void stacks_trackNonEmptyCategories() {
+        NoteListMerger m = new NoteListMerger();
+        m.apply(NoteListMerger.Source.MINE, Arrays.asList(
+                NoteListMerger.Edit.upsert(note(ME, "a", "國文", 1, 1, "甲")),
+                NoteListMerger.Edit.upsert(note(ME, "b", "國文", 1, 2, "乙")),
+                NoteListMerger.Edit.upsert(note(ME, "c", " ", 1, 1, "丙"))));
+        assertEquals(Collections.singleton("國文"), m.stacks());
+
+        m.apply(NoteListMerger.Source.MINE, Collections.singletonList(
+                NoteListMerger.Edit.upsert(note(ME, "a", "英文", 1, 1, "甲"))));
+        assertEquals(2, m.stacks().size());
+        m.apply(NoteListMerger.Source.MINE, Collections.singletonList(NoteListMerger.Edit.remove(ME + "#b")));
+        assertEquals(Collections.singleton("英文"), m.stacks());
+    }
+
+    @Test
+    public void firstLoad_isSingleReset() {
+        NoteListMerger m = new NoteListMerger();
+        List<NoteListMerger.Change> c = m.apply(NoteListMerger.Source.MINE, edits(ME, 500));
+        assertEquals(1, c.size());
+        assertEquals(NoteListMerger.Change.Type.RESET, c.get(0).type);
+        assertEquals(500, m.size());
+    }
+
+    // ================== 5000 筆量測 ==================
+
+    /** 舊做法（清空、putAll、整份排序）與增量套用一筆標題修改的耗時比較 */
+    @Test
+    public void benchmark_5000Notes_fullRebuildVsIncremental() {
+        final int n = 5000, rounds = 200;
+        List<NoteListMerger.Edit> initial = edits(ME, n);
+        Map<String, Note> source = new HashMap<>();
+        for (NoteListMerger.Edit e : initial) source.put(e.key, e.note);
+
+        NoteListMerger m = new NoteListMerger();
+        m.apply(NoteListMerger.Source.MINE, initial);
+        Map<String, Note> mergeMap = new HashMap<>();
+
+        Random r = new Random(11);
+        long fullNs = 0, incNs = 0;
+        int changed = 0;
+        for (int i = 0; i < rounds + 20; i++) {
+            String id = "n" + r.nextInt(n);
+            Note old = source.get(ME + "#" + id);
+            Note edited = note(ME, id, old.getStack(), old.getChapter(), old.getSection(), "改" + i);
+            source.put(ME + "#" + id, edited);
+
+            long t0 = System.nanoTime();
+            mergeMap.clear();
+            mergeMap.putAll(source);
+            List<Note> merged = new ArrayList<>(mergeMap.values());
+            Collections.sort(merged, NoteListMerger.ORDER);
+            long t1 = System.nanoTime();
+            List<NoteListMerger.Change> c = m.apply(NoteListMerger.Source.MINE,
+                    Collections.singletonList(NoteListMerger.Edit.upsert(edited)));
+            long t2 = System.nanoTime();
+
+            if (i >= 20) { // 前 20 輪暖身
+                fullNs += t1 - t0;
+                incNs += t2 - t1;
+                changed += c.size();
+            }
+            if (i == rounds + 19) assertEquals(merged, m.notes());
+        }
+        assertTrue("每次最多移除 + 插入兩個變動", changed <= rounds * 2);
+
+        // 計時比較在負載高的 CI 上不可靠：只在 -Painote.bench=true 時比
+        if (Boolean.getBoolean("ainote.bench")) {
+            assertTrue("incremental should beat full rebuild", incNs < fullNs);
+        }
+    }
+
+    // ================== helpers ==================
+
+    private static List<NoteListMerger.Edit> edits(String owner, int n) {
+        Random r = new Random(n);
+        List<NoteListMerger.Edit> out = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            out.add(NoteListMerger.Edit.upsert(note(owner, "n" + i, STACKS[r.nextInt(STACKS.length)],
+                    1 + r.nextInt(20), 1 + r.nextInt(10), "筆記 " + i)));
+        }
+        return out;
+    }
+
+    private static Note note(String owner, String id, String stack, int chapter, int section, String title) {
+        Note n = new Note();
+        n.setOwnerId(owner);
+        n.setId(id);
+        n.setStack(stack);
+        n.setChapter(chapter);
+        n.setSection(section);
+        n.setTitle(title);
+        n.setShared(!ME.equals(owner));
+        return n;
+    }
+
+    /** 把回傳的變動套到另一份清單上，模擬 NoteAdapter.applyChanges */
+    private static void replay(List<Note> rows, List<NoteListMerger.Change> changes, List<Note> current) {
+        for (NoteListMerger.Change c : changes) {
+            switch (c.type) {
+                case RESET: rows.clear(); rows.addAll(current); return;
+                case INSERT: rows.add(c.index, c.note); break;
+                case REMOVE: rows.remove(c.index); break;
+                case UPDATE: rows.set(c.index, c.note); break;
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.ld.ainote.data;
+
+import com.ld.ainote.models.Note;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * NoteSearchIndex：中文 bigram / 英數單字斷詞、前綴、增量更新與排序；
+ * 並以 10k 筆與 NoteAdapter 原本的 toLowerCase + contains 逐筆比對比較耗時（計時比較預設略過，-Painote.bench=true 才比）。
+ */
+public class NoteSearchIndexTest {
+
+    @Test
+    public void tokens_cjkBigramsPlusLastChar_latinWords() {
+        assertEquals(Arrays.asList("粒線", "線體", "體", "atp", "能量", "量"),
+                NoteSearchIndex.tokens("粒線體 ATP，能量"));
+        assertEquals(Arrays.asList("dna", "複製", "製"), NoteSearchIndex.tokens("ＤＮＡ複製"));
+        assertTrue(NoteSearchIndex.tokens("  ，。！ ").isEmpty());
+    }
+
+    @Test
+    public void parseQuery_lastWordAndSingleCharArePrefixes() {
+        assertEquals("[mito*]", NoteSearchIndex.parseQuery("Mito").toString());
+        assertEquals("[cell, mito*]", NoteSearchIndex.parseQuery("cell mito").toString());
+        assertEquals("[粒線, 線體]", NoteSearchIndex.parseQuery("粒線體").toString());
+        assertEquals("[細*]", NoteSearchIndex.parseQuery("細").toString());
+        assertFalse(NoteSearchIndex.isIndexable("？！"));
+    }
+
+    @Test
+    public void search_prefixAndCjk() {
+        NoteSearchIndex idx = new NoteSearchIndex();
+        Note a = note("a", "細胞構造", "粒線體是 mitochondria，能量工廠");
+        Note b = note("b", "光合作用", "葉綠體 chloroplast");
+        Note c = note("c", "英文單字", "mitosis 有絲分裂");
+        idx.put(a);
+        idx.put(b);
+        idx.put(c);
+
+        assertEquals(Arrays.asList(a, c), sortById(idx.search("mito", 0)));
+        assertEquals(Collections.singletonList(a), idx.search("mitoc", 0));
+        assertEquals(Collections.singletonList(a), idx.search("粒線體", 0));
+        assertEquals(Arrays.asList(a, b), sortById(idx.search("體", 0))); // 單字：bigram 開頭或段落結尾
+        assertEquals(Collections.singletonList(b), idx.search("綠 chloro", 0));
+        assertTrue(idx.search("粒線體 chloro", 0).isEmpty());
+    }
+
+    @Test
+    public void search_ranksTitleAboveContent() {
+        NoteSearchIndex idx = new NoteSearchIndex();
+        Note inContent = note("a", "期中複習", "這一段提到酵素的活化能");
+        Note inTitle = note("b", "酵素", "催化反應");
+        idx.put(inContent);
+        idx.put(inTitle);
+        assertEquals(Arrays.asList(inTitle, inContent), idx.search("酵素", 0));
+        assertEquals(1, idx.search("酵素", 1).size());
+    }
+
+    @Test
+    public void incrementalUpdateAndRemove_andCompaction() {
+        NoteSearchIndex idx = new NoteSearchIndex();
+        Note v1 = note("a", "細胞", "粒線體");
+        idx.put(v1);
+        Note v2 = note("a", "細胞", "葉綠體");
+        idx.put(v2);
+        assertTrue(idx.search("粒線", 0).isEmpty());
+        assertEquals(Collections.singletonList(v2), idx.search("葉綠", 0));
+        assertEquals(1, idx.size());
+
+        idx.remove(v2);
+        assertTrue(idx.search("細胞", 0).isEmpty());
+
+        // 反覆更新觸發 compact，結果仍正確
+        Note keep = note("k", "保留", "常駐");
+        idx.put(keep);
+        for (int i = 0; i < 500; i++) idx.put(note("x" + (i % 5), "暫時 " + i, "內容"));
+        assertEquals(6, idx.size());
+        assertEquals(Collections.singletonList(keep), idx.search("常駐", 0));
+        assertEquals(5, idx.search("暫時", 0).size());
+        assertEquals(1, idx.search("499", 0).size());
+    }
+
+    // ================== 10k 筆量測 ==================
+
+    private static final String[] WORDS_ZH = { "細胞", "粒線體", "葉綠體", "光合作用", "酵素", "活化能", "遺傳",
+            "染色體", "演化", "生態系", "三角函數", "微積分", "詩經", "唐詩", "宋詞", "文言文", "工業革命", "民主" };
+    private static final String[] WORDS_EN = { "mitochondria", "enzyme", "energy", "photosynthesis", "derivative",
+            "integral", "revolution", "democracy", "vocabulary", "grammar", "cell", "membrane" };
+
+    /** 原本 NoteAdapter.rebuild 的過濾方式 */
+    private static List<Note> scan(List<Note> all, String keyword) {
+        String kw = keyword.toLowerCase(Locale.ROOT);
+        List<Note> out = new ArrayList<>();
+        for (Note n : all) {
+            String t = n.getTitle() == null ? "" : n.getTitle().toLowerCase(Locale.ROOT);
+            String c = n.getContent() == null ? "" : n.getContent().toLowerCase(Locale.ROOT);
+            if (t.contains(kw) || c.contains(kw)) out.add(n);
+        }
+        return out;
+    }
+
+    @Test
+    public void benchmark_10kNotes_indexVsScan() {
+        Random r = new Random(3);
+        List<Note> all = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            StringBuilder content = new StringBuilder();
+            for (int w = 0; w < 60; w++) {
+                content.append(r.nextInt(3) == 0 ? WORDS_EN[r.nextInt(WORDS_EN.length)]
+                        : WORDS_ZH[r.nextInt(WORDS_ZH.length)]).append(r.nextInt(4) == 0 ? "。" : " ");
+            }
+            all.add(note("n" + i, WORDS_ZH[r.nextInt(WORDS_ZH.length)] + " 第" + i + "節", content.toString()));
+        }
+
+        NoteSearchIndex idx = new NoteSearchIndex();
+        for (Note n : all) idx.put(n);
+
+        // 逐字輸入的查詢序列（每個前綴都是一次搜尋）
+        String[] typed = { "粒", "粒線", "粒線體", "m", "mi", "mit", "mito", "酵素 e", "酵素 en", "酵素 ene",
+                "光合作用", "微積分 int" };
+        for (int warm = 0; warm < 3; warm++) {
+            for (String q : typed) { idx.search(q, 0); scan(all, q); }
+        }
+
+        long idxNs = 0, scanNs = 0;
+        int rounds = 5;
+        for (int round = 0; round < rounds; round++) {
+            for (String q : typed) {
+                long a = System.nanoTime();
+                List<Note> hits = idx.search(q, 0);
+                long b = System.nanoTime();
+                List<Note> expected = scan(all, q);
+                long c = System.nanoTime();
+                idxNs += b - a;
+                scanNs += c - b;
+
+                // 中文查詢：逐字比對命中的筆記索引也都要找得到（索引可能多出「bigram 都在但不相連」的筆記）
+                // 英數是單字前綴，與 contains 的字中比對本來就不同，不比較
+                if (round == 0 && q.matches("[^a-z ]+")) {
+                    Set<Note> got = Collections.newSetFromMap(new IdentityHashMap<>());
+                    got.addAll(hits);
+                    for (Note n : expected) assertTrue(q + " missed " + n.getId(), got.contains(n));
+                    assertFalse(q, expected.isEmpty());
+                }
+            }
+        }
+        // 計時比較在負載高的 CI 上不可靠：只在 -Painote.bench=true 時比
+        if (Boolean.getBoolean("ainote.bench")) {
+            assertTrue("index should beat scan", idxNs < scanNs);
+        }
+    }
+
+    // ================== helpers ==================
+
+    private static Note note(String id, String title, String content) {
+        Note n = new Note(title, content);
+        n.setId(id);
+        n.setOwnerId("me");
+        return n;
+    }
+
+    private static List<Note> sortById(List<Note> in) {
+        List<Note> out = new ArrayList<>(in);
+        out.sort((a, b) -> a.getId().compareTo(b.getId()));
+        return out;
+    }
+}
@@ -0,0 +1,48 @@
+package com.ld.ainote.data;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * PagedNoteSource.PageOwnership：跨頁移動時 ADDED / REMOVED 到達順序不同，結果都一樣；重新掛上後對帳。
+ */
+public class PageOwnershipTest {
+
+    @Test
+    public void moveAcrossPages_addedBeforeRemoved_keepsNote() {
+        PagedNoteSource.PageOwnership o = new PagedNoteSource.PageOwnership();
+        o.upsert("me#a", 0);
+        o.upsert("me#a", 2);                 // 新頁先到
+        assertFalse(o.remove("me#a", 0));    // 舊頁的 REMOVED 不能刪
+        assertEquals(1, o.size());
+        assertTrue(o.remove("me#a", 2));
+        assertEquals(0, o.size());
+    }
+
+    @Test
+    public void moveAcrossPages_removedBeforeAdded_keepsNote() {
+        PagedNoteSource.PageOwnership o = new PagedNoteSource.PageOwnership();
+        o.upsert("me#a", 0);
+        assertTrue(o.remove("me#a", 0));
+        o.upsert("me#a", 1);
+        assertEquals(1, o.size());
+        assertFalse(o.remove("missing", 1));
+    }
+
+    @Test
+    public void reconcile_dropsOnlyThisPagesMissingKeys() {
+        PagedNoteSource.PageOwnership o = new PagedNoteSource.PageOwnership();
+        o.upsert("a", 0);
+        o.upsert("b", 0);
+        o.upsert("c", 1);
+        assertEquals(Collections.singletonList("b"), o.reconcile(0, new HashSet<>(Arrays.asList("a", "x"))));
+        assertTrue(o.reconcile(0, new HashSet<>(Collections.singletonList("a"))).isEmpty());
+        assertEquals(2, o.size());
+        assertTrue(o.remove("c", 1));
+    }
+}
@@ -0,0 +1,314 @@
+package com.ld.ainote.data.outbox;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.android.gms.tasks.Task;
+import com.ld.ainote.net.CloudFunctionClient;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * WriteOutbox 的狀態轉換：排入 → 送達（刪除、通知）/ 暫時失敗（留著重送）/ 被拒絕（failed，可列出、重送、捨棄），
+ * 以及同一 block 連續更新的合併與版號接續。DAO 與送出都換成記憶體替身。
+ */
+public class WriteOutboxTest {
+
+    private final MemoryDao dao = new MemoryDao();
+    private final ScriptedSender sender = new ScriptedSender();
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+    private WriteOutbox outbox() {
+        WriteOutbox o = new WriteOutbox(dao, sender);
+        o.addListener(new WriteOutbox.Listener() {
+            @Override public void onRejected(@NonNull OutboxEntry e, @NonNull Exception error) {
+                events.add("rejected:" + e.blockId());
+            }
+            @Override public void onDelivered(@NonNull OutboxEntry e) {
+                events.add("delivered:" + e.blockId());
+            }
+        });
+        return o;
+    }
+
+    @Test
+    public void enqueue_thenDelivered_removesRowAndNotifies() throws Exception {
+        WriteOutbox o = outbox();
+        await(o.enqueue(update("a", "hello", 1)));
+
+        assertEquals("delivered:a", next());
+        assertEquals("hello", new JSONObject(sender.sent.get(0)).getString("text"));
+        assertEquals(0, (int) await(o.pendingCount()));
+        assertTrue(await(o.failedEntries()).isEmpty());
+    }
+
+    @Test
+    public void rejected_isParkedAndListed_laterWritesStillGo() throws Exception {
+        sender.script.add(new CloudFunctionClient.CloudFunctionException(409, "{\"error\":\"Version conflict\"}"));
+        WriteOutbox o = outbox();
+        await(o.enqueue(update("a", "mine", 1)));
+        assertEquals("rejected:a", next());
+
+        await(o.enqueue(update("b", "other", 1)));
+        assertEquals("delivered:b", next());
+
+        List<OutboxEntry> failed = await(o.failedEntries());
+        assertEquals(1, failed.size());
+        assertEquals("a", failed.get(0).blockId());
+        assertEquals("mine", failed.get(0).bodyString("text"));
+        assertTrue(failed.get(0).lastError.contains("409"));
+        assertEquals(0, (int) await(o.pendingCount()));
+    }
+
+    @Test
+    public void retryFailed_resendsAndDelivers() throws Exception {
+        sender.script.add(new CloudFunctionClient.CloudFunctionException(403, "{}"));
+        WriteOutbox o = outbox();
+        await(o.enqueue(update("a", "mine", 1)));
+        assertEquals("rejected:a", next());
+
+        o.retryFailed();
+        assertEquals("delivered:a", next());
+        assertTrue(await(o.failedEntries()).isEmpty());
+        assertEquals(2, sender.sent.size());
+    }
+
+    @Test
+    public void discard_dropsOnlyFailedRows() throws Exception {
+        sender.script.add(new CloudFunctionClient.CloudFunctionException(404, "{}"));
+        WriteOutbox o = outbox();
+        await(o.enqueue(update("a", "gone", 1)));
+        assertEquals("rejected:a", next());
+
+        o.discard(await(o.failedEntries()));
+        assertTrue(await(o.failedEntries()).isEmpty());
+        assertTrue(dao.rows.isEmpty());
+    }
+
+    @Test
+    public void transientError_keepsRowPending_untilNextFlush() throws Exception {
+        sender.script.add(new IOException("offline"));
+        sender.script.add(new CloudFunctionClient.CloudFunctionException(503, "{}"));
+        WriteOutbox o = outbox();
+        await(o.enqueue(update("a", "v1", 1)));
+        sender.awaitCalls(1);
+        // 已送過一次的不合併（伺服器可能已用那把 key 套用），另排一筆；
+        // 排入本身會觸發一次送出 → 503：仍是暫時性錯誤（測試不要再自己 flush，否則會搶在斷言前送達）
+        await(o.enqueue(update("a", "v2", 1)));
+        sender.awaitCalls(2);
+        assertEquals(2, (int) await(o.pendingCount()));
+        assertTrue(events.isEmpty());
+
+        o.flush();                        // 恢復連線
+        assertEquals("delivered:a", next());
+        assertEquals("delivered:a", next());
+        assertEquals(0, (int) await(o.pendingCount()));
+        // 第二筆的基準版號換成第一筆成功後的伺服器版號
+        assertEquals(2, new JSONObject(sender.sent.get(3)).getLong("expectedVersion"));
+    }
+
+    @Test
+    public void nonIoError_isRejected_notRetriedForever() throws Exception {
+        sender.script.add(new JSONException("bad body"));
+        WriteOutbox o = outbox();
+        await(o.enqueue(update("a", "broken", 1)));
+        assertEquals("rejected:a", next());
+
+        await(o.enqueue(update("b", "later", 1)));
+        assertEquals("delivered:b", next());
+        assertEquals(1, await(o.failedEntries()).size());
+        assertEquals(0, (int) await(o.pendingCount()));
+    }
+
+    @Test
+    public void queuedUpdates_toSameBlock_mergeKeepingFirstVersion() throws Exception {
+        sender.hold = new CountDownLatch(1);
+        WriteOutbox o = outbox();
+        await(o.enqueue(update("x", "block other writes", 1)));
+        sender.awaitCalls(1);              // x 送出中
+        await(o.enqueue(update("a", "v1", 4)));
+        await(o.enqueue(update("a", "v2", 5)));
+        assertEquals(2, (int) await(o.pendingCount()));
+        sender.hold.countDown();
+
+        assertEquals("delivered:x", next());
+        assertEquals("delivered:a", next());
+        JSONObject a = new JSONObject(sender.sent.get(1));
+        assertEquals("v2", a.getString("text"));
+        assertEquals(4, a.getLong("expectedVersion"));
+    }
+
+    @Test
+    public void lockRelease_goesAfterQueuedUpdate_andIsDroppedWhenRejected() throws Exception {
+        sender.script.add(null);
+        sender.script.add(new CloudFunctionClient.CloudFunctionException(409, "{}")); // release：鎖已過期
+        WriteOutbox o = outbox();
+        await(o.enqueue(update("a", "offline edit", 1)));
+        await(o.enqueue(release("a")));
+        assertEquals("delivered:a", next());
+
+        await(o.enqueue(update("b", "later", 1)));
+        assertEquals("delivered:b", next());
+        assertEquals("offline edit", new JSONObject(sender.sent.get(0)).getString("text"));
+        assertFalse(new JSONObject(sender.sent.get(1)).has("text"));
+        // 被拒絕的 release 沒有內容要還原：不通知、不留在 failed
+        assertTrue(events.isEmpty());
+        assertTrue(await(o.failedEntries()).isEmpty());
+        assertTrue(dao.rows.isEmpty());
+    }
+
+    @Test
+    public void ioKey_matchesRepositoryKeys() throws Exception {
+        assertEquals("me/n1", WriteOutbox.ioKeyOf(update("a", "x", 1)));
+        OutboxEntry note = OutboxEntry.of(OutboxEntry.UPDATE_NOTE, "updatenote", 30000,
+                OutboxEntry.noteTarget("me", "n1"), new JSONObject().put("id", "n1"), -1);
+        assertEquals("me/n1", WriteOutbox.ioKeyOf(note));
+    }
+
+    // ================== helpers ==================
+
+    private static OutboxEntry release(String blockId) throws Exception {
+        JSONObject body = new JSONObject().put("ownerId", "me").put("noteId", "n1")
+                .put("blockId", blockId).put("id", blockId);
+        return OutboxEntry.of(OutboxEntry.RELEASE_LOCK, "releaseblocklock", 10000,
+                OutboxEntry.blockTarget(blockId), body, -1);
+    }
+
+    private static OutboxEntry update(String blockId, String text, long version) throws Exception {
+        JSONObject body = new JSONObject().put("ownerId", "me").put("noteId", "n1")
+                .put("blockId", blockId).put("text", text).put("expectedVersion", version);
+        return OutboxEntry.of(OutboxEntry.UPDATE_BLOCK, "updateblock", 30000,
+                OutboxEntry.blockTarget(blockId), body, version);
+    }
+
+    private String next() throws InterruptedException {
+        String e = events.poll(5, TimeUnit.SECONDS);
+        assertNotNull("no outbox event", e);
+        return e;
+    }
+
+    /** 不用 Tasks.await：JVM 單元測試沒有 main Looper */
+    private static <T> T await(Task<T> task) throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        task.addOnCompleteListener(Runnable::run, t -> done.countDown());
+        assertTrue("task timeout", done.await(5, TimeUnit.SECONDS));
+        if (!task.isSuccessful()) throw task.getException();
+        return task.getResult();
+    }
+
+    /** 依序回傳預先排好的錯誤（null 表示這次成功）；沒排就成功並回傳 expectedVersion + 1 */
+    private static final class ScriptedSender implements WriteOutbox.Sender {
+        final List<Exception> script = Collections.synchronizedList(new ArrayList<>());
+        final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        volatile CountDownLatch hold;
+
+        @NonNull @Override
+        public String send(@NonNull OutboxEntry e) throws Exception {
+            String body = e.bodyForSend();
+            synchronized (this) {
+                sent.add(body);
+                notifyAll();
+            }
+            CountDownLatch h = hold;
+            if (h != null && !h.await(5, TimeUnit.SECONDS)) throw new IOException("hold timeout");
+            hold = null;
+            Exception scripted = script.isEmpty() ? null : script.remove(0);
+            if (scripted != null) throw scripted;
+            return new JSONObject().put("success", true).put("version", e.expectedVersion + 1).toString();
+        }
+
+        synchronized void awaitCalls(int n) throws InterruptedException {
+            long until = System.currentTimeMillis() + 5000;
+            while (sent.size() < n) {
+                long left = until - System.currentTimeMillis();
+                if (left <= 0) fail("sender called " + sent.size() + " times, expected " + n);
+                wait(left);
+            }
+        }
+    }
+
+    /** 行為比照 OutboxDao 的 SQL；和 Room 一樣每次查詢回傳新的物件 */
+    private static final class MemoryDao implements OutboxDao {
+        final TreeMap<Long, OutboxEntry> rows = new TreeMap<>();
+        private long seq;
+
+        @Override public synchronized long insert(OutboxEntry e) {
+            e.seq = ++seq;
+            rows.put(e.seq, copy(e));
+            return e.seq;
+        }
+
+        @Override public synchronized void update(OutboxEntry e) {
+            if (rows.containsKey(e.seq)) rows.put(e.seq, copy(e));
+        }
+
+        @Override public synchronized void delete(OutboxEntry e) { rows.remove(e.seq); }
+
+        @Nullable @Override public synchronized OutboxEntry peek() {
+            for (OutboxEntry e : rows.values()) if (!e.failed) return copy(e);
+            return null;
+        }
+
+        @Nullable @Override public synchronized OutboxEntry latestFor(String target) {
+            for (OutboxEntry e : rows.descendingMap().values()) {
+                if (!e.failed && target.equals(e.target)) return copy(e);
+            }
+            return null;
+        }
+
+        @Override public synchronized void rebaseVersion(String target, long afterSeq, long version) {
+            for (OutboxEntry e : rows.values()) {
+                if (!e.failed && target.equals(e.target) && e.seq > afterSeq && e.expectedVersion >= 0) {
+                    e.expectedVersion = version;
+                }
+            }
+        }
+
+        @Override public synchronized int pendingCount() {
+            int n = 0;
+            for (OutboxEntry e : rows.values()) if (!e.failed) n++;
+            return n;
+        }
+
+        @Override public synchronized List<OutboxEntry> failedEntries() {
+            List<OutboxEntry> out = new ArrayList<>();
+            for (OutboxEntry e : rows.values()) if (e.failed) out.add(copy(e));
+            return out;
+        }
+
+        @Override public synchronized void clearFailed() { rows.values().removeIf(e -> e.failed); }
+
+        @Override public synchronized void clearAll() { rows.clear(); }
+
+        private static OutboxEntry copy(OutboxEntry e) {
+            OutboxEntry c = new OutboxEntry();
+            c.seq = e.seq;
+            c.kind = e.kind;
+            c.endpoint = e.endpoint;
+            c.readTimeoutMs = e.readTimeoutMs;
+            c.target = e.target;
+            c.body = e.body;
+            c.expectedVersion = e.expectedVersion;
+            c.idempotencyKey = e.idempotencyKey;
+            c.attempts = e.attempts;
+            c.lastError = e.lastError;
+            c.failed = e.failed;
+            c.createdAt = e.createdAt;
+            return c;
+        }
+    }
+}
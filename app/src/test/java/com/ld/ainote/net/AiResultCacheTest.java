@@ -0,0 +1,126 @@
+package com.ld.ainote.net;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * AiResultCache：key 正規化、TTL、來源版本作廢、位元組上限的 LRU 淘汰、重啟後仍有效。
+ */
+public class AiResultCacheTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final long[] now = { 1_000_000L };
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = tmp.newFolder("ai-cache");
+    }
+
+    private AiResultCache cache(long maxBytes, long ttlMs) {
+        return new AiResultCache(dir, maxBytes, ttlMs, () -> now[0]);
+    }
+
+    @Test
+    public void key_ignoresWhitespaceNoise_butNotSettings() {
+        String a = AiResultCache.keyOf("summary", "gpt-4o-mini", "筆記\r\n重點一  \n\n\n\n重點二\n", null, 5);
+        String b = AiResultCache.keyOf("summary", "gpt-4o-mini", "筆記\n重點一\n\n重點二", null, 5);
+        assertEquals(a, b);
+        assertNotEquals(a, AiResultCache.keyOf("quiz", "gpt-4o-mini", "筆記\n重點一\n\n重點二", null, 5));
+        assertNotEquals(a, AiResultCache.keyOf("summary", "gpt-4o", "筆記\n重點一\n\n重點二", null, 5));
+        assertNotEquals(a, AiResultCache.keyOf("summary", "gpt-4o-mini", "筆記\n重點一\n\n重點二", 12, 5));
+        assertNotEquals(a, AiResultCache.keyOf("summary", "gpt-4o-mini", "筆記\n重點一\n\n重點二", null, 6));
+    }
+
+    @Test
+    public void hitMissAndTtl() {
+        AiResultCache c = cache(1 << 20, 60_000);
+        String sources = AiResultCache.sourcesOf(Arrays.asList("u/n1/b1@3", "u/n1/b2@1"));
+        assertNull(c.get("k", sources));
+        c.put("k", sources, "- 重點一\n- 重點二");
+        assertEquals("- 重點一\n- 重點二", c.get("k", sources));
+        assertEquals(1, c.hits());
+        assertEquals(1, c.misses());
+
+        now[0] += 60_001;
+        assertNull(c.get("k", sources));
+        assertTrue(c.statsLine(), c.statsLine().contains("expired=1"));
+        assertFalse(new File(dir, "k").exists());
+    }
+
+    @Test
+    public void changedBlockVersion_invalidates() {
+        AiResultCache c = cache(1 << 20, 60_000);
+        String before = AiResultCache.sourcesOf(Arrays.asList("u/n1/b1@3", "u/n1/b2@1"));
+        String reordered = AiResultCache.sourcesOf(Arrays.asList("u/n1/b2@1", "u/n1/b1@3"));
+        String after = AiResultCache.sourcesOf(Arrays.asList("u/n1/b1@4", "u/n1/b2@1"));
+        assertEquals(before, reordered);
+
+        c.put("k", before, "舊結果");
+        assertEquals("舊結果", c.get("k", reordered));
+        assertNull(c.get("k", after));
+        assertTrue(c.statsLine(), c.statsLine().contains("invalidated=1"));
+        assertNull(c.get("k", before)); // 已刪除
+    }
+
+    @Test
+    public void byteLimit_evictsLeastRecentlyUsed() {
+        String body = repeat('字', 100);
+        AiResultCache c = cache(1200, 60_000); // 每筆約 350 bytes，放得下 3 筆
+        c.put("a", null, body);
+        c.put("b", null, body);
+        c.put("c", null, body);
+        assertNotNull(c.get("a", null)); // a 變成最近使用
+        c.put("d", null, body);          // 超過上限 → 淘汰最久沒用的 b
+
+        assertNull(c.get("b", null));
+        assertNotNull(c.get("a", null));
+        assertNotNull(c.get("c", null));
+        assertNotNull(c.get("d", null));
+        assertTrue(c.statsLine(), c.statsLine().contains("evicted=1"));
+        assertEquals(3, dir.list().length);
+    }
+
+    @Test
+    public void survivesRestart_andDropsPartialWrites() throws Exception {
+        AiResultCache c = cache(1 << 20, 60_000);
+        c.put("k", "s", "結果");
+        assertTrue(new File(dir, "half.tmp").createNewFile());
+
+        AiResultCache reopened = cache(1 << 20, 60_000);
+        assertEquals("結果", reopened.get("k", "s"));
+        assertFalse(new File(dir, "half.tmp").exists());
+        assertTrue(reopened.statsLine(), reopened.statsLine().startsWith("ai-cache entries=1 "));
+    }
+
+    @Test
+    public void repeatedRun_returnsInMilliseconds() {
+        AiResultCache c = cache(AiResultCache.DEFAULT_MAX_BYTES, AiResultCache.DEFAULT_TTL_MS);
+        String prompt = repeat('筆', 20_000);
+        String key = AiResultCache.keyOf("summary", "gpt-4o-mini", prompt, null, 5);
+        c.put(key, "s", repeat('點', 4_000));
+
+        long t0 = System.nanoTime();
+        int rounds = 200;
+        for (int i = 0; i < rounds; i++) {
+            String k = AiResultCache.keyOf("summary", "gpt-4o-mini", prompt, null, 5);
+            assertNotNull(c.get(k, "s"));
+        }
+        double perMs = (System.nanoTime() - t0) / 1e6 / rounds;
+        assertTrue("hit should take milliseconds, not an API round-trip: " + perMs, perMs < 50);
+    }
+
+    private static String repeat(char ch, int n) {
+        char[] cs = new char[n];
+        Arrays.fill(cs, ch);
+        return new String(cs);
+    }
+}
@@ -0,0 +1,163 @@
+package com.ld.ainote.net;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * AiScheduler：worker 上限、相同請求合併、取消、優先順序與佇列上限。
+ */
+public class AiSchedulerTest {
+
+    @Test
+    public void boundedConcurrency() throws Exception {
+        AiScheduler s = new AiScheduler(2, 32);
+        AtomicInteger running = new AtomicInteger(), peak = new AtomicInteger();
+        Recorder r = new Recorder(6);
+        for (int i = 0; i < 6; i++) {
+            s.submit("k" + i, AiScheduler.Priority.INTERACTIVE, (out, token) -> {
+                peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(30);
+                running.decrementAndGet();
+                return "ok";
+            }, r, null);
+        }
+        assertTrue(r.done.await(5, TimeUnit.SECONDS));
+        assertEquals(2, peak.get());
+        assertEquals(6, r.results.size());
+    }
+
+    @Test
+    public void identicalInFlightRequests_runOnce_andLateJoinerGetsReplay() throws Exception {
+        AiScheduler s = new AiScheduler(2, 32);
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch firstDeltaSent = new CountDownLatch(1), joined = new CountDownLatch(1);
+        AiScheduler.Work work = (out, token) -> {
+            runs.incrementAndGet();
+            out.delta("重點");
+            firstDeltaSent.countDown();
+            joined.await(5, TimeUnit.SECONDS);
+            out.delta("一");
+            return "重點一";
+        };
+
+        Recorder a = new Recorder(1), b = new Recorder(1);
+        s.submit("same", AiScheduler.Priority.INTERACTIVE, work, a, null);
+        assertTrue(firstDeltaSent.await(5, TimeUnit.SECONDS));
+        s.submit("same", AiScheduler.Priority.INTERACTIVE, work, b, null);
+        joined.countDown();
+
+        assertTrue(a.done.await(5, TimeUnit.SECONDS));
+        assertTrue(b.done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, runs.get());
+        assertEquals("重點一", String.join("", a.deltas));
+        assertEquals("重點一", String.join("", b.deltas));   // 先補送已累積的「重點」
+        assertEquals(List.of("重點一"), b.results);
+        assertTrue(s.statsLine(), s.statsLine().contains("deduped=1"));
+    }
+
+    @Test
+    public void cancellingTheOnlySubscriber_abortsRunningWork_withoutCallbacks() throws Exception {
+        AiScheduler s = new AiScheduler(1, 32);
+        CountDownLatch started = new CountDownLatch(1), aborted = new CountDownLatch(1);
+        Recorder r = new Recorder(1);
+        CancelToken cancel = new CancelToken();
+        s.submit("long", AiScheduler.Priority.INTERACTIVE, (out, token) -> {
+            token.onCancel(aborted::countDown);
+            started.countDown();
+            aborted.await(5, TimeUnit.SECONDS);
+            return "too late";
+        }, r, cancel);
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        cancel.cancel();
+        assertTrue(aborted.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertTrue(r.results.isEmpty());
+        assertTrue(r.errors.isEmpty());
+        assertTrue(s.statsLine(), s.statsLine().contains("cancelled=1"));
+    }
+
+    @Test
+    public void sharedJob_keepsRunning_whileAnotherSubscriberRemains() throws Exception {
+        AiScheduler s = new AiScheduler(1, 32);
+        CountDownLatch release = new CountDownLatch(1);
+        AiScheduler.Work work = (out, token) -> {
+            release.await(5, TimeUnit.SECONDS);
+            return token.isCancelled() ? "cancelled" : "ok";
+        };
+        Recorder a = new Recorder(1), b = new Recorder(1);
+        CancelToken ca = new CancelToken();
+        s.submit("k", AiScheduler.Priority.INTERACTIVE, work, a, ca);
+        s.submit("k", AiScheduler.Priority.INTERACTIVE, work, b, null);
+        ca.cancel();
+        release.countDown();
+
+        assertTrue(b.done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("ok"), b.results);
+        assertTrue(a.results.isEmpty());
+    }
+
+    @Test
+    public void queuedCancelledWork_neverRuns_andInteractiveJumpsAhead() throws Exception {
+        AiScheduler s = new AiScheduler(1, 32);
+        CountDownLatch gate = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        Recorder r = new Recorder(4);
+        s.submit("busy", AiScheduler.Priority.INTERACTIVE, (out, t) -> { gate.await(5, TimeUnit.SECONDS); return "busy"; }, r, null);
+        Thread.sleep(50);
+
+        CancelToken cancel = new CancelToken();
+        s.submit("dropped", AiScheduler.Priority.BACKGROUND, (out, t) -> { order.add("dropped"); return "x"; }, new Recorder(1), cancel);
+        s.submit("bg1", AiScheduler.Priority.BACKGROUND, (out, t) -> { order.add("bg1"); return "bg1"; }, r, null);
+        s.submit("bg2", AiScheduler.Priority.BACKGROUND, (out, t) -> { order.add("bg2"); return "bg2"; }, r, null);
+        s.submit("ui", AiScheduler.Priority.INTERACTIVE, (out, t) -> { order.add("ui"); return "ui"; }, r, null);
+        cancel.cancel();
+        gate.countDown();
+
+        assertTrue(r.done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("ui", "bg1", "bg2"), order);
+    }
+
+    @Test
+    public void fullQueue_rejectsImmediately() throws Exception {
+        AiScheduler s = new AiScheduler(1, 1);
+        CountDownLatch gate = new CountDownLatch(1);
+        Recorder r = new Recorder(2);
+        s.submit("a", AiScheduler.Priority.INTERACTIVE, (out, t) -> { gate.await(5, TimeUnit.SECONDS); return "a"; }, r, null);
+        Thread.sleep(50);
+        s.submit("b", AiScheduler.Priority.INTERACTIVE, (out, t) -> "b", r, null);
+
+        Recorder rejected = new Recorder(1);
+        s.submit("c", AiScheduler.Priority.INTERACTIVE, (out, t) -> "c", rejected, null);
+        assertTrue(rejected.done.await(1, TimeUnit.SECONDS));
+        assertTrue(rejected.errors.get(0) instanceof RejectedExecutionException);
+
+        gate.countDown();
+        assertTrue(r.done.await(5, TimeUnit.SECONDS));
+        assertTrue(s.statsLine(), s.statsLine().contains("rejected=1"));
+    }
+
+    private static final class Recorder implements AiScheduler.Subscriber {
+        final List<String> deltas = Collections.synchronizedList(new ArrayList<>());
+        final List<String> results = Collections.synchronizedList(new ArrayList<>());
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done;
+
+        Recorder(int expected) { done = new CountDownLatch(expected); }
+
+        @Override public void onDelta(@NonNull String delta) { deltas.add(delta); }
+        @Override public void onSuccess(@NonNull String out) { results.add(out); done.countDown(); }
+        @Override public void onError(@NonNull Exception e) { errors.add(e); done.countDown(); }
+    }
+}
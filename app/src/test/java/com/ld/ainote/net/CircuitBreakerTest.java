@@ -0,0 +1,187 @@
+package com.ld.ainote.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.*;
+
+/**
+ * 斷路器：連續失敗 / 過慢就斷開，斷開期間不送出請求，時間到放一個探測請求。
+ */
+public class CircuitBreakerTest {
+
+    private final long[] now = {0};
+    private final CircuitBreaker.Config cfg = new CircuitBreaker.Config(3, 200, 1000, () -> now[0]);
+
+    private MockWebServer server;
+    private CloudFunctionClient client;
+    private final List<String> transitions = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        okhttp3.OkHttpClient http = CloudFunctionClient.buildDefaultHttp().newBuilder()
+                .readTimeout(2, TimeUnit.SECONDS)
+                .build();
+        client = new CloudFunctionClient(http, RetryPolicy.NONE, cfg);
+        client.setBreakerListener((ep, from, to) -> transitions.add(ep + ":" + from + "->" + to));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void opensAfterConsecutiveFailures_thenFailsFastWithoutRequest() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            server.enqueue(new MockResponse().setResponseCode(503));
+            expect503();
+        }
+        assertEquals(CircuitBreaker.State.OPEN, client.breakerState("setcollaborators"));
+
+        try {
+            client.postJson(endpoint(), "tok", "{}");
+            fail("expected circuit open");
+        } catch (CloudFunctionClient.CircuitOpenException e) {
+            assertEquals("setcollaborators", e.endpoint);
+            assertEquals(1000, e.retryInMs);
+        }
+        try {
+            client.failFastIfOpen("setcollaborators");
+            fail("expected circuit open");
+        } catch (CloudFunctionClient.CircuitOpenException expected) {}
+        assertEquals(3, server.getRequestCount());
+        assertTrue(client.breakerStatsLine().contains("setcollaborators OPEN opens=1 rejected=1"));
+    }
+
+    @Test
+    public void halfOpenProbe_successCloses_failureReopens() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            server.enqueue(new MockResponse().setResponseCode(500));
+            expectFailure();
+        }
+
+        now[0] = 1000;
+        server.enqueue(new MockResponse().setResponseCode(502));
+        expectFailure();                                      // 探測失敗 → 再斷開一輪
+        assertEquals(CircuitBreaker.State.OPEN, client.breakerState("setcollaborators"));
+
+        now[0] = 2500;
+        server.enqueue(new MockResponse().setBody("{\"success\":true}"));
+        assertEquals("{\"success\":true}", client.postJson(endpoint(), "tok", "{}"));
+        assertEquals(CircuitBreaker.State.CLOSED, client.breakerState("setcollaborators"));
+        client.failFastIfOpen("setcollaborators");
+
+        assertEquals(List.of(
+                "setcollaborators:CLOSED->OPEN",
+                "setcollaborators:OPEN->HALF_OPEN",
+                "setcollaborators:HALF_OPEN->OPEN",
+                "setcollaborators:OPEN->HALF_OPEN",
+                "setcollaborators:HALF_OPEN->CLOSED"), transitions);
+    }
+
+    @Test
+    public void clientErrors_doNotTrip_butSlowResponsesDo() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            server.enqueue(new MockResponse().setResponseCode(409));
+            try {
+                client.postJson(endpoint(), "tok", "{}");
+                fail("expected 409");
+            } catch (CloudFunctionClient.CloudFunctionException e) {
+                assertEquals(409, e.code);
+            }
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, client.breakerState("setcollaborators"));
+
+        for (int i = 0; i < 3; i++) {
+            server.enqueue(new MockResponse().setBody("ok").setBodyDelay(250, TimeUnit.MILLISECONDS));
+            assertEquals("ok", client.postJson(endpoint(), "tok", "{}"));
+        }
+        assertEquals(CircuitBreaker.State.OPEN, client.breakerState("setcollaborators"));
+        assertTrue(client.breakerStatsLine().contains("slow=3"));
+    }
+
+    @Test
+    public void nonRetryable5xx_stillCountsAsFailure() throws Exception {
+        // 會改寫資料又沒帶 key：不重試直接丟出，但端點故障仍要記進斷路器
+        CloudFunctionClient.Endpoint ep = new CloudFunctionClient.Endpoint("deletenote",
+                server.url("/deletenote").toString(), 1000, 2000, true);
+        for (int i = 0; i < 3; i++) {
+            server.enqueue(new MockResponse().setResponseCode(503));
+            try {
+                client.postJson(ep, "tok", "{}", null);
+                fail("expected 503");
+            } catch (CloudFunctionClient.CloudFunctionException e) {
+                assertEquals(503, e.code);
+            }
+        }
+        assertEquals(CircuitBreaker.State.OPEN, client.breakerState("deletenote"));
+    }
+
+    @Test
+    public void unreadableSuccessBody_isNotRetried_andKeepsBreakerClosed() throws Exception {
+        client = new CloudFunctionClient(CloudFunctionClient.buildDefaultHttp(),
+                new RetryPolicy(4, 100, 1000, 5000, ms -> {}), cfg);
+        for (int i = 0; i < 3; i++) {
+            server.enqueue(new MockResponse().setBody("{\"success\":true}"));
+            try {
+                client.postJson(endpoint(), "tok", "{}", "k" + i, body -> {
+                    throw new IOException("bad json");
+                });
+                fail("expected read failure");
+            } catch (CloudFunctionClient.ResponseReadException e) {
+                assertTrue(e.getMessage().contains("bad json"));
+            }
+        }
+        assertEquals(3, server.getRequestCount());
+        assertEquals(CircuitBreaker.State.CLOSED, client.breakerState("setcollaborators"));
+    }
+
+    @Test
+    public void halfOpen_allowsSingleProbe() {
+        CircuitBreaker b = new CircuitBreaker("x", cfg);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(b.tryAcquire());
+            b.onFailure();
+        }
+        assertFalse(b.tryAcquire());
+        now[0] = 1000;
+        assertTrue(b.tryAcquire());                            // 探測
+        assertFalse(b.tryAcquire());                           // 探測進行中，其他請求仍擋下
+        b.onSuccess(10);
+        assertTrue(b.tryAcquire());
+        assertEquals(CircuitBreaker.State.CLOSED, b.state());
+    }
+
+    private void expect503() throws Exception {
+        try {
+            client.postJson(endpoint(), "tok", "{}");
+            fail("expected 503");
+        } catch (CloudFunctionClient.CloudFunctionException e) {
+            assertEquals(503, e.code);
+        }
+    }
+
+    private void expectFailure() throws Exception {
+        try {
+            client.postJson(endpoint(), "tok", "{}");
+            fail("expected failure");
+        } catch (CloudFunctionClient.CloudFunctionException expected) {}
+    }
+
+    private CloudFunctionClient.Endpoint endpoint() {
+        return new CloudFunctionClient.Endpoint("setcollaborators",
+                server.url("/setcollaborators").toString(), 1000, 2000, true);
+    }
+}
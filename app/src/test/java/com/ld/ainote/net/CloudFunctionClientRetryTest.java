@@ -0,0 +1,204 @@
+package com.ld.ainote.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+
+import static org.junit.Assert.*;
+
+/**
+ * 重試規則：暫時性錯誤退避重試、尊重 Retry-After、重試沿用同一把 Idempotency-Key，
+ * 並依端點統計重試次數。
+ */
+public class CloudFunctionClientRetryTest {
+
+    private MockWebServer server;
+    private final List<Long> sleeps = new ArrayList<>();
+    private CloudFunctionClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        RetryPolicy policy = new RetryPolicy(4, 100, 1000, 5000, sleeps::add);
+        okhttp3.OkHttpClient http = CloudFunctionClient.buildDefaultHttp().newBuilder()
+                .readTimeout(500, TimeUnit.MILLISECONDS)
+                .build();
+        client = new CloudFunctionClient(http, policy);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void coldStart503_isRetried_withSameIdempotencyKey() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(503).setBody("cold"));
+        server.enqueue(new MockResponse().setResponseCode(502).setBody("bad gateway"));
+        server.enqueue(new MockResponse().setBody("{\"success\":true,\"id\":\"b1\"}"));
+
+        String resp = client.postJson(mutating("createblock"), "tok", "{}");
+
+        assertEquals("{\"success\":true,\"id\":\"b1\"}", resp);
+        assertEquals(3, server.getRequestCount());
+        String key = server.takeRequest().getHeader("Idempotency-Key");
+        assertNotNull(key);
+        assertEquals(key, server.takeRequest().getHeader("Idempotency-Key"));
+        assertEquals(key, server.takeRequest().getHeader("Idempotency-Key"));
+        assertEquals(2, client.retries("createblock"));
+        assertEquals(0, client.exhausted("createblock"));
+
+        // 全抖動：每次等待落在 [0, base * 2^(n-1)]
+        assertEquals(2, sleeps.size());
+        assertTrue(sleeps.get(0) <= 100);
+        assertTrue(sleeps.get(1) <= 200);
+    }
+
+    @Test
+    public void retryAfter_isHonoured_andCapped() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "2"));
+        server.enqueue(new MockResponse().setResponseCode(503).setHeader("Retry-After", "120"));
+        server.enqueue(new MockResponse().setBody("ok"));
+
+        assertEquals("ok", client.postJson(mutating("updateblock"), "tok", "{}"));
+        assertEquals(Long.valueOf(2000), sleeps.get(0));
+        assertEquals(Long.valueOf(5000), sleeps.get(1)); // 上限 maxRetryAfterMs
+    }
+
+    @Test
+    public void clientErrors_areNotRetried() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(409).setBody("{\"error\":\"Version conflict\"}"));
+
+        try {
+            client.postJson(mutating("updateblock"), "tok", "{}");
+            fail("expected 409");
+        } catch (CloudFunctionClient.CloudFunctionException e) {
+            assertEquals(409, e.code);
+        }
+        assertEquals(1, server.getRequestCount());
+        assertEquals(0, client.retries("updateblock"));
+        assertTrue(sleeps.isEmpty());
+    }
+
+    @Test
+    public void givesUp_afterMaxAttempts() throws Exception {
+        for (int i = 0; i < 4; i++) server.enqueue(new MockResponse().setResponseCode(503));
+
+        try {
+            client.postJson(mutating("createnote"), "tok", "{}");
+            fail("expected 503");
+        } catch (CloudFunctionClient.CloudFunctionException e) {
+            assertEquals(503, e.code);
+        }
+        assertEquals(4, server.getRequestCount());
+        assertEquals(3, client.retries("createnote"));
+        assertEquals(1, client.exhausted("createnote"));
+        assertTrue(client.retryStatsLine().contains("createnote calls=1 retries=3 exhausted=1"));
+    }
+
+    @Test
+    public void readTimeout_isRetried() throws Exception {
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+        server.enqueue(new MockResponse().setBody("ok"));
+
+        assertEquals("ok", client.postJson(mutating("createblock"), "tok", "{}"));
+        assertEquals(1, client.retries("createblock"));
+    }
+
+    @Test
+    public void readOnlyEndpoint_hasNoIdempotencyKey() throws Exception {
+        server.enqueue(new MockResponse().setBody("{}"));
+
+        client.postJson(new CloudFunctionClient.Endpoint("listblocks",
+                server.url("/listblocks").toString(), 1000, 1000), "tok", "{}");
+
+        RecordedRequest req = server.takeRequest();
+        assertNull(req.getHeader("Idempotency-Key"));
+    }
+
+    @Test
+    public void mutatingCallWithoutKey_isNotRetried() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setBody("{\"success\":true}"));
+
+        try {
+            // 第一次可能已生效（例如刪除）；沒有 key 讓後端去重就不能重送
+            client.postJson(mutating("deletenote"), "tok", "{}", null);
+            fail("expected 503");
+        } catch (CloudFunctionClient.CloudFunctionException e) {
+            assertEquals(503, e.code);
+        }
+        assertEquals(1, server.getRequestCount());
+        assertTrue(sleeps.isEmpty());
+    }
+
+    @Test
+    public void pendingCall_returnsBackoff_insteadOfSleeping() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(503).setHeader("Retry-After", "1"));
+        server.enqueue(new MockResponse().setBody("ok"));
+
+        CloudFunctionClient.PendingCall<String> call = client.newCall(mutating("releaseblocklock"), "tok", "{}",
+                "k1", okhttp3.ResponseBody::string, null);
+        assertEquals(1000, call.step());
+        assertEquals(-1, call.step());
+        assertEquals("ok", call.result());
+        assertTrue(sleeps.isEmpty());
+        assertEquals(1, client.retries("releaseblocklock"));
+        assertEquals("k1", server.takeRequest().getHeader("Idempotency-Key"));
+        assertEquals("k1", server.takeRequest().getHeader("Idempotency-Key"));
+    }
+
+    @Test
+    public void unauthorized_refreshesTokenOnce_andResends() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(401));
+        server.enqueue(new MockResponse().setBody("ok"));
+        server.enqueue(new MockResponse().setResponseCode(401));
+        server.enqueue(new MockResponse().setResponseCode(401));
+        List<String> rejected = new ArrayList<>();
+
+        CloudFunctionClient.PendingCall<String> call = client.newCall(mutating("updateblock"), "old", "{}",
+                "k1", okhttp3.ResponseBody::string, t -> { rejected.add(t); return "new"; });
+        assertEquals(0, call.step());
+        assertEquals(-1, call.step());
+        assertEquals("ok", call.result());
+        assertEquals("Bearer old", server.takeRequest().getHeader("Authorization"));
+        assertEquals("Bearer new", server.takeRequest().getHeader("Authorization"));
+        assertEquals(0, client.retries("updateblock"));
+
+        // 換過 token 仍被拒：不再換第二次
+        CloudFunctionClient.PendingCall<String> again = client.newCall(mutating("updateblock"), "old", "{}",
+                "k2", okhttp3.ResponseBody::string, t -> { rejected.add(t); return "new"; });
+        assertEquals(0, again.step());
+        try {
+            again.step();
+            fail("expected 401");
+        } catch (CloudFunctionClient.CloudFunctionException e) {
+            assertEquals(401, e.code);
+        }
+        assertEquals(java.util.Arrays.asList("old", "old"), rejected);
+    }
+
+    @Test
+    public void parseRetryAfter_httpDate() {
+        long now = 1_700_000_000_000L;
+        java.text.SimpleDateFormat f = new java.text.SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", java.util.Locale.US);
+        f.setTimeZone(java.util.TimeZone.getTimeZone("GMT"));
+        String date = f.format(new java.util.Date(now + 3000));
+        assertEquals(3000, RetryPolicy.parseRetryAfterMs(date, now));
+        assertEquals(-1, RetryPolicy.parseRetryAfterMs("soon", now));
+    }
+
+    private CloudFunctionClient.Endpoint mutating(String name) {
+        return new CloudFunctionClient.Endpoint(name, server.url("/" + name).toString(), 1000, 500, true);
+    }
+}
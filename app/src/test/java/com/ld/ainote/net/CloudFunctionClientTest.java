@@ -0,0 +1,120 @@
+package com.ld.ainote.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.*;
+
+/**
+ * CloudFunctionClient 對本機 MockWebServer 的行為與連線重用：
+ * 舊版 HttpURLConnection + disconnect() vs 共用連線池的 OkHttp。
+ */
+public class CloudFunctionClientTest {
+
+    private static final int ROUNDS = 50;
+
+    private MockWebServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void postJson_sendsBearerAndBody() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"success\":true}"));
+        CloudFunctionClient client = new CloudFunctionClient(CloudFunctionClient.buildDefaultHttp());
+
+        String resp = client.postJson(endpoint("listblocks"), "tok", "{\"noteId\":\"n1\"}");
+
+        assertEquals("{\"success\":true}", resp);
+        RecordedRequest req = server.takeRequest();
+        assertEquals("POST", req.getMethod());
+        assertEquals("Bearer tok", req.getHeader("Authorization"));
+        assertEquals("{\"noteId\":\"n1\"}", req.getBody().readUtf8());
+    }
+
+    @Test
+    public void postJson_non2xxKeepsStatusCode() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(409).setBody("{\"error\":\"Version conflict\"}"));
+        CloudFunctionClient client = new CloudFunctionClient(CloudFunctionClient.buildDefaultHttp());
+        try {
+            client.postJson(endpoint("updateblock"), "tok", "{}");
+            fail("expected CloudFunctionException");
+        } catch (CloudFunctionClient.CloudFunctionException e) {
+            assertEquals(409, e.code);
+            assertEquals("HTTP 409: {\"error\":\"Version conflict\"}", e.getMessage());
+        }
+    }
+
+    @Test
+    public void pooledClient_reusesConnection_legacyDoesNot() throws Exception {
+        CloudFunctionClient client = new CloudFunctionClient(CloudFunctionClient.buildDefaultHttp());
+        CloudFunctionClient.Endpoint ep = endpoint("updateblock");
+
+        // 舊路徑：每次 disconnect → 每個請求都是新連線上的第一個請求
+        for (int i = 0; i < ROUNDS; i++) server.enqueue(new MockResponse().setBody("{\"success\":true}"));
+        for (int i = 0; i < ROUNDS; i++) legacyPostJson(ep.url, "tok", "{\"i\":" + i + "}");
+        for (int i = 0; i < ROUNDS; i++) assertEquals(0, server.takeRequest().getSequenceNumber());
+
+        // 新路徑：共用連線池
+        for (int i = 0; i < ROUNDS; i++) server.enqueue(new MockResponse().setBody("{\"success\":true}"));
+        for (int i = 0; i < ROUNDS; i++) client.postJson(ep, "tok", "{\"i\":" + i + "}");
+        int maxSeq = 0;
+        for (int i = 0; i < ROUNDS; i++) maxSeq = Math.max(maxSeq, server.takeRequest().getSequenceNumber());
+        // 同一條連線上的請求序號遞增 → 代表連線被重用
+        assertEquals(ROUNDS - 1, maxSeq);
+    }
+
+    private CloudFunctionClient.Endpoint endpoint(String name) {
+        return new CloudFunctionClient.Endpoint(name, server.url("/" + name).toString(), 5000, 5000);
+    }
+
+    /** 舊版 Repository 的 postJson（每次 disconnect） */
+    private static String legacyPostJson(String urlStr, String idToken, String json) throws Exception {
+        HttpURLConnection conn = null;
+        try {
+            conn = (HttpURLConnection) new URL(urlStr).openConnection();
+            conn.setConnectTimeout(15000);
+            conn.setReadTimeout(30000);
+            conn.setRequestMethod("POST");
+            conn.setDoOutput(true);
+            conn.setRequestProperty("Authorization", "Bearer " + idToken);
+            conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            byte[] data = json.getBytes(StandardCharsets.UTF_8);
+            conn.setFixedLengthStreamingMode(data.length);
+            try (OutputStream os = new BufferedOutputStream(conn.getOutputStream())) {
+                os.write(data);
+            }
+            int code = conn.getResponseCode();
+            BufferedReader br = new BufferedReader(new InputStreamReader(
+                    code >= 200 && code < 300 ? conn.getInputStream() : conn.getErrorStream(),
+                    StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = br.readLine()) != null) sb.append(line);
+            return sb.toString();
+        } finally {
+            if (conn != null) conn.disconnect();
+        }
+    }
+}
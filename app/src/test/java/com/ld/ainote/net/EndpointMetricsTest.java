@@ -0,0 +1,112 @@
+package com.ld.ainote.net;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.*;
+
+/**
+ * 端點統計：直方圖百分位、每次呼叫的延遲 / 位元組 / 狀態碼，以及匯出檔案。
+ */
+public class EndpointMetricsTest {
+
+    private MockWebServer server;
+    private EndpointMetrics metrics;
+    private CloudFunctionClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        metrics = new EndpointMetrics();
+        RetryPolicy policy = new RetryPolicy(3, 0, 0, 0, ms -> {});
+        okhttp3.OkHttpClient http = CloudFunctionClient.buildDefaultHttp().newBuilder()
+                .readTimeout(1, TimeUnit.SECONDS)
+                .build();
+        client = new CloudFunctionClient(http, policy, CircuitBreaker.Config.DEFAULT, metrics);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void histogram_percentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.percentileMs(0.5));
+        for (int i = 1; i <= 100; i++) h.record(i);     // 1..100ms
+        assertEquals(100, h.count());
+        assertEquals(50, h.percentileMs(0.50));           // 桶上界
+        assertEquals(100, h.percentileMs(0.95));
+        assertEquals(100, h.percentileMs(0.99));
+        h.record(90_000);                                 // 超過最後一桶 → 觀測最大值
+        assertEquals(90_000, h.percentileMs(1.0));
+        assertEquals(90_000, h.maxMs());
+    }
+
+    @Test
+    public void recordsLatencyBytesAndStatuses_perLogicalCall() throws Exception {
+        String body = "{\"success\":true,\"blocks\":[]}";
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setBody(body));
+
+        String json = "{\"noteId\":\"n1\"}";
+        assertEquals(body, client.postJson(endpoint("listblocks"), "tok", json));
+
+        EndpointMetrics.Stats s = metrics.of("listblocks");
+        assertEquals(1, s.latency.count());               // 重試也只算一次邏輯呼叫
+        assertEquals(1, s.statusCount(503));
+        assertEquals(1, s.statusCount(200));
+        assertEquals(2L * json.length(), s.requestBytes());
+        assertTrue(s.responseBytes() >= body.length());
+
+        String dump = metrics.dump();
+        assertTrue(dump, dump.contains("listblocks"));
+        assertTrue(dump, dump.contains("status    200=1 503=1"));
+    }
+
+    @Test
+    public void connectionFailures_countAsIoError() throws Exception {
+        CloudFunctionClient.Endpoint dead = new CloudFunctionClient.Endpoint("deadend",
+                "http://127.0.0.1:1/deadend", 200, 200);
+        try {
+            client.postJson(dead, "tok", "{}");
+            fail("expected IOException");
+        } catch (java.io.IOException expected) {}
+        assertEquals(3, metrics.of("deadend").statusCount(EndpointMetrics.STATUS_IO_ERROR));
+    }
+
+    @Test
+    public void exportTo_writesJson() throws Exception {
+        metrics.recordLatency("updateblock", 120);
+        metrics.recordQueueWait("updateblock", 3);
+        metrics.recordTokenWait("updateblock", 40);
+        metrics.recordStatus("updateblock", 409);
+
+        File dir = Files.createTempDirectory("metrics").toFile();
+        File out = metrics.exportTo(new File(dir, "sub"), Collections.singletonMap("breaker", "updateblock CLOSED"));
+        JSONObject root = new JSONObject(new String(Files.readAllBytes(out.toPath()), StandardCharsets.UTF_8));
+
+        JSONObject ep = root.getJSONObject("endpoints").getJSONObject("updateblock");
+        assertEquals(120, ep.getJSONObject("latencyMs").getLong("p50"));   // 桶上界 150，但不超過觀測最大值
+        assertEquals(40, ep.getJSONObject("tokenWaitMs").getLong("max"));
+        assertEquals(1, ep.getJSONObject("status").getLong("409"));
+        assertEquals("updateblock CLOSED", root.getString("breaker"));
+    }
+
+    private CloudFunctionClient.Endpoint endpoint(String name) {
+        return new CloudFunctionClient.Endpoint(name, server.url("/" + name).toString(), 1000, 1000);
+    }
+}
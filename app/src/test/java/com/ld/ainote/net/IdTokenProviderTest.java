@@ -0,0 +1,150 @@
+package com.ld.ainote.net;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * IdTokenProvider：快取命中、多個呼叫端併入同一個更新，以及 401 後的強制刷新
+ * 不會拿到進行中的一般更新結果（那可能就是剛被拒絕的 token）。
+ */
+public class IdTokenProviderTest {
+
+    private static final long HOUR_MS = 60 * 60 * 1000L;
+
+    private final ExecutorService pool = Executors.newCachedThreadPool();
+
+    @After
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void freshToken_isServedFromCache() throws Exception {
+        FakeFetcher f = new FakeFetcher();
+        f.next.add("t1");
+        IdTokenProvider p = new IdTokenProvider(f);
+
+        assertEquals("t1", p.getToken());
+        assertEquals("t1", p.getToken());
+        assertEquals("t1", p.getToken());
+        assertEquals(Collections.singletonList(false), f.calls);
+        assertEquals(2, p.hits());
+        assertEquals(1, p.refreshes());
+    }
+
+    @Test
+    public void expiringToken_isRefreshedAhead() throws Exception {
+        FakeFetcher f = new FakeFetcher();
+        f.next.add("t1");
+        f.next.add("t2");
+        f.ttlMs = 60_000; // 一分鐘後過期：已在提前更新的範圍內
+        IdTokenProvider p = new IdTokenProvider(f);
+
+        assertEquals("t1", p.getToken());
+        assertEquals("t2", p.getToken());
+        assertEquals(2, f.calls.size());
+    }
+
+    @Test
+    public void concurrentCallers_joinOneFetch() throws Exception {
+        FakeFetcher f = new FakeFetcher();
+        f.next.add("t1");
+        f.gate = new CountDownLatch(1);
+        IdTokenProvider p = new IdTokenProvider(f);
+
+        List<Future<String>> got = new ArrayList<>();
+        for (int i = 0; i < 8; i++) got.add(pool.submit(p::getToken));
+        waitFor(() -> p.joinedWaits() == 7);
+        f.gate.countDown();
+
+        for (Future<String> g : got) assertEquals("t1", g.get(5, TimeUnit.SECONDS));
+        assertEquals(1, f.calls.size());
+        assertEquals(1, p.refreshes());
+        assertEquals(7, p.joinedWaits());
+    }
+
+    @Test
+    public void forcedRefresh_doesNotJoinPlainFetch() throws Exception {
+        FakeFetcher f = new FakeFetcher();
+        f.next.add("rejected");
+        f.next.add("fresh");
+        CountDownLatch plainGate = new CountDownLatch(1);
+        f.gate = plainGate;
+        IdTokenProvider p = new IdTokenProvider(f);
+
+        // 一般更新卡住中；它的結果正是後端等一下會拒絕的 token
+        Future<String> plain = pool.submit(p::getToken);
+        waitFor(() -> f.calls.size() == 1);
+        f.gate = null;
+
+        // 有逾時：若強制刷新錯誤地併入一般更新，這裡會一直等不到
+        assertEquals("fresh", pool.submit(() -> p.refreshAfterUnauthorized("rejected")).get(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(false, true), f.calls);
+        assertEquals(1, p.forcedRefreshes());
+
+        // 舊的一般更新較晚完成，不能把強制刷新拿到的新 token 蓋掉
+        plainGate.countDown();
+        assertEquals("rejected", plain.get(5, TimeUnit.SECONDS));
+        assertEquals("fresh", p.getToken());
+        assertEquals(2, f.calls.size());
+    }
+
+    @Test
+    public void unauthorizedWithStaleToken_reusesNewerCachedToken() throws Exception {
+        FakeFetcher f = new FakeFetcher();
+        f.next.add("t1");
+        IdTokenProvider p = new IdTokenProvider(f);
+
+        assertEquals("t1", p.getToken());
+        // 別的執行緒已經換過 token → 拿到被拒的是舊的，直接用快取
+        assertEquals("t1", p.refreshAfterUnauthorized("t0"));
+        assertEquals(1, f.calls.size());
+        assertEquals(0, p.forcedRefreshes());
+    }
+
+    // ================== helpers ==================
+
+    private static void waitFor(Condition c) throws InterruptedException {
+        long until = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!c.met()) {
+            if (System.nanoTime() > until) fail("timeout");
+            Thread.sleep(2);
+        }
+    }
+
+    private interface Condition { boolean met(); }
+
+    private static final class FakeFetcher implements IdTokenProvider.Fetcher {
+        final List<String> next = Collections.synchronizedList(new ArrayList<>());
+        final List<Boolean> calls = Collections.synchronizedList(new ArrayList<>());
+        volatile CountDownLatch gate;
+        volatile long ttlMs = HOUR_MS;
+
+        @Nullable @Override
+        public String currentUid() { return "u1"; }
+
+        @NonNull @Override
+        public IdTokenProvider.Token fetch(boolean forceRefresh) throws Exception {
+            String value = next.remove(0);
+            CountDownLatch g = gate;
+            calls.add(forceRefresh);
+            if (g != null && !g.await(5, TimeUnit.SECONDS)) fail("gate");
+            return new IdTokenProvider.Token(value, System.currentTimeMillis() + ttlMs, "u1");
+        }
+    }
+}
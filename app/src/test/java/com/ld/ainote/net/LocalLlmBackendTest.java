@@ -0,0 +1,170 @@
+package com.ld.ainote.net;
+
+import androidx.annotation.NonNull;
+
+import com.ld.ainote.models.QuizItem;
+import com.ld.ainote.utils.QuizParser;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * LocalLlmBackend：輸出可被出題 / 摘要流程解析、延遲與取消；
+ * 並把 AiService 接到它上面，離線量測多個出題 / 整理流程同時跑的端到端延遲。
+ */
+public class LocalLlmBackendTest {
+
+    private static final String NOTES = "【大類別】生物\n《第一章》\n粒線體是細胞的能量工廠\n葉綠體進行光合作用\n"
+            + "細胞膜具有選擇性通透\n《第二章》\n酵素可降低活化能\n";
+
+    private final LlmBackend original = AiService.backend();
+
+    @After
+    public void restoreBackend() {
+        AiService.setBackend(original);
+    }
+
+    @Test
+    public void jsonQuiz_decodesToRequestedCount() throws Exception {
+        LocalLlmBackend llm = new LocalLlmBackend(0, 0, 64);
+        String out = llm.complete("你是出題老師。請根據筆記內容出 6 題『單選選擇題』。\n\n【筆記內容】\n" + NOTES,
+                QuizJsonDecoder.responseFormat(), null);
+        int ok = 0;
+        for (QuizJsonDecoder.Decoded d : QuizJsonDecoder.decodeAll(out)) if (d.item != null) ok++;
+        assertEquals(6, ok);
+        assertEquals("同樣的 prompt 得到同樣的輸出", out, llm.complete(
+                "你是出題老師。請根據筆記內容出 6 題『單選選擇題』。\n\n【筆記內容】\n" + NOTES,
+                QuizJsonDecoder.responseFormat(), null));
+    }
+
+    @Test
+    public void textQuiz_parsesWithAnswers() throws Exception {
+        String out = new LocalLlmBackend(0, 0, 64).complete(
+                "【出題規則】\n1) 依照使用者勾選的內容，出 3 題『單選選擇題』。\n\n你是出題老師。\n\n【筆記內容】\n" + NOTES,
+                null, null);
+        List<QuizItem> qs = QuizParser.parse(out);
+        assertEquals(3, qs.size());
+        for (QuizItem q : qs) assertTrue(q.getAnswer() >= 0);
+        assertTrue(qs.get(0).getStem().contains("粒線體"));
+    }
+
+    @Test
+    public void summary_bulletsFromNoteLines() throws Exception {
+        String out = new LocalLlmBackend(0, 0, 64).complete("你是專業的讀書助教。\n\n【筆記內容】\n" + NOTES, null, null);
+        assertTrue(out.startsWith("- 粒線體是細胞的能量工廠"));
+        assertEquals(4, out.split("\n").length);
+    }
+
+    @Test
+    public void stream_chunksAndLatency() throws Exception {
+        LocalLlmBackend llm = new LocalLlmBackend(80, 5, 4);
+        List<String> deltas = new ArrayList<>();
+        long[] firstAt = { 0 };
+        long t0 = System.nanoTime();
+        String all = llm.stream("你是專業的讀書助教。\n\n【筆記內容】\n" + NOTES, d -> {
+            if (firstAt[0] == 0) firstAt[0] = System.nanoTime();
+            deltas.add(d);
+        }, null, null);
+        long totalMs = (System.nanoTime() - t0) / 1_000_000L;
+        long firstMs = (firstAt[0] - t0) / 1_000_000L;
+
+        assertEquals(all, String.join("", deltas).trim());
+        for (int i = 0; i < deltas.size() - 1; i++) assertEquals(4, deltas.get(i).length());
+        assertTrue("first token " + firstMs + "ms", firstMs >= 70);
+        assertTrue("total " + totalMs + "ms", totalMs >= 80 + 5L * (deltas.size() - 1) - 10);
+        assertEquals(1, llm.calls());
+    }
+
+    @Test
+    public void cancel_stopsStreamPromptly() throws Exception {
+        LocalLlmBackend llm = new LocalLlmBackend(2000, 0, 4);
+        CancelToken cancel = new CancelToken();
+        new Thread(() -> {
+            try { Thread.sleep(50); } catch (InterruptedException ignored) { }
+            cancel.cancel();
+        }).start();
+        long t0 = System.nanoTime();
+        try {
+            llm.stream("摘要\n\n【筆記內容】\n" + NOTES, d -> fail("no delta after cancel"), null, cancel);
+            fail("expected CancellationException");
+        } catch (CancellationException expected) {
+            assertTrue((System.nanoTime() - t0) / 1_000_000L < 1000);
+        }
+    }
+
+    // ================== AiService 離線壓測 ==================
+
+    /** 同時跑 quizFlows 組（每組 4 個 JSON 出題分組）與 summaryFlows 個串流整理；最慢的流程也要遠快於逐一排隊 */
+    @Test
+    public void aiServiceFlows_offlineLoad() throws Exception {
+        final int quizFlows = 3, shards = 4, perShard = 5, summaryFlows = 4;
+        LocalLlmBackend llm = new LocalLlmBackend(40, 2, 16);
+
+        // 基準：同樣設定下單獨跑一個出題分組要多久
+        long b0 = System.nanoTime();
+        new LocalLlmBackend(40, 2, 16).stream("你是出題老師。請根據筆記內容出 " + perShard + " 題『單選選擇題』。\n\n【筆記內容】\n"
+                + NOTES, d -> { }, QuizJsonDecoder.responseFormat(), null);
+        long oneCallMs = (System.nanoTime() - b0) / 1_000_000L;
+
+        AiService.setBackend(llm);
+
+        int total = quizFlows * shards + summaryFlows;
+        CountDownLatch done = new CountDownLatch(total);
+        List<Long> quizMs = Collections.synchronizedList(new ArrayList<>());
+        List<Long> summaryMs = Collections.synchronizedList(new ArrayList<>());
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger items = new AtomicInteger();
+
+        for (int f = 0; f < quizFlows; f++) {
+            for (int s = 0; s < shards; s++) {
+                long t0 = System.nanoTime();
+                String text = NOTES + "\n（流程 " + f + " 分組 " + s + "）";
+                AiService.askQuizJson(text, perShard, 15, null, null, new AiService.QuizCallback() {
+                    @Override public void onItem(int index, @NonNull QuizItem item) { items.incrementAndGet(); }
+                    @Override public void onSuccess(@NonNull List<QuizItem> list) {
+                        quizMs.add((System.nanoTime() - t0) / 1_000_000L);
+                        done.countDown();
+                    }
+                    @Override public void onError(@NonNull Exception e) {
+                        errors.add(e);
+                        done.countDown();
+                    }
+                });
+            }
+        }
+        for (int i = 0; i < summaryFlows; i++) {
+            long t0 = System.nanoTime();
+            AiService.askStreaming("summary", NOTES + "\n（整理 " + i + "）", 0, null, null, null,
+                    new AiService.StreamCallback() {
+                        @Override public void onDelta(String delta) { }
+                        @Override public void onSuccess(String out) {
+                            summaryMs.add((System.nanoTime() - t0) / 1_000_000L);
+                            done.countDown();
+                        }
+                        @Override public void onError(Exception e) {
+                            errors.add(e);
+                            done.countDown();
+                        }
+                    });
+        }
+
+        assertTrue("flows did not finish", done.await(30, TimeUnit.SECONDS));
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(quizFlows * shards * perShard, items.get());
+        assertEquals(total, llm.calls());
+
+        long slowest = Math.max(Collections.max(quizMs), Collections.max(summaryMs));
+        assertTrue("slowest flow " + slowest + "ms vs " + total + " x " + oneCallMs + "ms back-to-back; "
+                + AiScheduler.get().statsLine(), slowest * 2 < total * oneCallMs);
+    }
+}
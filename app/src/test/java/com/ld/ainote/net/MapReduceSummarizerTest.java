@@ -0,0 +1,168 @@
+package com.ld.ainote.net;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * MapReduceSummarizer：小選取直接一次呼叫；大選取分段、平行數有上限、部分結果可重用、多層合併、錯誤只回報一次。
+ */
+public class MapReduceSummarizerTest {
+
+    /** 假的 AI：part 回傳「摘要(章節名)」，依輸入內容記憶（模擬 AiResultCache） */
+    private static final class FakeBackend implements MapReduceSummarizer.Backend {
+        final ExecutorService pool = Executors.newCachedThreadPool();
+        final Map<String, String> memo = new ConcurrentHashMap<>();
+        final AtomicInteger partCalls = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final List<String> answers = Collections.synchronizedList(new ArrayList<>());
+        volatile String failOn;
+
+        @Override
+        public void part(@NonNull String text, @Nullable CancelToken cancel, @NonNull AiService.Callback cb) {
+            String hit = memo.get(text);
+            if (hit != null) { cb.onSuccess(hit); return; }
+            pool.execute(() -> {
+                peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                partCalls.incrementAndGet();
+                try { Thread.sleep(10); } catch (InterruptedException ignore) {}
+                running.decrementAndGet();
+                if (cancel != null && cancel.isCancelled()) return;
+                if (failOn != null && text.contains(failOn)) { cb.onError(new RuntimeException("boom")); return; }
+                String firstLine = text.split("\n")[text.startsWith("【") ? 1 : 0];
+                String out = "摘要(" + firstLine + ")";
+                memo.put(text, out);
+                cb.onSuccess(out);
+            });
+        }
+
+        @Override
+        public void answer(@NonNull String task, @NonNull String text, int n, @Nullable Integer age,
+                           @Nullable String sources, @Nullable CancelToken cancel, @NonNull AiService.StreamCallback cb) {
+            answers.add(text);
+            cb.onDelta("最終");
+            cb.onSuccess("最終答案");
+        }
+    }
+
+    private static final class Result implements AiService.StreamCallback {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger errors = new AtomicInteger();
+        volatile String out;
+
+        @Override public void onDelta(String delta) {}
+        @Override public void onSuccess(String o) { out = o; done.countDown(); }
+        @Override public void onError(Exception e) { errors.incrementAndGet(); done.countDown(); }
+    }
+
+    private static String combined(int chapters, int linesEach, String tag) {
+        StringBuilder sb = new StringBuilder("【大類別】生物\n");
+        for (int c = 0; c < chapters; c++) {
+            sb.append("《章節》第").append(c + 1).append("章\n《內容》\n");
+            for (int i = 0; i < linesEach; i++) sb.append(tag).append(c).append('-').append(i).append("：細胞呼吸產生能量。\n");
+            sb.append('\n');
+        }
+        return sb.toString().trim();
+    }
+
+    @Test
+    public void smallSelection_isSingleCall() throws Exception {
+        FakeBackend be = new FakeBackend();
+        Result r = new Result();
+        new MapReduceSummarizer(be, 6000, 2500, 2).run("summary", combined(2, 3, "x"), 0, null, "s", null, r, null);
+        assertTrue(r.done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, be.partCalls.get());
+        assertEquals(1, be.answers.size());
+        assertFalse(be.answers.get(0).startsWith(MapReduceSummarizer.REDUCE_INTRO));
+    }
+
+    @Test
+    public void largeSelection_mapsWithBoundedParallelism_thenReduces() throws Exception {
+        FakeBackend be = new FakeBackend();
+        Result r = new Result();
+        List<String> progress = Collections.synchronizedList(new ArrayList<>());
+        new MapReduceSummarizer(be, 300, 200, 3).run("summary", combined(12, 8, "x"), 0, null, "s", null, r,
+                (stage, done, total) -> progress.add(stage + done + "/" + total));
+
+        assertTrue(r.done.await(5, TimeUnit.SECONDS));
+        assertEquals("最終答案", r.out);
+        assertEquals(12, be.partCalls.get());
+        assertTrue("peak=" + be.peak.get(), be.peak.get() <= 3);
+        assertTrue(progress.contains("map12/12"));
+        String reduced = be.answers.get(0);
+        assertTrue(reduced.startsWith(MapReduceSummarizer.REDUCE_INTRO));
+        assertTrue(reduced.contains("《章節》第1章\n摘要("));
+        assertTrue(reduced.contains("《章節》第12章\n摘要("));
+    }
+
+    @Test
+    public void unchangedChapters_reusePartialResults() throws Exception {
+        FakeBackend be = new FakeBackend();
+        MapReduceSummarizer s = new MapReduceSummarizer(be, 300, 200, 2);
+        Result first = new Result();
+        s.run("summary", combined(6, 8, "x"), 0, null, "v1", null, first, null);
+        assertTrue(first.done.await(5, TimeUnit.SECONDS));
+        assertEquals(6, be.partCalls.get());
+
+        // 只改第 6 章
+        String edited = combined(6, 8, "x").replace("x5-0：", "x5-0（改）：");
+        Result second = new Result();
+        s.run("summary", edited, 0, null, "v2", null, second, null);
+        assertTrue(second.done.await(5, TimeUnit.SECONDS));
+        assertEquals(7, be.partCalls.get());
+    }
+
+    @Test
+    public void manyPartials_areReducedInMoreThanOneLevel() throws Exception {
+        FakeBackend be = new FakeBackend();
+        Result r = new Result();
+        List<String> stages = Collections.synchronizedList(new ArrayList<>());
+        // 單次上限很小 → 40 段摘要合起來放不下，需要先分組摘要
+        new MapReduceSummarizer(be, 60, 60, 2).run("integrate", combined(40, 2, "x"), 0, null, null, null, r,
+                (stage, done, total) -> { if (done == total) stages.add(stage); });
+        assertTrue(r.done.await(10, TimeUnit.SECONDS));
+        assertEquals("最終答案", r.out);
+        assertTrue(stages.toString(), stages.contains("reduce"));
+        assertTrue(be.answers.get(0).length() < combined(40, 2, "x").length());
+    }
+
+    @Test
+    public void headersOnly_overBudget_fallsBackToSingleCall() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) sb.append("【大類別】類別").append(i).append('\n');
+        FakeBackend be = new FakeBackend();
+        Result r = new Result();
+        new MapReduceSummarizer(be, 60, 60, 2).run("summary", sb.toString().trim(), 0, null, null, null, r, null);
+        assertTrue(r.done.await(5, TimeUnit.SECONDS));
+        assertEquals("最終答案", r.out);
+        assertEquals(0, be.partCalls.get());
+        assertEquals(1, be.answers.size());
+    }
+
+    @Test
+    public void partFailure_isReportedOnce() throws Exception {
+        FakeBackend be = new FakeBackend();
+        be.failOn = "x";
+        Result r = new Result();
+        new MapReduceSummarizer(be, 300, 200, 3).run("summary", combined(8, 8, "x"), 0, null, null, null, r, null);
+        assertTrue(r.done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(1, r.errors.get());
+        assertTrue(be.answers.isEmpty());
+    }
+}
@@ -0,0 +1,227 @@
+package com.ld.ainote.net;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * OpenAiClient 串流（SSE）解析，以及在本機替身伺服器上比較
+ * 「串流的首字時間」與「等整段回應」的時間。
+ */
+public class OpenAiStreamingTest {
+
+    private static final int TOKENS = 40;
+    private static final long TOKEN_DELAY_MS = 15;
+
+    private SseStandInServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new SseStandInServer(TOKENS, TOKEN_DELAY_MS);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void readEvents_parsesDeltasUntilDone() throws Exception {
+        String sse = ": keep-alive\n\n"
+                + "data: {\"choices\":[{\"delta\":{\"role\":\"assistant\"}}]}\n\n"
+                + "data: {\"choices\":[{\"delta\":{\"content\":\"重點\"}}]}\n\n"
+                + "event: message\n"
+                + "data: {\"choices\":[{\"delta\":\n"
+                + "data: {\"content\":\"一\"}}]}\n\n"
+                + "data: {\"choices\":[{\"delta\":{\"content\":null},\"finish_reason\":\"stop\"}]}\n\n"
+                + "data: [DONE]\n\n"
+                + "data: {\"choices\":[{\"delta\":{\"content\":\"after done\"}}]}\n\n";
+        List<String> deltas = new ArrayList<>();
+        OpenAiClient.readEvents(stream(sse), deltas::add);
+        assertEquals(List.of("重點", "一"), deltas);
+    }
+
+    @Test
+    public void readEvents_truncatedStreamFails() throws Exception {
+        List<String> deltas = new ArrayList<>();
+        try {
+            OpenAiClient.readEvents(stream("data: {\"choices\":[{\"delta\":{\"content\":\"a\"}}]}\n\n"), deltas::add);
+            fail("expected IOException");
+        } catch (IOException expected) {}
+        assertEquals(List.of("a"), deltas);
+
+        try {
+            OpenAiClient.readEvents(stream("data: {\"error\":{\"message\":\"overloaded\"}}\n\n"), d -> {});
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("overloaded"));
+        }
+    }
+
+    @Test
+    public void httpError_isReported() throws Exception {
+        server.failWith = 429;
+        try {
+            client().stream("hi", d -> {});
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertEquals("OpenAI HTTP 429", e.getMessage());
+        }
+    }
+
+    @Test
+    public void timeToFirstToken_streamingVsFullBody() throws Exception {
+        OpenAiClient client = client();
+
+        long t0 = System.nanoTime();
+        String full = client.complete("請整理重點");
+        long fullMs = (System.nanoTime() - t0) / 1_000_000L;
+
+        long[] first = { 0 };
+        long t1 = System.nanoTime();
+        String streamed = client.stream("請整理重點", d -> {
+            if (first[0] == 0) first[0] = System.nanoTime();
+        });
+        long ttftMs = (first[0] - t1) / 1_000_000L;
+
+        assertEquals(full, streamed);
+        assertEquals(SseStandInServer.text(TOKENS).trim(), streamed);
+        assertTrue("streaming should show text well before the full body arrives: first token " + ttftMs
+                + "ms, full body " + fullMs + "ms", ttftMs * 4 < fullMs);
+    }
+
+    private OpenAiClient client() {
+        return new OpenAiClient("http://127.0.0.1:" + server.port() + "/v1/chat/completions", "test-key", "gpt-4o-mini");
+    }
+
+    private static InputStream stream(String s) {
+        return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // ================== 替身伺服器 ==================
+
+    /**
+     * 模擬模型每 tokenDelayMs 產生一個 token：
+     * stream=true 時每個 token 立即送出一個 SSE 事件；否則全部產生完才一次回 JSON。
+     */
+    static final class SseStandInServer implements AutoCloseable {
+        private final int tokens;
+        private final long tokenDelayMs;
+        private final ServerSocket socket;
+        volatile int failWith;
+
+        SseStandInServer(int tokens, long tokenDelayMs) throws IOException {
+            this.tokens = tokens;
+            this.tokenDelayMs = tokenDelayMs;
+            this.socket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        }
+
+        int port() { return socket.getLocalPort(); }
+
+        static String text(int tokens) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < tokens; i++) sb.append(token(i));
+            return sb.toString();
+        }
+
+        static String token(int i) {
+            return i % 8 == 0 ? "\n- 第" + i + "點" : "重點" + i + " ";
+        }
+
+        void start() {
+            Thread t = new Thread(() -> {
+                while (!socket.isClosed()) {
+                    try (Socket s = socket.accept()) {
+                        s.setTcpNoDelay(true);
+                        handle(s);
+                    } catch (Exception ignore) {}
+                }
+            }, "sse-stand-in");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        private void handle(Socket s) throws Exception {
+            String body = readRequestBody(s.getInputStream());
+            boolean stream = new JSONObject(body).optBoolean("stream", false);
+            OutputStream out = s.getOutputStream();
+
+            if (failWith != 0) {
+                byte[] err = "{\"error\":{\"message\":\"rate limited\"}}".getBytes(StandardCharsets.UTF_8);
+                out.write(("HTTP/1.1 " + failWith + " Error\r\nContent-Type: application/json\r\nContent-Length: "
+                        + err.length + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+                out.write(err);
+                out.flush();
+                return;
+            }
+
+            if (stream) {
+                out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\nCache-Control: no-cache\r\n"
+                        + "Connection: close\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                for (int i = 0; i < tokens; i++) {
+                    Thread.sleep(tokenDelayMs);
+                    JSONObject delta = new JSONObject().put("content", token(i));
+                    JSONObject ev = new JSONObject().put("choices",
+                            new JSONArray().put(new JSONObject().put("index", 0).put("delta", delta)));
+                    out.write(("data: " + ev + "\n\n").getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+                out.write("data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } else {
+                Thread.sleep(tokenDelayMs * tokens);
+                JSONObject msg = new JSONObject().put("role", "assistant").put("content", text(tokens));
+                JSONObject resp = new JSONObject().put("choices",
+                        new JSONArray().put(new JSONObject().put("index", 0).put("message", msg)));
+                byte[] bytes = resp.toString().getBytes(StandardCharsets.UTF_8);
+                out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: " + bytes.length
+                        + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+                out.write(bytes);
+                out.flush();
+            }
+        }
+
+        private static String readRequestBody(InputStream in) throws IOException {
+            StringBuilder head = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                head.append((char) c);
+                if (head.length() >= 4 && head.substring(head.length() - 4).equals("\r\n\r\n")) break;
+            }
+            int len = 0;
+            for (String line : head.toString().split("\r\n")) {
+                if (line.toLowerCase(Locale.ROOT).startsWith("content-length:")) {
+                    len = Integer.parseInt(line.substring(15).trim());
+                }
+            }
+            byte[] body = new byte[len];
+            int off = 0;
+            while (off < len) {
+                int n = in.read(body, off, len - off);
+                if (n < 0) break;
+                off += n;
+            }
+            return new String(body, 0, off, StandardCharsets.UTF_8);
+        }
+
+        @Override public void close() throws IOException { socket.close(); }
+    }
+}
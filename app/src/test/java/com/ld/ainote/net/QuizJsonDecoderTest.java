@@ -0,0 +1,156 @@
+package com.ld.ainote.net;
+
+import com.ld.ainote.models.QuizItem;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * QuizJsonDecoder：串流中任意切段都能逐題解出、圍欄 / 多餘文字、就地修正與問題回報、編碼來回。
+ */
+public class QuizJsonDecoderTest {
+
+    private static final String THREE =
+            "{\"questions\":["
+                    + "{\"stem\":\"細胞的能量工廠是？\",\"options\":[\"粒線體\",\"核糖體\",\"高基氏體\",\"溶體\"],\"answer\":\"A\"},"
+                    + "{\"stem\":\"含 \\\"}\\\" 與 [ 的題幹\",\"options\":[\"甲\",\"乙\",\"丙\",\"丁\"],\"answer\":\"C\"},"
+                    + "{\"stem\":\"光合作用發生在？\",\"options\":[\"葉綠體\",\"細胞核\",\"液胞\",\"細胞壁\"],\"answer\":\"A\"}"
+                    + "]}";
+
+    private static List<QuizItem> items(List<QuizJsonDecoder.Decoded> ds) {
+        List<QuizItem> out = new ArrayList<>();
+        for (QuizJsonDecoder.Decoded d : ds) {
+            assertNull(d.problem, d.problem);
+            out.add(d.item);
+        }
+        return out;
+    }
+
+    @Test
+    public void decodesWholeText() {
+        List<QuizItem> qs = items(QuizJsonDecoder.decodeAll(THREE));
+        assertEquals(3, qs.size());
+        assertEquals("細胞的能量工廠是？", qs.get(0).getStem());
+        assertEquals(0, qs.get(0).getAnswer());
+        assertEquals("含 \"}\" 與 [ 的題幹", qs.get(1).getStem());
+        assertEquals(2, qs.get(1).getAnswer());
+    }
+
+    @Test
+    public void feed_emitsEachItemOnceComplete_forEveryChunkSize() {
+        for (int size = 1; size <= 17; size++) {
+            QuizJsonDecoder dec = new QuizJsonDecoder();
+            List<QuizJsonDecoder.Decoded> all = new ArrayList<>();
+            int firstAt = -1;
+            for (int i = 0; i < THREE.length(); i += size) {
+                List<QuizJsonDecoder.Decoded> got = dec.feed(THREE.substring(i, Math.min(THREE.length(), i + size)));
+                if (!got.isEmpty() && firstAt < 0) firstAt = i;
+                all.addAll(got);
+            }
+            assertEquals("chunk=" + size, 3, items(all).size());
+            assertTrue("first item should arrive before the end, chunk=" + size, firstAt < THREE.length() / 2);
+        }
+    }
+
+    @Test
+    public void toleratesFenceLeadingTextAndRootArray() {
+        String fenced = "好的，以下是題目：\n```json\n" + THREE + "\n```\n祝學習順利！";
+        assertEquals(3, items(QuizJsonDecoder.decodeAll(fenced)).size());
+
+        String root = "[{\"stem\":\"1+1=?\",\"options\":[\"1\",\"2\",\"3\",\"4\"],\"answer\":\"B\"}]";
+        List<QuizItem> qs = items(QuizJsonDecoder.decodeAll(root));
+        assertEquals(1, qs.size());
+        assertEquals(1, qs.get(0).getAnswer());
+    }
+
+    @Test
+    public void repairsSmallIssuesInPlace() throws Exception {
+        QuizJsonDecoder.Decoded d = QuizJsonDecoder.decode(new JSONObject(
+                "{\"question\":\"台灣最高峰？\",\"options\":[\"A. 雪山\",\"(B) 玉山\",\"C、合歡山\",\"D：阿里山\"],\"answer\":\"B. 玉山\"}"));
+        assertNull(d.problem);
+        assertEquals("台灣最高峰？", d.item.getStem());
+        assertArrayEquals(new String[]{"雪山", "玉山", "合歡山", "阿里山"}, d.item.getOptions());
+        assertEquals(1, d.item.getAnswer());
+
+        d = QuizJsonDecoder.decode(new JSONObject(
+                "{\"stem\":\"s\",\"options\":{\"A\":\"w\",\"B\":\"x\",\"C\":\"y\",\"D\":\"z\"},\"answer\":3}"));
+        assertEquals(3, d.item.getAnswer());
+
+        d = QuizJsonDecoder.decode(new JSONObject(
+                "{\"stem\":\"s\",\"options\":[\"w\",\"x\",\"y\",\"z\"],\"answer\":\"y\"}"));
+        assertEquals(2, d.item.getAnswer());
+
+        d = QuizJsonDecoder.decode(new JSONObject(
+                "{\"stem\":\"s\",\"options\":[\"w\",\"x\",\"y\",\"z\"],\"answer\":\"答案：d\"}"));
+        assertEquals(3, d.item.getAnswer());
+    }
+
+    @Test
+    public void reportsProblemsItCannotRepair() throws Exception {
+        assertEquals("缺少題幹", problem("{\"options\":[\"w\",\"x\",\"y\",\"z\"],\"answer\":\"A\"}"));
+        assertEquals("選項不是 4 個（3 個）", problem("{\"stem\":\"s\",\"options\":[\"w\",\"x\",\"y\"],\"answer\":\"A\"}"));
+        assertEquals("有空白選項", problem("{\"stem\":\"s\",\"options\":[\"w\",\"\",\"y\",\"z\"],\"answer\":\"A\"}"));
+        assertEquals("選項重複", problem("{\"stem\":\"s\",\"options\":[\"w\",\"w\",\"y\",\"z\"],\"answer\":\"A\"}"));
+        assertEquals("答案不在 A~D", problem("{\"stem\":\"s\",\"options\":[\"w\",\"x\",\"y\",\"z\"],\"answer\":\"E\"}"));
+        assertEquals("答案不在 A~D", problem("{\"stem\":\"s\",\"options\":[\"w\",\"x\",\"y\",\"z\"],\"answer\":4}"));
+    }
+
+    @Test
+    public void badItemDoesNotStopTheRest() {
+        String text = "{\"questions\":["
+                + "{\"stem\":\"ok1\",\"options\":[\"a\",\"b\",\"c\",\"d\"],\"answer\":\"A\"},"
+                + "{\"stem\":\"bad\",\"options\":[\"a\",\"b\"],\"answer\":\"A\"},"
+                + "{\"stem\":\"ok2\",\"options\":[\"a\",\"b\",\"c\",\"d\"],\"answer\":\"D\"}"
+                + "]}";
+        List<QuizJsonDecoder.Decoded> ds = QuizJsonDecoder.decodeAll(text);
+        assertEquals(3, ds.size());
+        assertNotNull(ds.get(0).item);
+        assertNotNull(ds.get(1).problem);
+        assertEquals("ok2", ds.get(2).item.getStem());
+    }
+
+    @Test
+    public void truncatedStream_keepsCompletedItemsOnly() {
+        String cut = THREE.substring(0, THREE.indexOf("光合作用") + 3);
+        assertEquals(2, items(QuizJsonDecoder.decodeAll(cut)).size());
+    }
+
+    @Test
+    public void encodeRoundTrip() {
+        List<QuizItem> in = Arrays.asList(
+                new QuizItem("q1", new String[]{"a", "b", "c", "d"}, 3),
+                new QuizItem("q2 \"引號\"", new String[]{"e", "f", "g", "h"}, 0));
+        List<QuizItem> out = items(QuizJsonDecoder.decodeAll(QuizJsonDecoder.encode(in)));
+        assertEquals(2, out.size());
+        for (int i = 0; i < in.size(); i++) {
+            assertEquals(in.get(i).getStem(), out.get(i).getStem());
+            assertArrayEquals(in.get(i).getOptions(), out.get(i).getOptions());
+            assertEquals(in.get(i).getAnswer(), out.get(i).getAnswer());
+        }
+    }
+
+    @Test
+    public void responseFormat_isStrictJsonSchema() throws Exception {
+        JSONObject rf = QuizJsonDecoder.responseFormat();
+        assertEquals("json_schema", rf.getString("type"));
+        JSONObject js = rf.getJSONObject("json_schema");
+        assertTrue(js.getBoolean("strict"));
+        JSONObject item = js.getJSONObject("schema").getJSONObject("properties")
+                .getJSONObject("questions").getJSONObject("items");
+        assertFalse(item.getBoolean("additionalProperties"));
+        assertEquals(3, item.getJSONArray("required").length());
+        assertEquals(4, item.getJSONObject("properties").getJSONObject("answer").getJSONArray("enum").length());
+    }
+
+    private static String problem(String json) throws Exception {
+        QuizJsonDecoder.Decoded d = QuizJsonDecoder.decode(new JSONObject(json));
+        assertNull(d.item);
+        return d.problem;
+    }
+}
@@ -0,0 +1,80 @@
+package com.ld.ainote.utils;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * ChapterChunker：依【大類別】/《章節》切段、每段不超過預算、章節內容不變時切法不變。
+ */
+public class ChapterChunkerTest {
+
+    private static String combined(String... chapters) {
+        StringBuilder sb = new StringBuilder("【大類別】生物\n");
+        for (int i = 0; i < chapters.length; i++) {
+            sb.append("《章節》").append(i + 1).append("-1 第").append(i + 1).append("章\n")
+              .append("《內容》\n").append(chapters[i]).append("\n\n");
+        }
+        return sb.toString().trim();
+    }
+
+    private static String lines(String prefix, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) sb.append(prefix).append(i).append("：葉綠體把光能轉成化學能。\n");
+        return sb.toString().trim();
+    }
+
+    @Test
+    public void oneChunkPerChapter_withHeaders() {
+        List<ChapterChunker.Chunk> chunks = ChapterChunker.split(combined("細胞膜", "粒線體"), 500);
+        assertEquals(2, chunks.size());
+        assertEquals("生物", chunks.get(0).category);
+        assertEquals("1-1 第1章", chunks.get(0).label());
+        assertEquals("【大類別】生物\n《章節》1-1 第1章\n《內容》\n細胞膜", chunks.get(0).text);
+        assertEquals("粒線體", chunks.get(1).text.substring(chunks.get(1).text.lastIndexOf('\n') + 1));
+    }
+
+    @Test
+    public void largeChapter_isSplitWithinBudget() {
+        int budget = 200;
+        List<ChapterChunker.Chunk> chunks = ChapterChunker.split(combined("短", lines("第", 60)), budget);
+        assertTrue(chunks.size() > 3);
+        assertEquals(1, chunks.get(0).parts);
+        ChapterChunker.Chunk second = chunks.get(1);
+        assertEquals(chunks.size() - 1, second.parts);
+        assertTrue(second.label(), second.label().endsWith("（第 1/" + second.parts + " 段）"));
+        for (ChapterChunker.Chunk c : chunks) {
+            assertTrue(c.label() + " " + TokenEstimator.estimate(c.text), TokenEstimator.estimate(c.text) <= budget);
+        }
+    }
+
+    @Test
+    public void overlongLine_isHardSplit() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) sb.append('字');
+        List<ChapterChunker.Chunk> chunks = ChapterChunker.split(combined(sb.toString()), 300);
+        int total = 0;
+        for (ChapterChunker.Chunk c : chunks) {
+            assertTrue(TokenEstimator.estimate(c.text) <= 300);
+            total += c.text.length() - c.text.lastIndexOf('\n') - 1;
+        }
+        assertEquals(1000, total);
+    }
+
+    @Test
+    public void unchangedChapter_keepsSameChunkText() {
+        List<ChapterChunker.Chunk> a = ChapterChunker.split(combined(lines("甲", 10), lines("乙", 10)), 400);
+        List<ChapterChunker.Chunk> b = ChapterChunker.split(combined(lines("甲", 10), lines("丙", 12)), 400);
+        assertEquals(a.get(0).text, b.get(0).text);
+        assertNotEquals(a.get(a.size() - 1).text, b.get(b.size() - 1).text);
+    }
+
+    @Test
+    public void textWithoutHeaders_isStillChunked() {
+        List<ChapterChunker.Chunk> chunks = ChapterChunker.split("沒有標頭的一段文字", 100);
+        assertEquals(1, chunks.size());
+        assertTrue(chunks.get(0).text.endsWith("沒有標頭的一段文字"));
+    }
+}
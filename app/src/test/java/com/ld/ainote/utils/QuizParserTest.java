@@ -0,0 +1,279 @@
+package com.ld.ainote.utils;
+
+import com.ld.ainote.models.QuizItem;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * QuizParser：以 resources/quiz-corpus 的模型輸出驗證各種題號 / 答案格式，
+ * 串流時逐題 / 逐答案回呼，與舊版 AiFragment.parseQuiz（正則版，複製於下）結果一致，
+ * 並比較兩者的解析時間（效能比較預設略過，-Painote.bench=true 才跑）。
+ */
+public class QuizParserTest {
+
+    private static final String[] CORPUS = {
+            "q-colon.txt", "numbered-paren.txt", "dot-fullwidth.txt",
+            "mixed-noise.txt", "no-answers.txt", "crlf-nbsp.txt"
+    };
+
+    private static String corpus(String name) throws IOException {
+        try (InputStream in = QuizParserTest.class.getResourceAsStream("/quiz-corpus/" + name)) {
+            assertNotNull("missing corpus " + name, in);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static int[] answers(List<QuizItem> qs) {
+        int[] a = new int[qs.size()];
+        for (int i = 0; i < a.length; i++) a[i] = qs.get(i).getAnswer();
+        return a;
+    }
+
+    @Test
+    public void qColonFormat() throws Exception {
+        List<QuizItem> qs = QuizParser.parse(corpus("q-colon.txt"));
+        assertEquals(4, qs.size());
+        assertEquals("下列哪一個胞器負責細胞的能量轉換？", qs.get(0).getStem());
+        assertArrayEquals(new String[]{"粒線體", "核糖體", "高基氏體", "溶體"}, qs.get(0).getOptions());
+        assertArrayEquals(new int[]{0, 1, 0, 1}, answers(qs));
+    }
+
+    @Test
+    public void parenNumbers_skipPreamble() throws Exception {
+        List<QuizItem> qs = QuizParser.parse(corpus("numbered-paren.txt"));
+        assertEquals(3, qs.size());
+        assertEquals("〈出師表〉的作者是誰？", qs.get(0).getStem());
+        assertArrayEquals(new int[]{0, 0, 3}, answers(qs));
+    }
+
+    @Test
+    public void fullwidthOptionDelimiters_multiLineStem() throws Exception {
+        List<QuizItem> qs = QuizParser.parse(corpus("dot-fullwidth.txt"));
+        assertEquals(3, qs.size());
+        assertEquals("雪山", qs.get(0).getOptions()[0]);
+        assertEquals("濁水溪主要流經下列哪些縣市？\n（請選出最完整的答案）", qs.get(1).getStem());
+        assertEquals("南投、彰化、雲林", qs.get(1).getOptions()[0]);
+        assertArrayEquals(new int[]{1, 0, 1}, answers(qs));
+    }
+
+    @Test
+    public void mixedNumbering_skipsIncompleteQuestion() throws Exception {
+        List<QuizItem> qs = QuizParser.parse(corpus("mixed-noise.txt"));
+        assertEquals(4, qs.size()); // Q3 只有兩個選項
+        assertEquals("若 x + 3 = 7，則 x = ?", qs.get(1).getStem());
+        assertEquals("一個三角形的內角和為幾度？", qs.get(2).getStem());
+        assertArrayEquals(new int[]{2, 1, 1, 2}, answers(qs));
+    }
+
+    @Test
+    public void missingAnswerSection_answerIsMinusOne() throws Exception {
+        List<QuizItem> qs = QuizParser.parse(corpus("no-answers.txt"));
+        assertEquals(2, qs.size());
+        assertArrayEquals(new int[]{-1, -1}, answers(qs));
+    }
+
+    @Test
+    public void crlfAndWideSpaces() throws Exception {
+        List<QuizItem> qs = QuizParser.parse(corpus("crlf-nbsp.txt"));
+        assertEquals(2, qs.size());
+        assertEquals("牛頓第一運動定律又稱為？", qs.get(0).getStem());
+        assertEquals("慣性定律", qs.get(0).getOptions()[0]);
+        assertEquals("功的單位是？", qs.get(1).getStem());
+        assertArrayEquals(new int[]{0, 1}, answers(qs));
+    }
+
+    @Test
+    public void emptyOrGarbage_returnsEmpty() {
+        assertTrue(QuizParser.parse(null).isEmpty());
+        assertTrue(QuizParser.parse("").isEmpty());
+        assertTrue(QuizParser.parse("抱歉，我無法根據這些內容出題。").isEmpty());
+    }
+
+    @Test
+    public void sortedByNumber_emptyStemGetsPlaceholder() {
+        String raw = "Q2: 第二\nA. a\nB. b\nC. c\nD. d\nQ1:\nA. e\nB. f\nC. g\nD. h\n【答案】\n1. D\n2. A\n";
+        List<QuizItem> qs = QuizParser.parse(raw);
+        assertEquals(2, qs.size());
+        assertEquals("第 1 題", qs.get(0).getStem());
+        assertEquals(3, qs.get(0).getAnswer());
+        assertEquals("第二", qs.get(1).getStem());
+    }
+
+    // ================== 串流 ==================
+
+    /** 記錄回呼順序："Q1:題幹" / "A1=0" */
+    private static final class Recorder implements QuizParser.Listener {
+        final List<String> events = new ArrayList<>();
+        @Override public void onQuestion(int number, QuizItem item) {
+            assertEquals(-1, item.getAnswer());
+            events.add("Q" + number + ":" + item.getStem());
+        }
+        @Override public void onAnswer(int number, int answer) {
+            events.add("A" + number + "=" + answer);
+        }
+    }
+
+    @Test
+    public void feed_sameEventsForEveryChunkSize() throws Exception {
+        String raw = corpus("q-colon.txt");
+        Recorder whole = new Recorder();
+        QuizParser p = new QuizParser(whole);
+        p.feed(raw);
+        p.finish();
+        assertEquals(8, whole.events.size());
+        assertEquals("Q1:下列哪一個胞器負責細胞的能量轉換？", whole.events.get(0));
+        assertEquals("A4=1", whole.events.get(7));
+
+        for (int size = 1; size <= 23; size++) {
+            Recorder r = new Recorder();
+            QuizParser q = new QuizParser(r);
+            for (int i = 0; i < raw.length(); i += size) q.feed(raw.substring(i, Math.min(raw.length(), i + size)));
+            q.finish();
+            assertEquals("chunk=" + size, whole.events, r.events);
+        }
+    }
+
+    @Test
+    public void feed_emitsQuestionAsSoonAsFourthOptionLineEnds() {
+        Recorder r = new Recorder();
+        QuizParser p = new QuizParser(r);
+        p.feed("Q1: 題目\nA. a\nB. b\nC. c\nD. d");
+        assertTrue("D 行還沒結束", r.events.isEmpty());
+        p.feed("\n");
+        assertEquals(Arrays.asList("Q1:題目"), r.events);
+        p.feed("\nQ2: 第二題\nA. e\nB. f\n");
+        assertEquals(1, r.events.size());
+        p.feed("C. g\nD. h\n【答案】\n1. B\n");
+        assertEquals(Arrays.asList("Q1:題目", "Q2:第二題", "A1=1"), r.events);
+        p.feed("2. D");
+        p.finish();
+        assertEquals("A2=3", r.events.get(3));
+    }
+
+    // ================== 與舊版比對 ==================
+
+    @Test
+    public void matchesLegacyParser_onCorpus() throws Exception {
+        for (String name : CORPUS) {
+            String raw = corpus(name);
+            List<QuizItem> legacy = legacyParse(raw);
+            List<QuizItem> now = QuizParser.parse(raw);
+            assertEquals(name, legacy.size(), now.size());
+            for (int i = 0; i < legacy.size(); i++) {
+                assertEquals(name + " #" + i, legacy.get(i).getStem(), now.get(i).getStem());
+                assertArrayEquals(name + " #" + i, legacy.get(i).getOptions(), now.get(i).getOptions());
+                assertEquals(name + " #" + i, legacy.get(i).getAnswer(), now.get(i).getAnswer());
+            }
+        }
+    }
+
+    @Test
+    public void compareParseTime_withLegacy() throws Exception {
+        List<String> inputs = new ArrayList<>();
+        for (String name : CORPUS) inputs.add(corpus(name));
+        // 20 題的大份輸出
+        StringBuilder big = new StringBuilder();
+        StringBuilder ans = new StringBuilder("【答案】\n");
+        for (int i = 1; i <= 20; i++) {
+            big.append("Q").append(i).append(": 第 ").append(i).append(" 題的題目敘述，包含一些說明文字。\n")
+                    .append("A. 選項一\nB. 選項二\nC. 選項三\nD. 選項四\n\n");
+            ans.append(i).append(". ").append((char) ('A' + i % 4)).append('\n');
+        }
+        inputs.add(big.append(ans).toString());
+        assertEquals(20, QuizParser.parse(inputs.get(inputs.size() - 1)).size());
+
+        // 計時比較在負載高的 CI 上不可靠：只在 -Painote.bench=true 時跑
+        assumeTrue("benchmark skipped (set ainote.bench=true)", Boolean.getBoolean("ainote.bench"));
+        int warmup = 300, rounds = 2000;
+        long sink = 0;
+        for (int r = 0; r < warmup; r++) {
+            for (String s : inputs) sink += legacyParse(s).size() + QuizParser.parse(s).size();
+        }
+        long t0 = System.nanoTime();
+        for (int r = 0; r < rounds; r++) for (String s : inputs) sink += legacyParse(s).size();
+        long legacyNs = System.nanoTime() - t0;
+        long t1 = System.nanoTime();
+        for (int r = 0; r < rounds; r++) for (String s : inputs) sink += QuizParser.parse(s).size();
+        long newNs = System.nanoTime() - t1;
+
+        assertTrue(sink > 0);
+        long ops = (long) rounds * inputs.size();
+        assertTrue("single-pass parser should be faster: legacy " + (legacyNs / ops) + "ns, QuizParser "
+                + (newNs / ops) + "ns per parse", newNs < legacyNs);
+    }
+
+    /** 舊版 AiFragment.parseQuiz（去掉 Log），回傳依題號排序的結果 */
+    private static List<QuizItem> legacyParse(String raw) {
+        List<int[]> numbers = new ArrayList<>();
+        List<QuizItem> out = new ArrayList<>();
+        String norm = raw.replace('\u00A0', ' ').replace('\u3000', ' ');
+        String[] parts = norm.split("(?m)^\\s*【答案】\\s*$");
+        String qPart = parts[0];
+        String aPart = (parts.length > 1) ? parts[1] : "";
+
+        Map<Integer, Integer> answerMap = new HashMap<>();
+        Pattern ansPat = Pattern.compile("^\\s*(?:Q\\s*)?(\\d+)\\s*[\\.|\\):：]??\\s*([A-Da-d])\\s*$", Pattern.MULTILINE);
+        Matcher ma = ansPat.matcher(aPart);
+        while (ma.find()) {
+            int idx = safeInt(ma.group(1));
+            char letter = Character.toUpperCase(ma.group(2).charAt(0));
+            if (idx > 0 && letter >= 'A' && letter <= 'D') answerMap.put(idx, letter - 'A');
+        }
+
+        Pattern qStart = Pattern.compile("(?m)^(?=\\s*(?:Q\\s*)?\\d+\\s*[\\.:：\\)])");
+        String[] blocks = qStart.split(qPart);
+        Pattern headPat = Pattern.compile("^\\s*(?:Q\\s*)?(\\d+)\\s*[\\.:：\\)]\\s*(.*)$", Pattern.MULTILINE);
+        for (String blk : blocks) {
+            String b = blk.trim();
+            if (b.isEmpty()) continue;
+            Matcher mh = headPat.matcher(b);
+            if (!mh.find()) continue;
+            int number = safeInt(mh.group(1));
+            String afterHeader = b.substring(mh.end()).trim();
+            Matcher mApos = Pattern.compile("(?m)^\\s*A[\\.|\\)．、]\\s").matcher(afterHeader);
+            String stem = mApos.find()
+                    ? (mh.group(2) + "\n" + afterHeader.substring(0, mApos.start())).trim()
+                    : (mh.group(2) + "\n" + afterHeader).trim();
+            stem = stem.replaceAll("^[\\r\\n\\s]+|[\\r\\n\\s]+$", "");
+
+            List<String> opts = new ArrayList<>(4);
+            for (char c = 'A'; c <= 'D'; c++) {
+                Matcher mo = Pattern.compile("(?m)^\\s*" + c + "[\\.|\\)．、]\\s*(.*)$").matcher(b);
+                if (mo.find()) opts.add(mo.group(1).trim());
+            }
+            if (opts.size() != 4) continue;
+
+            numbers.add(new int[]{number, out.size()});
+            out.add(new QuizItem(stem.isEmpty() ? ("第 " + number + " 題") : stem,
+                    opts.toArray(new String[0]), answerMap.containsKey(number) ? answerMap.get(number) : -1));
+        }
+        numbers.sort(Comparator.comparingInt(a -> a[0]));
+        List<QuizItem> sorted = new ArrayList<>();
+        for (int[] n : numbers) sorted.add(out.get(n[1]));
+        return sorted;
+    }
+
+    private static int safeInt(String s) {
+        try { return Integer.parseInt(s.trim()); } catch (Exception e) { return -1; }
+    }
+}
@@ -0,0 +1,115 @@
+package com.ld.ainote.utils;
+
+import androidx.annotation.NonNull;
+
+import com.ld.ainote.net.AiScheduler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * QuizSharder：分組層級、合併、題數分配；並以假的出題延遲比較單次出題與分組同時出題的時間。
+ */
+public class QuizSharderTest {
+
+    /** "類別|章" */
+    private static List<String> notes(String... keys) { return Arrays.asList(keys); }
+
+    private static List<QuizSharder.Shard<String>> plan(List<String> notes, int n, int max) {
+        return QuizSharder.plan(notes, s -> s.split("\\|")[0], s -> s, n, max);
+    }
+
+    private static int total(List<QuizSharder.Shard<String>> shards) {
+        int t = 0;
+        for (QuizSharder.Shard<String> s : shards) t += s.quota;
+        return t;
+    }
+
+    @Test
+    public void shardsByCategory_whenSeveral() {
+        List<QuizSharder.Shard<String>> s = plan(notes("國文|1", "國文|2", "生物|1", "生物|2", "歷史|1", "歷史|2"), 12, 4);
+        assertEquals(3, s.size());
+        assertEquals("國文", s.get(0).label);
+        assertEquals(Arrays.asList("生物|1", "生物|2"), s.get(1).items);
+        for (QuizSharder.Shard<String> x : s) assertEquals(4, x.quota);
+    }
+
+    @Test
+    public void singleCategory_shardsByChapter() {
+        List<QuizSharder.Shard<String>> s = plan(notes("生物|1", "生物|1", "生物|2", "生物|3"), 9, 4);
+        assertEquals(3, s.size());
+        assertEquals("生物|1", s.get(0).label);
+        assertEquals(2, s.get(0).items.size());
+        // 9 題 / 3 組，整除
+        assertEquals(Arrays.asList(3, 3, 3), Arrays.asList(s.get(0).quota, s.get(1).quota, s.get(2).quota));
+    }
+
+    @Test
+    public void tooManyGroups_areMergedEvenly_andRemainderGoesToLargerShards() {
+        List<String> ns = new ArrayList<>();
+        for (int c = 1; c <= 10; c++) ns.add("生物|" + c);
+        List<QuizSharder.Shard<String>> s = plan(ns, 10, 4);
+        assertEquals(4, s.size());
+        assertEquals(10, total(s));
+        int items = 0;
+        for (QuizSharder.Shard<String> x : s) {
+            assertTrue(x.toString(), x.items.size() == 2 || x.items.size() == 3);
+            assertTrue(x.toString(), x.quota == 2 || x.quota == 3);
+            items += x.items.size();
+        }
+        assertEquals(10, items);
+        assertEquals("生物|1 ～ 生物|3", s.get(0).label);
+        // 章節多的組拿到多的題
+        for (QuizSharder.Shard<String> x : s) assertEquals(x.toString(), x.items.size(), x.quota);
+    }
+
+    @Test
+    public void fewerQuestionsThanGroups_neverGivesZeroQuota() {
+        List<QuizSharder.Shard<String>> s = plan(notes("A|1", "B|1", "C|1", "D|1"), 2, 4);
+        assertEquals(2, s.size());
+        for (QuizSharder.Shard<String> x : s) assertEquals(1, x.quota);
+        assertEquals(4, s.get(0).items.size() + s.get(1).items.size());
+    }
+
+    @Test
+    public void emptyOrZero_givesNoShards() {
+        assertTrue(plan(new ArrayList<>(), 5, 4).isEmpty());
+        assertTrue(plan(notes("A|1"), 0, 4).isEmpty());
+        assertEquals(1, plan(notes("A|1"), 20, 4).size());
+    }
+
+    /** 模型輸出時間大致與題數成正比；分組同時送出時，總時間約等於最大那組 */
+    @Test
+    public void shardedWallClock_beatsSingleCompletion() throws Exception {
+        final long msPerQuestion = 15;
+        List<String> ns = new ArrayList<>();
+        for (String cat : new String[] { "國文", "生物", "歷史", "地理" }) for (int c = 1; c <= 3; c++) ns.add(cat + "|" + c);
+
+        long single = runQuiz(plan(ns, 20, 1), msPerQuestion);
+        long sharded = runQuiz(plan(ns, 20, 4), msPerQuestion);
+        assertTrue("sharded=" + sharded + " single=" + single, sharded * 2 < single);
+    }
+
+    private static long runQuiz(List<QuizSharder.Shard<String>> shards, long msPerQuestion) throws Exception {
+        CountDownLatch done = new CountDownLatch(shards.size());
+        long t0 = System.nanoTime();
+        for (QuizSharder.Shard<String> s : shards) {
+            AiScheduler.get().submit("quiz-test|" + t0 + "|" + s.label, AiScheduler.Priority.INTERACTIVE,
+                    (out, token) -> { Thread.sleep(msPerQuestion * s.quota); return "ok"; },
+                    new AiScheduler.Subscriber() {
+                        @Override public void onDelta(@NonNull String delta) {}
+                        @Override public void onSuccess(@NonNull String out) { done.countDown(); }
+                        @Override public void onError(@NonNull Exception e) { done.countDown(); }
+                    }, null);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        return (System.nanoTime() - t0) / 1_000_000L;
+    }
+}
@@ -0,0 +1,104 @@
+package com.ld.ainote.utils;
+
+import org.junit.Test;
+
+
+import static org.junit.Assert.*;
+
+/**
+ * TokenEstimator 中英混排的估算，以及 TokenBudgeter 依優先順序修剪：標頭 > [[重點]] > 內文。
+ */
+public class TokenBudgeterTest {
+
+    private static String chapter(int no, int plainLines, String highlight) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("《章節》").append(no).append("-1 第").append(no).append("章\n《內容》\n");
+        for (int i = 0; i < plainLines; i++) {
+            sb.append("第").append(no).append("章內文").append(i).append("：細胞膜由磷脂雙層構成，具有選擇透過性。\n");
+            if (i == plainLines / 2 && highlight != null) sb.append("補充：[[").append(highlight).append("]] 很重要。\n");
+        }
+        return sb.append('\n').toString();
+    }
+
+    private static String notes(int chapters, int plainLines) {
+        StringBuilder sb = new StringBuilder("【大類別】生物\n");
+        for (int c = 1; c <= chapters; c++) sb.append(chapter(c, plainLines, "重點" + c));
+        return sb.toString().trim();
+    }
+
+    @Test
+    public void estimator_handlesMixedScripts() {
+        assertEquals(0, TokenEstimator.estimate(""));
+        assertEquals(4, TokenEstimator.estimate("光合作用"));
+        assertEquals(1, TokenEstimator.estimate("ATP"));
+        assertEquals(3, TokenEstimator.estimate("mitochondria"));
+        assertEquals(3, TokenEstimator.estimate("ATP!!"));
+        // 英文單字不因字數而高估，中文不因「4 字 1 token」而低估
+        assertEquals(TokenEstimator.estimate("光合作用") + TokenEstimator.estimate("ATP"),
+                TokenEstimator.estimate("光合作用 ATP"));
+        assertEquals(5, TokenEstimator.estimate("the cell membrane is")); // the, cell, membr+ane, is
+    }
+
+    @Test
+    public void underBudget_isUnchanged() {
+        String s = notes(2, 3);
+        TokenBudgeter.Result r = TokenBudgeter.fit(s, 100_000);
+        assertSame(s, r.text);
+        assertFalse(r.trimmed());
+    }
+
+    @Test
+    public void overBudget_keepsHeadersAndHighlights_andFits() {
+        String s = notes(6, 40);
+        int budget = TokenEstimator.estimate(s) / 4;
+        TokenBudgeter.Result r = TokenBudgeter.fit(s, budget);
+
+        assertTrue(r.trimmed());
+        assertTrue(r.tokens + " > " + budget, r.tokens <= budget);
+        assertTrue(r.droppedLines > 0);
+        assertTrue(r.text.startsWith("【大類別】生物\n《章節》1-1 第1章\n《內容》\n"));
+        for (int c = 1; c <= 6; c++) {
+            assertTrue("header " + c, r.text.contains("《章節》" + c + "-1 第" + c + "章"));
+            assertTrue("highlight " + c, r.text.contains("補充：[[重點" + c + "]] 很重要。"));
+            // 每章都分到內文，從開頭保留
+            assertTrue("plain " + c, r.text.contains("第" + c + "章內文0："));
+        }
+        assertTrue(r.text.contains(TokenBudgeter.OMITTED));
+    }
+
+    @Test
+    public void shortChapter_leavesItsShareToOthers() {
+        String s = ("【大類別】生物\n" + chapter(1, 2, null) + chapter(2, 80, null)).trim();
+        TokenBudgeter.Result r = TokenBudgeter.fit(s, TokenEstimator.estimate(s) / 2);
+        assertTrue(r.text.contains("第1章內文1："));   // 短章整章保留
+        assertTrue(r.text.contains("第2章內文20："));  // 用到短章用不完的額度
+        assertTrue(r.tokens <= TokenEstimator.estimate(s) / 2);
+    }
+
+    @Test
+    public void tinyBudget_fallsBackToHighlightSpans() {
+        String s = notes(4, 20);
+        int headers = 0;
+        for (String line : s.split("\n")) if (line.startsWith("【") || line.startsWith("《")) headers += TokenEstimator.estimate(line);
+        TokenBudgeter.Result r = TokenBudgeter.fit(s, headers + 30);
+
+        assertFalse(r.text.contains("內文"));
+        assertFalse(r.text.contains("補充："));
+        assertTrue(r.text, r.text.contains("[[重點1]]"));
+        assertTrue(r.tokens <= headers + 30);
+    }
+
+    @Test
+    public void fitIsFast() {
+        String s = notes(60, 100);
+        long t0 = System.nanoTime();
+        TokenBudgeter.Result r = TokenBudgeter.fit(s, 8000);
+        long ms = (System.nanoTime() - t0) / 1_000_000L;
+        assertTrue(r.tokens <= 8000);
+        // 17 萬字的輸入也要在送出前瞬間完成（遠小於一次 API 往返）；
+        // 計時在負載高的 CI 上不可靠：只在 -Painote.bench=true 時檢查
+        if (Boolean.getBoolean("ainote.bench")) {
+            assertTrue(s.length() + " chars took " + ms + "ms", ms < 1000);
+        }
+    }
+}
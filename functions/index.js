@@ -4,8 +4,10 @@
  *  - Notes CRUD: createNote / updateNote / deleteNote / deleteNotesByCategory
  *  - NoteBlocks: listBlocks / createBlock / updateBlock / deleteBlock
  *                acquireBlockLock / renewBlockLock / releaseBlockLock
+ *                applyBlockBatch（多個 block 操作一次送出）
  *
  * Auth: Firebase ID Token (Authorization: Bearer <token>)
+ * 重試安全：create / update 類端點接受 Idempotency-Key header，同一把 key 只會寫入一次
  */
 const { onRequest } = require("firebase-functions/v2/https");
 const admin = require("firebase-admin");
@@ -22,7 +24,7 @@ const MAX_TAGS = 20;
 // ====== CORS / Helpers ======
 function setCors(res) {
   res.set("Access-Control-Allow-Origin", ALLOW_ORIGIN);
-  res.set("Access-Control-Allow-Headers", "Authorization, Content-Type");
+  res.set("Access-Control-Allow-Headers", "Authorization, Content-Type, Idempotency-Key");
   res.set("Access-Control-Allow-Methods", "POST, OPTIONS");
 }
 function maybeHandlePreflight(req, res) {
@@ -65,6 +67,10 @@ function noteRef(ownerId, noteId) {
 function blocksCol(ownerId, noteId) {
   return noteRef(ownerId, noteId).collection("blocks");
 }
+/** 已刪除 block 的墓碑（給 listBlocks 增量模式通知 App 移除） */
+function tombstonesCol(ownerId, noteId) {
+  return noteRef(ownerId, noteId).collection("blockTombstones");
+}
 async function assertCanReadNote({ ownerId, noteId, uid }) {
   const ref = noteRef(ownerId, noteId);
   const snap = await ref.get();
@@ -116,13 +122,46 @@ function isLockActive(lockUntil) {
   return !!lockUntil && typeof lockUntil.toMillis === "function" && lockUntil.toMillis() > Date.now();
 }
 
+// ====== Idempotency-Key（App 重試時不重複寫入 / 刪除、鎖的重送回放第一次的結果） ======
+const IDEMPOTENCY_TTL_SEC = 24 * 60 * 60; // 搭配 Firestore TTL policy（idempotency.expireAt）清除
+/**
+ * 同一使用者 + 端點 + key 已成功處理過 → 回放當時的回應並回傳 true。
+ * 否則攔截 res.json：2xx 時先存下回應再送出，回傳 false 讓原流程繼續。
+ */
+async function replayIdempotent(req, res, uid, scope) {
+  const key = req.headers["idempotency-key"];
+  if (typeof key !== "string" || !key || key.length > 128) return false;
+  const safeKey = key.replace(/[^A-Za-z0-9_-]/g, "_");
+  const ref = db.collection("idempotency").doc(`${uid}_${scope}_${safeKey}`);
+
+  const snap = await ref.get();
+  if (snap.exists) {
+    const saved = snap.data() || {};
+    setCors(res);
+    res.set("Idempotent-Replayed", "true");
+    res.status(saved.status || 200).json(saved.body || { success: true });
+    return true;
+  }
+
+  const sendJson = res.json.bind(res);
+  res.json = (body) => {
+    const status = res.statusCode || 200;
+    if (status < 200 || status >= 300) return sendJson(body);
+    ref.set({ uid, scope, status, body, createdAt: nowTs(), expireAt: tsAfterSeconds(IDEMPOTENCY_TTL_SEC) })
+      .catch((e) => console.error("idempotency save error:", e))
+      .then(() => sendJson(body));
+    return res;
+  };
+  return false;
+}
+
 // ===================================================================
 // =                           Notes CRUD                             =
 // ===================================================================
 
 /**
  * Create
- * body: { title?, content?, tags?, stack?, chapter?, section? }
+ * body: { id? (App 端預先產生，可安全重送), title?, content?, tags?, stack?, chapter?, section? }
  * path: /users/{uid}/notes
  */
 exports.createNote = onRequest({ region: REGION }, async (req, res) => {
@@ -130,10 +169,11 @@ exports.createNote = onRequest({ region: REGION }, async (req, res) => {
   if (!ensurePost(req, res)) return;
   const decoded = await requireAuth(req, res);
   if (!decoded) return;
+  if (await replayIdempotent(req, res, decoded.uid, "createNote")) return;
   const uid = decoded.uid;
 
   try {
-    const { title, content, tags, stack, chapter, section } = req.body || {};
+    const { id, title, content, tags, stack, chapter, section } = req.body || {};
     if (!title && !content) {
       setCors(res);
       return res.status(400).json({ error: "title or content required" });
@@ -156,7 +196,22 @@ exports.createNote = onRequest({ region: REGION }, async (req, res) => {
       updatedAt: now,
     };
 
-    const ref = await db.collection("users").doc(uid).collection("notes").add(note);
+    const col = db.collection("users").doc(uid).collection("notes");
+    if (typeof id === "string" && id) {
+      // App 離線時先在本機產生 id；重送同一筆時視為成功（冪等）
+      const ref = col.doc(id);
+      try {
+        await ref.create(note);
+      } catch (e) {
+        if (e.code !== 6) throw e; // 6 = ALREADY_EXISTS
+        const snap = await ref.get();
+        if (!snap.exists || (snap.data() || {}).ownerId !== uid) throw e;
+      }
+      setCors(res);
+      return res.status(200).json({ success: true, id: ref.id });
+    }
+
+    const ref = await col.add(note);
     setCors(res);
     return res.status(200).json({ success: true, id: ref.id });
   } catch (err) {
@@ -216,6 +271,7 @@ exports.deleteNote = onRequest({ region: REGION }, async (req, res) => {
   if (!ensurePost(req, res)) return;
   const decoded = await requireAuth(req, res);
   if (!decoded) return;
+  if (await replayIdempotent(req, res, decoded.uid, "deleteNote")) return;
 
   try {
     const { id, ownerId } = req.body || {};
@@ -252,6 +308,7 @@ exports.deleteNotesByCategory = onRequest({ region: REGION }, async (req, res) =
   if (!ensurePost(req, res)) return;
   const decoded = await requireAuth(req, res);
   if (!decoded) return;
+  if (await replayIdempotent(req, res, decoded.uid, "deleteNotesByCategory")) return;
 
   try {
     const { stack } = req.body || {};
@@ -280,11 +337,20 @@ exports.deleteNotesByCategory = onRequest({ region: REGION }, async (req, res) =
 // =                        Note Blocks APIs                          =
 // =   路徑：/users/{ownerId}/notes/{noteId}/blocks/{blockId}         =
 // =   欄位：id,index,type,text,version,updatedBy,updatedAt,          =
-// =        lockHolder,lockUntil                                      =
+// =        lockHolder,lockUntil,lockChangedAt                        =
+// =   刪除時寫入 blockTombstones/{blockId} { deletedAt }              =
 // ===================================================================
 
+const TOMBSTONE_RETENTION_MS = 30 * 24 * 60 * 60 * 1000; // 超過就回完整清單
+const DELTA_SKEW_MS = 5000; // 游標往前多抓一點，避免剛好同時寫入的 block 被漏掉
+
 /** List blocks
- * body: { ownerId, noteId }
+ * body: { ownerId, noteId, sinceUpdatedAt? (上次回應的 cursor，毫秒) }
+ * 回傳：{ success, full, cursor, blocks, deleted }
+ *  - 沒帶 sinceUpdatedAt（或太舊）：full=true，blocks 為完整清單
+ *  - 有帶：full=false，只回 updatedAt 之後變動的 blocks 與被刪除的 blockId
+ *    （鎖的變動不改 updatedAt，另以 lockChangedAt 查出，讓快取的 lockHolder / lockUntil 跟著更新）
+ *  - cursor：下次增量查詢要帶的 sinceUpdatedAt
  */
 exports.listBlocks = onRequest({ region: REGION }, async (req, res) => {
   if (maybeHandlePreflight(req, res)) return;
@@ -293,22 +359,43 @@ exports.listBlocks = onRequest({ region: REGION }, async (req, res) => {
   if (!decoded) return;
 
   try {
-    const { ownerId, noteId } = req.body || {};
+    const { ownerId, noteId, sinceUpdatedAt } = req.body || {};
     if (!ownerId || !noteId) {
       setCors(res);
       return res.status(400).json({ error: "ownerId and noteId required" });
     }
     await assertCanReadNote({ ownerId, noteId, uid: decoded.uid });
 
-    const snap = await blocksCol(ownerId, noteId).orderBy("index").get();
-    const blocks = [];
-    snap.forEach((d) => {
-      const b = d.data();
-      blocks.push({ id: d.id, ...b });
-    });
+    const cursor = Date.now();
+    const delta = Number.isFinite(sinceUpdatedAt) && sinceUpdatedAt > 0
+      && cursor - sinceUpdatedAt < TOMBSTONE_RETENTION_MS;
+
+    if (!delta) {
+      const snap = await blocksCol(ownerId, noteId).orderBy("index").get();
+      const blocks = [];
+      snap.forEach((d) => {
+        const b = d.data();
+        blocks.push({ id: d.id, ...b });
+      });
+      setCors(res);
+      return res.json({ success: true, full: true, cursor, blocks, deleted: [] });
+    }
+
+    const since = admin.firestore.Timestamp.fromMillis(sinceUpdatedAt - DELTA_SKEW_MS);
+    const [changed, relocked, gone] = await Promise.all([
+      blocksCol(ownerId, noteId).where("updatedAt", ">", since).get(),
+      blocksCol(ownerId, noteId).where("lockChangedAt", ">", since).get(),
+      tombstonesCol(ownerId, noteId).where("deletedAt", ">", since).get(),
+    ]);
+    const byId = new Map();
+    changed.forEach((d) => byId.set(d.id, { id: d.id, ...d.data() }));
+    relocked.forEach((d) => byId.set(d.id, { id: d.id, ...d.data() }));
+    const blocks = [...byId.values()];
+    const deleted = [];
+    gone.forEach((d) => deleted.push(d.id));
 
     setCors(res);
-    return res.json({ success: true, blocks });
+    return res.json({ success: true, full: false, cursor, blocks, deleted });
   } catch (err) {
     console.error("listBlocks error:", err);
     setCors(res);
@@ -326,6 +413,7 @@ exports.createBlock = onRequest({ region: REGION }, async (req, res) => {
   if (!ensurePost(req, res)) return;
   const decoded = await requireAuth(req, res);
   if (!decoded) return;
+  if (await replayIdempotent(req, res, decoded.uid, "createBlock")) return;
 
   try {
     let { ownerId, noteId, index, type, text } = req.body || {};
@@ -380,6 +468,7 @@ exports.deleteBlock = onRequest({ region: REGION }, async (req, res) => {
   if (!ensurePost(req, res)) return;
   const decoded = await requireAuth(req, res);
   if (!decoded) return;
+  if (await replayIdempotent(req, res, decoded.uid, "deleteBlock")) return;
 
   try {
     const { ownerId, noteId, blockId } = req.body || {};
@@ -406,6 +495,7 @@ exports.deleteBlock = onRequest({ region: REGION }, async (req, res) => {
         throw err;
       }
       tx.delete(bRef);
+      tx.set(tombstonesCol(ownerId, noteId).doc(blockId), { deletedAt: nowTs(), deletedBy: decoded.uid });
     });
 
     setCors(res);
@@ -428,6 +518,7 @@ exports.acquireBlockLock = onRequest({ region: REGION }, async (req, res) => {
   if (!ensurePost(req, res)) return;
   const decoded = await requireAuth(req, res);
   if (!decoded) return;
+  if (await replayIdempotent(req, res, decoded.uid, "acquireBlockLock")) return;
 
   try {
     const { ownerId, noteId, blockId } = req.body || {};
@@ -452,7 +543,7 @@ exports.acquireBlockLock = onRequest({ region: REGION }, async (req, res) => {
       const lockUntil = b.lockUntil || null;
 
       if (!lockedBy || !isLockActive(lockUntil) || lockedBy === decoded.uid) {
-        tx.update(bRef, { lockHolder: decoded.uid, lockUntil: until });
+        tx.update(bRef, { lockHolder: decoded.uid, lockUntil: until, lockChangedAt: nowTs() });
       } else {
         const err = new Error("Block locked by another user");
         err.code = 423;
@@ -484,6 +575,7 @@ exports.renewBlockLock = onRequest({ region: REGION }, async (req, res) => {
   if (!ensurePost(req, res)) return;
   const decoded = await requireAuth(req, res);
   if (!decoded) return;
+  if (await replayIdempotent(req, res, decoded.uid, "renewBlockLock")) return;
 
   try {
     const { ownerId, noteId, blockId } = req.body || {};
@@ -509,7 +601,7 @@ exports.renewBlockLock = onRequest({ region: REGION }, async (req, res) => {
         err.code = 423;
         throw err;
       }
-      tx.update(bRef, { lockUntil: until });
+      tx.update(bRef, { lockUntil: until, lockChangedAt: nowTs() });
     });
 
     setCors(res);
@@ -536,6 +628,7 @@ exports.releaseBlockLock = onRequest({ region: REGION }, async (req, res) => {
   if (!ensurePost(req, res)) return;
   const decoded = await requireAuth(req, res);
   if (!decoded) return;
+  if (await replayIdempotent(req, res, decoded.uid, "releaseBlockLock")) return;
 
   try {
     const { ownerId, noteId, blockId } = req.body || {};
@@ -560,7 +653,7 @@ exports.releaseBlockLock = onRequest({ region: REGION }, async (req, res) => {
         err.code = 423;
         throw err;
       }
-      tx.update(bRef, { lockHolder: null, lockUntil: null });
+      tx.update(bRef, { lockHolder: null, lockUntil: null, lockChangedAt: nowTs() });
     });
 
     setCors(res);
@@ -586,6 +679,7 @@ exports.updateBlock = onRequest({ region: REGION }, async (req, res) => {
   if (!ensurePost(req, res)) return;
   const decoded = await requireAuth(req, res);
   if (!decoded) return;
+  if (await replayIdempotent(req, res, decoded.uid, "updateBlock")) return;
 
   try {
     const { ownerId, noteId, blockId, text, type, index, expectedVersion } = req.body || {};
@@ -654,6 +748,133 @@ exports.updateBlock = onRequest({ region: REGION }, async (req, res) => {
   }
 });
 
+/** Apply a batch of block operations in one round trip
+ * body: { ownerId, noteId, ops: [
+ *   { op: "update", blockId, text?, type?, index?, expectedVersion? },
+ *   { op: "create", index, type?, text? },
+ *   { op: "delete", blockId, expectedVersion? },
+ *   { op: "releaseLock", blockId }
+ * ] }
+ * 回傳：{ success: true, results: [{ op: i, status, blockId?, version? }] }
+ *  - status: "ok" | "conflict"(409) | "locked"(423) | "notFound"(404) | "error"(400)
+ *  - 單一 op 失敗不影響其他 op；全部在同一個 transaction 內套用
+ */
+const MAX_BATCH_OPS = 200;
+exports.applyBlockBatch = onRequest({ region: REGION }, async (req, res) => {
+  if (maybeHandlePreflight(req, res)) return;
+  if (!ensurePost(req, res)) return;
+  const decoded = await requireAuth(req, res);
+  if (!decoded) return;
+  if (await replayIdempotent(req, res, decoded.uid, "applyBlockBatch")) return;
+
+  try {
+    const { ownerId, noteId, ops } = req.body || {};
+    if (!ownerId || !noteId || !Array.isArray(ops)) {
+      setCors(res);
+      return res.status(400).json({ error: "ownerId, noteId, ops required" });
+    }
+    if (ops.length > MAX_BATCH_OPS) {
+      setCors(res);
+      return res.status(400).json({ error: `at most ${MAX_BATCH_OPS} ops` });
+    }
+    await assertCanWriteNote({
+      targetOwnerId: ownerId,
+      noteId,
+      callerUid: decoded.uid,
+    });
+
+    const user = await admin.auth().getUser(decoded.uid);
+    const displayName = user.displayName || "";
+    const email = user.email || "";
+    const uid = decoded.uid;
+    const col = blocksCol(ownerId, noteId);
+
+    const results = await db.runTransaction(async (tx) => {
+      // Firestore transaction：先讀完所有相關 block，再依序在記憶體中套用
+      const ids = [...new Set(ops.filter((o) => o && o.blockId).map((o) => String(o.blockId)))];
+      const snaps = await Promise.all(ids.map((id) => tx.get(col.doc(id))));
+      const state = new Map();
+      snaps.forEach((snap, i) => state.set(ids[i], snap.exists ? { ...(snap.data() || {}) } : null));
+
+      const out = [];
+      const now = nowTs();
+      ops.forEach((o, i) => {
+        const kind = o && o.op;
+        if (kind === "create") {
+          if (typeof o.index !== "number") return out.push({ op: i, status: "error" });
+          const ref = col.doc();
+          const doc = {
+            index: Math.max(0, o.index),
+            type: typeof o.type === "string" ? o.type : "paragraph",
+            text: typeof o.text === "string" ? o.text : "",
+            version: 1,
+            updatedBy: uid,
+            updatedByDisplayName: displayName,
+            updatedByEmail: email,
+            updatedAt: now,
+            lockHolder: null,
+            lockUntil: null,
+          };
+          tx.set(ref, doc);
+          state.set(ref.id, doc);
+          return out.push({ op: i, status: "ok", blockId: ref.id, version: 1 });
+        }
+
+        const blockId = o && o.blockId ? String(o.blockId) : null;
+        if (!blockId) return out.push({ op: i, status: "error" });
+        const b = state.get(blockId);
+        if (!b) return out.push({ op: i, status: "notFound", blockId });
+
+        const lockedByOther = b.lockHolder && b.lockHolder !== uid && isLockActive(b.lockUntil);
+        const versionMismatch = Number.isInteger(o.expectedVersion) && b.version !== o.expectedVersion;
+
+        if (kind === "update") {
+          if (lockedByOther) return out.push({ op: i, status: "locked", blockId });
+          if (versionMismatch) return out.push({ op: i, status: "conflict", blockId, version: b.version });
+          const patch = {};
+          if (typeof o.text === "string") patch.text = o.text;
+          if (typeof o.type === "string") patch.type = o.type;
+          if (Number.isInteger(o.index)) patch.index = o.index;
+          patch.version = (b.version || 1) + 1;
+          patch.updatedBy = uid;
+          patch.updatedByDisplayName = displayName;
+          patch.updatedByEmail = email;
+          patch.updatedAt = now;
+          tx.update(col.doc(blockId), patch);
+          Object.assign(b, patch);
+          return out.push({ op: i, status: "ok", blockId, version: patch.version });
+        }
+        if (kind === "delete") {
+          if (lockedByOther) return out.push({ op: i, status: "locked", blockId });
+          if (versionMismatch) return out.push({ op: i, status: "conflict", blockId, version: b.version });
+          tx.delete(col.doc(blockId));
+          tx.set(tombstonesCol(ownerId, noteId).doc(blockId), { deletedAt: now, deletedBy: uid });
+          state.set(blockId, null);
+          return out.push({ op: i, status: "ok", blockId });
+        }
+        if (kind === "releaseLock") {
+          if (b.lockHolder !== uid) return out.push({ op: i, status: "locked", blockId });
+          tx.update(col.doc(blockId), { lockHolder: null, lockUntil: null, lockChangedAt: nowTs() });
+          b.lockHolder = null;
+          b.lockUntil = null;
+          return out.push({ op: i, status: "ok", blockId });
+        }
+        return out.push({ op: i, status: "error", blockId });
+      });
+      return out;
+    });
+
+    setCors(res);
+    return res.json({ success: true, results });
+  } catch (err) {
+    console.error("applyBlockBatch error:", err);
+    setCors(res);
+    if (err.code === 403) return res.status(403).json({ error: "Permission denied" });
+    if (err.code === 404) return res.status(404).json({ error: "Not found" });
+    return res.status(500).json({ error: "Internal error" });
+  }
+});
+
 /**
  * Set Collaborators
  * body: { ownerId, noteId (或 id), collaborators: [uid1, uid2, ...] }
@@ -664,6 +885,7 @@ exports.setCollaborators = onRequest({ region: REGION }, async (req, res) => {
   if (!ensurePost(req, res)) return;
   const decoded = await requireAuth(req, res);
   if (!decoded) return;
+  if (await replayIdempotent(req, res, decoded.uid, "setCollaborators")) return;
 
   try {
     const { ownerId } = req.body || {};